@@ -0,0 +1,158 @@
+package org.odk.collect.android.dao;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.database.helpers.InstancesDatabaseHelper;
+import org.odk.collect.android.provider.InstanceProviderAPI;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import timber.log.Timber;
+
+import static org.odk.collect.android.database.helpers.InstancesDatabaseHelper.INSTANCES_TABLE_NAME;
+import static org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+
+/**
+ * Compares the time the most frequent instance queries take on a device with 50,000 instances,
+ * most of them sent, with and without the indexes of the instances table.
+ */
+@RunWith(AndroidJUnit4.class)
+public class InstancesQueryBenchmarkTest {
+
+    private static final int INSTANCE_COUNT = 50_000;
+    private static final int PATH_LOOKUP_COUNT = 1_000;
+
+    /**
+     * One instance in this many hasn't been sent.
+     */
+    private static final int UNSENT_INTERVAL = 20;
+
+    private static final String[] UNSENT_STATUSES = {
+            InstanceProviderAPI.STATUS_INCOMPLETE,
+            InstanceProviderAPI.STATUS_COMPLETE,
+            InstanceProviderAPI.STATUS_SUBMISSION_FAILED};
+
+    @Ignore("This benchmark isn't part of the suite so it should be run manually.")
+    @Test
+    public void compareQueryTimes() {
+        File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+
+        File indexedDbFile = new File(dir, "indexed.db");
+        indexedDbFile.delete();
+        SQLiteDatabase indexedDb = createDatabase(indexedDbFile, true);
+
+        File unindexedDbFile = new File(dir, "unindexed.db");
+        unindexedDbFile.delete();
+        SQLiteDatabase unindexedDb = createDatabase(unindexedDbFile, false);
+
+        try {
+            Timber.i("Sent instances: without indexes %d ms, with indexes %d ms",
+                    timeSentInstances(unindexedDb), timeSentInstances(indexedDb));
+            Timber.i("Unsent instances: without indexes %d ms, with indexes %d ms",
+                    timeUnsentInstances(unindexedDb), timeUnsentInstances(indexedDb));
+            Timber.i("Finalized instances: without indexes %d ms, with indexes %d ms",
+                    timeFinalizedInstances(unindexedDb), timeFinalizedInstances(indexedDb));
+            Timber.i("%d lookups by path: without indexes %d ms, with indexes %d ms", PATH_LOOKUP_COUNT,
+                    timePathLookups(unindexedDb), timePathLookups(indexedDb));
+        } finally {
+            indexedDb.close();
+            unindexedDb.close();
+            indexedDbFile.delete();
+            unindexedDbFile.delete();
+        }
+    }
+
+    private static SQLiteDatabase createDatabase(File dbFile, boolean withIndexes) {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        new InstancesDatabaseHelper().onCreate(db);
+
+        if (!withIndexes) {
+            List<String> indexes = new ArrayList<>();
+            try (Cursor cursor = db.rawQuery("SELECT name FROM sqlite_master WHERE type = 'index' AND tbl_name = ?",
+                    new String[]{INSTANCES_TABLE_NAME})) {
+                while (cursor.moveToNext()) {
+                    indexes.add(cursor.getString(0));
+                }
+            }
+            for (String index : indexes) {
+                db.execSQL("DROP INDEX " + index);
+            }
+        }
+
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < INSTANCE_COUNT; i++) {
+                ContentValues values = new ContentValues();
+                values.put(InstanceColumns.DISPLAY_NAME, "Form " + (i % 50));
+                values.put(InstanceColumns.INSTANCE_FILE_PATH, getInstancePath(i));
+                values.put(InstanceColumns.JR_FORM_ID, "form" + (i % 50));
+                values.put(InstanceColumns.STATUS, i % UNSENT_INTERVAL == 0
+                        ? UNSENT_STATUSES[i / UNSENT_INTERVAL % UNSENT_STATUSES.length]
+                        : InstanceProviderAPI.STATUS_SUBMITTED);
+                values.put(InstanceColumns.LAST_STATUS_CHANGE_DATE, System.currentTimeMillis());
+                values.put(InstanceColumns.DISPLAY_SUBTEXT, "Saved");
+                db.insertOrThrow(INSTANCES_TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return db;
+    }
+
+    private static long timeSentInstances(SQLiteDatabase db) {
+        long start = System.currentTimeMillis();
+        readAll(db.query(INSTANCES_TABLE_NAME, null, InstanceColumns.STATUS + " =? ",
+                new String[]{InstanceProviderAPI.STATUS_SUBMITTED}, null, null, InstanceColumns.DISPLAY_NAME + " ASC"));
+        return System.currentTimeMillis() - start;
+    }
+
+    private static long timeUnsentInstances(SQLiteDatabase db) {
+        long start = System.currentTimeMillis();
+        readAll(db.query(INSTANCES_TABLE_NAME, null, InstanceColumns.STATUS + " IN (?, ?, ?, ?) ",
+                new String[]{InstanceProviderAPI.STATUS_INCOMPLETE, InstanceProviderAPI.STATUS_FINALIZING,
+                        InstanceProviderAPI.STATUS_COMPLETE, InstanceProviderAPI.STATUS_SUBMISSION_FAILED},
+                null, null, InstanceColumns.STATUS + " DESC, " + InstanceColumns.DISPLAY_NAME + " ASC"));
+        return System.currentTimeMillis() - start;
+    }
+
+    private static long timeFinalizedInstances(SQLiteDatabase db) {
+        long start = System.currentTimeMillis();
+        readAll(db.query(INSTANCES_TABLE_NAME, null, InstanceColumns.STATUS + "=? or " + InstanceColumns.STATUS + "=?",
+                new String[]{InstanceProviderAPI.STATUS_COMPLETE, InstanceProviderAPI.STATUS_SUBMISSION_FAILED},
+                null, null, InstanceColumns.DISPLAY_NAME + " ASC"));
+        return System.currentTimeMillis() - start;
+    }
+
+    private static long timePathLookups(SQLiteDatabase db) {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < PATH_LOOKUP_COUNT; i++) {
+            readAll(db.query(INSTANCES_TABLE_NAME, null, InstanceColumns.INSTANCE_FILE_PATH + "=?",
+                    new String[]{getInstancePath(i * (INSTANCE_COUNT / PATH_LOOKUP_COUNT))}, null, null, null));
+        }
+        return System.currentTimeMillis() - start;
+    }
+
+    private static void readAll(Cursor cursor) {
+        try {
+            while (cursor.moveToNext()) {
+                cursor.getString(0);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static String getInstancePath(int i) {
+        return "/sdcard/odk/instances/instance" + i + "/instance" + i + ".xml";
+    }
+}
@@ -0,0 +1,129 @@
+package org.odk.collect.android.external;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+import au.com.bytecode.opencsv.CSVReader;
+import timber.log.Timber;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the time it takes {@link ExternalSQLiteOpenHelper} to import external data CSVs of
+ * different sizes with the row-at-a-time import it replaced.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ExternalDataImportBenchmarkTest {
+
+    private static final int[] ROW_COUNTS = {10_000, 100_000, 1_000_000};
+
+    @Ignore("This benchmark isn't part of the suite so it should be run manually.")
+    @Test
+    public void compareImportTimes() throws IOException {
+        File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+
+        for (int rowCount : ROW_COUNTS) {
+            File csv = createCsv(dir, rowCount);
+
+            File legacyDbFile = new File(dir, "legacy.db");
+            legacyDbFile.delete();
+            long start = System.currentTimeMillis();
+            legacyImport(csv, legacyDbFile);
+            long legacyMillis = System.currentTimeMillis() - start;
+            assertEquals(rowCount, countRows(legacyDbFile));
+
+            File bulkDbFile = new File(dir, "bulk.db");
+            bulkDbFile.delete();
+            start = System.currentTimeMillis();
+            ExternalSQLiteOpenHelper helper = new ExternalSQLiteOpenHelper(bulkDbFile);
+            helper.importFromCSV(csv, externalDataMap -> { }, null);
+            long bulkMillis = System.currentTimeMillis() - start;
+            assertEquals(rowCount, countRows(bulkDbFile));
+
+            Timber.i("Importing %d rows: row at a time %d ms, bulk %d ms", rowCount, legacyMillis, bulkMillis);
+
+            csv.delete();
+            legacyDbFile.delete();
+            bulkDbFile.delete();
+        }
+    }
+
+    private static File createCsv(File dir, int rowCount) throws IOException {
+        File csv = new File(dir, "benchmark.csv");
+        BufferedWriter writer = new BufferedWriter(new FileWriter(csv));
+        try {
+            writer.write("name,label,district_key,population\n");
+            for (int i = 0; i < rowCount; i++) {
+                writer.write("village" + i + ",\"Village " + i + ", District " + (i % 500) + "\",district"
+                        + (i % 500) + "," + (i * 7 % 10000) + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        return csv;
+    }
+
+    /**
+     * The import as it was done before bulk inserts: one ContentValues insert per row in a
+     * single transaction, with every column name sanitized again for every row.
+     */
+    private static void legacyImport(File csv, File dbFile) throws IOException {
+        SQLiteDatabase db = SQLiteDatabase.openOrCreateDatabase(dbFile, null);
+        CSVReader reader = new CSVReader(new InputStreamReader(new FileInputStream(csv), "UTF-8"),
+                ',', '"', '\0');
+        try {
+            String[] headerRow = reader.readNext();
+            StringBuilder sb = new StringBuilder("CREATE TABLE ")
+                    .append(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME).append(" (");
+            for (String header : headerRow) {
+                sb.append(ExternalDataUtil.toSafeColumnName(header)).append(" text collate nocase, ");
+            }
+            sb.append(ExternalDataUtil.SORT_COLUMN_NAME).append(" real)");
+            db.execSQL(sb.toString());
+
+            db.beginTransaction();
+            String[] row;
+            int rowCount = 0;
+            while ((row = reader.readNext()) != null) {
+                ContentValues values = new ContentValues();
+                values.put(ExternalDataUtil.SORT_COLUMN_NAME, ++rowCount);
+                for (int i = 0; i < row.length && i < headerRow.length; i++) {
+                    values.put(ExternalDataUtil.toSafeColumnName(headerRow[i]), row[i]);
+                }
+                db.insertOrThrow(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, null, values);
+            }
+            db.setTransactionSuccessful();
+            db.endTransaction();
+
+            db.execSQL("CREATE INDEX district_key_idx ON " + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME
+                    + " (" + ExternalDataUtil.toSafeColumnName("district_key") + ")");
+        } finally {
+            reader.close();
+            db.close();
+        }
+    }
+
+    private static long countRows(File dbFile) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try {
+            return DatabaseUtils.queryNumEntries(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+        } finally {
+            db.close();
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.odk.collect.android.external;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(AndroidJUnit4.class)
+public class ExternalSQLiteOpenHelperTest {
+
+    private static final ExternalDataReader READER = externalDataMap -> { };
+
+    private File csv;
+    private File dbFile;
+
+    @Before
+    public void setUp() {
+        File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        csv = new File(dir, "fruits.csv");
+        dbFile = new File(dir, "fruits.db");
+        dbFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        csv.delete();
+        dbFile.delete();
+    }
+
+    @Test
+    public void importChanges_appliesAddedRemovedAndMovedRows() throws IOException {
+        writeCsv("name,label\napple,Apple\nbanana,Banana\ncherry,Cherry\n");
+        new ExternalSQLiteOpenHelper(dbFile).importFromCSV(csv, READER, null);
+
+        writeCsv("name,label\ncherry,Cherry\napple,Apple\ndate,Date\n");
+        assertTrue(new ExternalSQLiteOpenHelper(dbFile).importChangesFromCSV(csv, READER, null));
+
+        List<String> rows = readRows();
+        assertEquals(3, rows.size());
+        assertEquals("cherry", rows.get(0));
+        assertEquals("apple", rows.get(1));
+        assertEquals("date", rows.get(2));
+    }
+
+    @Test
+    public void importChanges_keepsDuplicateRows() throws IOException {
+        writeCsv("name,label\napple,Apple\napple,Apple\n");
+        new ExternalSQLiteOpenHelper(dbFile).importFromCSV(csv, READER, null);
+
+        writeCsv("name,label\napple,Apple\napple,Apple\napple,Apple\n");
+        assertTrue(new ExternalSQLiteOpenHelper(dbFile).importChangesFromCSV(csv, READER, null));
+
+        assertEquals(3, readRows().size());
+    }
+
+    @Test
+    public void importChanges_refusesChangedColumns() throws IOException {
+        writeCsv("name,label\napple,Apple\n");
+        new ExternalSQLiteOpenHelper(dbFile).importFromCSV(csv, READER, null);
+
+        writeCsv("name,label,color\napple,Apple,red\n");
+        assertFalse(new ExternalSQLiteOpenHelper(dbFile).importChangesFromCSV(csv, READER, null));
+    }
+
+    @Test
+    public void searchIndex_findsWordsContainingTheSearchedText() throws IOException {
+        writeCsv("name,label\ngreenville,Greenville\nbrookside,Brookside\n");
+        ExternalSQLiteOpenHelper helper = importWithSearchIndex("c_label");
+
+        try {
+            assertEquals(1, countMatches(helper, "c_label", "VILL"));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void searchIndex_findsCapitalisedAccentedWords() throws IOException {
+        writeCsv("name,label\nemile,Émile Zola\nemilie,émilie\n");
+        ExternalSQLiteOpenHelper helper = importWithSearchIndex("c_label");
+
+        try {
+            // like the LIKE expression, only ASCII letters match regardless of their case
+            assertEquals(1, countMatches(helper, "c_label", "ÉMILE"));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void searchIndex_onlyCoversTheSearchedColumns() throws IOException {
+        writeCsv("name,label\ngreenville,Greenville\n");
+        ExternalSQLiteOpenHelper helper = new ExternalSQLiteOpenHelper(dbFile);
+        helper.importFromCSV(csv, READER, null);
+
+        try {
+            assertNull(helper.getSearchIndex(Collections.singletonList("c_label")));
+
+            helper.createSearchIndex(Collections.singletonList("c_label"), null);
+            assertNotNull(helper.getSearchIndex(Collections.singletonList("c_label")));
+            assertNull(helper.getSearchIndex(Arrays.asList("c_name", "c_label")));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void searchIndex_isUpdatedWhenChangesAreImported() throws IOException {
+        writeCsv("name,label\ngreenville,Greenville\nbrookside,Brookside\n");
+        importWithSearchIndex("c_name", "c_label").close();
+
+        writeCsv("name,label\nbrookside,Brookside\nriverside,Riverside\n");
+        ExternalSQLiteOpenHelper helper = new ExternalSQLiteOpenHelper(dbFile);
+        assertTrue(helper.importChangesFromCSV(csv, READER, null));
+
+        try {
+            assertNotNull(helper.getSearchIndex(Arrays.asList("c_name", "c_label")));
+            assertEquals(2, countMatches(helper, "c_label", "SIDE"));
+            assertEquals(0, countMatches(helper, "c_name", "VILL"));
+        } finally {
+            helper.close();
+        }
+    }
+
+    @Test
+    public void searchIndex_isNullForColumnsThatAreNotInTheData() throws IOException {
+        writeCsv("name,label\ngreenville,Greenville\n");
+        ExternalSQLiteOpenHelper helper = importWithSearchIndex("c_color");
+
+        try {
+            assertNull(helper.getSearchIndex(Collections.singletonList("c_color")));
+        } finally {
+            helper.close();
+        }
+    }
+
+    private ExternalSQLiteOpenHelper importWithSearchIndex(String... searchedColumns) {
+        ExternalSQLiteOpenHelper helper = new ExternalSQLiteOpenHelper(dbFile);
+        helper.importFromCSV(csv, READER, null);
+        helper.createSearchIndex(Arrays.asList(searchedColumns), null);
+        return helper;
+    }
+
+    private static int countMatches(ExternalSQLiteOpenHelper helper, String column, String value) {
+        String searchIndex = helper.getSearchIndex(Collections.singletonList(column));
+        SQLiteDatabase db = helper.getReadableDatabase();
+        try (Cursor c = db.rawQuery("SELECT docid FROM " + searchIndex + " WHERE " + searchIndex
+                + " MATCH ?", new String[]{ExternalSearchIndex.createMatchQuery(column, value)})) {
+            return c.getCount();
+        }
+    }
+
+    private void writeCsv(String contents) throws IOException {
+        FileWriter writer = new FileWriter(csv);
+        writer.write(contents);
+        writer.close();
+    }
+
+    private List<String> readRows() {
+        List<String> rows = new ArrayList<>();
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(dbFile.getAbsolutePath(), null,
+                SQLiteDatabase.OPEN_READONLY);
+        try (Cursor c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, new String[]{"c_name"},
+                null, null, null, null, ExternalDataUtil.SORT_COLUMN_NAME)) {
+            while (c.moveToNext()) {
+                rows.add(c.getString(0));
+            }
+        } finally {
+            db.close();
+        }
+        return rows;
+    }
+}
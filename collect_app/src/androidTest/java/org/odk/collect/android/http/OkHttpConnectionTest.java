@@ -0,0 +1,159 @@
+package org.odk.collect.android.http;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.odk.collect.android.test.MockedServerTest;
+import org.odk.collect.android.utilities.ResponseMessageParser;
+
+import java.io.File;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.odk.collect.android.test.TestUtils.assertMatches;
+import static org.odk.collect.android.test.TestUtils.cleanUpTempFiles;
+import static org.odk.collect.android.test.TestUtils.createTempFile;
+
+public class OkHttpConnectionTest extends MockedServerTest {
+
+    private OkHttpConnection connection;
+
+    @Before
+    public void setUp() {
+        connection = new OkHttpConnection();
+        HttpCallMetrics.reset();
+    }
+
+    @After
+    public void tearDown() {
+        cleanUpTempFiles();
+    }
+
+    @Test
+    public void getShouldReturnTheBodyAndHashOfXml() throws Exception {
+        willRespondWith(xmlResponse("<forms/>"));
+
+        HttpGetResult result = connection.get(uri("/formList"), "text/xml", null, null);
+
+        assertEquals(200, result.getStatusCode());
+        assertEquals("<forms/>", readFully(result.getInputStream()));
+        assertFalse(result.getHash().isEmpty());
+        assertTrue(result.isOpenRosaResponse());
+
+        RecordedRequest r = nextRequest();
+        assertEquals("GET", r.getMethod());
+        assertEquals("1.0", r.getHeader("X-OpenRosa-Version"));
+        assertMatches("Dalvik/.* org.odk.collect.android/.*", r.getHeader("User-Agent"));
+    }
+
+    @Test
+    public void requestsToTheSameServerShouldReuseTheConnection() throws Exception {
+        willRespondWith(xmlResponse("<forms/>"), xmlResponse("<manifest/>"), xmlResponse("<manifest/>"));
+
+        connection.get(uri("/formList"), "text/xml", null, null);
+        connection.get(uri("/xformsManifest?formId=a"), "text/xml", null, null);
+        connection.get(uri("/xformsManifest?formId=b"), "text/xml", null, null);
+
+        assertEquals(3, HttpCallMetrics.getCallCount());
+        assertTrue(HttpCallMetrics.getConnectionReuseRate() > 0.5);
+    }
+
+    @Test
+    public void getShouldReturnOnlyTheStatusCodeOfAFailedRequest() throws Exception {
+        willRespondWith(join(
+                "HTTP/1.1 404 Not Found\r",
+                "Content-Length: 0\r",
+                "\r"));
+
+        HttpGetResult result = connection.get(uri("/formList"), "text/xml", null, null);
+
+        assertEquals(404, result.getStatusCode());
+        assertNull(result.getInputStream());
+    }
+
+    @Test
+    public void headShouldReturnTheHeadersOfANoContentResponse() throws Exception {
+        willRespondWith(join(
+                "HTTP/1.1 204 No Content\r",
+                "X-OpenRosa-Version: 1.0\r",
+                "X-OpenRosa-Accept-Content-Length: 10485760\r",
+                "Location: " + uri("/submission") + "\r",
+                "\r"));
+
+        HttpHeadResult result = connection.head(uri("/submission"), null);
+
+        assertEquals(204, result.getStatusCode());
+        assertEquals("10485760", result.getHeaders().get("X-OpenRosa-Accept-Content-Length"));
+        assertNull(result.getAuthScheme());
+        assertEquals("HEAD", nextRequest().getMethod());
+    }
+
+    @Test
+    public void uploadShouldSplitLargeSubmissionsAndReportTheAcceptedParts() throws Exception {
+        willRespondWith(createdResponse(), createdResponse());
+
+        File submission = createTempFile("<data/>");
+        File first = createTempFile("first attachment");
+        File second = createTempFile("second attachment");
+
+        final List<File> accepted = new ArrayList<>();
+        ResponseMessageParser parser = connection.uploadSubmissionFile(Arrays.asList(first, second),
+                submission, uri("/submission"), null, 20, new OpenRosaHttpInterface.SubmissionPartListener() {
+                    @Override
+                    public void partAccepted(List<File> attachments) {
+                        accepted.addAll(attachments);
+                    }
+                });
+
+        assertEquals(201, parser.getResponseCode());
+        assertEquals(Arrays.asList(first), accepted);
+
+        String firstBody = nextRequest().getBody().readUtf8();
+        assertTrue(firstBody.contains("name=\"xml_submission_file\""));
+        assertTrue(firstBody.contains("*isIncomplete*"));
+
+        String secondBody = nextRequest().getBody().readUtf8();
+        assertTrue(secondBody.contains("second attachment"));
+        assertFalse(secondBody.contains("*isIncomplete*"));
+    }
+
+    private URI uri(String path) {
+        return URI.create(server.url(path).toString());
+    }
+
+    private static String xmlResponse(String body) {
+        return join(
+                "HTTP/1.1 200 OK\r",
+                "X-OpenRosa-Version: 1.0\r",
+                "Content-Type: text/xml; charset=utf-8\r",
+                "\r",
+                body);
+    }
+
+    private static String createdResponse() {
+        return join(
+                "HTTP/1.1 201 Created\r",
+                "X-OpenRosa-Version: 1.0\r",
+                "Content-Type: text/xml; charset=utf-8\r",
+                "\r",
+                "<OpenRosaResponse xmlns=\"http://openrosa.org/http/response\"><message>success</message></OpenRosaResponse>");
+    }
+
+    private static String readFully(InputStream inputStream) throws Exception {
+        StringBuilder builder = new StringBuilder();
+        int c;
+        while ((c = inputStream.read()) != -1) {
+            builder.append((char) c);
+        }
+        return builder.toString().trim();
+    }
+}
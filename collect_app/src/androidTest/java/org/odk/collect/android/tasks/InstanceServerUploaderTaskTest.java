@@ -7,12 +7,17 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.InstancesDao;
 import org.odk.collect.android.dto.Instance;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.test.MockedServerTest;
+import org.odk.collect.android.upload.ServerCapabilityCache;
 
 import java.io.File;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import okhttp3.mockwebserver.RecordedRequest;
 
@@ -34,12 +39,14 @@ public class InstanceServerUploaderTaskTest extends MockedServerTest {
     public void setUp() throws Exception {
         resetInstancesContentProvider();
         dao = new InstancesDao();
+        new ServerCapabilityCache(Collect.getInstance()).clear();
     }
 
     @After
     public void tearDown() throws Exception {
         cleanUpTempFiles();
         resetInstancesContentProvider();
+        new ServerCapabilityCache(Collect.getInstance()).clear();
     }
 
     @Test
@@ -87,6 +94,55 @@ public class InstanceServerUploaderTaskTest extends MockedServerTest {
         }
     }
 
+    @Test
+    public void shouldNotRepeatTheHeadRequestForTheSameServer() throws Exception {
+        // given
+        Long firstId = createStoredInstance();
+        willRespondWith(headResponse(), postResponse());
+        new InstanceServerUploaderTask().doInBackground(firstId);
+        nextRequest();
+        nextRequest();
+
+        // and
+        Long secondId = createStoredInstance();
+        willRespondWith(postResponse());
+
+        // when
+        InstanceUploaderTask.Outcome o = new InstanceServerUploaderTask().doInBackground(secondId);
+
+        // then
+        assertEquals("success", o.messagesByInstanceId.get(secondId.toString()));
+        assertEquals("POST", nextRequest().getMethod());
+        assertNull(nextRequest());
+    }
+
+    @Test
+    public void shouldUploadSeveralInstancesConcurrently() throws Exception {
+        // given
+        Long[] ids = new Long[6];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = createStoredInstance();
+        }
+        Map<String, String> responses = new HashMap<>();
+        responses.put("HEAD", headResponse());
+        responses.put("POST", postResponse());
+        willRespondToMethods(responses);
+
+        // when
+        InstanceUploaderTask.Outcome o = new InstanceServerUploaderTask().doInBackground(ids);
+
+        // then
+        assertNull(o.authRequestingServer);
+        assertEquals(ids.length, o.messagesByInstanceId.size());
+        for (Long id : ids) {
+            assertEquals("success", o.messagesByInstanceId.get(id.toString()));
+        }
+
+        // and
+        List<Instance> sentInstances = dao.getInstancesFromCursor(dao.getSentInstancesCursor());
+        assertEquals(ids.length, sentInstances.size());
+    }
+
     private long createStoredInstance() throws Exception {
         File xml = createTempFile("<form-content-here/>");
 
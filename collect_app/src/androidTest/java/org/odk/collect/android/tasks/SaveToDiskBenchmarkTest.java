@@ -0,0 +1,108 @@
+package org.odk.collect.android.tasks;
+
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.services.transport.payload.ByteArrayPayload;
+import org.javarosa.model.xform.XFormSerializingVisitor;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import timber.log.Timber;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures how long it takes to save instances with many repeats, both with
+ * {@link SaveToDiskTask#writeFile} and with the synchronous write it replaced.
+ */
+@RunWith(AndroidJUnit4.class)
+public class SaveToDiskBenchmarkTest {
+
+    private static final int[] REPEAT_COUNTS = {5_000, 20_000};
+    private static final int SAVES_PER_SIZE = 5;
+
+    @Ignore("This benchmark isn't part of the suite so it should be run manually.")
+    @Test
+    public void compareSaveTimes() throws IOException {
+        File dir = InstrumentationRegistry.getTargetContext().getCacheDir();
+        File instanceFile = new File(dir, "benchmark.xml");
+
+        for (int repeatCount : REPEAT_COUNTS) {
+            FormInstance instance = createInstance(repeatCount);
+
+            long serializeMillis = 0;
+            long legacyMillis = 0;
+            long atomicMillis = 0;
+            for (int i = 0; i < SAVES_PER_SIZE; i++) {
+                long start = System.currentTimeMillis();
+                ByteArrayPayload payload = (ByteArrayPayload) new XFormSerializingVisitor()
+                        .createSerializedPayload(instance);
+                serializeMillis += System.currentTimeMillis() - start;
+
+                start = System.currentTimeMillis();
+                legacyWriteFile(payload, instanceFile);
+                legacyMillis += System.currentTimeMillis() - start;
+                assertEquals(payload.getLength(), instanceFile.length());
+
+                start = System.currentTimeMillis();
+                SaveToDiskTask.writeFile(payload, instanceFile.getAbsolutePath());
+                atomicMillis += System.currentTimeMillis() - start;
+                assertEquals(payload.getLength(), instanceFile.length());
+            }
+
+            Timber.i("Saving %d repeats: serializing %d ms, synchronous write %d ms, atomic write %d ms",
+                    repeatCount, serializeMillis / SAVES_PER_SIZE, legacyMillis / SAVES_PER_SIZE,
+                    atomicMillis / SAVES_PER_SIZE);
+        }
+
+        instanceFile.delete();
+    }
+
+    private static FormInstance createInstance(int repeatCount) {
+        TreeElement root = new TreeElement("data");
+        for (int i = 0; i < repeatCount; i++) {
+            TreeElement repeat = new TreeElement("household", i);
+            repeat.addChild(createAnswer("name", "Household " + i));
+            repeat.addChild(createAnswer("members", Integer.toString(i % 12)));
+            repeat.addChild(createAnswer("location", "-1.2921 36.8219 1650 5"));
+            root.addChild(repeat);
+        }
+        return new FormInstance(root);
+    }
+
+    private static TreeElement createAnswer(String name, String value) {
+        TreeElement answer = new TreeElement(name);
+        answer.setValue(new StringData(value));
+        return answer;
+    }
+
+    /**
+     * The write as it was done before: delete the file, copy the payload into a new array and
+     * write it in "rws" mode.
+     */
+    private static void legacyWriteFile(ByteArrayPayload payload, File file) throws IOException {
+        file.delete();
+
+        InputStream is = payload.getPayloadStream();
+        int len = (int) payload.getLength();
+        byte[] data = new byte[len];
+        is.read(data, 0, len);
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rws");
+        try {
+            randomAccessFile.write(data);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
@@ -11,6 +11,7 @@ import org.junit.Before;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.preferences.GeneralKeys;
 
+import okhttp3.mockwebserver.Dispatcher;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.MockWebServer;
 import okhttp3.mockwebserver.RecordedRequest;
@@ -43,23 +44,22 @@ public abstract class MockedServerTest {
 
     protected void willRespondWith(String... rawResponses) {
         for (String rawResponse : rawResponses) {
-            MockResponse response = new MockResponse();
-
-            String[] parts = rawResponse.split("\r\n\r\n", 2);
-
-            String[] headerLines = parts[0].split("\r\n");
-
-            response.setStatus(headerLines[0]);
+            server.enqueue(mockResponse(rawResponse));
+        }
+    }
 
-            for (int i = 1; i < headerLines.length; ++i) {
-                String[] headerParts = headerLines[i].split(": ", 2);
-                response.addHeader(headerParts[0], headerParts[1]);
+    /**
+     * Responds to every request with the response given for its method, whatever order the
+     * requests arrive in. Useful when requests are made concurrently.
+     */
+    protected void willRespondToMethods(final Map<String, String> rawResponsesByMethod) {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                String rawResponse = rawResponsesByMethod.get(request.getMethod());
+                return rawResponse != null ? mockResponse(rawResponse) : new MockResponse().setResponseCode(404);
             }
-
-            response.setBody(parts[1]);
-
-            server.enqueue(response);
-        }
+        });
     }
 
     protected RecordedRequest nextRequest() throws Exception {
@@ -74,6 +74,25 @@ public abstract class MockedServerTest {
         return bob.toString();
     }
 
+    private static MockResponse mockResponse(String rawResponse) {
+        MockResponse response = new MockResponse();
+
+        String[] parts = rawResponse.split("\r\n\r\n", 2);
+
+        String[] headerLines = parts[0].split("\r\n");
+
+        response.setStatus(headerLines[0]);
+
+        for (int i = 1; i < headerLines.length; ++i) {
+            String[] headerParts = headerLines[i].split(": ", 2);
+            response.addHeader(headerParts[0], headerParts[1]);
+        }
+
+        response.setBody(parts[1]);
+
+        return response;
+    }
+
     private static MockWebServer mockWebServer() throws Exception {
         MockWebServer server = new MockWebServer();
         server.start();
@@ -5,6 +5,7 @@ import org.junit.Test;
 import org.odk.collect.android.http.CollectServerClient;
 import org.odk.collect.android.http.HttpClientConnection;
 import org.odk.collect.android.test.MockedServerTest;
+import org.xmlpull.v1.XmlPullParser;
 import okhttp3.mockwebserver.MockResponse;
 import okhttp3.mockwebserver.RecordedRequest;
 
@@ -16,6 +17,12 @@ import static org.odk.collect.android.test.TestUtils.assertMatches;
 public class CollectServerClientTest extends MockedServerTest {
 
     private CollectServerClient collectServerClient;
+    private final CollectServerClient.XmlDocumentHandler handler = new CollectServerClient.XmlDocumentHandler() {
+        @Override
+        public void parse(XmlPullParser parser, boolean isOpenRosaResponse) {
+            // only the requests are checked
+        }
+    };
 
     @Before
     public void setUp() throws Exception {
@@ -36,9 +43,9 @@ public class CollectServerClientTest extends MockedServerTest {
         }
 
     @Test
-    public void getXmlDocument_request_shouldSupplyHeader_UserAgent() throws Exception {
+    public void parseXmlDocument_request_shouldSupplyHeader_UserAgent() throws Exception {
         // when
-        collectServerClient.getXmlDocument(url("/list-forms"));
+        collectServerClient.parseXmlDocument(url("/list-forms"), handler);
 
         // then
         String header = nextRequest().getHeader("User-Agent");
@@ -47,9 +54,9 @@ public class CollectServerClientTest extends MockedServerTest {
     }
 
     @Test
-    public void getXmlDocument_request_shouldSupplyHeader_X_OpenRosa_Version() throws Exception {
+    public void parseXmlDocument_request_shouldSupplyHeader_X_OpenRosa_Version() throws Exception {
         // when
-        collectServerClient.getXmlDocument(url("/list-forms"));
+        collectServerClient.parseXmlDocument(url("/list-forms"), handler);
 
         // then
         assertEquals("1.0",
@@ -57,9 +64,9 @@ public class CollectServerClientTest extends MockedServerTest {
     }
 
     @Test
-    public void getXmlDocument_request_shouldSupplyHeader_AcceptEncoding_gzip() throws Exception {
+    public void parseXmlDocument_request_shouldSupplyHeader_AcceptEncoding_gzip() throws Exception {
         // when
-        collectServerClient.getXmlDocument(url("/list-forms"));
+        collectServerClient.parseXmlDocument(url("/list-forms"), handler);
 
         // then
         assertEquals("gzip",
@@ -67,18 +74,18 @@ public class CollectServerClientTest extends MockedServerTest {
     }
 
     @Test
-    public void getXmlDocument_request_shouldNotSupplyHeader_Authorization_forHttpRequest() throws Exception {
+    public void parseXmlDocument_request_shouldNotSupplyHeader_Authorization_forHttpRequest() throws Exception {
         // when
-        collectServerClient.getXmlDocument(url("/list-forms"));
+        collectServerClient.parseXmlDocument(url("/list-forms"), handler);
 
         // then
         assertNull(nextRequest().getHeader("Authorization"));
     }
 
     @Test
-    public void getXmlDocument_request_shouldReportInvalidUrl() throws Exception {
+    public void parseXmlDocument_request_shouldReportInvalidUrl() throws Exception {
         // when
-        DocumentFetchResult res = collectServerClient.getXmlDocument("NOT_A_URL");
+        DocumentFetchResult res = collectServerClient.parseXmlDocument("NOT_A_URL", handler);
 
         // then
         assertEquals(0, res.responseCode);
@@ -86,9 +93,9 @@ public class CollectServerClientTest extends MockedServerTest {
     }
 
     @Test
-    public void getXmlDocument_request_shouldReportInvalidHost() throws Exception {
+    public void parseXmlDocument_request_shouldReportInvalidHost() throws Exception {
         // when
-        DocumentFetchResult res = collectServerClient.getXmlDocument("file:/some/path");
+        DocumentFetchResult res = collectServerClient.parseXmlDocument("file:/some/path", handler);
 
         // then
         assertEquals(0, res.responseCode);
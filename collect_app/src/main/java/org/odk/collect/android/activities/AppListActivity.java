@@ -18,6 +18,7 @@ package org.odk.collect.android.activities;
 
 import android.database.Cursor;
 import android.os.Bundle;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.support.annotation.LayoutRes;
 import android.support.annotation.NonNull;
@@ -59,6 +60,11 @@ abstract class AppListActivity extends CollectAbstractActivity {
     private static final String IS_BOTTOM_DIALOG_SHOWN = "isBottomDialogShown";
     private static final String SEARCH_TEXT = "searchText";
 
+    /**
+     * The list is filtered once typing pauses for this long rather than on every key.
+     */
+    private static final long SEARCH_DELAY_MILLIS = 300;
+
     protected CursorAdapter listAdapter;
     protected LinkedHashSet<Long> selectedInstances = new LinkedHashSet<>();
     protected String[] sortingOptions;
@@ -75,6 +81,14 @@ abstract class AppListActivity extends CollectAbstractActivity {
 
     private SearchView searchView;
 
+    private final Handler searchHandler = new Handler();
+    private final Runnable searchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateAdapter();
+        }
+    };
+
     private boolean canHideProgressBar;
     private boolean progressBarVisible;
 
@@ -176,6 +190,7 @@ abstract class AppListActivity extends CollectAbstractActivity {
             @Override
             public boolean onQueryTextSubmit(String query) {
                 filterText = query;
+                searchHandler.removeCallbacks(searchRunnable);
                 updateAdapter();
                 searchView.clearFocus();
                 return false;
@@ -184,7 +199,8 @@ abstract class AppListActivity extends CollectAbstractActivity {
             @Override
             public boolean onQueryTextChange(String newText) {
                 filterText = newText;
-                updateAdapter();
+                searchHandler.removeCallbacks(searchRunnable);
+                searchHandler.postDelayed(searchRunnable, SEARCH_DELAY_MILLIS);
                 return false;
             }
         });
@@ -246,6 +262,12 @@ abstract class AppListActivity extends CollectAbstractActivity {
         }
     }
 
+    @Override
+    protected void onDestroy() {
+        searchHandler.removeCallbacks(searchRunnable);
+        super.onDestroy();
+    }
+
     protected abstract void updateAdapter();
 
     protected abstract String getSortingOrderKey();
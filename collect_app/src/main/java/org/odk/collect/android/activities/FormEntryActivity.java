@@ -151,11 +151,6 @@ import java.util.Locale;
 
 import javax.inject.Inject;
 
-import androidx.work.Constraints;
-import androidx.work.ExistingWorkPolicy;
-import androidx.work.NetworkType;
-import androidx.work.OneTimeWorkRequest;
-import androidx.work.WorkManager;
 import io.reactivex.android.schedulers.AndroidSchedulers;
 import io.reactivex.disposables.CompositeDisposable;
 import io.reactivex.schedulers.Schedulers;
@@ -2584,7 +2579,7 @@ public class FormEntryActivity extends CollectAbstractActivity implements Animat
                     // finalized specifies that it should always be auto-sent.
                     String formId = getFormController().getFormDef().getMainInstance().getRoot().getAttributeValue("", "id");
                     if (AutoSendWorker.formShouldBeAutoSent(formId, GeneralSharedPreferences.isAutoSendEnabled())) {
-                        requestAutoSend();
+                        AutoSendWorker.requestAutoSend();
                     }
                 } else {
                     // Force writing of audit since we are exiting
@@ -2648,25 +2643,6 @@ public class FormEntryActivity extends CollectAbstractActivity implements Animat
         }
     }
 
-    /**
-     * Requests that unsent finalized forms be auto-sent. If no network connection is available,
-     * the work will be performed when a connection becomes available.
-     *
-     * TODO: if the user changes auto-send settings, should an auto-send job immediately be enqueued?
-     */
-    private void requestAutoSend() {
-        Constraints constraints = new Constraints.Builder()
-                .setRequiredNetworkType(NetworkType.CONNECTED)
-                .build();
-        OneTimeWorkRequest autoSendWork =
-                new OneTimeWorkRequest.Builder(AutoSendWorker.class)
-                        .addTag(AutoSendWorker.class.getName())
-                        .setConstraints(constraints)
-                        .build();
-        WorkManager.getInstance().beginUniqueWork(AutoSendWorker.class.getName(),
-                ExistingWorkPolicy.KEEP, autoSendWork).enqueue();
-    }
-
     /**
      * Returns the instance that was just filled out to the calling activity, if
      * requested.
@@ -20,12 +20,12 @@ import android.app.Dialog;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.database.ContentObserver;
 import android.database.Cursor;
 import android.os.Bundle;
-import android.os.Handler;
-import android.os.Message;
 import android.preference.PreferenceManager;
+import android.support.annotation.NonNull;
+import android.support.v4.app.LoaderManager;
+import android.support.v4.content.Loader;
 import android.support.v7.widget.Toolbar;
 import android.text.InputType;
 import android.view.LayoutInflater;
@@ -45,6 +45,7 @@ import com.google.android.gms.analytics.GoogleAnalytics;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.InstancesDao;
+import org.odk.collect.android.dto.InstanceCounts;
 import org.odk.collect.android.preferences.AdminKeys;
 import org.odk.collect.android.preferences.AdminPreferencesActivity;
 import org.odk.collect.android.preferences.AdminSharedPreferences;
@@ -52,7 +53,6 @@ import org.odk.collect.android.preferences.AutoSendPreferenceMigrator;
 import org.odk.collect.android.preferences.GeneralSharedPreferences;
 import org.odk.collect.android.preferences.GeneralKeys;
 import org.odk.collect.android.preferences.PreferencesActivity;
-import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
 import org.odk.collect.android.utilities.ApplicationConstants;
 import org.odk.collect.android.utilities.PlayServicesUtil;
 import org.odk.collect.android.utilities.SharedPreferencesUtils;
@@ -62,7 +62,6 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.lang.ref.WeakReference;
 import java.util.Map;
 import java.util.Map.Entry;
 
@@ -75,9 +74,10 @@ import timber.log.Timber;
  * @author Carl Hartung (carlhartung@gmail.com)
  * @author Yaw Anokwa (yanokwa@gmail.com)
  */
-public class MainMenuActivity extends CollectAbstractActivity {
+public class MainMenuActivity extends CollectAbstractActivity implements LoaderManager.LoaderCallbacks<Cursor> {
 
     private static final int PASSWORD_DIALOG = 1;
+    private static final int INSTANCE_COUNTS_LOADER_ID = 1;
 
     private static final boolean EXIT = true;
     // buttons
@@ -90,14 +90,6 @@ public class MainMenuActivity extends CollectAbstractActivity {
     private View getFormsSpacer;
     private AlertDialog alertDialog;
     private SharedPreferences adminPreferences;
-    private int completedCount;
-    private int savedCount;
-    private int viewSentCount;
-    private Cursor finalizedCursor;
-    private Cursor savedCursor;
-    private Cursor viewSentCursor;
-    private final IncomingHandler handler = new IncomingHandler(this);
-    private final MyContentObserver contentObserver = new MyContentObserver();
 
     // private static boolean DO_NOT_EXIT = false;
 
@@ -264,50 +256,8 @@ public class MainMenuActivity extends CollectAbstractActivity {
         adminPreferences = this.getSharedPreferences(
                 AdminPreferencesActivity.ADMIN_PREFERENCES, 0);
 
-        InstancesDao instancesDao = new InstancesDao();
+        getSupportLoaderManager().initLoader(INSTANCE_COUNTS_LOADER_ID, null, this);
 
-        // count for finalized instances
-        try {
-            finalizedCursor = instancesDao.getFinalizedInstancesCursor();
-        } catch (Exception e) {
-            createErrorDialog(e.getMessage(), EXIT);
-            return;
-        }
-
-        if (finalizedCursor != null) {
-            startManagingCursor(finalizedCursor);
-        }
-        completedCount = finalizedCursor != null ? finalizedCursor.getCount() : 0;
-        getContentResolver().registerContentObserver(InstanceColumns.CONTENT_URI, true,
-                contentObserver);
-        // finalizedCursor.registerContentObserver(contentObserver);
-
-        // count for saved instances
-        try {
-            savedCursor = instancesDao.getUnsentInstancesCursor();
-        } catch (Exception e) {
-            createErrorDialog(e.getMessage(), EXIT);
-            return;
-        }
-
-        if (savedCursor != null) {
-            startManagingCursor(savedCursor);
-        }
-        savedCount = savedCursor != null ? savedCursor.getCount() : 0;
-
-        //count for view sent form
-        try {
-            viewSentCursor = instancesDao.getSentInstancesCursor();
-        } catch (Exception e) {
-            createErrorDialog(e.getMessage(), EXIT);
-            return;
-        }
-        if (viewSentCursor != null) {
-            startManagingCursor(viewSentCursor);
-        }
-        viewSentCount = viewSentCursor != null ? viewSentCursor.getCount() : 0;
-
-        updateButtons();
         setupGoogleAnalytics();
     }
 
@@ -526,50 +476,44 @@ public class MainMenuActivity extends CollectAbstractActivity {
         googleAnalytics.setAppOptOut(!isAnalyticsEnabled);
     }
 
-    private void updateButtons() {
-        if (finalizedCursor != null && !finalizedCursor.isClosed()) {
-            finalizedCursor.requery();
-            completedCount = finalizedCursor.getCount();
-            if (completedCount > 0) {
-                sendDataButton.setText(
-                        getString(R.string.send_data_button, String.valueOf(completedCount)));
-            } else {
-                sendDataButton.setText(getString(R.string.send_data));
-            }
+    @NonNull
+    @Override
+    public Loader<Cursor> onCreateLoader(int id, Bundle args) {
+        return new InstancesDao().getInstanceCountsCursorLoader();
+    }
+
+    @Override
+    public void onLoadFinished(@NonNull Loader<Cursor> loader, Cursor cursor) {
+        updateButtons(new InstancesDao().getInstanceCountsFromCursor(cursor));
+    }
+
+    @Override
+    public void onLoaderReset(@NonNull Loader<Cursor> loader) {
+    }
+
+    private void updateButtons(InstanceCounts instanceCounts) {
+        int finalizedCount = instanceCounts.getFinalizedCount();
+        if (finalizedCount > 0) {
+            sendDataButton.setText(
+                    getString(R.string.send_data_button, String.valueOf(finalizedCount)));
         } else {
             sendDataButton.setText(getString(R.string.send_data));
-            Timber.w("Cannot update \"Send Finalized\" button label since the database is closed. "
-                    + "Perhaps the app is running in the background?");
         }
 
-        if (savedCursor != null && !savedCursor.isClosed()) {
-            savedCursor.requery();
-            savedCount = savedCursor.getCount();
-            if (savedCount > 0) {
-                reviewDataButton.setText(getString(R.string.review_data_button,
-                        String.valueOf(savedCount)));
-            } else {
-                reviewDataButton.setText(getString(R.string.review_data));
-            }
+        int unsentCount = instanceCounts.getUnsentCount();
+        if (unsentCount > 0) {
+            reviewDataButton.setText(getString(R.string.review_data_button,
+                    String.valueOf(unsentCount)));
         } else {
             reviewDataButton.setText(getString(R.string.review_data));
-            Timber.w("Cannot update \"Edit Form\" button label since the database is closed. "
-                    + "Perhaps the app is running in the background?");
         }
 
-        if (viewSentCursor != null && !viewSentCursor.isClosed()) {
-            viewSentCursor.requery();
-            viewSentCount = viewSentCursor.getCount();
-            if (viewSentCount > 0) {
-                viewSentFormsButton.setText(
-                        getString(R.string.view_sent_forms_button, String.valueOf(viewSentCount)));
-            } else {
-                viewSentFormsButton.setText(getString(R.string.view_sent_forms));
-            }
+        int sentCount = instanceCounts.getSentCount();
+        if (sentCount > 0) {
+            viewSentFormsButton.setText(
+                    getString(R.string.view_sent_forms_button, String.valueOf(sentCount)));
         } else {
             viewSentFormsButton.setText(getString(R.string.view_sent_forms));
-            Timber.w("Cannot update \"View Sent\" button label since the database is closed. "
-                    + "Perhaps the app is running in the background?");
         }
     }
 
@@ -612,40 +556,4 @@ public class MainMenuActivity extends CollectAbstractActivity {
         }
         return res;
     }
-
-    /*
-     * Used to prevent memory leaks
-     */
-    static class IncomingHandler extends Handler {
-        private final WeakReference<MainMenuActivity> target;
-
-        IncomingHandler(MainMenuActivity target) {
-            this.target = new WeakReference<MainMenuActivity>(target);
-        }
-
-        @Override
-        public void handleMessage(Message msg) {
-            MainMenuActivity target = this.target.get();
-            if (target != null) {
-                target.updateButtons();
-            }
-        }
-    }
-
-    /**
-     * notifies us that something changed
-     */
-    private class MyContentObserver extends ContentObserver {
-
-        MyContentObserver() {
-            super(null);
-        }
-
-        @Override
-        public void onChange(boolean selfChange) {
-            super.onChange(selfChange);
-            handler.sendEmptyMessage(0);
-        }
-    }
-
 }
@@ -23,6 +23,8 @@ import android.provider.BaseColumns;
 import android.support.v4.content.CursorLoader;
 
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.DisplayNameSearchIndex;
+import org.odk.collect.android.database.helpers.FormsDatabaseHelper;
 import org.odk.collect.android.dto.Form;
 import org.odk.collect.android.provider.FormsProviderAPI;
 
@@ -35,6 +37,18 @@ import java.util.List;
  */
 public class FormsDao {
 
+    /**
+     * The columns the form lists show or act on. The date is needed for the newest version of
+     * each form to be the one that's listed.
+     */
+    private static final String[] LIST_PROJECTION = {
+            FormsProviderAPI.FormsColumns._ID,
+            FormsProviderAPI.FormsColumns.DISPLAY_NAME,
+            FormsProviderAPI.FormsColumns.DISPLAY_SUBTEXT,
+            FormsProviderAPI.FormsColumns.JR_FORM_ID,
+            FormsProviderAPI.FormsColumns.JR_VERSION,
+            FormsProviderAPI.FormsColumns.DATE};
+
     public Cursor getFormsCursor() {
         return getFormsCursor(null, null, null, null);
     }
@@ -82,8 +96,9 @@ public class FormsDao {
         if (charSequence.length() == 0) {
             cursorLoader = getFormsCursorLoader(sortOrder, newestByFormId);
         } else {
-            String selection = FormsProviderAPI.FormsColumns.DISPLAY_NAME + " LIKE ?";
-            String[] selectionArgs = new String[]{"%" + charSequence + "%"};
+            String selection = DisplayNameSearchIndex.createSelection(FormsDatabaseHelper.FORMS_TABLE_NAME,
+                    FormsProviderAPI.FormsColumns.DISPLAY_NAME, charSequence);
+            String[] selectionArgs = new String[]{DisplayNameSearchIndex.createSelectionArg(charSequence)};
 
             cursorLoader = getFormsCursorLoader(selection, selectionArgs, sortOrder, newestByFormId);
         }
@@ -102,7 +117,7 @@ public class FormsDao {
         Uri formUri = newestByFormId ? FormsProviderAPI.FormsColumns.CONTENT_NEWEST_FORMS_BY_FORMID_URI
                 : FormsProviderAPI.FormsColumns.CONTENT_URI;
 
-        return new CursorLoader(Collect.getInstance(), formUri, null, selection, selectionArgs, sortOrder);
+        return new CursorLoader(Collect.getInstance(), formUri, LIST_PROJECTION, selection, selectionArgs, sortOrder);
     }
 
     public Cursor getFormsCursorForFormId(String formId) {
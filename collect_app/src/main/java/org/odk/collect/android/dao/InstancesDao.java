@@ -16,18 +16,29 @@
 
 package org.odk.collect.android.dao;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.support.v4.content.CursorLoader;
 
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.DisplayNameSearchIndex;
+import org.odk.collect.android.database.helpers.InstancesDatabaseHelper;
 import org.odk.collect.android.dto.Instance;
+import org.odk.collect.android.dto.InstanceCounts;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.utilities.ApplicationConstants;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+
+import timber.log.Timber;
 
 /**
  * This class is used to encapsulate all access to the {@link org.odk.collect.android.provider.InstanceProvider#DATABASE_NAME}
@@ -35,6 +46,38 @@ import java.util.List;
  */
 public class InstancesDao {
 
+    /**
+     * The statuses of instances that haven't been sent. They are listed instead of selecting the
+     * instances whose status isn't {@link InstanceProviderAPI#STATUS_SUBMITTED} so that the
+     * status index is used rather than reading every instance.
+     */
+    private static final String[] UNSENT_STATUSES = {
+            InstanceProviderAPI.STATUS_INCOMPLETE,
+            InstanceProviderAPI.STATUS_FINALIZING,
+            InstanceProviderAPI.STATUS_COMPLETE,
+            InstanceProviderAPI.STATUS_SUBMISSION_FAILED};
+
+    private static final String UNSENT_SELECTION = InstanceProviderAPI.InstanceColumns.STATUS + " IN (?, ?, ?, ?) ";
+
+    /**
+     * The columns the instance lists show or act on. The other columns aren't loaded so that
+     * each window of a list's cursor holds more rows.
+     */
+    private static final String[] LIST_PROJECTION = {
+            InstanceProviderAPI.InstanceColumns._ID,
+            InstanceProviderAPI.InstanceColumns.DISPLAY_NAME,
+            InstanceProviderAPI.InstanceColumns.DISPLAY_SUBTEXT,
+            InstanceProviderAPI.InstanceColumns.STATUS,
+            InstanceProviderAPI.InstanceColumns.CAN_EDIT_WHEN_COMPLETE,
+            InstanceProviderAPI.InstanceColumns.JR_FORM_ID,
+            InstanceProviderAPI.InstanceColumns.DELETED_DATE};
+
+    /**
+     * The counts are loaded again at most this often while instances are being changed, for
+     * example while they're sent one after the other.
+     */
+    private static final long COUNTS_UPDATE_THROTTLE_MILLIS = 500;
+
     public Cursor getSentInstancesCursor() {
         String selection = InstanceProviderAPI.InstanceColumns.STATUS + " =? ";
         String[] selectionArgs = {InstanceProviderAPI.STATUS_SUBMITTED};
@@ -50,12 +93,12 @@ public class InstancesDao {
         } else {
             String selection =
                     InstanceProviderAPI.InstanceColumns.STATUS + " =? and "
-                            + InstanceProviderAPI.InstanceColumns.DISPLAY_NAME + " LIKE ?";
+                            + getNameSelection(charSequence);
             String[] selectionArgs = {
                     InstanceProviderAPI.STATUS_SUBMITTED,
-                    "%" + charSequence + "%"};
+                    DisplayNameSearchIndex.createSelectionArg(charSequence)};
 
-            cursorLoader = getInstancesCursorLoader(null, selection, selectionArgs, sortOrder);
+            cursorLoader = getInstancesCursorLoader(LIST_PROJECTION, selection, selectionArgs, sortOrder);
         }
 
         return cursorLoader;
@@ -65,22 +108,22 @@ public class InstancesDao {
         String selection = InstanceProviderAPI.InstanceColumns.STATUS + " =? ";
         String[] selectionArgs = {InstanceProviderAPI.STATUS_SUBMITTED};
 
-        return getInstancesCursorLoader(null, selection, selectionArgs, sortOrder);
+        return getInstancesCursorLoader(LIST_PROJECTION, selection, selectionArgs, sortOrder);
     }
 
     public Cursor getUnsentInstancesCursor() {
-        String selection = InstanceProviderAPI.InstanceColumns.STATUS + " !=? ";
-        String[] selectionArgs = {InstanceProviderAPI.STATUS_SUBMITTED};
+        String selection = UNSENT_SELECTION;
+        String[] selectionArgs = UNSENT_STATUSES.clone();
         String sortOrder = InstanceProviderAPI.InstanceColumns.STATUS + " DESC, " + InstanceProviderAPI.InstanceColumns.DISPLAY_NAME + " ASC";
 
         return getInstancesCursor(null, selection, selectionArgs, sortOrder);
     }
 
     public CursorLoader getUnsentInstancesCursorLoader(String sortOrder) {
-        String selection = InstanceProviderAPI.InstanceColumns.STATUS + " !=? ";
-        String[] selectionArgs = {InstanceProviderAPI.STATUS_SUBMITTED};
+        String selection = UNSENT_SELECTION;
+        String[] selectionArgs = UNSENT_STATUSES.clone();
 
-        return getInstancesCursorLoader(null, selection, selectionArgs, sortOrder);
+        return getInstancesCursorLoader(LIST_PROJECTION, selection, selectionArgs, sortOrder);
     }
 
     public CursorLoader getUnsentInstancesCursorLoader(CharSequence charSequence, String sortOrder) {
@@ -89,13 +132,12 @@ public class InstancesDao {
             cursorLoader = getUnsentInstancesCursorLoader(sortOrder);
         } else {
             String selection =
-                    InstanceProviderAPI.InstanceColumns.STATUS + " !=? and "
-                            + InstanceProviderAPI.InstanceColumns.DISPLAY_NAME + " LIKE ?";
-            String[] selectionArgs = {
-                    InstanceProviderAPI.STATUS_SUBMITTED,
-                    "%" + charSequence + "%"};
+                    UNSENT_SELECTION + "and "
+                            + getNameSelection(charSequence);
+            String[] selectionArgs = Arrays.copyOf(UNSENT_STATUSES, UNSENT_STATUSES.length + 1);
+            selectionArgs[UNSENT_STATUSES.length] = DisplayNameSearchIndex.createSelectionArg(charSequence);
 
-            cursorLoader = getInstancesCursorLoader(null, selection, selectionArgs, sortOrder);
+            cursorLoader = getInstancesCursorLoader(LIST_PROJECTION, selection, selectionArgs, sortOrder);
         }
 
         return cursorLoader;
@@ -110,7 +152,7 @@ public class InstancesDao {
     public CursorLoader getSavedInstancesCursorLoader(String sortOrder) {
         String selection = InstanceProviderAPI.InstanceColumns.DELETED_DATE + " IS NULL ";
 
-        return getInstancesCursorLoader(null, selection, null, sortOrder);
+        return getInstancesCursorLoader(LIST_PROJECTION, selection, null, sortOrder);
     }
 
     public CursorLoader getSavedInstancesCursorLoader(CharSequence charSequence, String sortOrder) {
@@ -120,9 +162,9 @@ public class InstancesDao {
         } else {
             String selection =
                     InstanceProviderAPI.InstanceColumns.DELETED_DATE + " IS NULL and "
-                            + InstanceProviderAPI.InstanceColumns.DISPLAY_NAME + " LIKE ?";
-            String[] selectionArgs = {"%" + charSequence + "%"};
-            cursorLoader = getInstancesCursorLoader(null, selection, selectionArgs, sortOrder);
+                            + getNameSelection(charSequence);
+            String[] selectionArgs = {DisplayNameSearchIndex.createSelectionArg(charSequence)};
+            cursorLoader = getInstancesCursorLoader(LIST_PROJECTION, selection, selectionArgs, sortOrder);
         }
 
         return cursorLoader;
@@ -140,7 +182,7 @@ public class InstancesDao {
         String selection = InstanceProviderAPI.InstanceColumns.STATUS + "=? or " + InstanceProviderAPI.InstanceColumns.STATUS + "=?";
         String[] selectionArgs = {InstanceProviderAPI.STATUS_COMPLETE, InstanceProviderAPI.STATUS_SUBMISSION_FAILED};
 
-        return getInstancesCursorLoader(null, selection, selectionArgs, sortOrder);
+        return getInstancesCursorLoader(LIST_PROJECTION, selection, selectionArgs, sortOrder);
     }
 
     public CursorLoader getFinalizedInstancesCursorLoader(CharSequence charSequence, String sortOrder) {
@@ -151,18 +193,27 @@ public class InstancesDao {
             String selection =
                     "(" + InstanceProviderAPI.InstanceColumns.STATUS + "=? or "
                             + InstanceProviderAPI.InstanceColumns.STATUS + "=?) and "
-                            + InstanceProviderAPI.InstanceColumns.DISPLAY_NAME + " LIKE ?";
+                            + getNameSelection(charSequence);
             String[] selectionArgs = {
                     InstanceProviderAPI.STATUS_COMPLETE,
                     InstanceProviderAPI.STATUS_SUBMISSION_FAILED,
-                    "%" + charSequence + "%"};
+                    DisplayNameSearchIndex.createSelectionArg(charSequence)};
 
-            cursorLoader = getInstancesCursorLoader(null, selection, selectionArgs, sortOrder);
+            cursorLoader = getInstancesCursorLoader(LIST_PROJECTION, selection, selectionArgs, sortOrder);
         }
 
         return cursorLoader;
     }
 
+    /**
+     * Returns the selection for the instances whose names match the searched text, which takes
+     * {@link DisplayNameSearchIndex#createSelectionArg(CharSequence)} as its argument.
+     */
+    private static String getNameSelection(CharSequence charSequence) {
+        return DisplayNameSearchIndex.createSelection(InstancesDatabaseHelper.INSTANCES_TABLE_NAME,
+                InstanceProviderAPI.InstanceColumns.DISPLAY_NAME, charSequence);
+    }
+
     public Cursor getInstancesCursorForFilePath(String path) {
         String selection = InstanceProviderAPI.InstanceColumns.INSTANCE_FILE_PATH + "=?";
         String[] selectionArgs = {path};
@@ -194,7 +245,7 @@ public class InstancesDao {
                 InstanceProviderAPI.STATUS_SUBMISSION_FAILED,
                 InstanceProviderAPI.STATUS_SUBMITTED};
 
-        return getInstancesCursorLoader(null, selection, selectionArgs, sortOrder);
+        return getInstancesCursorLoader(LIST_PROJECTION, selection, selectionArgs, sortOrder);
     }
 
     public CursorLoader getCompletedUndeletedInstancesCursorLoader(CharSequence charSequence, String sortOrder) {
@@ -206,15 +257,15 @@ public class InstancesDao {
                     + InstanceProviderAPI.InstanceColumns.STATUS + "=? or "
                     + InstanceProviderAPI.InstanceColumns.STATUS + "=? or "
                     + InstanceProviderAPI.InstanceColumns.STATUS + "=?) and "
-                    + InstanceProviderAPI.InstanceColumns.DISPLAY_NAME + " LIKE ?";
+                    + getNameSelection(charSequence);
 
             String[] selectionArgs = {
                     InstanceProviderAPI.STATUS_COMPLETE,
                     InstanceProviderAPI.STATUS_SUBMISSION_FAILED,
                     InstanceProviderAPI.STATUS_SUBMITTED,
-                    "%" + charSequence + "%"};
+                    DisplayNameSearchIndex.createSelectionArg(charSequence)};
 
-            cursorLoader = getInstancesCursorLoader(null, selection, selectionArgs, sortOrder);
+            cursorLoader = getInstancesCursorLoader(LIST_PROJECTION, selection, selectionArgs, sortOrder);
         }
         return cursorLoader;
     }
@@ -257,7 +308,12 @@ public class InstancesDao {
         Collect.getInstance().getContentResolver().delete(InstanceProviderAPI.InstanceColumns.CONTENT_URI, null, null);
     }
 
+    /**
+     * Deletes the instances with the given paths in a single transaction. Their files are only
+     * deleted once it has been committed.
+     */
     public void deleteInstancesFromIDs(List<String> ids) {
+        ArrayList<ContentProviderOperation> deletes = new ArrayList<>();
         int count = ids.size();
         int counter = 0;
         while (count > 0) {
@@ -285,11 +341,53 @@ public class InstancesDao {
             counter++;
             count -= selectionArgs.length;
             selection.append(')');
-            Collect.getInstance().getContentResolver()
-                    .delete(InstanceProviderAPI.InstanceColumns.CONTENT_URI,
-                            selection.toString(), selectionArgs);
+            deletes.add(ContentProviderOperation.newDelete(InstanceProviderAPI.InstanceColumns.CONTENT_URI)
+                    .withSelection(selection.toString(), selectionArgs)
+                    .build());
+        }
+
+        if (deletes.isEmpty()) {
+            return;
+        }
+
+        try {
+            Collect.getInstance().getContentResolver().applyBatch(InstanceProviderAPI.AUTHORITY, deletes);
+        } catch (RemoteException | OperationApplicationException e) {
+            Timber.e(e, "Unable to delete %d instances", ids.size());
+        }
+    }
+
+    /**
+     * Returns a loader of the number of instances with each status, which loads them again
+     * whenever an instance changes.
+     */
+    public CursorLoader getInstanceCountsCursorLoader() {
+        CursorLoader cursorLoader = new CursorLoader(
+                Collect.getInstance(),
+                InstanceProviderAPI.InstanceColumns.CONTENT_COUNT_BY_STATUS_URI,
+                null,
+                null,
+                null,
+                null);
+        cursorLoader.setUpdateThrottle(COUNTS_UPDATE_THROTTLE_MILLIS);
+        return cursorLoader;
+    }
 
+    /**
+     * Returns the counts of a cursor from {@link #getInstanceCountsCursorLoader()}, which is
+     * left open for its loader to close.
+     */
+    public InstanceCounts getInstanceCountsFromCursor(Cursor cursor) {
+        Map<String, Integer> countsByStatus = new HashMap<>();
+        if (cursor != null) {
+            int statusColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.STATUS);
+            int countColumnIndex = cursor.getColumnIndex(InstanceProviderAPI.InstanceColumns.INSTANCE_COUNT);
+            cursor.moveToPosition(-1);
+            while (cursor.moveToNext()) {
+                countsByStatus.put(cursor.getString(statusColumnIndex), cursor.getInt(countColumnIndex));
+            }
         }
+        return new InstanceCounts(countsByStatus);
     }
 
     /**
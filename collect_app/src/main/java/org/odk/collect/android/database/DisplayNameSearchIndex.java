@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.database;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.provider.BaseColumns;
+import android.support.annotation.Nullable;
+
+import org.odk.collect.android.external.ExternalSearchIndex;
+
+/**
+ * Full-text indexes of the display names of forms and instances, which the searches of the
+ * lists use instead of matching every name with LIKE.
+ *
+ * Each index is an FTS4 table that reads its text from the indexed table and is kept up to date
+ * by triggers, so the providers write to their tables as before. A search finds the names that
+ * have a word starting with each word of the searched text. The simple tokenizer splits names
+ * on ASCII characters that aren't letters or digits and only ignores the case of ASCII letters.
+ */
+public final class DisplayNameSearchIndex {
+
+    private static final String INDEX_SUFFIX = "_search";
+
+    private DisplayNameSearchIndex() {
+    }
+
+    /**
+     * Creates the index of the given column, replacing any previous one, and fills it with the
+     * rows the table already has.
+     */
+    public static void create(SQLiteDatabase db, String table, String column) {
+        drop(db, table);
+
+        String index = getIndexName(table);
+        db.execSQL("CREATE VIRTUAL TABLE " + index + " USING fts4(content=\"" + table + "\", prefix=\"2,3\", "
+                + column + ")");
+
+        // the old text has to be removed while the row still has it
+        db.execSQL("CREATE TRIGGER " + index + "_before_update BEFORE UPDATE OF " + column + " ON " + table
+                + " BEGIN DELETE FROM " + index + " WHERE docid = old." + BaseColumns._ID + "; END");
+        db.execSQL("CREATE TRIGGER " + index + "_before_delete BEFORE DELETE ON " + table
+                + " BEGIN DELETE FROM " + index + " WHERE docid = old." + BaseColumns._ID + "; END");
+        db.execSQL("CREATE TRIGGER " + index + "_after_update AFTER UPDATE OF " + column + " ON " + table
+                + " BEGIN " + createInsert(index, column) + " END");
+        db.execSQL("CREATE TRIGGER " + index + "_after_insert AFTER INSERT ON " + table
+                + " BEGIN " + createInsert(index, column) + " END");
+
+        db.execSQL("INSERT INTO " + index + " (" + index + ") VALUES ('rebuild')");
+    }
+
+    public static void drop(SQLiteDatabase db, String table) {
+        String index = getIndexName(table);
+        db.execSQL("DROP TRIGGER IF EXISTS " + index + "_before_update");
+        db.execSQL("DROP TRIGGER IF EXISTS " + index + "_before_delete");
+        db.execSQL("DROP TRIGGER IF EXISTS " + index + "_after_update");
+        db.execSQL("DROP TRIGGER IF EXISTS " + index + "_after_insert");
+        db.execSQL("DROP TABLE IF EXISTS " + index);
+    }
+
+    /**
+     * Returns a selection for the rows of the table whose names match the searched text, which
+     * takes {@link #createSelectionArg(CharSequence)} as its only argument.
+     */
+    public static String createSelection(String table, String column, CharSequence searchedText) {
+        if (createMatchQuery(searchedText) == null) {
+            return column + " LIKE ?";
+        }
+        String index = getIndexName(table);
+        return BaseColumns._ID + " IN (SELECT docid FROM " + index + " WHERE " + index + " MATCH ?)";
+    }
+
+    public static String createSelectionArg(CharSequence searchedText) {
+        String matchQuery = createMatchQuery(searchedText);
+        return matchQuery != null ? matchQuery : "%" + searchedText + "%";
+    }
+
+    /**
+     * @return a MATCH expression for the names with a word starting with each word of the
+     * searched text, or null if the text only has separators and can't be searched in the index
+     */
+    @Nullable
+    static String createMatchQuery(CharSequence searchedText) {
+        StringBuilder sb = new StringBuilder();
+        for (String word : ExternalSearchIndex.splitWords(searchedText.toString())) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            // lower case so that words such as OR aren't read as operators
+            sb.append(ExternalSearchIndex.toAsciiLowerCase(word)).append('*');
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    private static String createInsert(String index, String column) {
+        return "INSERT INTO " + index + " (docid, " + column + ") VALUES (new." + BaseColumns._ID
+                + ", new." + column + ");";
+    }
+
+    private static String getIndexName(String table) {
+        return table + INDEX_SUFFIX;
+    }
+}
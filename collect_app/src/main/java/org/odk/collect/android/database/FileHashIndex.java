@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.Nullable;
+
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.FileUtils;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Remembers the MD5 hashes of form and media files so that they are only computed again when a
+ * file changes. A file is taken to be unchanged while its size and last modified time stay the
+ * same.
+ *
+ * The hashes are kept in a database in the metadata folder, so they survive restarts. If the
+ * database can't be used, hashes are computed every time as they were before.
+ */
+public class FileHashIndex {
+
+    public static final String DATABASE_NAME = "file_hashes.db";
+    private static final int DATABASE_VERSION = 1;
+
+    private static final String TABLE_NAME = "file_hashes";
+    private static final String KEY_PATH = "path";
+    private static final String KEY_SIZE = "size";
+    private static final String KEY_LAST_MODIFIED = "last_modified";
+    private static final String KEY_MD5_HASH = "md5_hash";
+
+    private static FileHashIndex instance;
+
+    private final DatabaseHelper dbHelper;
+
+    /**
+     * This class helps open, create, and upgrade the database file.
+     */
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+        DatabaseHelper(String databasePath) {
+            super(new DatabaseContext(databasePath), DATABASE_NAME, null, DATABASE_VERSION);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NAME + " ("
+                    + KEY_PATH + " text primary key, "
+                    + KEY_SIZE + " integer not null, "
+                    + KEY_LAST_MODIFIED + " integer not null, "
+                    + KEY_MD5_HASH + " text not null);");
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            // the hashes can always be computed again
+            Timber.w("Upgrading database from version %d to %d, which will destroy all old data", oldVersion, newVersion);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            onCreate(db);
+        }
+    }
+
+    FileHashIndex(String databasePath) {
+        dbHelper = new DatabaseHelper(databasePath);
+    }
+
+    public static synchronized FileHashIndex getInstance() {
+        if (instance == null) {
+            instance = new FileHashIndex(Collect.METADATA_PATH);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the MD5 hash of the given file, which is only computed if the file has changed
+     * since it was last hashed.
+     */
+    @Nullable
+    public String getMd5Hash(File file) {
+        if (!file.isFile()) {
+            remove(file);
+            return null;
+        }
+
+        long size = file.length();
+        long lastModified = file.lastModified();
+
+        String md5 = getIndexedHash(file, size, lastModified);
+        if (md5 == null) {
+            md5 = FileUtils.getMd5Hash(file);
+            if (md5 != null) {
+                put(file, size, lastModified, md5);
+            }
+        }
+        return md5;
+    }
+
+    /**
+     * Returns the MD5 hashes of the files in the given folder, not including its sub-folders.
+     */
+    public Set<String> getMd5Hashes(File folder) {
+        Set<String> hashes = new HashSet<>();
+        File[] files = folder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile()) {
+                    String md5 = getMd5Hash(file);
+                    if (md5 != null) {
+                        hashes.add(md5);
+                    }
+                }
+            }
+        }
+        return hashes;
+    }
+
+    /**
+     * Records the hash of a file whose contents have just been hashed some other way, such as
+     * while they were downloaded.
+     */
+    public void put(File file, String md5) {
+        put(file, file.length(), file.lastModified(), md5);
+    }
+
+    public void remove(File file) {
+        try {
+            dbHelper.getWritableDatabase().delete(TABLE_NAME, KEY_PATH + "=?",
+                    new String[] {file.getAbsolutePath()});
+        } catch (SQLException e) {
+            Timber.w(e);
+        }
+    }
+
+    @Nullable
+    private String getIndexedHash(File file, long size, long lastModified) {
+        Cursor c = null;
+        try {
+            c = dbHelper.getReadableDatabase().query(TABLE_NAME, new String[] {KEY_MD5_HASH},
+                    KEY_PATH + "=? AND " + KEY_SIZE + "=? AND " + KEY_LAST_MODIFIED + "=?",
+                    new String[] {file.getAbsolutePath(), String.valueOf(size), String.valueOf(lastModified)},
+                    null, null, null);
+            return c.moveToFirst() ? c.getString(0) : null;
+        } catch (SQLException e) {
+            Timber.w(e);
+            return null;
+        } finally {
+            if (c != null) {
+                c.close();
+            }
+        }
+    }
+
+    private void put(File file, long size, long lastModified, String md5) {
+        ContentValues values = new ContentValues();
+        values.put(KEY_PATH, file.getAbsolutePath());
+        values.put(KEY_SIZE, size);
+        values.put(KEY_LAST_MODIFIED, lastModified);
+        values.put(KEY_MD5_HASH, md5);
+
+        try {
+            dbHelper.getWritableDatabase().insertWithOnConflict(TABLE_NAME, null, values,
+                    SQLiteDatabase.CONFLICT_REPLACE);
+        } catch (SQLException e) {
+            Timber.w(e);
+        }
+    }
+}
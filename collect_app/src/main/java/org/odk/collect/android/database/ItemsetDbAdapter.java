@@ -5,12 +5,15 @@ import android.database.Cursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 
 import org.odk.collect.android.application.Collect;
 
 import java.math.BigInteger;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.List;
 
 import timber.log.Timber;
 
@@ -21,6 +24,10 @@ public class ItemsetDbAdapter {
     private DatabaseHelper dbHelper;
     private SQLiteDatabase db;
 
+    private SQLiteStatement insertStatement;
+    private String insertTableName;
+    private int[] insertBindIndexes;
+
     public static final String DATABASE_NAME = "itemsets.db";
     private static final String DATABASE_TABLE = "itemset_";
     private static final int DATABASE_VERSION = 2;
@@ -86,6 +93,11 @@ public class ItemsetDbAdapter {
     }
 
     public void close() {
+        if (insertStatement != null) {
+            insertStatement.close();
+            insertStatement = null;
+            insertTableName = null;
+        }
         dbHelper.close();
     }
 
@@ -125,19 +137,87 @@ public class ItemsetDbAdapter {
     }
 
     public boolean addRow(String tableName, String[] columns, String[] newRow) {
-        ContentValues cv = new ContentValues();
+        // the insert is compiled once for all the rows of a table
+        if (insertStatement == null || !tableName.equals(insertTableName)) {
+            compileInsertStatement(tableName, columns);
+        }
 
         // rows don't necessarily use all the columns
         // but a column is guaranteed to exist for a row (or else blow up)
+        insertStatement.clearBindings();
         for (int i = 0; i < newRow.length; i++) {
-            if (!columns[i].isEmpty()) {
-                cv.put("\"" + columns[i] + "\"", newRow[i]);
+            if (!columns[i].isEmpty() && newRow[i] != null) {
+                insertStatement.bindString(insertBindIndexes[i], newRow[i]);
             }
         }
-        db.insert(DATABASE_TABLE + tableName, null, cv);
+        insertStatement.executeInsert();
         return true;
     }
 
+    private void compileInsertStatement(String tableName, String[] columns) {
+        if (insertStatement != null) {
+            insertStatement.close();
+        }
+
+        StringBuilder sb = new StringBuilder("INSERT INTO ")
+                .append(DATABASE_TABLE)
+                .append(tableName)
+                .append(" (");
+        insertBindIndexes = new int[columns.length];
+        int bindIndex = 0;
+        for (int i = 0; i < columns.length; i++) {
+            if (!columns[i].isEmpty()) {
+                sb
+                        .append(bindIndex == 0 ? "\"" : ", \"")
+                        .append(columns[i])
+                        .append('"');
+                insertBindIndexes[i] = ++bindIndex;
+            }
+        }
+        sb.append(") VALUES (");
+        for (int i = 0; i < bindIndex; i++) {
+            sb.append(i == 0 ? "?" : ", ?");
+        }
+        sb.append(')');
+
+        String insertSql = bindIndex == 0
+                ? "INSERT INTO " + DATABASE_TABLE + tableName + " DEFAULT VALUES"
+                : sb.toString();
+        insertStatement = db.compileStatement(insertSql);
+        insertTableName = tableName;
+    }
+
+    /**
+     * Creates an index on the given columns of an itemset table if there isn't one yet. Columns
+     * that are compared in itemset queries should be indexed so that cascading selects don't
+     * scan the whole table.
+     */
+    public void createIndex(String tableName, List<String> columns) {
+        StringBuilder sb = new StringBuilder("CREATE INDEX IF NOT EXISTS \"")
+                .append(DATABASE_TABLE)
+                .append(tableName)
+                .append('_')
+                .append(getMd5FromString(TextUtils.join(",", columns)))
+                .append("\" ON ")
+                .append(DATABASE_TABLE)
+                .append(tableName)
+                .append(" (");
+        for (int i = 0; i < columns.size(); i++) {
+            sb
+                    .append(i == 0 ? "\"" : ", \"")
+                    .append(columns.get(i))
+                    .append('"');
+        }
+        sb.append(");");
+
+        try {
+            db.execSQL(sb.toString());
+        } catch (SQLException e) {
+            // e.g. the query refers to a column that isn't in the itemsets
+            Timber.w(e);
+        }
+    }
+
     public boolean tableExists(String tableName) {
         // select name from sqlite_master where type = 'table'
         String selection = "type=? and name=?";
@@ -164,8 +244,9 @@ public class ItemsetDbAdapter {
     }
 
     public Cursor query(String hash, String selection, String[] selectionArgs) throws SQLException {
-        return db.query(true, DATABASE_TABLE + hash, null, selection, selectionArgs,
-                null, null, null, null);
+        // every row has a distinct _id so there is no need to ask for distinct rows
+        return db.query(DATABASE_TABLE + hash, null, selection, selectionArgs,
+                null, null, null);
     }
 
     public void dropTable(String pathHash, String path) {
@@ -22,6 +22,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.DatabaseContext;
+import org.odk.collect.android.database.DisplayNameSearchIndex;
 import org.odk.collect.android.utilities.CustomSQLiteQueryBuilder;
 
 import timber.log.Timber;
@@ -51,7 +52,7 @@ public class FormsDatabaseHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "forms.db";
     public static final String FORMS_TABLE_NAME = "forms";
 
-    private static final int DATABASE_VERSION = 6;
+    private static final int DATABASE_VERSION = 8;
 
     // These exist in database versions 2 and 3, but not in 4...
     private static final String TEMP_FORMS_TABLE_NAME = "forms_v4";
@@ -64,6 +65,8 @@ public class FormsDatabaseHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         createFormsTable(db, FORMS_TABLE_NAME);
+        createFormsIndexes(db);
+        DisplayNameSearchIndex.create(db, FORMS_TABLE_NAME, DISPLAY_NAME);
     }
 
     @SuppressWarnings({"checkstyle:FallThrough"})
@@ -82,6 +85,10 @@ public class FormsDatabaseHelper extends SQLiteOpenHelper {
                 success &= upgradeToVersion5(db);
             case 5:
                 success &= upgradeToVersion6(db);
+            case 6:
+                success &= upgradeToVersion7(db);
+            case 7:
+                success &= upgradeToVersion8(db);
                 break;
             default:
                 Timber.i("Unknown version %s", oldVersion);
@@ -104,6 +111,8 @@ public class FormsDatabaseHelper extends SQLiteOpenHelper {
                     .end();
 
             createFormsTable(db, FORMS_TABLE_NAME);
+            createFormsIndexes(db);
+            DisplayNameSearchIndex.create(db, FORMS_TABLE_NAME, DISPLAY_NAME);
         } catch (SQLiteException e) {
             Timber.e(e);
             success = false;
@@ -295,6 +304,28 @@ public class FormsDatabaseHelper extends SQLiteOpenHelper {
         return success;
     }
 
+    private boolean upgradeToVersion7(SQLiteDatabase db) {
+        boolean success = true;
+        try {
+            createFormsIndexes(db);
+        } catch (SQLiteException e) {
+            Timber.e(e);
+            success = false;
+        }
+        return success;
+    }
+
+    private boolean upgradeToVersion8(SQLiteDatabase db) {
+        boolean success = true;
+        try {
+            DisplayNameSearchIndex.create(db, FORMS_TABLE_NAME, DISPLAY_NAME);
+        } catch (SQLiteException e) {
+            Timber.e(e);
+            success = false;
+        }
+        return success;
+    }
+
     private void createFormsTable(SQLiteDatabase db, String tableName) {
         db.execSQL("CREATE TABLE IF NOT EXISTS " + tableName + " ("
                 + _ID + " integer primary key, "
@@ -315,4 +346,19 @@ public class FormsDatabaseHelper extends SQLiteOpenHelper {
                 + AUTO_DELETE + " text, "
                 + LAST_DETECTED_FORM_VERSION_HASH + " text);");
     }
+
+    /**
+     * Creates the indexes that lookups of single forms use. The one on the form id also keeps
+     * the versions of each form sorted by date, as the newest one is usually wanted.
+     */
+    private void createFormsIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + FORMS_TABLE_NAME + "_form_id_idx ON " + FORMS_TABLE_NAME
+                + " (" + JR_FORM_ID + ", " + JR_VERSION + ", " + DATE + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + FORMS_TABLE_NAME + "_md5_hash_idx ON " + FORMS_TABLE_NAME
+                + " (" + MD5_HASH + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + FORMS_TABLE_NAME + "_form_file_path_idx ON " + FORMS_TABLE_NAME
+                + " (" + FORM_FILE_PATH + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + FORMS_TABLE_NAME + "_form_version_hash_idx ON " + FORMS_TABLE_NAME
+                + " (" + LAST_DETECTED_FORM_VERSION_HASH + ");");
+    }
 }
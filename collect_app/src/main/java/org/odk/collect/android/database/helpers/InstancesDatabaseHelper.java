@@ -23,6 +23,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.DatabaseContext;
+import org.odk.collect.android.database.DisplayNameSearchIndex;
 import org.odk.collect.android.provider.InstanceProviderAPI;
 import org.odk.collect.android.utilities.CustomSQLiteQueryBuilder;
 
@@ -47,7 +48,7 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "instances.db";
     public static final String INSTANCES_TABLE_NAME = "instances";
 
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 6;
 
     private final String[] instancesTableColumnsInVersion4 = new String[] {_ID, DISPLAY_NAME, SUBMISSION_URI, CAN_EDIT_WHEN_COMPLETE,
             INSTANCE_FILE_PATH, JR_FORM_ID, JR_VERSION, STATUS, LAST_STATUS_CHANGE_DATE, DISPLAY_SUBTEXT, DELETED_DATE};
@@ -59,6 +60,8 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase db) {
         createInstancesTable(db);
+        createInstancesIndexes(db);
+        DisplayNameSearchIndex.create(db, INSTANCES_TABLE_NAME, DISPLAY_NAME);
     }
 
     @SuppressWarnings({"checkstyle:FallThrough"})
@@ -74,6 +77,10 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
                 success &= upgradeToVersion3(db);
             case 3:
                 success &= upgradeToVersion4(db);
+            case 4:
+                success &= upgradeToVersion5(db);
+            case 5:
+                success &= upgradeToVersion6(db);
                 break;
             default:
                 Timber.i("Unknown version " + oldVersion);
@@ -91,6 +98,8 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
         boolean success = true;
         switch (newVersion) {
             case 4:
+            case 5:
+            case 6:
                 success = downgrade(db, instancesTableColumnsInVersion4);
                 break;
 
@@ -153,11 +162,36 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
         return success;
     }
 
+    private boolean upgradeToVersion5(SQLiteDatabase db) {
+        boolean success = true;
+        try {
+            createInstancesIndexes(db);
+        } catch (SQLiteException e) {
+            Timber.e(e);
+            success = false;
+        }
+        return success;
+    }
+
+    private boolean upgradeToVersion6(SQLiteDatabase db) {
+        boolean success = true;
+        try {
+            DisplayNameSearchIndex.create(db, INSTANCES_TABLE_NAME, DISPLAY_NAME);
+        } catch (SQLiteException e) {
+            Timber.e(e);
+            success = false;
+        }
+        return success;
+    }
+
     private boolean downgrade(SQLiteDatabase db, String[] instancesTableColumns) {
         boolean success = true;
         String temporaryTable = INSTANCES_TABLE_NAME + "_tmp";
 
         try {
+            // the search index reads from the table by name so it's rebuilt afterwards
+            DisplayNameSearchIndex.drop(db, INSTANCES_TABLE_NAME);
+
             CustomSQLiteQueryBuilder
                     .begin(db)
                     .renameTable(INSTANCES_TABLE_NAME)
@@ -180,6 +214,10 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
                     .begin(db)
                     .dropIfExists(temporaryTable)
                     .end();
+
+            // the indexes were dropped with the renamed table
+            createInstancesIndexes(db);
+            DisplayNameSearchIndex.create(db, INSTANCES_TABLE_NAME, DISPLAY_NAME);
         } catch (SQLiteException e) {
             Timber.i(e);
             success = false;
@@ -201,4 +239,16 @@ public class InstancesDatabaseHelper extends SQLiteOpenHelper {
                 + DISPLAY_SUBTEXT + " text not null,"
                 + DELETED_DATE + " date );");
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates the indexes that the lists of instances by status and the lookups by path use.
+     * Instances with the same status are kept sorted by name since that's how they are usually
+     * listed.
+     */
+    private void createInstancesIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INSTANCES_TABLE_NAME + "_status_idx ON " + INSTANCES_TABLE_NAME
+                + " (" + STATUS + ", " + DISPLAY_NAME + ");");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INSTANCES_TABLE_NAME + "_instance_file_path_idx ON " + INSTANCES_TABLE_NAME
+                + " (" + INSTANCE_FILE_PATH + ");");
+    }
+}
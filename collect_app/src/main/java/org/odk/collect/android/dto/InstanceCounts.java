@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.dto;
+
+import org.odk.collect.android.provider.InstanceProviderAPI;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The number of instances with each status, as counted by
+ * {@link org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns#CONTENT_COUNT_BY_STATUS_URI}.
+ */
+public class InstanceCounts {
+    private final Map<String, Integer> countsByStatus;
+
+    public InstanceCounts(Map<String, Integer> countsByStatus) {
+        this.countsByStatus = new HashMap<>(countsByStatus);
+    }
+
+    /**
+     * @return the number of instances that are complete or failed to be sent
+     */
+    public int getFinalizedCount() {
+        return getCount(InstanceProviderAPI.STATUS_COMPLETE) + getCount(InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
+    }
+
+    /**
+     * @return the number of instances that haven't been sent, whatever their status
+     */
+    public int getUnsentCount() {
+        int count = 0;
+        for (Integer statusCount : countsByStatus.values()) {
+            count += statusCount;
+        }
+        return count - getSentCount();
+    }
+
+    public int getSentCount() {
+        return getCount(InstanceProviderAPI.STATUS_SUBMITTED);
+    }
+
+    public int getCount(String status) {
+        Integer count = countsByStatus.get(status);
+        return count != null ? count : 0;
+    }
+}
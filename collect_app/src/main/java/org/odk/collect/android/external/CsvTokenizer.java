@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.external;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads comma separated records one at a time from a stream.
+ *
+ * Fields may be enclosed in double quotes, in which case they can contain commas, line breaks
+ * and doubled double quotes. Quotes that appear in the middle of an unquoted field are kept
+ * as they are. Both \n and \r\n end a record.
+ */
+public class CsvTokenizer implements Closeable {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final char DELIMITER = ',';
+    private static final char QUOTE = '"';
+
+    private final Reader reader;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+    private int limit;
+
+    private final StringBuilder field = new StringBuilder();
+    private final List<String> record = new ArrayList<>();
+
+    public CsvTokenizer(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the next record.
+     *
+     * @return the fields of the record, or null if the end of the stream has been reached
+     */
+    public String[] readNext() throws IOException {
+        int c = read();
+        if (c == -1) {
+            return null;
+        }
+
+        record.clear();
+        field.setLength(0);
+        boolean inQuotes = false;
+        boolean fieldStarted = false;
+
+        while (c != -1) {
+            if (inQuotes) {
+                if (c == QUOTE) {
+                    if (peek() == QUOTE) {
+                        read();
+                        field.append(QUOTE);
+                    } else {
+                        inQuotes = false;
+                    }
+                } else {
+                    field.append((char) c);
+                }
+            } else if (c == DELIMITER) {
+                endField();
+                fieldStarted = false;
+            } else if (c == '\n') {
+                break;
+            } else if (c == '\r') {
+                if (peek() == '\n') {
+                    read();
+                }
+                break;
+            } else if (c == QUOTE && !fieldStarted) {
+                inQuotes = true;
+                fieldStarted = true;
+            } else {
+                field.append((char) c);
+                fieldStarted = true;
+            }
+            c = read();
+        }
+
+        endField();
+        return record.toArray(new String[record.size()]);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    private void endField() {
+        record.add(field.toString());
+        field.setLength(0);
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int count = reader.read(buffer, 0, buffer.length);
+        while (count == 0) {
+            count = reader.read(buffer, 0, buffer.length);
+        }
+        if (count == -1) {
+            return false;
+        }
+        position = 0;
+        limit = count;
+        return true;
+    }
+}
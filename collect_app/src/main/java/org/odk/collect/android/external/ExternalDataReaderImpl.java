@@ -50,20 +50,31 @@ public class ExternalDataReaderImpl implements ExternalDataReader {
             if (dataSetFile.exists()) {
                 File dbFile = new File(dataSetFile.getParentFile().getAbsolutePath(),
                         dataSetName + ".db");
+                ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(
+                        dbFile);
+                boolean imported = false;
                 if (dbFile.exists()) {
-                    // this means the someone updated the csv file, so we need to reload it
-                    boolean deleted = dbFile.delete();
-                    if (!deleted) {
-                        Timber.e("%s has changed but we could not delete the previous DB at %s",
-                                dataSetFile.getName(), dbFile.getAbsolutePath());
-                        continue;
+                    // this means the someone updated the csv file, so we only apply the rows
+                    // that changed if we can
+                    imported = externalSQLiteOpenHelper.importChangesFromCSV(dataSetFile, this,
+                            formLoaderTask);
+                    if (!imported) {
+                        // otherwise we need to reload it
+                        externalSQLiteOpenHelper.close();
+                        boolean deleted = dbFile.delete();
+                        if (!deleted) {
+                            Timber.e("%s has changed but we could not delete the previous DB at %s",
+                                    dataSetFile.getName(), dbFile.getAbsolutePath());
+                            continue;
+                        }
+                        externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(dbFile);
                     }
                 }
-                ExternalSQLiteOpenHelper externalSQLiteOpenHelper = new ExternalSQLiteOpenHelper(
-                        dbFile);
-                externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, formLoaderTask);
+                if (!imported) {
+                    externalSQLiteOpenHelper.importFromCSV(dataSetFile, this, formLoaderTask);
+                }
 
-                if (formLoaderTask.isCancelled()) {
+                if (formLoaderTask.isLoadingStopped()) {
                     Timber.w(
                             "The import was cancelled, so we need to rollback.");
 
@@ -30,6 +30,7 @@ import org.javarosa.form.api.FormEntryPrompt;
 import org.javarosa.xpath.XPathParseTool;
 import org.javarosa.xpath.expr.XPathExpression;
 import org.javarosa.xpath.expr.XPathFuncExpr;
+import org.javarosa.xpath.expr.XPathStringLiteral;
 import org.javarosa.xpath.parser.XPathSyntaxException;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
@@ -39,10 +40,12 @@ import org.odk.collect.android.external.handler.ExternalDataHandlerSearch;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 import java.util.StringTokenizer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -58,6 +61,12 @@ public final class ExternalDataUtil {
 
     public static final String EXTERNAL_DATA_TABLE_NAME = "externalData";
     public static final String SORT_COLUMN_NAME = "c_sortby";
+    public static final String EXTERNAL_METADATA_TABLE_NAME = "externalMetadata";
+    /**
+     * Holds a hash of each imported row. Column names from the CSV always start with "c_" so
+     * they can't clash with it.
+     */
+    public static final String ROW_HASH_COLUMN_NAME = "row_hash";
 
     public static final Pattern SEARCH_FUNCTION_REGEX = Pattern.compile("search\\(.+\\)");
     private static final String COLUMN_SEPARATOR = ",";
@@ -163,6 +172,60 @@ public final class ExternalDataUtil {
         }
     }
 
+    /**
+     * Adds the columns that a search() appearance queries to those of its data set, so that they
+     * can be indexed when the form is loaded. Searches whose data set or columns aren't literal
+     * strings are skipped, as are malformed ones which are reported when their question is shown.
+     *
+     * @param searchedColumns the safe names of the queried columns by data set name, normalized
+     *                        like {@link ExternalDataHandlerSearch} does
+     */
+    public static void collectSearchedColumns(String appearance,
+            Map<String, Set<String>> searchedColumns) {
+        if (appearance == null) {
+            return;
+        }
+
+        Matcher matcher = SEARCH_FUNCTION_REGEX.matcher(appearance.trim());
+        if (!matcher.find()) {
+            return;
+        }
+
+        XPathExpression xpathExpression;
+        try {
+            xpathExpression = XPathParseTool.parseXPath(matcher.group(0));
+        } catch (XPathSyntaxException e) {
+            return;
+        }
+        if (!(xpathExpression instanceof XPathFuncExpr)) {
+            return;
+        }
+
+        XPathFuncExpr xpathFuncExpr = (XPathFuncExpr) xpathExpression;
+        if (!xpathFuncExpr.id.name.equalsIgnoreCase(ExternalDataHandlerSearch.HANDLER_NAME)
+                || (xpathFuncExpr.args.length != 4 && xpathFuncExpr.args.length != 6)
+                || !(xpathFuncExpr.args[0] instanceof XPathStringLiteral)
+                || !(xpathFuncExpr.args[2] instanceof XPathStringLiteral)) {
+            return;
+        }
+
+        String dataSetName = ((XPathStringLiteral) xpathFuncExpr.args[0]).s.toLowerCase(Locale.US);
+        if (dataSetName.endsWith(".csv")) {
+            dataSetName = dataSetName.substring(0, dataSetName.lastIndexOf(".csv"));
+        }
+        String queriedColumns = ((XPathStringLiteral) xpathFuncExpr.args[2]).s;
+        if (queriedColumns.trim().length() == 0) {
+            return;
+        }
+
+        Set<String> columns = searchedColumns.get(dataSetName);
+        if (columns == null) {
+            columns = new HashSet<String>();
+            searchedColumns.put(dataSetName, columns);
+        }
+        columns.addAll(createListOfColumns(queriedColumns));
+    }
+
     public static ArrayList<SelectChoice> populateExternalChoices(FormEntryPrompt formEntryPrompt,
             XPathFuncExpr xpathfuncexpr) {
         try {
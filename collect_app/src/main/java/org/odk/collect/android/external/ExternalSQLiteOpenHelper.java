@@ -18,26 +18,36 @@
 
 package org.odk.collect.android.external;
 
-import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.database.DatabaseContext;
 import org.odk.collect.android.exception.ExternalDataException;
 import org.odk.collect.android.tasks.FormLoaderTask;
+import org.odk.collect.android.utilities.FileUtils;
 
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-import au.com.bytecode.opencsv.CSVReader;
 import timber.log.Timber;
 
 /**
@@ -48,13 +58,31 @@ import timber.log.Timber;
 public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
 
     private static final int VERSION = 1;
-    private static final char DELIMITING_CHAR = ",".charAt(0);
-    private static final char QUOTE_CHAR = "\"".charAt(0);
-    private static final char ESCAPE_CHAR = "\0".charAt(0);
+
+    /**
+     * Number of rows changed before the current transaction is committed and a new one started.
+     */
+    private static final int ROWS_PER_TRANSACTION = 10000;
+
+    private static final String METADATA_CSV_HASH = "csv_hash";
+    private static final String METADATA_COLUMNS = "columns";
+    private static final String METADATA_SEARCH_COLUMNS = "search_columns";
+
+    private static final String SEARCH_INDEX_TABLE_PREFIX = "externalSearch_";
+
+    /**
+     * The full-text table that indexes the columns searched by the form.
+     */
+    private static final String SEARCH_INDEX_TABLE_NAME = SEARCH_INDEX_TABLE_PREFIX + "columns";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
 
     private File dataSetFile;
     private ExternalDataReader externalDataReader;
     private FormLoaderTask formLoaderTask;
+    private boolean importPending;
+    private final Map<String, SQLiteStatement> pullStatements = new HashMap<String, SQLiteStatement>();
+    private List<String> searchIndexColumns;
 
     public ExternalSQLiteOpenHelper(File dbFile) {
         super(new DatabaseContext(dbFile.getParentFile().getAbsolutePath()), dbFile.getName(), null, VERSION);
@@ -69,6 +97,49 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
         SQLiteDatabase writableDatabase = null;
         try {
             writableDatabase = getWritableDatabase();
+            if (importPending) {
+                importPending = false;
+                importData(writableDatabase);
+            }
+        } finally {
+            if (writableDatabase != null) {
+                writableDatabase.close();
+            }
+        }
+    }
+
+    /**
+     * Brings a database that was previously imported from an earlier version of the CSV up to
+     * date by applying only the rows that were added, removed or changed.
+     *
+     * @return false if the changes can't be applied to this database because it was created by
+     * an older version of Collect or the CSV's columns have changed. The database should then be
+     * deleted and imported again with {@link #importFromCSV}.
+     */
+    public boolean importChangesFromCSV(File dataSetFile, ExternalDataReader externalDataReader,
+            FormLoaderTask formLoaderTask) {
+        this.dataSetFile = dataSetFile;
+        this.externalDataReader = externalDataReader;
+        this.formLoaderTask = formLoaderTask;
+
+        SQLiteDatabase writableDatabase = null;
+        try {
+            writableDatabase = getWritableDatabase();
+            if (importPending) {
+                importPending = false;
+                importData(writableDatabase);
+                return true;
+            }
+
+            try {
+                return onUpdateNamed(writableDatabase, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
+            } catch (ExternalDataException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new ExternalDataException(
+                        Collect.getInstance().getString(R.string.ext_import_generic_error,
+                                dataSetFile.getName(), e.getMessage()), e);
+            }
         } finally {
             if (writableDatabase != null) {
                 writableDatabase.close();
@@ -87,6 +158,12 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
             return;
         }
 
+        // onCreate runs inside a single transaction that SQLiteOpenHelper owns. The data is
+        // imported once it has been committed so that the rows can be committed in batches.
+        importPending = true;
+    }
+
+    private void importData(SQLiteDatabase db) {
         try {
             onCreateNamed(db, ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME);
         } catch (Exception e) {
@@ -102,37 +179,508 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
         onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
                 dataSetFile.getName(), ""));
 
-        CSVReader reader = null;
+        final long start = System.currentTimeMillis();
+        final String csvHash = FileUtils.getMd5Hash(dataSetFile);
+        CsvTokenizer reader = null;
         try {
-            reader = new CSVReader(new InputStreamReader(new FileInputStream(dataSetFile), "UTF-8"),
-                    DELIMITING_CHAR, QUOTE_CHAR, ESCAPE_CHAR);
-            String[] headerRow = reader.readNext();
+            reader = new CsvTokenizer(new InputStreamReader(new FileInputStream(dataSetFile), "UTF-8"));
+            ColumnMapping columns = new ColumnMapping(readHeaderRow(reader), tableName);
 
-            headerRow[0] = removeByteOrderMark(headerRow[0]);
+            Timber.w("Creating database for %s with query: %s", dataSetFile, columns.createTableSql);
+            db.execSQL(columns.createTableSql);
+            db.execSQL("CREATE TABLE IF NOT EXISTS " + ExternalDataUtil.EXTERNAL_METADATA_TABLE_NAME
+                    + " (key text primary key, value text);");
 
-            if (!ExternalDataUtil.containsAnyData(headerRow)) {
-                throw new ExternalDataException(
-                        Collect.getInstance().getString(R.string.ext_file_no_data_error));
+            // populate the database
+            SQLiteStatement insertStatement = db.compileStatement(columns.insertSql);
+            MessageDigest digest = createRowDigest();
+            int rowCount = 0;
+            db.beginTransaction();
+            try {
+                String[] row = reader.readNext();
+                while (row != null && !isCancelled()) {
+                    // SCTO-894 - first we should make sure that this is not an empty line
+                    if (!ExternalDataUtil.containsAnyData(row)) {
+                        // yes, that is an empty row, ignore it
+                        row = reader.readNext();
+                        continue;
+                    }
+
+                    rowCount++;
+                    columns.bindRow(insertStatement, row, rowCount, digest);
+                    insertStatement.executeInsert();
+                    row = reader.readNext();
+
+                    commitIfBatchComplete(db, rowCount);
+                    if (rowCount % 100 == 0) {
+                        onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
+                                dataSetFile.getName(), " (" + rowCount + " records so far)"));
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insertStatement.close();
             }
 
-            List<String> conflictingColumns =
-                    ExternalDataUtil.findMatchingColumnsAfterSafeningNames(headerRow);
+            if (isCancelled()) {
+                Timber.w("User canceled reading data from %s", dataSetFile.toString());
+                onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
+            } else {
 
-            if (conflictingColumns != null && !conflictingColumns.isEmpty()) {
-                // this means that after removing invalid characters, some column names resulted
-                // with the same name,
-                // so the create table query will fail with "duplicate column" error.
-                throw new ExternalDataException(
-                        Collect.getInstance().getString(R.string.ext_conflicting_columns_error,
-                                conflictingColumns));
+                onProgress(Collect.getInstance().getString(R.string.ext_import_finalizing_message));
+
+                // now create the indexes
+                for (String createIndexCommand : columns.createIndexesCommands) {
+                    Timber.w(createIndexCommand);
+                    db.execSQL(createIndexCommand);
+                }
+
+                writeMetadata(db, METADATA_COLUMNS, columns.signature);
+                writeMetadata(db, METADATA_CSV_HASH, csvHash);
+
+                Timber.w("Read all data from %s", dataSetFile.toString());
+                Timber.i("Imported %d rows in %.3f seconds.", rowCount,
+                        (System.currentTimeMillis() - start) / 1000F);
+                onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
+            }
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Applies the differences between the CSV and the rows already in the table. Rows are
+     * matched by a hash of their values, so a changed row is deleted and inserted again.
+     */
+    private boolean onUpdateNamed(SQLiteDatabase db, String tableName) throws Exception {
+        String previousCsvHash = readMetadata(db, METADATA_CSV_HASH);
+        String previousColumns = readMetadata(db, METADATA_COLUMNS);
+        if (previousCsvHash == null || previousColumns == null) {
+            Timber.i("%s was not imported incrementally before", dataSetFile.getName());
+            return false;
+        }
+
+        final String csvHash = FileUtils.getMd5Hash(dataSetFile);
+        if (previousCsvHash.equals(csvHash)) {
+            Timber.i("%s has not changed since it was last imported", dataSetFile.getName());
+            return true;
+        }
+
+        Timber.w("Reading changes from '%s", dataSetFile.toString());
+        onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
+                dataSetFile.getName(), ""));
+
+        final long start = System.currentTimeMillis();
+        CsvTokenizer reader = null;
+        try {
+            reader = new CsvTokenizer(new InputStreamReader(new FileInputStream(dataSetFile), "UTF-8"));
+            ColumnMapping columns = new ColumnMapping(readHeaderRow(reader), tableName);
+            if (!columns.signature.equals(previousColumns)) {
+                Timber.i("The columns of %s have changed", dataSetFile.getName());
+                return false;
+            }
+
+            ExistingRows existingRows = ExistingRows.read(db, tableName);
+            List<String> searchColumns = readSearchIndexColumns(db);
+            SearchIndexWriter searchIndexWriter = searchColumns.isEmpty()
+                    ? null : new SearchIndexWriter(db, SEARCH_INDEX_TABLE_NAME, searchColumns);
+
+            SQLiteStatement insertStatement = db.compileStatement(columns.insertSql);
+            SQLiteStatement updateSortStatement = db.compileStatement("UPDATE " + tableName
+                    + " SET " + ExternalDataUtil.SORT_COLUMN_NAME + " = ? WHERE rowid = ?");
+            SQLiteStatement deleteStatement = db.compileStatement("DELETE FROM " + tableName
+                    + " WHERE rowid = ?");
+            MessageDigest digest = createRowDigest();
+            int rowCount = 0;
+            int changeCount = 0;
+            db.beginTransaction();
+            try {
+                String[] row = reader.readNext();
+                while (row != null && !isCancelled()) {
+                    // SCTO-894 - skip empty lines just like a full import does
+                    if (!ExternalDataUtil.containsAnyData(row)) {
+                        row = reader.readNext();
+                        continue;
+                    }
+
+                    rowCount++;
+                    long rowHash = columns.bindRow(insertStatement, row, rowCount, digest);
+                    int existing = existingRows.claim(rowHash);
+                    if (existing == -1) {
+                        long rowId = insertStatement.executeInsert();
+                        if (searchIndexWriter != null) {
+                            searchIndexWriter.insert(rowId, columns.getValues(row, searchColumns));
+                        }
+                        changeCount++;
+                        commitIfBatchComplete(db, changeCount);
+                    } else if (!columns.sortColumnAlreadyPresent
+                            && existingRows.sortBy[existing] != rowCount) {
+                        // the row is unchanged but has moved within the file
+                        updateSortStatement.bindDouble(1, rowCount);
+                        updateSortStatement.bindLong(2, existingRows.rowIds[existing]);
+                        updateSortStatement.executeUpdateDelete();
+                        changeCount++;
+                        commitIfBatchComplete(db, changeCount);
+                    }
+                    row = reader.readNext();
+
+                    if (rowCount % 100 == 0) {
+                        onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
+                                dataSetFile.getName(), " (" + rowCount + " records so far)"));
+                    }
+                }
+
+                if (!isCancelled()) {
+                    for (int i = existingRows.nextUnclaimed(0); i != -1; i = existingRows.nextUnclaimed(i + 1)) {
+                        if (searchIndexWriter != null) {
+                            // the index doesn't store the values it has to remove
+                            searchIndexWriter.delete(existingRows.rowIds[i],
+                                    readValues(db, tableName, existingRows.rowIds[i], searchColumns));
+                        }
+                        deleteStatement.bindLong(1, existingRows.rowIds[i]);
+                        deleteStatement.executeUpdateDelete();
+                        changeCount++;
+                        commitIfBatchComplete(db, changeCount);
+                    }
+                    writeMetadata(db, METADATA_CSV_HASH, csvHash);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                insertStatement.close();
+                updateSortStatement.close();
+                deleteStatement.close();
+                if (searchIndexWriter != null) {
+                    searchIndexWriter.close();
+                }
+            }
+
+            if (isCancelled()) {
+                Timber.w("User canceled reading data from %s", dataSetFile.toString());
+                onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
+            } else {
+                Timber.i("Applied %d changes from %d rows in %.3f seconds.", changeCount, rowCount,
+                        (System.currentTimeMillis() - start) / 1000F);
+                onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
+            }
+            return true;
+        } finally {
+            closeQuietly(reader);
+        }
+    }
+
+    /**
+     * Reads and validates the first row of the CSV.
+     */
+    private String[] readHeaderRow(CsvTokenizer reader) throws IOException {
+        String[] headerRow = reader.readNext();
+
+        if (headerRow == null) {
+            throw new ExternalDataException(
+                    Collect.getInstance().getString(R.string.ext_file_no_data_error));
+        }
+
+        headerRow[0] = removeByteOrderMark(headerRow[0]);
+
+        if (!ExternalDataUtil.containsAnyData(headerRow)) {
+            throw new ExternalDataException(
+                    Collect.getInstance().getString(R.string.ext_file_no_data_error));
+        }
+
+        List<String> conflictingColumns =
+                ExternalDataUtil.findMatchingColumnsAfterSafeningNames(headerRow);
+
+        if (conflictingColumns != null && !conflictingColumns.isEmpty()) {
+            // this means that after removing invalid characters, some column names resulted
+            // with the same name,
+            // so the create table query will fail with "duplicate column" error.
+            throw new ExternalDataException(
+                    Collect.getInstance().getString(R.string.ext_conflicting_columns_error,
+                            conflictingColumns));
+        }
+        return headerRow;
+    }
+
+    private void commitIfBatchComplete(SQLiteDatabase db, int changeCount) {
+        if (changeCount % ROWS_PER_TRANSACTION == 0) {
+            db.setTransactionSuccessful();
+            db.endTransaction();
+            db.beginTransaction();
+        }
+    }
+
+    private static String readMetadata(SQLiteDatabase db, String key) {
+        long tableCount = DatabaseUtils.queryNumEntries(db, "sqlite_master", "type = 'table' AND name = ?",
+                new String[]{ExternalDataUtil.EXTERNAL_METADATA_TABLE_NAME});
+        if (tableCount == 0) {
+            return null;
+        }
+
+        try (Cursor c = db.query(ExternalDataUtil.EXTERNAL_METADATA_TABLE_NAME, new String[]{"value"},
+                "key = ?", new String[]{key}, null, null, null)) {
+            return c.moveToFirst() ? c.getString(0) : null;
+        }
+    }
+
+    private static void writeMetadata(SQLiteDatabase db, String key, String value) {
+        db.execSQL("INSERT OR REPLACE INTO " + ExternalDataUtil.EXTERNAL_METADATA_TABLE_NAME
+                + " (key, value) VALUES (?, ?)", new Object[]{key, value});
+    }
+
+    private static String[] readValues(SQLiteDatabase db, String tableName, long rowId,
+            List<String> columns) {
+        try (Cursor c = db.query(tableName, columns.toArray(new String[columns.size()]),
+                "rowid = ?", new String[]{String.valueOf(rowId)}, null, null, null)) {
+            String[] values = new String[columns.size()];
+            if (c.moveToFirst()) {
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = c.getString(i);
+                }
+            }
+            return values;
+        }
+    }
+
+    private static MessageDigest createRowDigest() throws NoSuchAlgorithmException {
+        return MessageDigest.getInstance("MD5");
+    }
+
+    private static void closeQuietly(CsvTokenizer reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (IOException e) {
+                Timber.e(e);
+            }
+        }
+    }
+
+    private boolean isCancelled() {
+        return formLoaderTask != null && formLoaderTask.isLoadingStopped();
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+    }
+
+    /**
+     * Returns a compiled query for the value of one column in the first row in which another
+     * column has the value bound to its only parameter. Statements are cached until this helper
+     * is closed, and must be used while holding their lock since they are shared.
+     *
+     * @param safeQueriedColumn   the column to return, as returned by
+     *                            {@link ExternalDataUtil#toSafeColumnName(String)}
+     * @param safeReferenceColumn the column to match against
+     */
+    public synchronized SQLiteStatement getPullStatement(String safeQueriedColumn, String safeReferenceColumn) {
+        String key = safeQueriedColumn + "|" + safeReferenceColumn;
+        SQLiteStatement statement = pullStatements.get(key);
+        if (statement == null) {
+            statement = getReadableDatabase().compileStatement("SELECT " + safeQueriedColumn
+                    + " FROM " + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME
+                    + " WHERE " + safeReferenceColumn + " = ? LIMIT 1");
+            pullStatements.put(key, statement);
+        }
+        return statement;
+    }
+
+    /**
+     * Returns the name of the full-text table that indexes the given columns. The table has a
+     * row for each row of the data, with the same rowid, and its text is built by
+     * {@link ExternalSearchIndex#createIndexedText}. It is built by {@link #createSearchIndex}
+     * when the form is loaded so that searches during form entry never have to build it.
+     *
+     * @param safeColumns the searched columns, as returned by
+     *                    {@link ExternalDataUtil#toSafeColumnName(String)}
+     * @return null if the columns aren't indexed, in which case the data should be scanned
+     */
+    public synchronized String getSearchIndex(List<String> safeColumns) {
+        if (searchIndexColumns == null) {
+            searchIndexColumns = readSearchIndexColumns(getReadableDatabase());
+        }
+        return searchIndexColumns.containsAll(safeColumns) ? SEARCH_INDEX_TABLE_NAME : null;
+    }
+
+    /**
+     * Makes sure that the search index covers the columns that the form searches. The index is
+     * only built again when one of them is missing from it, since incremental imports keep it
+     * up to date.
+     *
+     * @param safeColumns the columns queried by the form's search() appearances, as returned by
+     *                    {@link ExternalDataUtil#toSafeColumnName(String)}. Columns that aren't
+     *                    in the data are ignored.
+     */
+    public void createSearchIndex(Collection<String> safeColumns, FormLoaderTask formLoaderTask) {
+        this.formLoaderTask = formLoaderTask;
+
+        SQLiteDatabase writableDatabase = null;
+        try {
+            writableDatabase = getWritableDatabase();
+            String signature = readMetadata(writableDatabase, METADATA_COLUMNS);
+            if (signature == null) {
+                // not imported by this version, so the columns of the data aren't known
+                return;
+            }
+
+            List<String> columns = new ArrayList<String>(safeColumns);
+            columns.retainAll(Arrays.asList(signature.split(",")));
+            columns.remove(ExternalDataUtil.SORT_COLUMN_NAME);
+            if (columns.isEmpty() || readSearchIndexColumns(writableDatabase).containsAll(columns)) {
+                return;
+            }
+
+            buildSearchIndex(writableDatabase, columns);
+        } finally {
+            if (writableDatabase != null) {
+                writableDatabase.close();
+            }
+        }
+    }
+
+    private static List<String> readSearchIndexColumns(SQLiteDatabase db) {
+        String columns = readMetadata(db, METADATA_SEARCH_COLUMNS);
+        return columns != null ? Arrays.asList(columns.split(",")) : Collections.<String>emptyList();
+    }
+
+    /**
+     * Replaces the search index with one of the given columns.
+     */
+    private void buildSearchIndex(SQLiteDatabase db, List<String> columns) {
+        onProgress(Collect.getInstance().getString(R.string.ext_import_finalizing_message));
+        dropSearchIndexes(db);
+        try {
+            createSearchIndex(db, SEARCH_INDEX_TABLE_NAME, columns);
+            writeMetadata(db, METADATA_SEARCH_COLUMNS, TextUtils.join(",", columns));
+        } catch (Exception e) {
+            // e.g. a build of SQLite without FTS4
+            Timber.w(e, "Could not create a search index for %s", TextUtils.join(", ", columns));
+        }
+    }
+
+    private static void createSearchIndex(SQLiteDatabase db, String tableName, List<String> columns) {
+        final long start = System.currentTimeMillis();
+        String columnList = TextUtils.join(", ", columns);
+
+        db.beginTransaction();
+        try {
+            // the values are read from the data table instead of being stored a second time.
+            // Unlike a contentless table, rows can still be deleted from it when changes are
+            // imported.
+            db.execSQL("CREATE VIRTUAL TABLE " + tableName + " USING fts4(content=\""
+                    + ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME + "\", prefix=\"2,3\", "
+                    + columnList + ")");
+
+            SearchIndexWriter writer = new SearchIndexWriter(db, tableName, columns);
+            try (Cursor c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME,
+                    createSearchIndexSourceColumns(columns), null, null, null, null, null)) {
+                String[] values = new String[columns.size()];
+                while (c.moveToNext()) {
+                    for (int i = 0; i < values.length; i++) {
+                        values[i] = c.getString(i + 1);
+                    }
+                    writer.insert(c.getLong(0), values);
+                }
+            } finally {
+                writer.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        Timber.i("Created search index for %s in %.3f seconds.", columnList,
+                (System.currentTimeMillis() - start) / 1000F);
+    }
+
+    private static String[] createSearchIndexSourceColumns(List<String> columns) {
+        String[] sourceColumns = new String[columns.size() + 1];
+        sourceColumns[0] = "rowid";
+        for (int i = 0; i < columns.size(); i++) {
+            sourceColumns[i + 1] = columns.get(i);
+        }
+        return sourceColumns;
+    }
+
+    private void dropSearchIndexes(SQLiteDatabase db) {
+        List<String> tableNames = new ArrayList<String>();
+        try (Cursor c = db.query("sqlite_master", new String[]{"name"},
+                "type = 'table' AND sql LIKE 'CREATE VIRTUAL TABLE%' AND name LIKE ?",
+                new String[]{SEARCH_INDEX_TABLE_PREFIX + "%"}, null, null, null)) {
+            while (c.moveToNext()) {
+                tableNames.add(c.getString(0));
             }
+        }
+        for (String tableName : tableNames) {
+            db.execSQL("DROP TABLE " + tableName);
+        }
+        db.delete(ExternalDataUtil.EXTERNAL_METADATA_TABLE_NAME, "key = ?",
+                new String[]{METADATA_SEARCH_COLUMNS});
+        synchronized (this) {
+            searchIndexColumns = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (SQLiteStatement statement : pullStatements.values()) {
+            statement.close();
+        }
+        pullStatements.clear();
+        searchIndexColumns = null;
+        super.close();
+    }
+
+    private void onProgress(String message) {
+        if (formLoaderTask != null) {
+            formLoaderTask.publishExternalDataLoadingProgress(message);
+        }
+    }
 
+    /**
+     * Removes a Byte Order Mark (BOM) from the start of a String.
+     *
+     * @param bomCheckString is checked to see if it starts with a Byte Order Mark.
+     * @return bomCheckString without a Byte Order Mark.
+     */
+    private String removeByteOrderMark(String bomCheckString) {
+        return bomCheckString.startsWith("\uFEFF") ? bomCheckString.substring(1) : bomCheckString;
+    }
+
+    /**
+     * How the columns of a CSV map onto the columns of the table, resolved once from the
+     * header row.
+     */
+    private static class ColumnMapping {
+        final String createTableSql;
+        final String insertSql;
+        final List<String> createIndexesCommands = new ArrayList<String>();
+        final boolean sortColumnAlreadyPresent;
+
+        /**
+         * Identifies the table's columns, so that changes to them can be detected.
+         */
+        final String signature;
+
+        /**
+         * For each insert parameter (minus one), the index of its value in a CSV row.
+         */
+        private final int[] csvColumnIndexes;
+        private final int sortColumnParameter;
+        private final int rowHashParameter;
+        private final List<String> safeColumnNames;
+
+        ColumnMapping(String[] headerRow, String tableName) {
             Map<String, String> columnNamesCache = new HashMap<String, String>();
 
             StringBuilder sb = new StringBuilder();
 
             boolean sortColumnAlreadyPresent = false;
 
+            List<String> safeColumnNames = new ArrayList<String>();
+            List<Integer> csvColumnIndexes = new ArrayList<Integer>();
+            int sortColumnParameter = -1;
+
             sb
                     .append("CREATE TABLE IF NOT EXISTS ")
                     .append(tableName)
@@ -150,26 +698,32 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
                         columnNamesCache);
                 if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
                     sortColumnAlreadyPresent = true;
+                    sortColumnParameter = safeColumnNames.size() + 1;
                     sb.append(safeColumnName).append(" real ");
                 } else {
                     sb.append(safeColumnName).append(" text collate nocase ");
                 }
+                safeColumnNames.add(safeColumnName);
+                csvColumnIndexes.add(i);
             }
             if (!sortColumnAlreadyPresent) {
                 sb.append(", ");
                 sb.append(ExternalDataUtil.SORT_COLUMN_NAME).append(" real ");
+                safeColumnNames.add(ExternalDataUtil.SORT_COLUMN_NAME);
+                sortColumnParameter = safeColumnNames.size();
             }
+            signature = TextUtils.join(",", safeColumnNames);
 
-            sb.append(" );");
-            String sql = sb.toString();
+            sb.append(", ").append(ExternalDataUtil.ROW_HASH_COLUMN_NAME).append(" integer ");
+            safeColumnNames.add(ExternalDataUtil.ROW_HASH_COLUMN_NAME);
+            rowHashParameter = safeColumnNames.size();
 
-            Timber.w("Creating database for %s with query: %s", dataSetFile, sql);
-            db.execSQL(sql);
+            sb.append(" );");
+            createTableSql = sb.toString();
 
             // create the indexes.
             // save the sql for later because inserts will be much faster if we don't have
             // indexes already.
-            List<String> createIndexesCommands = new ArrayList<String>();
             for (String header : headerRow) {
                 if (header.endsWith("_key")) {
                     String indexSQL = "CREATE INDEX " + header + "_idx ON " + tableName + " ("
@@ -179,101 +733,203 @@ public class ExternalSQLiteOpenHelper extends SQLiteOpenHelper {
                 }
             }
 
-            // populate the database
-            String[] row = reader.readNext();
-            int rowCount = 0;
-            while (row != null && !formLoaderTask.isCancelled()) {
-                // SCTO-894 - first we should make sure that this is not an empty line
-                if (!ExternalDataUtil.containsAnyData(row)) {
-                    // yes, that is an empty row, ignore it
-                    row = reader.readNext();
-                    continue;
-                }
-
-                // SCTO-894 - then check if the row contains less values than the header
-                // we should not ignore the existing values in the row,
-                // we will just fill up the rest with empty strings
-                if (row.length < headerRow.length) {
-                    row = ExternalDataUtil.fillUpNullValues(row, headerRow);
-                }
+            this.sortColumnAlreadyPresent = sortColumnAlreadyPresent;
+            this.sortColumnParameter = sortColumnParameter;
+            this.safeColumnNames = safeColumnNames;
+            this.csvColumnIndexes = new int[csvColumnIndexes.size()];
+            for (int i = 0; i < this.csvColumnIndexes.length; i++) {
+                this.csvColumnIndexes[i] = csvColumnIndexes.get(i);
+            }
+            insertSql = createInsertSql(tableName, safeColumnNames);
+        }
 
-                ContentValues values = new ContentValues();
-                if (!sortColumnAlreadyPresent) {
-                    values.put(ExternalDataUtil.SORT_COLUMN_NAME, rowCount + 1);
-                }
+        /**
+         * Binds the values of a CSV row to the insert statement.
+         *
+         * @param rowNumber the position of the row in the CSV, used to sort rows if the CSV has
+         *                  no sort column
+         * @return a hash of the row's values
+         */
+        long bindRow(SQLiteStatement insertStatement, String[] row, int rowNumber, MessageDigest digest) {
+            insertStatement.clearBindings();
+            digest.reset();
+            if (!sortColumnAlreadyPresent) {
+                insertStatement.bindDouble(sortColumnParameter, rowNumber);
+            }
 
-                for (int i = 0; i < row.length && i < headerRow.length; i++) {
-                    String columnName = headerRow[i].trim();
-                    String columnValue = row[i];
-                    if (columnName.length() == 0) {
-                        continue;
-                    }
-                    String safeColumnName = ExternalDataUtil.toSafeColumnName(columnName,
-                            columnNamesCache);
-                    if (safeColumnName.equals(ExternalDataUtil.SORT_COLUMN_NAME)) {
-                        try {
-                            values.put(safeColumnName, Double.parseDouble(columnValue));
-                        } catch (NumberFormatException e) {
-                            throw new ExternalDataException(Collect.getInstance().getString(
-                                    R.string.ext_sortBy_numeric_error, columnValue));
-                        }
-                    } else {
-                        values.put(safeColumnName, columnValue);
+            // SCTO-894 - if the row contains less values than the header we should not
+            // ignore the existing values in the row, we will just fill up the rest with
+            // empty strings
+            for (int parameter = 1; parameter <= csvColumnIndexes.length; parameter++) {
+                int csvColumnIndex = csvColumnIndexes[parameter - 1];
+                String columnValue = csvColumnIndex < row.length ? row[csvColumnIndex] : "";
+                if (parameter == sortColumnParameter) {
+                    try {
+                        insertStatement.bindDouble(parameter, Double.parseDouble(columnValue));
+                    } catch (NumberFormatException e) {
+                        throw new ExternalDataException(Collect.getInstance().getString(
+                                R.string.ext_sortBy_numeric_error, columnValue));
                     }
+                } else {
+                    insertStatement.bindString(parameter, columnValue);
                 }
-                db.insertOrThrow(tableName, null, values);
-                row = reader.readNext();
-                rowCount++;
-                if (rowCount % 100 == 0) {
-                    onProgress(Collect.getInstance().getString(R.string.ext_import_progress_message,
-                            dataSetFile.getName(), " (" + rowCount + " records so far)"));
-                }
+                digest.update(columnValue.getBytes(UTF_8));
+                digest.update((byte) 0);
             }
 
-            if (formLoaderTask.isCancelled()) {
-                Timber.w("User canceled reading data from %s", dataSetFile.toString());
-                onProgress(Collect.getInstance().getString(R.string.ext_import_cancelled_message));
-            } else {
-
-                onProgress(Collect.getInstance().getString(R.string.ext_import_finalizing_message));
+            long rowHash = toLong(digest.digest());
+            insertStatement.bindLong(rowHashParameter, rowHash);
+            return rowHash;
+        }
 
-                // now create the indexes
-                for (String createIndexCommand : createIndexesCommands) {
-                    Timber.w(createIndexCommand);
-                    db.execSQL(createIndexCommand);
-                }
+        /**
+         * @return the values of the given columns in a CSV row, as they are inserted
+         */
+        String[] getValues(String[] row, List<String> safeColumns) {
+            String[] values = new String[safeColumns.size()];
+            for (int i = 0; i < values.length; i++) {
+                int parameter = safeColumnNames.indexOf(safeColumns.get(i)) + 1;
+                int csvColumnIndex = csvColumnIndexes[parameter - 1];
+                values[i] = csvColumnIndex < row.length ? row[csvColumnIndex] : "";
+            }
+            return values;
+        }
 
-                Timber.w("Read all data from %s", dataSetFile.toString());
-                onProgress(Collect.getInstance().getString(R.string.ext_import_completed_message));
+        private static long toLong(byte[] bytes) {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (bytes[i] & 0xFF);
             }
-        } finally {
-            if (reader != null) {
-                try {
-                    reader.close();
-                } catch (IOException e) {
-                    Timber.e(e);
+            return value;
+        }
+
+        private static String createInsertSql(String tableName, List<String> columnNames) {
+            StringBuilder sb = new StringBuilder("INSERT INTO ")
+                    .append(tableName)
+                    .append(" (");
+            for (int i = 0; i < columnNames.size(); i++) {
+                if (i != 0) {
+                    sb.append(", ");
                 }
+                sb.append(columnNames.get(i));
+            }
+            sb.append(") VALUES (");
+            for (int i = 0; i < columnNames.size(); i++) {
+                sb.append(i == 0 ? "?" : ", ?");
             }
+            return sb.append(")").toString();
         }
     }
 
-    @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    }
+    /**
+     * Adds rows to and removes them from a search index. The index doesn't store the values, so
+     * the ones that were indexed for a row have to be given to remove it.
+     */
+    private static class SearchIndexWriter {
+        private final SQLiteStatement insertStatement;
+        private final SQLiteStatement deleteStatement;
+
+        SearchIndexWriter(SQLiteDatabase db, String tableName, List<String> columns) {
+            String columnList = TextUtils.join(", ", columns);
+            StringBuilder parameters = new StringBuilder("?");
+            for (int i = 0; i < columns.size(); i++) {
+                parameters.append(", ?");
+            }
 
-    private void onProgress(String message) {
-        if (formLoaderTask != null) {
-            formLoaderTask.publishExternalDataLoadingProgress(message);
+            insertStatement = db.compileStatement("INSERT INTO " + tableName + " (docid, "
+                    + columnList + ") VALUES (" + parameters + ")");
+            deleteStatement = db.compileStatement("INSERT INTO " + tableName + " (" + tableName
+                    + ", docid, " + columnList + ") VALUES ('delete', " + parameters + ")");
+        }
+
+        void insert(long rowId, String[] values) {
+            execute(insertStatement, rowId, values);
+        }
+
+        void delete(long rowId, String[] values) {
+            execute(deleteStatement, rowId, values);
+        }
+
+        private static void execute(SQLiteStatement statement, long rowId, String[] values) {
+            statement.clearBindings();
+            statement.bindLong(1, rowId);
+            for (int i = 0; i < values.length; i++) {
+                String text = ExternalSearchIndex.createIndexedText(values[i]);
+                if (text != null) {
+                    statement.bindString(i + 2, text);
+                }
+            }
+            statement.executeInsert();
+        }
+
+        void close() {
+            insertStatement.close();
+            deleteStatement.close();
         }
     }
 
     /**
-     * Removes a Byte Order Mark (BOM) from the start of a String.
-     *
-     * @param bomCheckString is checked to see if it starts with a Byte Order Mark.
-     * @return bomCheckString without a Byte Order Mark.
+     * The rows of a previous import, sorted by hash so that the rows of the new CSV can be
+     * matched against them without keeping the values in memory.
      */
-    private String removeByteOrderMark(String bomCheckString) {
-        return bomCheckString.startsWith("\uFEFF") ? bomCheckString.substring(1) : bomCheckString;
+    private static class ExistingRows {
+        final long[] rowHashes;
+        final long[] rowIds;
+        final double[] sortBy;
+        private final BitSet claimed;
+
+        private ExistingRows(int size) {
+            rowHashes = new long[size];
+            rowIds = new long[size];
+            sortBy = new double[size];
+            claimed = new BitSet(size);
+        }
+
+        static ExistingRows read(SQLiteDatabase db, String tableName) {
+            int size = (int) DatabaseUtils.queryNumEntries(db, tableName);
+            ExistingRows rows = new ExistingRows(size);
+            try (Cursor c = db.query(tableName, new String[]{ExternalDataUtil.ROW_HASH_COLUMN_NAME,
+                            "rowid", ExternalDataUtil.SORT_COLUMN_NAME}, null, null, null, null,
+                    ExternalDataUtil.ROW_HASH_COLUMN_NAME)) {
+                int i = 0;
+                while (c.moveToNext() && i < size) {
+                    rows.rowHashes[i] = c.getLong(0);
+                    rows.rowIds[i] = c.getLong(1);
+                    rows.sortBy[i] = c.getDouble(2);
+                    i++;
+                }
+            }
+            return rows;
+        }
+
+        /**
+         * Marks the first unclaimed row with the given hash as claimed.
+         *
+         * @return the index of the claimed row, or -1 if there is no unclaimed row with the hash
+         */
+        int claim(long rowHash) {
+            int i = Arrays.binarySearch(rowHashes, rowHash);
+            if (i < 0) {
+                return -1;
+            }
+
+            // binarySearch finds any of the rows with this hash, so go back to the first one
+            while (i > 0 && rowHashes[i - 1] == rowHash) {
+                i--;
+            }
+            while (i < rowHashes.length && rowHashes[i] == rowHash) {
+                if (!claimed.get(i)) {
+                    claimed.set(i);
+                    return i;
+                }
+                i++;
+            }
+            return -1;
+        }
+
+        int nextUnclaimed(int fromIndex) {
+            int i = claimed.nextClearBit(fromIndex);
+            return i < rowHashes.length ? i : -1;
+        }
     }
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.external;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the text stored in and the queries run against the full-text indexes that narrow down
+ * search() lookups.
+ *
+ * The indexes use SQLite's simple tokenizer, which splits text on ASCII characters that aren't
+ * letters or digits. Besides the words themselves, every suffix of every word is indexed so that
+ * a prefix query finds words that contain the queried text anywhere. Each word of the searched
+ * value must then appear in any row that contains, starts with, ends with or matches the value,
+ * so the index returns a superset of the rows which is filtered with the original LIKE
+ * expression.
+ */
+public final class ExternalSearchIndex {
+
+    /**
+     * Words shorter than this aren't indexed as suffixes and aren't used to narrow searches
+     * because they would match most rows anyway.
+     */
+    static final int MIN_WORD_LENGTH = 2;
+
+    private ExternalSearchIndex() {
+    }
+
+    /**
+     * @return the text to index for a column value: the value itself followed by the suffixes of
+     * its words
+     */
+    public static String createIndexedText(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder(value);
+        for (String word : splitWords(value)) {
+            for (int i = 1; i <= word.length() - MIN_WORD_LENGTH; i++) {
+                if (Character.isLowSurrogate(word.charAt(i))) {
+                    continue;
+                }
+                sb.append(' ').append(word, i, word.length());
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return a MATCH expression for the rows in which the given column may contain the searched
+     * value, or null if the value has no words long enough to narrow the search
+     */
+    public static String createMatchQuery(String safeColumn, String searchedValue) {
+        if (searchedValue == null) {
+            return null;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        for (String word : splitWords(searchedValue)) {
+            if (word.length() < MIN_WORD_LENGTH) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            // lower case so that words such as OR aren't read as operators
+            sb.append(safeColumn).append(':').append(toAsciiLowerCase(word)).append('*');
+        }
+        return sb.length() > 0 ? sb.toString() : null;
+    }
+
+    /**
+     * Splits text into words the same way as SQLite's simple tokenizer.
+     */
+    public static List<String> splitWords(String text) {
+        List<String> words = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i < text.length(); i++) {
+            if (isSeparator(text.charAt(i))) {
+                if (start != -1) {
+                    words.add(text.substring(start, i));
+                    start = -1;
+                }
+            } else if (start == -1) {
+                start = i;
+            }
+        }
+        if (start != -1) {
+            words.add(text.substring(start));
+        }
+        return words;
+    }
+
+    /**
+     * Lower cases the ASCII letters only, like the simple tokenizer does for the indexed text.
+     * Other letters have to keep their case to match the indexed words.
+     */
+    public static String toAsciiLowerCase(String word) {
+        char[] chars = word.toCharArray();
+        for (int i = 0; i < chars.length; i++) {
+            if (chars[i] >= 'A' && chars[i] <= 'Z') {
+                chars[i] = (char) (chars[i] + ('a' - 'A'));
+            }
+        }
+        return new String(chars);
+    }
+
+    private static boolean isSeparator(char c) {
+        return c < 0x80 && !(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9');
+    }
+}
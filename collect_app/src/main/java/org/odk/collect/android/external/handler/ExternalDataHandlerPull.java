@@ -18,9 +18,9 @@
 
 package org.odk.collect.android.external.handler;
 
-import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
 
 import com.google.android.gms.analytics.HitBuilders;
 
@@ -32,7 +32,9 @@ import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
 
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import timber.log.Timber;
 
@@ -45,6 +47,24 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
 
     public static final String HANDLER_NAME = "pulldata";
 
+    /**
+     * Number of recent lookups whose results are kept.
+     */
+    private static final int MAX_CACHED_RESULTS = 1000;
+
+    /**
+     * Results of recent lookups. A handler is only used for one form load and isn't evaluated
+     * until that form's external data has been imported, so the results can't go stale.
+     */
+    private final Map<String, String> results = new LinkedHashMap<String, String>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_CACHED_RESULTS;
+        }
+    };
+
+    private boolean usageReported;
+
     public ExternalDataHandlerPull(ExternalDataManager externalDataManager) {
         super(externalDataManager);
     }
@@ -71,12 +91,16 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
 
     @Override
     public Object eval(Object[] args, EvaluationContext ec) {
-        Collect.getInstance().getDefaultTracker()
-                .send(new HitBuilders.EventBuilder()
-                        .setCategory("ExternalData")
-                        .setAction("pulldata()")
-                        .setLabel(Collect.getCurrentFormIdentifierHash())
-                        .build());
+        if (!usageReported) {
+            // report once per form rather than on every evaluation
+            usageReported = true;
+            Collect.getInstance().getDefaultTracker()
+                    .send(new HitBuilders.EventBuilder()
+                            .setCategory("ExternalData")
+                            .setAction("pulldata()")
+                            .setLabel(Collect.getCurrentFormIdentifierHash())
+                            .build());
+        }
 
         if (args.length != 4) {
             Timber.e("4 arguments are needed to evaluate the %s function", HANDLER_NAME);
@@ -91,7 +115,15 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
         // SCTO-545
         dataSetName = normalize(dataSetName);
 
-        Cursor c = null;
+        String resultKey = dataSetName + '\u0000' + queriedColumn + '\u0000' + referenceColumn
+                + '\u0000' + referenceValue;
+        synchronized (results) {
+            String cachedResult = results.get(resultKey);
+            if (cachedResult != null) {
+                return cachedResult;
+            }
+        }
+
         try {
             ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(
                     dataSetName, false);
@@ -99,28 +131,31 @@ public class ExternalDataHandlerPull extends ExternalDataHandlerBase {
                 return "";
             }
 
-            SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
-            String[] columns = {ExternalDataUtil.toSafeColumnName(queriedColumn)};
-            String selection = ExternalDataUtil.toSafeColumnName(referenceColumn) + "=?";
-            String[] selectionArgs = {referenceValue};
-
-            c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, columns, selection,
-                    selectionArgs, null, null, null);
-            if (c.getCount() > 0) {
-                c.moveToFirst();
-                return ExternalDataUtil.nullSafe(c.getString(0));
-            } else {
-                Timber.i("Could not find a value in %s where the column %s has the value %s",
-                        queriedColumn, referenceColumn, referenceValue);
-                return "";
+            SQLiteStatement statement = sqLiteOpenHelper.getPullStatement(
+                    ExternalDataUtil.toSafeColumnName(queriedColumn),
+                    ExternalDataUtil.toSafeColumnName(referenceColumn));
+
+            String result;
+            synchronized (statement) {
+                statement.bindString(1, referenceValue);
+                try {
+                    result = ExternalDataUtil.nullSafe(statement.simpleQueryForString());
+                } catch (SQLiteDoneException e) {
+                    Timber.i("Could not find a value in %s where the column %s has the value %s",
+                            queriedColumn, referenceColumn, referenceValue);
+                    result = "";
+                } finally {
+                    statement.clearBindings();
+                }
             }
+
+            synchronized (results) {
+                results.put(resultKey, result);
+            }
+            return result;
         } catch (SQLiteException e) {
             Timber.i(e);
             return "";
-        } finally {
-            if (c != null) {
-                c.close();
-            }
         }
     }
 }
@@ -19,6 +19,7 @@
 package org.odk.collect.android.external.handler;
 
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 
 import org.javarosa.core.model.SelectChoice;
@@ -31,12 +32,15 @@ import org.odk.collect.android.exception.ExternalDataException;
 import org.odk.collect.android.external.ExternalDataManager;
 import org.odk.collect.android.external.ExternalDataUtil;
 import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
+import org.odk.collect.android.external.ExternalSearchIndex;
 import org.odk.collect.android.external.ExternalSelectChoice;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import timber.log.Timber;
@@ -50,6 +54,13 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
 
     public static final String HANDLER_NAME = "search";
 
+    /**
+     * Number of rows read with each query when the choices are created.
+     */
+    private static final int PAGE_SIZE = 500;
+
+    private static final String[] ROW_ID_COLUMNS = {"rowid"};
+
     private final String displayColumns;
     private final String valueColumn;
     private final String imageColumn;
@@ -136,58 +147,80 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         // SCTO-545
         String dataSetName = normalize(XPathFuncExpr.toString(args[0]));
 
-        Cursor c = null;
-        try {
-            ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(
-                    dataSetName, true);
-
-            SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
-            LinkedHashMap<String, String> selectColumnMap =
-                    ExternalDataUtil.createMapWithDisplayingColumns(getValueColumn(),
-                            getDisplayColumns());
-
-            List<String> columnsToFetch = new ArrayList<String>(selectColumnMap.keySet());
-            String safeImageColumn = null;
-            if (getImageColumn() != null && getImageColumn().trim().length() > 0) {
-                safeImageColumn = ExternalDataUtil.toSafeColumnName(getImageColumn());
-                columnsToFetch.add(safeImageColumn);
-            }
+        ExternalSQLiteOpenHelper sqLiteOpenHelper = getExternalDataManager().getDatabase(
+                dataSetName, true);
 
-            String[] sqlColumns = columnsToFetch.toArray(new String[columnsToFetch.size()]);
-
-            String selection;
-            String[] selectionArgs;
-
-            if (searchRows && useFilter) {
-                selection = "( " + createLikeExpression(queriedColumns) + " ) AND "
-                        + ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
-                String[] likeArgs = externalDataSearchType.constructLikeArguments(queriedValue,
-                        queriedColumns.size());
-                selectionArgs = new String[likeArgs.length + 1];
-                System.arraycopy(likeArgs, 0, selectionArgs, 0, likeArgs.length);
-                selectionArgs[selectionArgs.length - 1] = filterValue;
-            } else if (searchRows) {
-                selection = createLikeExpression(queriedColumns);
-                selectionArgs = externalDataSearchType.constructLikeArguments(queriedValue,
-                        queriedColumns.size());
-            } else if (useFilter) {
-                selection = ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
-                selectionArgs = new String[]{filterValue};
-            } else {
-                selection = null;
-                selectionArgs = null;
+        SQLiteDatabase db = sqLiteOpenHelper.getReadableDatabase();
+        LinkedHashMap<String, String> selectColumnMap =
+                ExternalDataUtil.createMapWithDisplayingColumns(getValueColumn(),
+                        getDisplayColumns());
+
+        List<String> columnsToFetch = new ArrayList<String>(selectColumnMap.keySet());
+        String safeImageColumn = null;
+        if (getImageColumn() != null && getImageColumn().trim().length() > 0) {
+            safeImageColumn = ExternalDataUtil.toSafeColumnName(getImageColumn());
+            columnsToFetch.add(safeImageColumn);
+        }
+
+        String selection;
+        String[] selectionArgs;
+
+        if (searchRows && useFilter) {
+            selection = "( " + createLikeExpression(queriedColumns) + " ) AND "
+                    + ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
+            String[] likeArgs = externalDataSearchType.constructLikeArguments(queriedValue,
+                    queriedColumns.size());
+            selectionArgs = new String[likeArgs.length + 1];
+            System.arraycopy(likeArgs, 0, selectionArgs, 0, likeArgs.length);
+            selectionArgs[selectionArgs.length - 1] = filterValue;
+        } else if (searchRows) {
+            selection = createLikeExpression(queriedColumns);
+            selectionArgs = externalDataSearchType.constructLikeArguments(queriedValue,
+                    queriedColumns.size());
+        } else if (useFilter) {
+            selection = ExternalDataUtil.toSafeColumnName(filterColumn) + "=? ";
+            selectionArgs = new String[]{filterValue};
+        } else {
+            selection = null;
+            selectionArgs = null;
+        }
+
+        if (searchRows) {
+            String searchIndexSelection = createSearchIndexSelection(sqLiteOpenHelper,
+                    queriedColumns, queriedValue);
+            if (searchIndexSelection != null) {
+                // the index narrows the rows down and the LIKE expression keeps only the matches
+                selection = searchIndexSelection + " AND ( " + selection + " )";
             }
+        }
+
+        long[] rowIds = queryRowIds(db, selection, selectionArgs, dataSetName);
+        return createDynamicSelectChoices(db, rowIds, columnsToFetch, selectColumnMap,
+                safeImageColumn);
+    }
 
+    /**
+     * Returns the ids of the matching rows in the order in which they should be shown. Only the
+     * ids are read so that a large result fits in a single cursor window.
+     */
+    private long[] queryRowIds(SQLiteDatabase db, String selection, String[] selectionArgs,
+            String dataSetName) {
+        Cursor c = null;
+        try {
             try {
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection,
+                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, ROW_ID_COLUMNS, selection,
                         selectionArgs, null, null, ExternalDataUtil.SORT_COLUMN_NAME);
             } catch (Exception e) {
                 Timber.e(Collect.getInstance().getString(string.ext_import_csv_missing_error, dataSetName, dataSetName));
-                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns, selection,
+                c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, ROW_ID_COLUMNS, selection,
                         selectionArgs, null, null, null);
             }
 
-            return createDynamicSelectChoices(c, selectColumnMap, safeImageColumn);
+            long[] rowIds = new long[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++) {
+                rowIds[i] = c.getLong(0);
+            }
+            return rowIds;
         } finally {
             if (c != null) {
                 c.close();
@@ -195,51 +228,120 @@ public class ExternalDataHandlerSearch extends ExternalDataHandlerBase {
         }
     }
 
-    protected ArrayList<SelectChoice> createDynamicSelectChoices(Cursor c,
-            LinkedHashMap<String, String> selectColumnMap, String safeImageColumn) {
+    /**
+     * @return a selection that limits the rows to those that the search index finds for the
+     * queried value, or null if the index can't narrow the search down
+     */
+    private String createSearchIndexSelection(ExternalSQLiteOpenHelper sqLiteOpenHelper,
+            List<String> queriedColumns, String queriedValue) {
+        List<String> matchQueries = new ArrayList<String>();
+        for (String queriedColumn : queriedColumns) {
+            String matchQuery = ExternalSearchIndex.createMatchQuery(queriedColumn, queriedValue);
+            if (matchQuery == null) {
+                return null;
+            }
+            matchQueries.add(matchQuery);
+        }
+
+        String searchIndex = sqLiteOpenHelper.getSearchIndex(queriedColumns);
+        if (searchIndex == null) {
+            return null;
+        }
+
+        // a row matches if any of the queried columns does
+        StringBuilder sb = new StringBuilder("rowid IN (");
+        for (int i = 0; i < matchQueries.size(); i++) {
+            if (i > 0) {
+                sb.append(" UNION ");
+            }
+            sb.append("SELECT docid FROM ").append(searchIndex).append(" WHERE ")
+                    .append(searchIndex).append(" MATCH ")
+                    .append(DatabaseUtils.sqlEscapeString(matchQueries.get(i)));
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
+    /**
+     * Reads the rows a page at a time and creates a choice for each distinct value.
+     */
+    protected ArrayList<SelectChoice> createDynamicSelectChoices(SQLiteDatabase db, long[] rowIds,
+            List<String> columnsToFetch, LinkedHashMap<String, String> selectColumnMap,
+            String safeImageColumn) {
+        List<String> pageColumns = new ArrayList<String>(columnsToFetch);
+        pageColumns.add("rowid");
+        String[] sqlColumns = pageColumns.toArray(new String[pageColumns.size()]);
         List<String> columnsToExcludeFromLabels = new ArrayList<String>();
         if (safeImageColumn != null) {
             columnsToExcludeFromLabels.add(safeImageColumn);
         }
+        columnsToExcludeFromLabels.add("rowid");
 
         ArrayList<SelectChoice> selectChoices = new ArrayList<SelectChoice>();
-        if (c.getCount() > 0) {
-            c.moveToPosition(-1);
-            int index = 0;
-            Set<String> uniqueValues = new HashSet<String>();
-            while (c.moveToNext()) {
-
-                // the value is always the first column
-                String value = c.getString(0);
-                if (!uniqueValues.contains(value)) {
-                    String label = buildLabel(c, selectColumnMap, columnsToExcludeFromLabels);
-
-                    ExternalSelectChoice selectChoice;
-                    if (label.trim().length() == 0) {
-                        selectChoice = new ExternalSelectChoice(value, value, false);
-                    } else {
-                        selectChoice = new ExternalSelectChoice(label, value, false);
-                    }
-                    selectChoice.setIndex(index);
-
-                    if (safeImageColumn != null && safeImageColumn.trim().length() > 0) {
-                        String image = c.getString(c.getColumnIndex(safeImageColumn));
-                        if (image != null && image.trim().length() > 0) {
-                            selectChoice.setImage(ExternalDataUtil.JR_IMAGES_PREFIX + image);
-                        }
-                    }
-
-                    selectChoices.add(selectChoice);
-
-                    index++;
-
-                    uniqueValues.add(value);
+        Set<String> uniqueValues = new HashSet<String>();
+        Map<Long, Integer> positions = new HashMap<Long, Integer>();
+        for (int pageStart = 0; pageStart < rowIds.length; pageStart += PAGE_SIZE) {
+            int pageEnd = Math.min(pageStart + PAGE_SIZE, rowIds.length);
+
+            positions.clear();
+            StringBuilder selection = new StringBuilder("rowid IN (");
+            for (int i = pageStart; i < pageEnd; i++) {
+                if (i > pageStart) {
+                    selection.append(',');
+                }
+                selection.append(rowIds[i]);
+                positions.put(rowIds[i], i - pageStart);
+            }
+            selection.append(')');
+
+            try (Cursor c = db.query(ExternalDataUtil.EXTERNAL_DATA_TABLE_NAME, sqlColumns,
+                    selection.toString(), null, null, null, null)) {
+                // put the page back in the order of the ids
+                int[] cursorPositions = new int[pageEnd - pageStart];
+                int rowIdColumn = sqlColumns.length - 1;
+                while (c.moveToNext()) {
+                    cursorPositions[positions.get(c.getLong(rowIdColumn))] = c.getPosition();
+                }
+
+                for (int cursorPosition : cursorPositions) {
+                    c.moveToPosition(cursorPosition);
+                    addDynamicSelectChoice(c, selectColumnMap, safeImageColumn,
+                            columnsToExcludeFromLabels, uniqueValues, selectChoices);
                 }
             }
         }
         return selectChoices;
     }
 
+    private void addDynamicSelectChoice(Cursor c, LinkedHashMap<String, String> selectColumnMap,
+            String safeImageColumn, List<String> columnsToExcludeFromLabels,
+            Set<String> uniqueValues, ArrayList<SelectChoice> selectChoices) {
+        // the value is always the first column
+        String value = c.getString(0);
+        if (!uniqueValues.contains(value)) {
+            String label = buildLabel(c, selectColumnMap, columnsToExcludeFromLabels);
+
+            ExternalSelectChoice selectChoice;
+            if (label.trim().length() == 0) {
+                selectChoice = new ExternalSelectChoice(value, value, false);
+            } else {
+                selectChoice = new ExternalSelectChoice(label, value, false);
+            }
+            selectChoice.setIndex(selectChoices.size());
+
+            if (safeImageColumn != null && safeImageColumn.trim().length() > 0) {
+                String image = c.getString(c.getColumnIndex(safeImageColumn));
+                if (image != null && image.trim().length() > 0) {
+                    selectChoice.setImage(ExternalDataUtil.JR_IMAGES_PREFIX + image);
+                }
+            }
+
+            selectChoices.add(selectChoice);
+
+            uniqueValues.add(value);
+        }
+    }
+
     protected String createLikeExpression(List<String> queriedColumns) {
         StringBuilder sb = new StringBuilder();
         for (String queriedColumn : queriedColumns) {
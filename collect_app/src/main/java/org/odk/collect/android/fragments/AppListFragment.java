@@ -15,6 +15,7 @@ limitations under the License.
 package org.odk.collect.android.fragments;
 
 import android.database.Cursor;
+import android.os.Handler;
 import android.preference.PreferenceManager;
 import android.support.design.widget.BottomSheetDialog;
 import android.support.v4.app.ListFragment;
@@ -49,6 +50,11 @@ import static org.odk.collect.android.utilities.ApplicationConstants.SortingOrde
 
 abstract class AppListFragment extends ListFragment {
 
+    /**
+     * The list is filtered once typing pauses for this long rather than on every key.
+     */
+    private static final long SEARCH_DELAY_MILLIS = 300;
+
     protected String[] sortingOptions;
     protected SimpleCursorAdapter listAdapter;
     protected LinkedHashSet<Long> selectedInstances = new LinkedHashSet<>();
@@ -57,6 +63,14 @@ abstract class AppListFragment extends ListFragment {
     private BottomSheetDialog bottomSheetDialog;
     private String filterText;
 
+    private final Handler searchHandler = new Handler();
+    private final Runnable searchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateAdapter();
+        }
+    };
+
     // toggles to all checked or all unchecked
     // returns:
     // true if result is all checked
@@ -111,6 +125,7 @@ abstract class AppListFragment extends ListFragment {
             @Override
             public boolean onQueryTextSubmit(String query) {
                 filterText = query;
+                searchHandler.removeCallbacks(searchRunnable);
                 updateAdapter();
                 searchView.clearFocus();
                 return false;
@@ -119,7 +134,8 @@ abstract class AppListFragment extends ListFragment {
             @Override
             public boolean onQueryTextChange(String newText) {
                 filterText = newText;
-                updateAdapter();
+                searchHandler.removeCallbacks(searchRunnable);
+                searchHandler.postDelayed(searchRunnable, SEARCH_DELAY_MILLIS);
                 return false;
             }
         });
@@ -209,6 +225,12 @@ abstract class AppListFragment extends ListFragment {
         }
     }
 
+    @Override
+    public void onDestroyView() {
+        searchHandler.removeCallbacks(searchRunnable);
+        super.onDestroyView();
+    }
+
     protected abstract void updateAdapter();
 
     protected abstract String getSortingOrderKey();
@@ -4,11 +4,18 @@ import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 
 import org.kxml2.io.KXmlParser;
-import org.kxml2.kdom.Document;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.utilities.DocumentFetchResult;
+import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormListParser;
 import org.odk.collect.android.utilities.WebCredentialsUtils;
 import org.xmlpull.v1.XmlPullParser;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
@@ -16,6 +23,10 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Map;
 
 import javax.inject.Inject;
 
@@ -27,51 +38,109 @@ public class CollectServerClient {
 
     protected OpenRosaHttpInterface httpInterface;
     private final WebCredentialsUtils webCredentialsUtils;
+    private final XmlDocumentCache documentCache;
 
     @Inject
     public CollectServerClient(OpenRosaHttpInterface httpInterface, WebCredentialsUtils webCredentialsUtils) {
+        this(httpInterface, webCredentialsUtils, new XmlDocumentCache(Collect.getInstance()));
+    }
+
+    public CollectServerClient(OpenRosaHttpInterface httpInterface, WebCredentialsUtils webCredentialsUtils,
+                               XmlDocumentCache documentCache) {
         this.httpInterface = httpInterface;
         this.webCredentialsUtils = webCredentialsUtils;
+        this.documentCache = documentCache;
     }
 
     /**
-     * Gets an XML document for a given url
+     * Reads the XML document at the given url as it is downloaded, without building it in
+     * memory. If the server sent the document with an ETag or Last-Modified header before, it
+     * is only downloaded again if it has changed and otherwise read from the cache.
      *
      * @param urlString - url of the XML document
-     * @return DocumentFetchResult - an object that contains the results of the "get" operation
+     * @param handler   - reads the document. The result has an error message if it throws.
+     * @return DocumentFetchResult - an object that contains the results of the "get" operation,
+     * without a doc
      */
-    public DocumentFetchResult getXmlDocument(String urlString) {
-
-        // parse response
-        Document doc;
-        HttpGetResult inputStreamResult;
+    public DocumentFetchResult parseXmlDocument(String urlString, XmlDocumentHandler handler) {
+        String username = getUsername(urlString);
+        Map<String, String> conditionalHeaders = documentCache.getConditionalHeaders(urlString, username);
 
+        File bodyFile = null;
         try {
-            inputStreamResult = getHttpInputStream(urlString, HTTP_CONTENT_TYPE_TEXT_XML);
+            HttpGetResult inputStreamResult = getHttpInputStream(urlString, null, conditionalHeaders);
+
+            if (inputStreamResult.getStatusCode() == HttpURLConnection.HTTP_NOT_MODIFIED
+                    && conditionalHeaders != null) {
+                DocumentFetchResult cachedResult = documentCache.get(urlString, username);
+                if (cachedResult != null) {
+                    try (InputStream cachedInputStream = documentCache.openDocument(urlString, username)) {
+                        handler.parse(createXmlParser(cachedInputStream), cachedResult.isOpenRosaResponse);
+                    }
+                    Timber.i("%s has not changed", urlString);
+                    return cachedResult;
+                }
+
+                // the cached document can't be read anymore so it has to be downloaded again
+                documentCache.remove(urlString, username);
+                return parseXmlDocument(urlString, handler);
+            }
 
             if (inputStreamResult.getStatusCode() != HttpURLConnection.HTTP_OK) {
-                String error = "getXmlDocument failed while accessing "
+                String error = "parseXmlDocument failed while accessing "
                         + urlString + " with status code: " + inputStreamResult.getStatusCode();
                 Timber.e(error);
                 return new DocumentFetchResult(error, inputStreamResult.getStatusCode());
             }
 
-            try (InputStream resultInputStream = inputStreamResult.getInputStream();
-                 InputStreamReader streamReader = new InputStreamReader(resultInputStream, "UTF-8")) {
+            String contentType = inputStreamResult.getHeader("Content-Type");
+            if (contentType == null || !contentType.toLowerCase(Locale.ENGLISH).contains(HTTP_CONTENT_TYPE_TEXT_XML)) {
+                inputStreamResult.getInputStream().close();
+                throw new Exception("ContentType: "
+                        + contentType
+                        + " returned from: "
+                        + urlString
+                        + " is not " + HTTP_CONTENT_TYPE_TEXT_XML + ".  This is often caused by a network proxy.  Do you need "
+                        + "to login to your network?");
+            }
 
-                doc = new Document();
-                KXmlParser parser = new KXmlParser();
-                parser.setInput(streamReader);
-                parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
-                doc.parse(parser);
+            // hash and cache the document as it goes through the parser
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            bodyFile = documentCache.createTempFile();
+            try (InputStream inputStream = new TeeInputStream(
+                    new DigestInputStream(inputStreamResult.getInputStream(), md),
+                    new FileOutputStream(bodyFile), true)) {
+                handler.parse(createXmlParser(inputStream), inputStreamResult.isOpenRosaResponse());
+
+                // anything after the document still counts towards the hash
+                IOUtils.copy(inputStream, NullOutputStream.NULL_OUTPUT_STREAM);
             }
+
+            DocumentFetchResult result = new DocumentFetchResult(inputStreamResult.isOpenRosaResponse(),
+                    FileUtils.toMd5String(md.digest()));
+            documentCache.put(urlString, username, bodyFile, result,
+                    inputStreamResult.getHeader(XmlDocumentCache.ETAG_HEADER),
+                    inputStreamResult.getHeader(XmlDocumentCache.LAST_MODIFIED_HEADER));
+            return result;
+        } catch (FormListParser.InvalidDocumentException e) {
+            return new DocumentFetchResult(e.getMessage(), 0);
         } catch (Exception e) {
             String error = "Parsing failed with " + e.getMessage() + " while accessing " + urlString;
             Timber.e(error);
             return new DocumentFetchResult(error, 0);
+        } finally {
+            if (bodyFile != null && bodyFile.exists()) {
+                // the document couldn't be read or cached
+                FileUtils.deleteAndReport(bodyFile);
+            }
         }
+    }
 
-        return new DocumentFetchResult(doc, inputStreamResult.isOpenRosaResponse(), inputStreamResult.getHash());
+    private static XmlPullParser createXmlParser(InputStream inputStream) throws Exception {
+        KXmlParser parser = new KXmlParser();
+        parser.setInput(new InputStreamReader(inputStream, "UTF-8"));
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return parser;
     }
 
     /**
@@ -84,6 +153,12 @@ public class CollectServerClient {
      */
     public @NonNull
     HttpGetResult getHttpInputStream(@NonNull String downloadUrl, @Nullable final String contentType) throws Exception {
+        return getHttpInputStream(downloadUrl, contentType, null);
+    }
+
+    private @NonNull
+    HttpGetResult getHttpInputStream(@NonNull String downloadUrl, @Nullable final String contentType,
+                                     @Nullable Map<String, String> requestHeaders) throws Exception {
         URI uri;
         try {
             // assume the downloadUrl is escaped properly
@@ -99,7 +174,28 @@ public class CollectServerClient {
             throw new Exception("Invalid server URL (no hostname): " + downloadUrl);
         }
 
-        return httpInterface.get(uri, contentType, webCredentialsUtils.getCredentials(uri));
+        return httpInterface.get(uri, contentType, webCredentialsUtils.getCredentials(uri), requestHeaders);
+    }
+
+    @Nullable
+    private String getUsername(String urlString) {
+        try {
+            HttpCredentialsInterface credentials = webCredentialsUtils.getCredentials(new URL(urlString).toURI());
+            return credentials != null ? credentials.getUsername() : null;
+        } catch (MalformedURLException | URISyntaxException e) {
+            // reported when the document is requested
+            return null;
+        }
+    }
+
+    public interface XmlDocumentHandler {
+        /**
+         * Reads the document from the given namespace aware parser, which is at its start.
+         *
+         * @throws FormListParser.InvalidDocumentException if the document isn't the one expected,
+         *                                                 with a message for the user
+         */
+        void parse(XmlPullParser parser, boolean isOpenRosaResponse) throws Exception;
     }
 
     public static String getPlainTextMimeType() {
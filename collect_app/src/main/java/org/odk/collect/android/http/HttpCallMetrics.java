@@ -0,0 +1,165 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.http;
+
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import timber.log.Timber;
+
+/**
+ * Measures the calls made by {@link OkHttpConnection}: how long each one takes and whether it
+ * reused a pooled connection or had to open a new one, including a TLS handshake for HTTPS.
+ *
+ * Each call is logged and the totals since the app started are available from the static
+ * getters.
+ */
+public class HttpCallMetrics extends EventListener {
+
+    public static final EventListener.Factory FACTORY = new EventListener.Factory() {
+        @Override
+        public EventListener create(Call call) {
+            return new HttpCallMetrics();
+        }
+    };
+
+    private static final AtomicLong CALLS = new AtomicLong();
+    private static final AtomicLong FAILED_CALLS = new AtomicLong();
+    private static final AtomicLong CALLS_ON_REUSED_CONNECTIONS = new AtomicLong();
+    private static final AtomicLong TOTAL_CALL_TIME = new AtomicLong();
+    private static final AtomicLong TLS_HANDSHAKES = new AtomicLong();
+    private static final AtomicLong TOTAL_TLS_HANDSHAKE_TIME = new AtomicLong();
+
+    private long callStart;
+    private long secureConnectStart;
+    private boolean connected;
+    private Protocol protocol;
+    private int responseCode = -1;
+
+    @Override
+    public void callStart(Call call) {
+        callStart = System.currentTimeMillis();
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connected = true;
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        secureConnectStart = System.currentTimeMillis();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, @Nullable Handshake handshake) {
+        TLS_HANDSHAKES.incrementAndGet();
+        TOTAL_TLS_HANDSHAKE_TIME.addAndGet(System.currentTimeMillis() - secureConnectStart);
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        protocol = connection.protocol();
+    }
+
+    @Override
+    public void responseHeadersEnd(Call call, Response response) {
+        responseCode = response.code();
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        callFinished(call, null);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        callFinished(call, ioe);
+    }
+
+    private void callFinished(Call call, @Nullable IOException failure) {
+        long callTime = System.currentTimeMillis() - callStart;
+
+        CALLS.incrementAndGet();
+        TOTAL_CALL_TIME.addAndGet(callTime);
+        if (failure != null) {
+            FAILED_CALLS.incrementAndGet();
+        }
+        // a call that never connected was sent on a connection from the pool
+        if (!connected && protocol != null) {
+            CALLS_ON_REUSED_CONNECTIONS.incrementAndGet();
+        }
+
+        Timber.i("%s %s: %s in %d ms, %s connection over %s", call.request().method(),
+                call.request().url().host(), failure != null ? failure.toString() : responseCode, callTime,
+                connected ? "new" : "reused", protocol);
+    }
+
+    public static long getCallCount() {
+        return CALLS.get();
+    }
+
+    public static long getFailedCallCount() {
+        return FAILED_CALLS.get();
+    }
+
+    /**
+     * Returns the share of calls that were sent on a connection that was already open, between
+     * 0 and 1.
+     */
+    public static double getConnectionReuseRate() {
+        long calls = CALLS.get();
+        return calls == 0 ? 0 : (double) CALLS_ON_REUSED_CONNECTIONS.get() / calls;
+    }
+
+    /**
+     * Returns the average time from the start of a call to the end of its response, in
+     * milliseconds.
+     */
+    public static long getAverageCallTime() {
+        long calls = CALLS.get();
+        return calls == 0 ? 0 : TOTAL_CALL_TIME.get() / calls;
+    }
+
+    public static long getTlsHandshakeCount() {
+        return TLS_HANDSHAKES.get();
+    }
+
+    public static long getAverageTlsHandshakeTime() {
+        long handshakes = TLS_HANDSHAKES.get();
+        return handshakes == 0 ? 0 : TOTAL_TLS_HANDSHAKE_TIME.get() / handshakes;
+    }
+
+    public static void reset() {
+        CALLS.set(0);
+        FAILED_CALLS.set(0);
+        CALLS_ON_REUSED_CONNECTIONS.set(0);
+        TOTAL_CALL_TIME.set(0);
+        TLS_HANDSHAKES.set(0);
+        TOTAL_TLS_HANDSHAKE_TIME.set(0);
+    }
+}
@@ -35,6 +35,7 @@ import org.opendatakit.httpclientandroidlib.HttpResponse;
 import org.opendatakit.httpclientandroidlib.HttpStatus;
 import org.opendatakit.httpclientandroidlib.NoHttpResponseException;
 import org.opendatakit.httpclientandroidlib.auth.AuthScope;
+import org.opendatakit.httpclientandroidlib.auth.AuthState;
 import org.opendatakit.httpclientandroidlib.auth.Credentials;
 import org.opendatakit.httpclientandroidlib.auth.UsernamePasswordCredentials;
 import org.opendatakit.httpclientandroidlib.client.AuthCache;
@@ -99,16 +100,29 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
     private static final int UPLOAD_CONNECTION_TIMEOUT = 60000; // it can take up to 27 seconds to spin up an Aggregate
     private static final String HTTP_CONTENT_TYPE_TEXT_XML = "text/xml";
 
-    // Retain authentication and cookies between requests. Gets mutated on each call to
-    // HttpClient.execute).
-    private HttpContext httpContext;
+    /**
+     * Maximum number of connections kept open to the same server for submissions, which is
+     * enough for the uploads {@link org.odk.collect.android.upload.InstanceUploadScheduler} runs
+     * at the same time.
+     */
+    private static final int MAX_SUBMISSION_CONNECTIONS_PER_ROUTE = 4;
 
-    public HttpClientConnection() {
-        httpContext = new BasicHttpContext();
+    private final CredentialsProvider credentialsProvider = new AgingCredentialsProvider(7 * 60 * 1000);
 
-        httpContext.setAttribute(HttpClientContext.COOKIE_STORE, new BasicCookieStore());
-        httpContext.setAttribute(HttpClientContext.CREDS_PROVIDER, new AgingCredentialsProvider(7 * 60 * 1000));
-    }
+    // Retain authentication and cookies between requests. Gets mutated on each call to
+    // HttpClient.execute) so each thread has its own, with the credentials shared between them.
+    private final ThreadLocal<HttpContext> httpContext = new ThreadLocal<HttpContext>() {
+        @Override
+        protected HttpContext initialValue() {
+            HttpContext context = new BasicHttpContext();
+            context.setAttribute(HttpClientContext.COOKIE_STORE, new BasicCookieStore());
+            context.setAttribute(HttpClientContext.CREDS_PROVIDER, credentialsProvider);
+            return context;
+        }
+    };
+
+    // Shared by HEAD requests and submissions so that their connections are reused.
+    private HttpClient submissionHttpClient;
 
     private enum ContentTypeMapping {
         XML("xml",  ContentType.TEXT_XML),
@@ -150,7 +164,8 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
 
     @Override
     public @NonNull
-    HttpGetResult get(@NonNull URI uri, @Nullable final String contentType, @Nullable HttpCredentialsInterface credentials) throws Exception {
+    HttpGetResult get(@NonNull URI uri, @Nullable final String contentType, @Nullable HttpCredentialsInterface credentials,
+                      @Nullable Map<String, String> requestHeaders) throws Exception {
         addCredentialsForHost(uri, credentials);
         clearCookieStore();
 
@@ -164,12 +179,22 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
         // set up request...
         HttpGet req = createOpenRosaHttpGet(uri);
         req.addHeader(ACCEPT_ENCODING_HEADER, GZIP_CONTENT_ENCODING);
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                req.addHeader(header.getKey(), header.getValue());
+            }
+        }
 
         HttpResponse response;
 
-        response = httpclient.execute(req, httpContext);
+        response = httpclient.execute(req, httpContext.get());
         int statusCode = response.getStatusLine().getStatusCode();
 
+        if (statusCode == HttpStatus.SC_NOT_MODIFIED && requestHeaders != null) {
+            discardEntityBytes(response);
+            return new HttpGetResult(null, getResponseHeaders(response), "", statusCode);
+        }
+
         if (statusCode != HttpStatus.SC_OK) {
             discardEntityBytes(response);
             if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
@@ -219,6 +244,10 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
             downloadStream = new GZIPInputStream(downloadStream);
         }
 
+        return new HttpGetResult(downloadStream, getResponseHeaders(response), hash, statusCode);
+    }
+
+    private static Map<String, String> getResponseHeaders(HttpResponse response) {
         Map<String, String> responseHeaders = new HashMap<>();
 
         Header[] fields = response.getAllHeaders();
@@ -228,8 +257,7 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
                 responseHeaders.put(h.getName(), h.getValue());
             }
         }
-
-        return new HttpGetResult(downloadStream, responseHeaders, hash, statusCode);
+        return responseHeaders;
     }
 
     @Override
@@ -237,8 +265,9 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
         addCredentialsForHost(uri, credentials);
         clearCookieStore();
 
-        HttpClient httpclient = createHttpClient(CONNECTION_TIMEOUT);
+        HttpClient httpclient = getSubmissionHttpClient();
         HttpHead httpHead = createOpenRosaHttpHead(uri);
+        httpHead.setConfig(createRequestConfig(CONNECTION_TIMEOUT));
         Map<String, String> responseHeaders = new HashMap<>();
 
         // if https then enable preemptive basic auth...
@@ -248,12 +277,19 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
 
         final HttpResponse response;
         int statusCode;
+        String authScheme = null;
 
         try {
             Timber.i("Issuing HEAD request to: %s", uri.toString());
 
-            response = httpclient.execute(httpHead, httpContext);
+            response = httpclient.execute(httpHead, httpContext.get());
             statusCode = response.getStatusLine().getStatusCode();
+
+            AuthState authState = HttpClientContext.adapt(httpContext.get()).getTargetAuthState();
+            if (authState != null && authState.getAuthScheme() != null) {
+                authScheme = authState.getAuthScheme().getSchemeName();
+            }
+
             if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
                 clearCookieStore();
             } else if (statusCode == HttpStatus.SC_NO_CONTENT) {
@@ -290,7 +326,36 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
             throw new Exception("Generic Exception: " + msg);
         }
 
-        return new HttpHeadResult(statusCode, responseHeaders);
+        return new HttpHeadResult(statusCode, responseHeaders, authScheme);
+    }
+
+    @Override
+    public void prepareAuthentication(@NonNull URI uri, @Nullable HttpCredentialsInterface credentials,
+                                      @NonNull String authScheme) throws Exception {
+        if (credentials == null) {
+            return;
+        }
+        addCredentialsForHost(uri, credentials);
+
+        // basic credentials are already sent up front over https...
+        if (uri.getScheme().equals("https") && authScheme.equalsIgnoreCase(AuthSchemes.BASIC)) {
+            enablePreemptiveBasicAuth(uri.getHost());
+            return;
+        }
+
+        // ...and a scheme that answered a challenge on this thread is reused for the next requests
+        AuthCache ac = (AuthCache) httpContext.get().getAttribute(HttpClientContext.AUTH_CACHE);
+        if (ac != null && ac.get(new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme())) != null) {
+            return;
+        }
+
+        // otherwise a HEAD request takes the challenge so that the body isn't sent twice
+        HttpHead httpHead = createOpenRosaHttpHead(uri);
+        httpHead.setConfig(createRequestConfig(CONNECTION_TIMEOUT));
+
+        Timber.i("Issuing HEAD request to authenticate with: %s", uri.toString());
+        HttpResponse response = getSubmissionHttpClient().execute(httpHead, httpContext.get());
+        discardEntityBytes(response);
     }
 
     @Override
@@ -298,11 +363,12 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
                                                       @NonNull File submissionFile,
                                                       @NonNull URI uri,
                                                       @Nullable HttpCredentialsInterface credentials,
-                                                      @NonNull long contentLength) throws IOException {
+                                                      @NonNull long contentLength,
+                                                      @Nullable SubmissionPartListener partListener) throws IOException {
         addCredentialsForHost(uri, credentials);
         clearCookieStore();
 
-        HttpClient httpclient = createHttpClient(UPLOAD_CONNECTION_TIMEOUT);
+        HttpClient httpclient = getSubmissionHttpClient();
 
         // if https then enable preemptive basic auth...
         if (uri.getScheme().equals("https")) {
@@ -317,6 +383,7 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
         while (fileIndex < fileList.size() || first) {
             lastFileIndex = fileIndex;
             first = false;
+            boolean incomplete = false;
 
             MimeTypeMap mimeTypeMap = MimeTypeMap.getSingleton();
 
@@ -361,6 +428,7 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
                             StringBody sb = new StringBody("yes",
                                     ContentType.TEXT_PLAIN.withCharset(Charset.forName("UTF-8")));
                             builder.addPart("*isIncomplete*", sb);
+                            incomplete = true;
                         } catch (Exception e) {
                             Timber.e(e);
                         }
@@ -371,6 +439,7 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
             }
 
             HttpPost httppost = createOpenRosaHttpPost(uri);
+            httppost.setConfig(createRequestConfig(UPLOAD_CONNECTION_TIMEOUT));
             httppost.setEntity(builder.build());
 
             // prepare response and return uploaded
@@ -378,7 +447,7 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
 
             try {
                 Timber.i("Issuing POST request to: %s", uri.toString());
-                response = httpclient.execute(httppost, httpContext);
+                response = httpclient.execute(httppost, httpContext.get());
                 int responseCode = response.getStatusLine().getStatusCode();
                 HttpEntity httpEntity = response.getEntity();
                 Timber.i("Response code:%d", responseCode);
@@ -398,6 +467,10 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
                     return messageParser;
                 }
 
+                if (incomplete && partListener != null) {
+                    partListener.partAccepted(fileList.subList(lastFileIndex, fileIndex));
+                }
+
             } catch (IOException e) {
                 if (e instanceof UnknownHostException || e instanceof HttpHostConnectException
                         || e instanceof SocketException || e instanceof NoHttpResponseException
@@ -437,13 +510,40 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
                 2 * timeout)
                 .build();
 
+        return HttpClientBuilder.create()
+                .setDefaultSocketConfig(socketConfig)
+                .setDefaultRequestConfig(createRequestConfig(timeout))
+                .build();
+
+    }
+
+    /**
+     * Returns the client used for HEAD requests and submissions, which keeps connections to
+     * each server open so that they can be reused by the next request, including requests
+     * made at the same time from other threads. Unlike {@link #get}, these requests always
+     * consume their responses so their connections are always returned to the pool.
+     * Timeouts are set on each request.
+     */
+    private synchronized HttpClient getSubmissionHttpClient() {
+        if (submissionHttpClient == null) {
+            submissionHttpClient = HttpClientBuilder.create()
+                    .setDefaultRequestConfig(createRequestConfig(UPLOAD_CONNECTION_TIMEOUT))
+                    .setMaxConnPerRoute(MAX_SUBMISSION_CONNECTIONS_PER_ROUTE)
+                    .setMaxConnTotal(2 * MAX_SUBMISSION_CONNECTIONS_PER_ROUTE)
+                    .build();
+        }
+        return submissionHttpClient;
+    }
+
+    private static RequestConfig createRequestConfig(int timeout) {
         // if possible, bias toward digest auth (may not be in 4.0 beta 2)
         List<String> targetPreferredAuthSchemes = new ArrayList<>();
         targetPreferredAuthSchemes.add(AuthSchemes.DIGEST);
         targetPreferredAuthSchemes.add(AuthSchemes.BASIC);
 
-        RequestConfig requestConfig = RequestConfig.copy(RequestConfig.DEFAULT)
+        return RequestConfig.copy(RequestConfig.DEFAULT)
                 .setConnectTimeout(timeout)
+                .setSocketTimeout(2 * timeout)
                 // support authenticating
                 .setAuthenticationEnabled(true)
                 // support redirecting to handle http: => https: transition
@@ -453,15 +553,10 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
                 .setTargetPreferredAuthSchemes(targetPreferredAuthSchemes)
                 .setCookieSpec(CookieSpecs.DEFAULT)
                 .build();
-
-        return HttpClientBuilder.create()
-                .setDefaultSocketConfig(socketConfig)
-                .setDefaultRequestConfig(requestConfig)
-                .build();
-
     }
 
     private void enablePreemptiveBasicAuth(String host) {
+        HttpContext httpContext = this.httpContext.get();
         AuthCache ac = (AuthCache) httpContext.getAttribute(HttpClientContext.AUTH_CACHE);
         HttpHost h = new HttpHost(host);
         if (ac == null) {
@@ -489,11 +584,11 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
     }
 
     private void clearCookieStore() {
-        ((CookieStore) httpContext.getAttribute(HttpClientContext.COOKIE_STORE)).clear();
+        ((CookieStore) httpContext.get().getAttribute(HttpClientContext.COOKIE_STORE)).clear();
     }
 
     private CredentialsProvider getCredentialsProvider() {
-        return (CredentialsProvider) httpContext.getAttribute(HttpClientContext.CREDS_PROVIDER);
+        return credentialsProvider;
     }
 
     public void clearHostCredentials(String host) {
@@ -512,6 +607,12 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
      */
 
     public synchronized void addCredentials(String username, String password, String host) {
+        // requests to the host may be running on other threads so don't remove credentials that
+        // are still the right ones even for a moment
+        if (hasCredentials(username, password, host)) {
+            return;
+        }
+
         // to ensure that this is the only authentication available for this
         // host...
         clearHostCredentials(host);
@@ -522,6 +623,19 @@ public class HttpClientConnection implements OpenRosaHttpInterface {
         }
     }
 
+    private boolean hasCredentials(String username, String password, String host) {
+        if (username == null || username.trim().length() == 0) {
+            return false;
+        }
+
+        Credentials current = getCredentialsProvider().getCredentials(
+                new AuthScope(host, -1, null, AuthSchemes.DIGEST));
+        return current != null
+                && current.getUserPrincipal() != null
+                && username.equals(current.getUserPrincipal().getName())
+                && password != null && password.equals(current.getPassword());
+    }
+
     private void addCredentials(Credentials c, String host) {
         CredentialsProvider credsProvider = getCredentialsProvider();
         List<AuthScope> asList = buildAuthScopes(host);
@@ -17,6 +17,8 @@
 package org.odk.collect.android.http;
 
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
 import java.io.InputStream;
 import java.util.Map;
 import timber.log.Timber;
@@ -46,6 +48,20 @@ public class HttpGetResult {
         return hash;
     }
 
+    /**
+     * Returns the value of the given response header, whatever the case of its name, or null if
+     * the response didn't have it.
+     */
+    @Nullable
+    public String getHeader(String name) {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if (header.getKey() != null && header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
     public boolean isOpenRosaResponse() {
         boolean openRosaResponse = false;
 
@@ -16,6 +16,8 @@
 
 package org.odk.collect.android.http;
 
+import android.support.annotation.Nullable;
+
 import java.util.Map;
 
 public class HttpHeadResult {
@@ -24,9 +26,16 @@ public class HttpHeadResult {
 
     private final Map<String, String> headers;
 
+    private final String authScheme;
+
     public HttpHeadResult(int statusCode, Map<String, String> headers) {
+        this(statusCode, headers, null);
+    }
+
+    public HttpHeadResult(int statusCode, Map<String, String> headers, @Nullable String authScheme) {
         this.statusCode = statusCode;
         this.headers = headers;
+        this.authScheme = authScheme;
     }
 
     public int getStatusCode() {
@@ -36,4 +45,13 @@ public class HttpHeadResult {
     public Map<String, String> getHeaders() {
         return headers;
     }
+
+    /**
+     * Returns the name of the authentication scheme used to answer the server's challenge, or
+     * null if the server didn't ask for authentication.
+     */
+    @Nullable
+    public String getAuthScheme() {
+        return authScheme;
+    }
 }
@@ -0,0 +1,527 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.text.format.DateFormat;
+import android.webkit.MimeTypeMap;
+
+import com.burgstaller.okhttp.AuthenticationCacheInterceptor;
+import com.burgstaller.okhttp.CachingAuthenticatorDecorator;
+import com.burgstaller.okhttp.DispatchingAuthenticator;
+import com.burgstaller.okhttp.basic.BasicAuthenticator;
+import com.burgstaller.okhttp.digest.CachingAuthenticator;
+import com.burgstaller.okhttp.digest.Credentials;
+import com.burgstaller.okhttp.digest.DigestAuthenticator;
+
+import org.odk.collect.android.BuildConfig;
+import org.odk.collect.android.R;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.ResponseMessageParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import timber.log.Timber;
+
+/**
+ * An {@link OpenRosaHttpInterface} backed by OkHttp. All instances share one connection pool,
+ * so connections to a server are kept alive and reused by the form list, manifest, media,
+ * HEAD and submission requests that follow each other. Connections that are opened anyway
+ * resume the TLS session of earlier ones because they share an SSL socket factory. HTTP/2 is
+ * used with servers that offer it unless it is turned off.
+ *
+ * Calls are measured by {@link HttpCallMetrics}.
+ */
+public class OkHttpConnection implements OpenRosaHttpInterface {
+
+    private static final String USER_AGENT_HEADER = "User-Agent";
+    private static final String OPEN_ROSA_VERSION_HEADER = "X-OpenRosa-Version";
+    private static final String OPEN_ROSA_VERSION = "1.0";
+    private static final String DATE_HEADER = "Date";
+    private static final String AUTHORIZATION_HEADER = "Authorization";
+    private static final String HTTP_CONTENT_TYPE_TEXT_XML = "text/xml";
+
+    private static final int CONNECTION_TIMEOUT = 30000;
+    private static final int UPLOAD_CONNECTION_TIMEOUT = 60000; // it can take up to 27 seconds to spin up an Aggregate
+
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_DURATION_MINUTES = 5;
+
+    /**
+     * Number of clients with different credentials or settings that are kept. They all share
+     * the same connection pool.
+     */
+    private static final int MAX_CLIENTS = 8;
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("xml", "text/xml");
+        CONTENT_TYPES.put("3gpp", "audio/3gpp");
+        CONTENT_TYPES.put("3gp", "video/3gpp");
+        CONTENT_TYPES.put("avi", "video/avi");
+        CONTENT_TYPES.put("amr", "audio/amr");
+        CONTENT_TYPES.put("csv", "text/csv");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("mp3", "audio/mp3");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+        CONTENT_TYPES.put("oga", "audio/ogg");
+        CONTENT_TYPES.put("ogg", "audio/ogg");
+        CONTENT_TYPES.put("ogv", "video/ogg");
+        CONTENT_TYPES.put("wav", "audio/wav");
+        CONTENT_TYPES.put("webm", "video/webm");
+        CONTENT_TYPES.put("xls", "application/vnd.ms-excel");
+    }
+
+    private static OkHttpClient baseClient;
+    private static final Map<String, CachedClient> CLIENTS = new ConcurrentHashMap<>();
+
+    /**
+     * The credentials in use for each server and username. They are shared by the clients with
+     * different timeouts so that a submission reuses what a HEAD request negotiated.
+     */
+    private static final Map<String, Authentication> AUTHENTICATIONS = new ConcurrentHashMap<>();
+
+    private final boolean http2Enabled;
+
+    public OkHttpConnection() {
+        this(true);
+    }
+
+    /**
+     * @param http2Enabled whether to use HTTP/2 with servers that offer it, rather than only
+     *                     HTTP/1.1
+     */
+    public OkHttpConnection(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    @NonNull
+    @Override
+    public HttpGetResult get(@NonNull URI uri, @Nullable String contentType,
+                             @Nullable HttpCredentialsInterface credentials,
+                             @Nullable Map<String, String> requestHeaders) throws Exception {
+        OkHttpClient client = getClient(uri, credentials, CONNECTION_TIMEOUT, true);
+        Request.Builder builder = createOpenRosaRequestBuilder(uri).get();
+        if (requestHeaders != null) {
+            for (Map.Entry<String, String> header : requestHeaders.entrySet()) {
+                builder.header(header.getKey(), header.getValue());
+            }
+        }
+        Request request = builder.build();
+
+        Response response = client.newCall(request).execute();
+        int statusCode = response.code();
+
+        if (statusCode == HttpURLConnection.HTTP_NOT_MODIFIED && requestHeaders != null) {
+            response.close();
+            return new HttpGetResult(null, getHeaders(response), "", statusCode);
+        }
+
+        if (statusCode != HttpURLConnection.HTTP_OK) {
+            response.close();
+            String errMsg =
+                    Collect.getInstance().getString(R.string.file_fetch_failed, uri.toString(),
+                            response.message(), String.valueOf(statusCode));
+            Timber.e(errMsg);
+
+            return new HttpGetResult(null, new HashMap<String, String>(), "", statusCode);
+        }
+
+        ResponseBody body = response.body();
+
+        if (body == null) {
+            throw new Exception("No entity body returned from: " + uri.toString());
+        }
+
+        if (contentType != null && contentType.length() > 0) {
+            String responseContentType = response.header("Content-Type");
+            if (responseContentType == null
+                    || !responseContentType.toLowerCase(Locale.ENGLISH).contains(contentType)) {
+                response.close();
+                String error = "ContentType: "
+                        + responseContentType
+                        + " returned from: "
+                        + uri.toString()
+                        + " is not " + contentType + ".  This is often caused by a network proxy.  Do you need "
+                        + "to login to your network?";
+
+                throw new Exception(error);
+            }
+        }
+
+        // OkHttp has already removed any gzip encoding it asked for
+        InputStream downloadStream = body.byteStream();
+
+        String hash = "";
+
+        if (HTTP_CONTENT_TYPE_TEXT_XML.equals(contentType)) {
+            byte[] bytes = body.bytes();
+            downloadStream = new ByteArrayInputStream(bytes);
+            hash = FileUtils.getMd5Hash(new ByteArrayInputStream(bytes));
+        }
+
+        return new HttpGetResult(downloadStream, getHeaders(response), hash, statusCode);
+    }
+
+    @NonNull
+    @Override
+    public HttpHeadResult head(@NonNull URI uri, @Nullable HttpCredentialsInterface credentials) throws Exception {
+        OkHttpClient client = getClient(uri, credentials, CONNECTION_TIMEOUT, true);
+        Request request = createOpenRosaRequestBuilder(uri).head().build();
+
+        Timber.i("Issuing HEAD request to: %s", uri.toString());
+
+        int statusCode;
+        Map<String, String> responseHeaders = new HashMap<>();
+        String authScheme = null;
+
+        try (Response response = client.newCall(request).execute()) {
+            statusCode = response.code();
+            if (statusCode == HttpURLConnection.HTTP_NO_CONTENT) {
+                responseHeaders = getHeaders(response);
+            }
+            authScheme = getAuthScheme(response.request());
+        } catch (SocketTimeoutException | UnknownHostException | SocketException e) {
+            String errorMessage;
+
+            if (e instanceof UnknownHostException) {
+                errorMessage = e.toString() + " :: Network Connection Failed";
+            } else if (e instanceof SocketTimeoutException) {
+                errorMessage = "Connection Timeout";
+            } else {
+                errorMessage = "Network Connection Refused";
+            }
+
+            throw new Exception(errorMessage);
+        } catch (Exception e) {
+            String msg = e.getMessage();
+            if (msg == null) {
+                msg = e.toString();
+            }
+
+            throw new Exception("Generic Exception: " + msg);
+        }
+
+        return new HttpHeadResult(statusCode, responseHeaders, authScheme);
+    }
+
+    @Override
+    public void prepareAuthentication(@NonNull URI uri, @Nullable HttpCredentialsInterface credentials,
+                                      @NonNull String authScheme) throws Exception {
+        if (credentials == null || !getAuthentication(uri, credentials).authCache.isEmpty()) {
+            return;
+        }
+
+        // a HEAD request takes the challenge so that the body of the next request isn't sent twice
+        OkHttpClient client = getClient(uri, credentials, CONNECTION_TIMEOUT, true);
+        Request request = createOpenRosaRequestBuilder(uri).head().build();
+
+        Timber.i("Issuing HEAD request to authenticate with: %s", uri.toString());
+        client.newCall(request).execute().close();
+    }
+
+    @NonNull
+    @Override
+    public ResponseMessageParser uploadSubmissionFile(@NonNull List<File> fileList,
+                                                      @NonNull File submissionFile,
+                                                      @NonNull URI uri,
+                                                      @Nullable HttpCredentialsInterface credentials,
+                                                      @NonNull long contentLength,
+                                                      @Nullable SubmissionPartListener partListener) throws IOException {
+        // a redirected POST would be sent again as a GET, so the redirect is returned instead
+        OkHttpClient client = getClient(uri, credentials, UPLOAD_CONNECTION_TIMEOUT, false);
+
+        ResponseMessageParser messageParser = null;
+
+        boolean first = true;
+        int fileIndex = 0;
+        int lastFileIndex;
+        while (fileIndex < fileList.size() || first) {
+            lastFileIndex = fileIndex;
+            first = false;
+            boolean incomplete = false;
+
+            long byteCount = 0L;
+
+            MultipartBody.Builder builder = new MultipartBody.Builder().setType(MultipartBody.FORM);
+
+            // add the submission file first...
+            builder.addFormDataPart("xml_submission_file", submissionFile.getName(),
+                    RequestBody.create(MediaType.parse(HTTP_CONTENT_TYPE_TEXT_XML), submissionFile));
+            Timber.i("added xml_submission_file: %s", submissionFile.getName());
+            byteCount += submissionFile.length();
+
+            for (; fileIndex < fileList.size(); fileIndex++) {
+                File file = fileList.get(fileIndex);
+
+                MediaType mediaType = getMediaType(file.getName());
+                builder.addFormDataPart(file.getName(), file.getName(), RequestBody.create(mediaType, file));
+                byteCount += file.length();
+                Timber.i("added file of type '%s' %s", mediaType, file.getName());
+
+                // we've added at least one attachment to the request...
+                if (fileIndex + 1 < fileList.size()) {
+                    if ((fileIndex - lastFileIndex + 1 > 100) || (byteCount + fileList.get(fileIndex + 1).length()
+                            > contentLength)) {
+                        // the next file would exceed the 10MB threshold...
+                        Timber.i("Extremely long post is being split into multiple posts");
+                        builder.addFormDataPart("*isIncomplete*", "yes");
+                        incomplete = true;
+                        ++fileIndex; // advance over the last attachment added...
+                        break;
+                    }
+                }
+            }
+
+            Request request = createOpenRosaRequestBuilder(uri).post(builder.build()).build();
+
+            Timber.i("Issuing POST request to: %s", uri.toString());
+            try (Response response = client.newCall(request).execute()) {
+                int responseCode = response.code();
+                Timber.i("Response code:%d", responseCode);
+
+                ResponseBody body = response.body();
+                messageParser = new ResponseMessageParser(
+                        body != null ? body.string() : "",
+                        responseCode,
+                        response.message());
+
+                if (responseCode != HttpURLConnection.HTTP_CREATED && responseCode != HttpURLConnection.HTTP_ACCEPTED) {
+                    return messageParser;
+                }
+
+                if (incomplete && partListener != null) {
+                    partListener.partAccepted(fileList.subList(lastFileIndex, fileIndex));
+                }
+            } catch (IOException e) {
+                if (e instanceof UnknownHostException || e instanceof SocketException
+                        || e instanceof SocketTimeoutException) {
+                    Timber.i(e);
+                } else {
+                    Timber.e(e);
+                }
+                String msg = e.getMessage();
+                if (msg == null) {
+                    msg = e.toString();
+                }
+
+                throw new IOException(msg);
+            }
+        }
+
+        return messageParser;
+    }
+
+    /**
+     * Returns a client that authenticates with the given credentials, sharing the connection
+     * pool with every other client. Digest authentication is used with any server and basic
+     * authentication only over HTTPS, like {@link HttpClientConnection}. The credentials are
+     * sent with the following requests to the same server without waiting for a challenge.
+     * A client kept for older credentials of the same user is replaced.
+     */
+    private OkHttpClient getClient(URI uri, @Nullable HttpCredentialsInterface credentials, int timeout,
+                                   boolean followRedirects) {
+        boolean https = "https".equalsIgnoreCase(uri.getScheme());
+        Authentication authentication = credentials != null ? getAuthentication(uri, credentials) : null;
+        String key = timeout + "|" + http2Enabled + "|" + followRedirects + "|" + https
+                + (credentials != null ? "|" + getAuthKey(uri, credentials) : "");
+
+        CachedClient cachedClient = CLIENTS.get(key);
+        if (cachedClient != null && cachedClient.authentication == authentication) {
+            return cachedClient.client;
+        }
+
+        OkHttpClient.Builder builder = getBaseClient().newBuilder()
+                .connectTimeout(timeout, TimeUnit.MILLISECONDS)
+                .writeTimeout(2 * timeout, TimeUnit.MILLISECONDS)
+                .readTimeout(2 * timeout, TimeUnit.MILLISECONDS)
+                .followRedirects(followRedirects)
+                .followSslRedirects(followRedirects);
+
+        if (!http2Enabled) {
+            builder.protocols(Collections.singletonList(Protocol.HTTP_1_1));
+        }
+
+        if (credentials != null) {
+            Credentials cred = new Credentials(credentials.getUsername(), credentials.getPassword());
+
+            DispatchingAuthenticator.Builder authenticatorBuilder = new DispatchingAuthenticator.Builder()
+                    .with("digest", new DigestAuthenticator(cred));
+            if (https) {
+                authenticatorBuilder.with("basic", new BasicAuthenticator(cred));
+            }
+
+            Map<String, CachingAuthenticator> authCache = authentication.authCache;
+            builder.authenticator(new CachingAuthenticatorDecorator(authenticatorBuilder.build(), authCache))
+                    .addInterceptor(new AuthenticationCacheInterceptor(authCache));
+        }
+
+        OkHttpClient client = builder.build();
+        if (cachedClient == null && CLIENTS.size() >= MAX_CLIENTS) {
+            CLIENTS.clear();
+        }
+        CLIENTS.put(key, new CachedClient(client, authentication));
+        return client;
+    }
+
+    private static String getAuthKey(URI uri, HttpCredentialsInterface credentials) {
+        return uri.getScheme() + "://" + uri.getHost() + ":" + uri.getPort() + "|" + credentials.getUsername();
+    }
+
+    /**
+     * Returns the authentication for the server and user, starting a new one if the password
+     * has changed so that nothing negotiated with the old one is reused.
+     */
+    private static Authentication getAuthentication(URI uri, HttpCredentialsInterface credentials) {
+        String authKey = getAuthKey(uri, credentials);
+        String passwordHash = getPasswordHash(credentials.getPassword());
+
+        Authentication authentication = AUTHENTICATIONS.get(authKey);
+        if (authentication == null || !authentication.passwordHash.equals(passwordHash)) {
+            if (authentication == null && AUTHENTICATIONS.size() >= MAX_CLIENTS) {
+                AUTHENTICATIONS.clear();
+            }
+            authentication = new Authentication(passwordHash);
+            AUTHENTICATIONS.put(authKey, authentication);
+        }
+        return authentication;
+    }
+
+    private static String getPasswordHash(String password) {
+        String hash = FileUtils.getMd5Hash(new ByteArrayInputStream(password.getBytes()));
+        return hash != null ? hash : "";
+    }
+
+    private static synchronized OkHttpClient getBaseClient() {
+        if (baseClient == null) {
+            baseClient = new OkHttpClient.Builder()
+                    .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MINUTES, TimeUnit.MINUTES))
+                    .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                    .eventListenerFactory(HttpCallMetrics.FACTORY)
+                    .build();
+        }
+        return baseClient;
+    }
+
+    private static Request.Builder createOpenRosaRequestBuilder(URI uri) {
+        GregorianCalendar gregorianCalendar = new GregorianCalendar(TimeZone.getTimeZone("GMT"));
+        gregorianCalendar.setTime(new Date());
+
+        String userAgent = String.format("%s %s/%s",
+                System.getProperty("http.agent"),
+                BuildConfig.APPLICATION_ID,
+                BuildConfig.VERSION_NAME);
+
+        return new Request.Builder()
+                .url(uri.toString())
+                .header(USER_AGENT_HEADER, userAgent)
+                .header(OPEN_ROSA_VERSION_HEADER, OPEN_ROSA_VERSION)
+                .header(DATE_HEADER, DateFormat.format("E, dd MMM yyyy hh:mm:ss zz", gregorianCalendar).toString());
+    }
+
+    /**
+     * Returns the response headers. HTTP/2 header names are lower case, so they are looked up
+     * regardless of case.
+     */
+    private static Map<String, String> getHeaders(Response response) {
+        Map<String, String> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (String name : response.headers().names()) {
+            headers.put(name, response.header(name));
+        }
+        return headers;
+    }
+
+    /**
+     * Returns the scheme of the credentials sent with the request that got the final response,
+     * if any were sent.
+     */
+    @Nullable
+    private static String getAuthScheme(Request request) {
+        String authorization = request.header(AUTHORIZATION_HEADER);
+        if (authorization == null) {
+            return null;
+        }
+        int end = authorization.indexOf(' ');
+        return end > 0 ? authorization.substring(0, end) : authorization;
+    }
+
+    private static MediaType getMediaType(String fileName) {
+        String extension = FileUtils.getFileExtension(fileName);
+
+        String mime = CONTENT_TYPES.get(extension);
+        if (mime == null) {
+            mime = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+        }
+        if (mime == null) {
+            Timber.w("No specific MIME type found for file: %s", fileName);
+            mime = "application/octet-stream";
+        }
+        return MediaType.parse(mime);
+    }
+
+    private static class CachedClient {
+        final OkHttpClient client;
+        @Nullable
+        final Authentication authentication;
+
+        CachedClient(OkHttpClient client, @Nullable Authentication authentication) {
+            this.client = client;
+            this.authentication = authentication;
+        }
+    }
+
+    private static class Authentication {
+        final String passwordHash;
+        final Map<String, CachingAuthenticator> authCache = new ConcurrentHashMap<>();
+
+        Authentication(String passwordHash) {
+            this.passwordHash = passwordHash;
+        }
+    }
+}
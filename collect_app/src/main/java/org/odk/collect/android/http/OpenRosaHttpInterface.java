@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.util.List;
+import java.util.Map;
 
 public interface OpenRosaHttpInterface {
 
@@ -33,11 +34,14 @@ public interface OpenRosaHttpInterface {
      *
      * @param uri of the stream
      * @param contentType check the returned Mime Type to ensure it matches. "text/xml" causes a Hash to be calculated
+     * @param requestHeaders extra headers to send, such as If-None-Match for a conditional request.
+     *                       A 304 response to one is returned with its headers and no stream.
      * @return HttpGetResult - An object containing the Stream, Hash and Headers
      * @throws Exception a multitude of Exceptions such as IOException can be thrown
      */
     @NonNull
-    HttpGetResult get(@NonNull URI uri, @Nullable String contentType, @Nullable HttpCredentialsInterface credentials) throws Exception;
+    HttpGetResult get(@NonNull URI uri, @Nullable String contentType, @Nullable HttpCredentialsInterface credentials,
+                      @Nullable Map<String, String> requestHeaders) throws Exception;
 
     /**
      * Performs a Http Head request.
@@ -49,6 +53,18 @@ public interface OpenRosaHttpInterface {
     @NonNull
     HttpHeadResult head(@NonNull URI uri, @Nullable HttpCredentialsInterface credentials) throws Exception;
 
+    /**
+     * Makes sure that the requests that follow to the uri send credentials without first being
+     * challenged for them, so that a large body such as a submission isn't sent a second time
+     * after a 401. Used when the server's authentication scheme is already known and the HEAD
+     * request that would otherwise have authenticated was skipped.
+     *
+     * @param authScheme the scheme the server asked for before, such as "Digest"
+     * @throws Exception a multitude of Exceptions such as IOException can be thrown
+     */
+    void prepareAuthentication(@NonNull URI uri, @Nullable HttpCredentialsInterface credentials,
+                               @NonNull String authScheme) throws Exception;
+
     /**
      * Uploads files to a Server.
      *
@@ -56,6 +72,8 @@ public interface OpenRosaHttpInterface {
      * @param submissionFile The main file to be uploaded (Form file)
      * @param uri where to send the submissionFile and fileList
      * @param contentLength contentLength requested by the server
+     * @param partListener told about each incomplete part the server accepts when the files
+     *                     are split across several requests
      * @return ResponseMessageParser object that contains the response XML
      * @throws IOException can be thrown if files do not exist
      */
@@ -64,6 +82,16 @@ public interface OpenRosaHttpInterface {
                                                @NonNull File submissionFile,
                                                @NonNull URI uri,
                                                @Nullable HttpCredentialsInterface credentials,
-                                               @NonNull long contentLength) throws IOException;
+                                               @NonNull long contentLength,
+                                               @Nullable SubmissionPartListener partListener) throws IOException;
+
+    interface SubmissionPartListener {
+        /**
+         * Called when the server has accepted a request sent with {@code *isIncomplete*}.
+         *
+         * @param attachments the files that were sent with the submission file in that request
+         */
+        void partAccepted(List<File> attachments);
+    }
 
 }
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.http;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.odk.collect.android.utilities.DocumentFetchResult;
+import org.odk.collect.android.utilities.FileUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import timber.log.Timber;
+
+/**
+ * Keeps the XML documents, such as form lists and manifests, that servers sent along with an
+ * ETag or Last-Modified header, so that they can be requested again conditionally and reused
+ * when the server answers 304 Not Modified.
+ *
+ * The documents are saved in the app's cache folder so that polling after a restart can still
+ * use them.
+ */
+public class XmlDocumentCache {
+
+    static final String CACHE_FOLDER_NAME = "xml_documents";
+
+    static final String ETAG_HEADER = "ETag";
+    static final String LAST_MODIFIED_HEADER = "Last-Modified";
+    static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+    static final String IF_MODIFIED_SINCE_HEADER = "If-Modified-Since";
+
+    private static final String DOCUMENT_EXTENSION = ".xml";
+    private static final String VALIDATORS_EXTENSION = ".properties";
+
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_HASH = "hash";
+    private static final String KEY_OPEN_ROSA_RESPONSE = "openRosaResponse";
+
+    private final File cacheFolder;
+
+    public XmlDocumentCache(Context context) {
+        this(new File(context.getCacheDir(), CACHE_FOLDER_NAME));
+    }
+
+    XmlDocumentCache(File cacheFolder) {
+        this.cacheFolder = cacheFolder;
+    }
+
+    /**
+     * Returns the headers that make a request for the given URL conditional on the document
+     * having changed since it was cached, or null if it isn't cached.
+     *
+     * @param username the user the document was requested as, since servers may send each user
+     *                 a different one
+     */
+    @Nullable
+    public Map<String, String> getConditionalHeaders(String url, @Nullable String username) {
+        String key = getKey(url, username);
+        if (!getDocumentFile(key).exists()) {
+            return null;
+        }
+
+        Properties validators = readValidators(key);
+        if (validators == null) {
+            return null;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        if (validators.getProperty(KEY_ETAG) != null) {
+            headers.put(IF_NONE_MATCH_HEADER, validators.getProperty(KEY_ETAG));
+        }
+        if (validators.getProperty(KEY_LAST_MODIFIED) != null) {
+            headers.put(IF_MODIFIED_SINCE_HEADER, validators.getProperty(KEY_LAST_MODIFIED));
+        }
+        return headers.isEmpty() ? null : headers;
+    }
+
+    /**
+     * Returns what is known about the document cached for the given URL, or null if there
+     * isn't one. The document itself can be read with {@link #openDocument}.
+     */
+    @Nullable
+    public DocumentFetchResult get(String url, @Nullable String username) {
+        String key = getKey(url, username);
+        if (!getDocumentFile(key).exists()) {
+            return null;
+        }
+
+        Properties validators = readValidators(key);
+        if (validators == null) {
+            return null;
+        }
+        return new DocumentFetchResult(Boolean.parseBoolean(validators.getProperty(KEY_OPEN_ROSA_RESPONSE)),
+                validators.getProperty(KEY_HASH));
+    }
+
+    public InputStream openDocument(String url, @Nullable String username) throws IOException {
+        return new FileInputStream(getDocumentFile(getKey(url, username)));
+    }
+
+    /**
+     * Returns a new file to receive a document in before it is given to {@link #put}.
+     */
+    public File createTempFile() throws IOException {
+        if (!cacheFolder.exists() && !cacheFolder.mkdirs()) {
+            throw new IOException("Unable to create " + cacheFolder.getAbsolutePath());
+        }
+        return File.createTempFile("document", ".tmp", cacheFolder);
+    }
+
+    /**
+     * Caches a document the server sent with the given validators. Documents without any are
+     * not cached since they can't be requested conditionally, and replace what was cached
+     * before.
+     *
+     * @param body the document, saved to a file from {@link #createTempFile()}, which is moved
+     *             into the cache or deleted
+     */
+    public void put(String url, @Nullable String username, @NonNull File body,
+                    @NonNull DocumentFetchResult result, @Nullable String eTag,
+                    @Nullable String lastModified) {
+        if (eTag == null && lastModified == null) {
+            delete(body);
+            remove(url, username);
+            return;
+        }
+
+        String key = getKey(url, username);
+
+        Properties validators = new Properties();
+        if (eTag != null) {
+            validators.setProperty(KEY_ETAG, eTag);
+        }
+        if (lastModified != null) {
+            validators.setProperty(KEY_LAST_MODIFIED, lastModified);
+        }
+        if (result.getHash() != null) {
+            validators.setProperty(KEY_HASH, result.getHash());
+        }
+        validators.setProperty(KEY_OPEN_ROSA_RESPONSE, String.valueOf(result.isOpenRosaResponse));
+
+        // the validators are written last so that they never describe another document
+        delete(getValidatorsFile(key));
+        delete(getDocumentFile(key));
+        if (!body.renameTo(getDocumentFile(key))) {
+            Timber.w("Unable to cache the document for %s", url);
+            delete(body);
+            return;
+        }
+        try (OutputStream os = new FileOutputStream(getValidatorsFile(key))) {
+            validators.store(os, null);
+        } catch (IOException e) {
+            Timber.w(e, "Unable to cache the document for %s", url);
+            delete(getValidatorsFile(key));
+        }
+    }
+
+    public void remove(String url, @Nullable String username) {
+        String key = getKey(url, username);
+        delete(getValidatorsFile(key));
+        delete(getDocumentFile(key));
+    }
+
+    @Nullable
+    private Properties readValidators(String key) {
+        File validatorsFile = getValidatorsFile(key);
+        if (!validatorsFile.exists()) {
+            return null;
+        }
+
+        Properties validators = new Properties();
+        try (InputStream is = new FileInputStream(validatorsFile)) {
+            validators.load(is);
+        } catch (IOException e) {
+            Timber.w(e);
+            return null;
+        }
+        return validators;
+    }
+
+    private File getDocumentFile(String key) {
+        return new File(cacheFolder, key + DOCUMENT_EXTENSION);
+    }
+
+    private File getValidatorsFile(String key) {
+        return new File(cacheFolder, key + VALIDATORS_EXTENSION);
+    }
+
+    private static void delete(File file) {
+        if (file.exists() && !file.delete()) {
+            Timber.w("Unable to delete %s", file.getAbsolutePath());
+        }
+    }
+
+    private static String getKey(String url, @Nullable String username) {
+        String userAndUrl = (username != null ? username : "") + "@" + url;
+        return FileUtils.getMd5Hash(new ByteArrayInputStream(userAndUrl.getBytes()));
+    }
+}
@@ -18,6 +18,7 @@ import org.odk.collect.android.tasks.sms.SmsSentBroadcastReceiver;
 import org.odk.collect.android.tasks.sms.SmsNotificationReceiver;
 import org.odk.collect.android.tasks.sms.SmsSender;
 import org.odk.collect.android.tasks.sms.SmsService;
+import org.odk.collect.android.upload.AutoSendWorker;
 import org.odk.collect.android.utilities.AuthDialogUtility;
 import org.odk.collect.android.utilities.DownloadFormListUtils;
 import org.odk.collect.android.utilities.FormDownloader;
@@ -71,6 +72,8 @@ public interface AppComponent {
 
     void inject(InstanceServerUploaderTask uploader);
 
+    void inject(AutoSendWorker autoSendWorker);
+
     void inject(CollectServerClient collectClient);
 
     void inject(ServerPreferencesFragment serverPreferencesFragment);
@@ -4,11 +4,13 @@ import android.app.Application;
 import android.content.Context;
 import android.telephony.SmsManager;
 
+import org.odk.collect.android.BuildConfig;
 import org.odk.collect.android.dao.FormsDao;
 import org.odk.collect.android.dao.InstancesDao;
 import org.odk.collect.android.events.RxEventBus;
 import org.odk.collect.android.http.CollectServerClient;
 import org.odk.collect.android.http.HttpClientConnection;
+import org.odk.collect.android.http.OkHttpConnection;
 import org.odk.collect.android.http.OpenRosaHttpInterface;
 import org.odk.collect.android.injection.ViewModelBuilder;
 import org.odk.collect.android.injection.config.architecture.ViewModelFactoryModule;
@@ -60,6 +62,9 @@ public class AppModule {
 
     @Provides
     public OpenRosaHttpInterface provideHttpInterface() {
+        if (BuildConfig.POOLED_HTTP_TRANSPORT_ENABLED) {
+            return new OkHttpConnection();
+        }
         return new HttpClientConnection();
     }
 
@@ -141,6 +141,7 @@ public class FormController {
     private File instanceFile;
     private final FormEntryController formEntryController;
     private FormIndex indexWaitingForData;
+    private final SavepointJournal savepointJournal = new SavepointJournal();
 
     public FormController(File mediaFolder, FormEntryController fec, File instanceFile) {
         this.mediaFolder = mediaFolder;
@@ -178,6 +179,10 @@ public class FormController {
         return indexWaitingForData;
     }
 
+    public SavepointJournal getSavepointJournal() {
+        return savepointJournal;
+    }
+
     public AuditEventLogger getAuditEventLogger() {
         if (auditEventLogger == null) {
             setAuditEventLogger(new AuditEventLogger(getInstanceFile(), getSubmissionMetadata().auditConfig));
@@ -464,6 +469,9 @@ public class FormController {
             return formEntryController.answerQuestion(index, data, true);
         } catch (Exception e) {
             throw new JavaRosaException(e);
+        } finally {
+            // only once the value is in the instance, see SavepointJournal#answerChanged
+            savepointJournal.answerChanged(index.getReference());
         }
     }
 
@@ -500,6 +508,9 @@ public class FormController {
             return formEntryController.saveAnswer(index, data, true);
         } catch (Exception e) {
             throw new JavaRosaException(e);
+        } finally {
+            // only once the value is in the instance, see SavepointJournal#answerChanged
+            savepointJournal.answerChanged(index.getReference());
         }
     }
 
@@ -842,6 +853,7 @@ public class FormController {
      * Creates a new repeated instance of the group referenced by the current FormIndex.
      */
     public void newRepeat() {
+        savepointJournal.structureChanged();
         formEntryController.newRepeat();
     }
 
@@ -852,6 +864,7 @@ public class FormController {
      * (2) > group2 (3) and you call deleteRepeat, it will delete the 3rd instance of group2.
      */
     public void deleteRepeat() {
+        savepointJournal.structureChanged();
         FormIndex fi = formEntryController.deleteRepeat();
         formEntryController.jumpToIndex(fi);
     }
@@ -0,0 +1,415 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.logic;
+
+import android.support.annotation.Nullable;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.QuestionDef;
+import org.javarosa.core.model.data.IAnswerData;
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeElement;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.xform.util.XFormAnswerDataParser;
+import org.javarosa.xform.util.XFormAnswerDataSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import timber.log.Timber;
+
+/**
+ * Keeps track of the answers that have changed since the last savepoint so that a savepoint can
+ * append just those answers to a journal instead of serializing the whole instance again.
+ *
+ * A savepoint is made of a full copy of the instance, the checkpoint, and a journal of the
+ * answers saved since. Each savepoint appends one batch to the journal, with a checksum so that
+ * a batch that was only partly written when the app died is ignored when the journal is
+ * replayed. Batches are also tagged with the checkpoint they apply to, so that the journal of
+ * a previous checkpoint is ignored if the app died before it could be deleted. Repeats being
+ * added or removed, answers that can't be written as text and a journal that has grown too long
+ * all make the next savepoint a new checkpoint, which compacts the journal away.
+ *
+ * Repeats are also added by JavaRosa itself when a jr:count repeat is reached, so the number of
+ * repeats in the instance is compared with the one of the checkpoint at each savepoint. Answers
+ * in repeats that aren't in the checkpoint couldn't be replayed.
+ */
+public class SavepointJournal {
+
+    private static final int BATCH_MAGIC = 0x4F444B4A;
+
+    /**
+     * Number of journaled answers after which the next savepoint is a checkpoint again.
+     */
+    private static final int MAX_JOURNAL_ENTRIES = 500;
+
+    private final Set<TreeReference> changedAnswers = new LinkedHashSet<>();
+    private boolean checkpointNeeded = true;
+    private int journalEntries;
+    private long checkpointTag;
+    private int checkpointRepeats;
+
+    /**
+     * Records that the answer at the given reference has changed. Must be called once the new
+     * value is in the instance, so that a savepoint that takes the change also writes the value.
+     */
+    public synchronized void answerChanged(TreeReference reference) {
+        for (int i = 0; i < reference.size(); i++) {
+            if (reference.getMultiplicity(i) == TreeReference.INDEX_ATTRIBUTE) {
+                // attributes aren't journaled
+                checkpointNeeded = true;
+                return;
+            }
+        }
+        changedAnswers.add(reference.clone());
+    }
+
+    /**
+     * Records a change that the journal can't describe, such as a repeat being added or removed.
+     */
+    public synchronized void structureChanged() {
+        checkpointNeeded = true;
+    }
+
+    /**
+     * Continues the journal of a savepoint that the form was loaded from.
+     *
+     * @param replayedEntries the number of answers that were replayed from the journal
+     * @param checkpointTag   the tag of the checkpoint, as returned by {@link #getCheckpointTag}
+     * @param repeatCount     the number of repeats in the loaded instance, as returned by
+     *                        {@link #countRepeats}
+     */
+    public synchronized void resume(int replayedEntries, long checkpointTag, int repeatCount) {
+        checkpointNeeded = false;
+        journalEntries = replayedEntries;
+        this.checkpointTag = checkpointTag;
+        checkpointRepeats = repeatCount;
+    }
+
+    /**
+     * Returns the answers to append to the journal and forgets them.
+     *
+     * @param checkpointExists whether the checkpoint the journal applies to is still on disk
+     * @param repeatCount      the number of repeats in the instance, as returned by
+     *                         {@link #countRepeats}
+     * @return null if the next savepoint has to be a checkpoint instead
+     */
+    @Nullable
+    public synchronized List<TreeReference> takeChangedAnswers(boolean checkpointExists, int repeatCount) {
+        if (checkpointNeeded || !checkpointExists || repeatCount != checkpointRepeats
+                || journalEntries + changedAnswers.size() > MAX_JOURNAL_ENTRIES) {
+            return null;
+        }
+
+        List<TreeReference> answers = new ArrayList<>(changedAnswers);
+        changedAnswers.clear();
+        journalEntries += answers.size();
+        return answers;
+    }
+
+    /**
+     * Records that a checkpoint with all the answers is about to be written.
+     *
+     * @param repeatCount the number of repeats in the instance, as returned by
+     *                    {@link #countRepeats}
+     */
+    public synchronized void checkpointStarted(int repeatCount) {
+        changedAnswers.clear();
+        checkpointNeeded = false;
+        journalEntries = 0;
+        checkpointRepeats = repeatCount;
+    }
+
+    /**
+     * Records that a checkpoint has been written, so that the batches appended from now on are
+     * tagged with it.
+     */
+    public synchronized void checkpointWritten(long checkpointTag) {
+        this.checkpointTag = checkpointTag;
+    }
+
+    /**
+     * @return the tag of the checkpoint that the batches appended to the journal apply to
+     */
+    public synchronized long getCheckpointTag() {
+        return checkpointTag;
+    }
+
+    /**
+     * Records that a savepoint couldn't be written so the next one has to be a checkpoint.
+     */
+    public synchronized void savepointFailed() {
+        checkpointNeeded = true;
+    }
+
+    /**
+     * @return the number of repeat instances in the instance, not counting templates
+     */
+    public static int countRepeats(FormInstance instance) {
+        return countRepeats(instance.getRoot());
+    }
+
+    private static int countRepeats(TreeElement element) {
+        int count = 0;
+        for (int i = 0; i < element.getNumChildren(); i++) {
+            TreeElement child = element.getChildAt(i);
+            if (child.getMultiplicity() == TreeReference.INDEX_TEMPLATE) {
+                continue;
+            }
+            if (child.isRepeatable()) {
+                count++;
+            }
+            count += countRepeats(child);
+        }
+        return count;
+    }
+
+    /**
+     * @return a tag that identifies a checkpoint by its contents
+     */
+    public static long getCheckpointTag(InputStream checkpoint) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = checkpoint.read(buffer)) != -1) {
+            crc.update(buffer, 0, read);
+        }
+        return crc.getValue();
+    }
+
+    public static long getCheckpointTag(File checkpointFile) throws IOException {
+        InputStream in = new FileInputStream(checkpointFile);
+        try {
+            return getCheckpointTag(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Appends the current values of the given answers to the journal as one batch.
+     *
+     * @param checkpointTag the tag of the checkpoint the answers apply to
+     * @return false if an answer can't be journaled, in which case nothing has been written and a
+     * checkpoint should be made instead
+     */
+    public static boolean append(File journalFile, long checkpointTag, FormInstance instance,
+                                 List<TreeReference> answers) throws IOException {
+        XFormAnswerDataSerializer serializer = new XFormAnswerDataSerializer();
+
+        ByteArrayOutputStream batch = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(batch);
+        out.writeLong(checkpointTag);
+        out.writeInt(answers.size());
+        for (TreeReference reference : answers) {
+            TreeElement element = instance.resolveReference(reference);
+            if (element == null) {
+                return false;
+            }
+
+            String value = null;
+            IAnswerData data = element.getValue();
+            if (data != null) {
+                Object serialized = serializer.serializeAnswerData(data);
+                if (!(serialized instanceof String)) {
+                    return false;
+                }
+                value = (String) serialized;
+            }
+
+            out.writeInt(reference.size());
+            for (int i = 0; i < reference.size(); i++) {
+                out.writeUTF(reference.getName(i));
+                out.writeInt(reference.getMultiplicity(i));
+            }
+            writeString(out, value);
+        }
+        out.flush();
+
+        byte[] bytes = batch.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        FileOutputStream fos = new FileOutputStream(journalFile, true);
+        try {
+            DataOutputStream journal = new DataOutputStream(fos);
+            journal.writeInt(BATCH_MAGIC);
+            journal.writeInt(bytes.length);
+            journal.write(bytes);
+            journal.writeLong(crc.getValue());
+            journal.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        return true;
+    }
+
+    /**
+     * Applies the answers in the journal to a form that has been loaded from the checkpoint.
+     * Reading stops at the first batch that is incomplete or damaged, and batches that belong to
+     * another checkpoint are skipped.
+     *
+     * @param checkpointTag the tag of the checkpoint the form was loaded from
+     * @return the number of answers that were replayed, or -1 if some answers couldn't be. The
+     * journal then mustn't be continued since its answers wouldn't all be replayed next time, so
+     * the next savepoint has to be a checkpoint of the answers that were.
+     */
+    public static int replay(File journalFile, FormDef formDef, long checkpointTag) {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+
+        int replayed = 0;
+        boolean complete = true;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(journalFile));
+            byte[] batch;
+            while ((batch = readBatch(in)) != null) {
+                int batchReplayed = replayBatch(batch, formDef, checkpointTag);
+                if (batchReplayed == -1) {
+                    complete = false;
+                } else {
+                    replayed += batchReplayed;
+                }
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Stopped replaying %s", journalFile);
+            complete = false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    Timber.e(e);
+                }
+            }
+        }
+
+        if (!complete) {
+            Timber.w("Could not replay all the answers from %s", journalFile);
+            return -1;
+        }
+        Timber.i("Replayed %d answers from %s", replayed, journalFile);
+        return replayed;
+    }
+
+    @Nullable
+    private static byte[] readBatch(DataInputStream in) throws IOException {
+        try {
+            if (in.readInt() != BATCH_MAGIC) {
+                Timber.w("Savepoint journal batch has a bad header");
+                return null;
+            }
+            int length = in.readInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            if (in.readLong() != crc.getValue()) {
+                Timber.w("Savepoint journal batch has a bad checksum");
+                return null;
+            }
+            return bytes;
+        } catch (EOFException e) {
+            // the end of the journal or a batch that wasn't completely written
+            return null;
+        }
+    }
+
+    /**
+     * @return the number of answers that were replayed, or -1 if some couldn't be. The others are
+     * replayed anyway since they are newer than the checkpoint.
+     */
+    private static int replayBatch(byte[] batch, FormDef formDef, long checkpointTag) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(batch));
+        if (in.readLong() != checkpointTag) {
+            Timber.w("Skipping a savepoint journal batch of another checkpoint");
+            return 0;
+        }
+        int count = in.readInt();
+        boolean complete = true;
+        for (int i = 0; i < count; i++) {
+            TreeReference reference = TreeReference.rootRef();
+            int steps = in.readInt();
+            for (int step = 0; step < steps; step++) {
+                String name = in.readUTF();
+                reference.add(name, in.readInt());
+            }
+            String value = readString(in);
+
+            TreeElement element = formDef.getMainInstance().resolveReference(reference);
+            if (element == null) {
+                Timber.w("No element for journaled answer %s", reference);
+                complete = false;
+                continue;
+            }
+
+            try {
+                IAnswerData data = null;
+                if (value != null) {
+                    QuestionDef question = FormDef.findQuestionByRef(reference.genericize(), formDef);
+                    data = XFormAnswerDataParser.getAnswerData(value, element.getDataType(), question);
+                }
+                formDef.setValue(data, reference, true);
+            } catch (RuntimeException e) {
+                Timber.w(e, "Could not replay answer %s", reference);
+                complete = false;
+            }
+        }
+        return complete ? count : -1;
+    }
+
+    private static void writeString(DataOutputStream out, @Nullable String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    @Nullable
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+}
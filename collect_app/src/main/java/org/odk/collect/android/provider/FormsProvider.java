@@ -15,8 +15,11 @@
 package org.odk.collect.android.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -28,18 +31,23 @@ import android.text.TextUtils;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.database.FileHashIndex;
 import org.odk.collect.android.database.ItemsetDbAdapter;
 import org.odk.collect.android.database.helpers.FormsDatabaseHelper;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
-import org.odk.collect.android.utilities.FileUtils;
+import org.odk.collect.android.utilities.FormDefCache;
 import org.odk.collect.android.utilities.MediaUtils;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
 import timber.log.Timber;
 
@@ -58,6 +66,12 @@ public class FormsProvider extends ContentProvider {
 
     private static FormsDatabaseHelper dbHelper;
 
+    /**
+     * The batch the current thread is applying, whose changes are notified and whose files are
+     * deleted once it has been committed rather than after each of its operations.
+     */
+    private final ThreadLocal<Batch> currentBatch = new ThreadLocal<>();
+
     private synchronized FormsDatabaseHelper getDbHelper() {
         // wrapper to test and reset/set the dbHelper based upon the attachment state of the device.
         try {
@@ -203,13 +217,11 @@ public class FormsProvider extends ContentProvider {
             if (values.containsKey(FormsColumns.MD5_HASH)) {
                 values.remove(FormsColumns.MD5_HASH);
             }
-            String md5 = FileUtils.getMd5Hash(form);
+            String md5 = FileHashIndex.getInstance().getMd5Hash(form);
             values.put(FormsColumns.MD5_HASH, md5);
 
             if (!values.containsKey(FormsColumns.JRCACHE_FILE_PATH)) {
-                String cachePath = Collect.CACHE_PATH + File.separator + md5
-                        + ".formdef";
-                values.put(FormsColumns.JRCACHE_FILE_PATH, cachePath);
+                values.put(FormsColumns.JRCACHE_FILE_PATH, FormDefCache.getCacheFilePath(form));
             }
             if (!values.containsKey(FormsColumns.FORM_MEDIA_PATH)) {
                 String pathNoExtension = filePath.substring(0,
@@ -244,8 +256,8 @@ public class FormsProvider extends ContentProvider {
             if (rowId > 0) {
                 Uri formUri = ContentUris.withAppendedId(FormsColumns.CONTENT_URI,
                         rowId);
-                getContext().getContentResolver().notifyChange(formUri, null);
-                getContext().getContentResolver().notifyChange(FormsProviderAPI.FormsColumns.CONTENT_NEWEST_FORMS_BY_FORMID_URI, null);
+                notifyChange(formUri);
+                notifyChange(FormsColumns.CONTENT_NEWEST_FORMS_BY_FORMID_URI);
                 return formUri;
             }
         }
@@ -253,7 +265,131 @@ public class FormsProvider extends ContentProvider {
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    /**
+     * Applies the operations in a single transaction and notifies the observers once at the end.
+     *
+     * It holds the same lock as {@link #insert(Uri, ContentValues)} so that an insert from
+     * another thread can't wait for the transaction while holding the lock the batch needs.
+     */
+    @NonNull
+    @Override
+    public synchronized ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        FormsDatabaseHelper formsDatabaseHelper = getDbHelper();
+        if (!areStoragePermissionsGranted(getContext()) || formsDatabaseHelper == null) {
+            return super.applyBatch(operations);
+        }
+
+        SQLiteDatabase db = formsDatabaseHelper.getWritableDatabase();
+        boolean isOutermostBatch = beginBatch(db);
+        boolean successful = false;
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            endBatch(db, isOutermostBatch, successful);
+        }
+    }
+
+    /**
+     * Inserts the rows in a single transaction and notifies the observers once at the end.
+     */
+    @Override
+    public synchronized int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        FormsDatabaseHelper formsDatabaseHelper = getDbHelper();
+        if (!areStoragePermissionsGranted(getContext()) || formsDatabaseHelper == null) {
+            return 0;
+        }
+
+        SQLiteDatabase db = formsDatabaseHelper.getWritableDatabase();
+        boolean isOutermostBatch = beginBatch(db);
+        boolean successful = false;
+        try {
+            int count = super.bulkInsert(uri, values);
+            db.setTransactionSuccessful();
+            successful = true;
+            return count;
+        } finally {
+            endBatch(db, isOutermostBatch, successful);
+        }
+    }
+
+    /**
+     * @return whether this is the outermost batch of the current thread, which notifies the
+     * changes of the nested ones
+     */
+    private boolean beginBatch(SQLiteDatabase db) {
+        db.beginTransaction();
+        if (currentBatch.get() != null) {
+            return false;
+        }
+        currentBatch.set(new Batch());
+        return true;
+    }
+
+    /**
+     * @param successful whether the batch's transaction was marked successful. If a nested
+     *                   batch wasn't, the outermost one is rolled back too.
+     */
+    private void endBatch(SQLiteDatabase db, boolean isOutermostBatch, boolean successful) {
+        Batch batch = currentBatch.get();
+        batch.failed |= !successful;
+
+        boolean committed = false;
+        try {
+            db.endTransaction();
+            committed = !batch.failed;
+        } finally {
+            if (isOutermostBatch) {
+                currentBatch.remove();
+
+                // a rolled back batch changed nothing and still needs the files of its forms
+                if (committed) {
+                    for (String fileName : batch.deletedFiles) {
+                        deleteFileOrDirNow(fileName);
+                    }
+
+                    Set<Uri> changes = batch.changes;
+                    boolean newestFormsChanged = changes.remove(FormsColumns.CONTENT_NEWEST_FORMS_BY_FORMID_URI);
+                    if (changes.size() == 1) {
+                        getContext().getContentResolver().notifyChange(changes.iterator().next(), null);
+                    } else if (!changes.isEmpty()) {
+                        // also reaches the observers of single forms
+                        getContext().getContentResolver().notifyChange(FormsColumns.CONTENT_URI, null);
+                    }
+                    if (newestFormsChanged) {
+                        getContext().getContentResolver().notifyChange(FormsColumns.CONTENT_NEWEST_FORMS_BY_FORMID_URI, null);
+                    }
+                }
+            }
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        Batch batch = currentBatch.get();
+        if (batch != null) {
+            batch.changes.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Deletes a file that a deleted or updated row no longer refers to, once the batch being
+     * applied has been committed.
+     */
     private void deleteFileOrDir(String fileName) {
+        Batch batch = currentBatch.get();
+        if (batch != null) {
+            batch.deletedFiles.add(fileName);
+        } else {
+            deleteFileOrDirNow(fileName);
+        }
+    }
+
+    private void deleteFileOrDirNow(String fileName) {
         File file = new File(fileName);
         if (file.exists()) {
             if (file.isDirectory()) {
@@ -286,7 +422,7 @@ public class FormsProvider extends ContentProvider {
 
     /**
      * This method removes the entry from the content provider, and also removes
-     * any associated files. files: form.xml, [formmd5].formdef, formname-media
+     * any associated files. files: form.xml, [cachekey].formdef, formname-media
      * {directory}
      */
     @Override
@@ -312,6 +448,8 @@ public class FormsProvider extends ContentProvider {
                                                 .getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
                                 String formFilePath = del.getString(del
                                         .getColumnIndex(FormsColumns.FORM_FILE_PATH));
+                                // the form may have changed since its cache path was recorded
+                                deleteFileOrDir(FormDefCache.getCacheFilePath(new File(formFilePath)));
                                 deleteFileOrDir(formFilePath);
                                 deleteFileOrDir(del.getString(del
                                         .getColumnIndex(FormsColumns.FORM_MEDIA_PATH)));
@@ -339,6 +477,8 @@ public class FormsProvider extends ContentProvider {
                                         .getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
                                 String formFilePath = c.getString(c
                                         .getColumnIndex(FormsColumns.FORM_FILE_PATH));
+                                // the form may have changed since its cache path was recorded
+                                deleteFileOrDir(FormDefCache.getCacheFilePath(new File(formFilePath)));
                                 deleteFileOrDir(formFilePath);
                                 deleteFileOrDir(c.getString(c
                                         .getColumnIndex(FormsColumns.FORM_MEDIA_PATH)));
@@ -376,8 +516,8 @@ public class FormsProvider extends ContentProvider {
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
 
-            getContext().getContentResolver().notifyChange(uri, null);
-            getContext().getContentResolver().notifyChange(FormsColumns.CONTENT_NEWEST_FORMS_BY_FORMID_URI, null);
+            notifyChange(uri);
+            notifyChange(FormsColumns.CONTENT_NEWEST_FORMS_BY_FORMID_URI);
         }
 
         return count;
@@ -408,7 +548,9 @@ public class FormsProvider extends ContentProvider {
                         String formFile = values
                                 .getAsString(FormsColumns.FORM_FILE_PATH);
                         values.put(FormsColumns.MD5_HASH,
-                                FileUtils.getMd5Hash(new File(formFile)));
+                                FileHashIndex.getInstance().getMd5Hash(new File(formFile)));
+                        values.put(FormsColumns.JRCACHE_FILE_PATH,
+                                FormDefCache.getCacheFilePath(new File(formFile)));
                     }
 
                     Cursor c = null;
@@ -426,6 +568,7 @@ public class FormsProvider extends ContentProvider {
                                             .getString(c
                                                     .getColumnIndex(FormsColumns.FORM_FILE_PATH));
                                     if (!newFile.equalsIgnoreCase(delFile)) {
+                                        deleteFileOrDir(FormDefCache.getCacheFilePath(new File(delFile)));
                                         deleteFileOrDir(delFile);
                                     }
 
@@ -489,6 +632,7 @@ public class FormsProvider extends ContentProvider {
                                         .getColumnIndex(FormsColumns.FORM_FILE_PATH));
 
                                 if (formFile == null || !formFile.equalsIgnoreCase(oldFile)) {
+                                    deleteFileOrDir(FormDefCache.getCacheFilePath(new File(oldFile)));
                                     deleteFileOrDir(oldFile);
                                 }
 
@@ -497,12 +641,11 @@ public class FormsProvider extends ContentProvider {
                                 deleteFileOrDir(update
                                         .getString(update
                                                 .getColumnIndex(FormsColumns.JRCACHE_FILE_PATH)));
-                                String newMd5 = FileUtils
+                                String newMd5 = FileHashIndex.getInstance()
                                         .getMd5Hash(new File(formFile));
                                 values.put(FormsColumns.MD5_HASH, newMd5);
                                 values.put(FormsColumns.JRCACHE_FILE_PATH,
-                                        Collect.CACHE_PATH + File.separator + newMd5
-                                                + ".formdef");
+                                        FormDefCache.getCacheFilePath(new File(formFile)));
                             }
 
                             // Make sure that the necessary fields are all set
@@ -535,8 +678,8 @@ public class FormsProvider extends ContentProvider {
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
 
-            getContext().getContentResolver().notifyChange(uri, null);
-            getContext().getContentResolver().notifyChange(FormsProviderAPI.FormsColumns.CONTENT_NEWEST_FORMS_BY_FORMID_URI, null);
+            notifyChange(uri);
+            notifyChange(FormsColumns.CONTENT_NEWEST_FORMS_BY_FORMID_URI);
         }
 
         return count;
@@ -583,4 +726,10 @@ public class FormsProvider extends ContentProvider {
         sFormsProjectionMap.put(FormsColumns.AUTO_SEND, FormsColumns.AUTO_SEND);
         sFormsProjectionMap.put(FormsColumns.LAST_DETECTED_FORM_VERSION_HASH, FormsColumns.LAST_DETECTED_FORM_VERSION_HASH);
     }
+
+    private static class Batch {
+        final Set<Uri> changes = new HashSet<>();
+        final List<String> deletedFiles = new ArrayList<>();
+        boolean failed;
+    }
 }
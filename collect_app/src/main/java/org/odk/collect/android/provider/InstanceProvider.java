@@ -15,8 +15,11 @@
 package org.odk.collect.android.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.SQLException;
@@ -34,9 +37,13 @@ import org.odk.collect.android.utilities.MediaUtils;
 
 import java.io.File;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 
 import timber.log.Timber;
 
@@ -45,14 +52,23 @@ import static org.odk.collect.android.utilities.PermissionUtils.areStoragePermis
 
 public class InstanceProvider extends ContentProvider {
     private static HashMap<String, String> sInstancesProjectionMap;
+    private static HashMap<String, String> sCountByStatusProjectionMap;
 
     private static final int INSTANCES = 1;
     private static final int INSTANCE_ID = 2;
+    // Number of instances with each status
+    private static final int INSTANCE_COUNT_BY_STATUS = 3;
 
     private static final UriMatcher URI_MATCHER;
 
     private static InstancesDatabaseHelper dbHelper;
-    
+
+    /**
+     * The batch the current thread is applying, whose changes are notified and whose files are
+     * deleted once it has been committed rather than after each of its operations.
+     */
+    private final ThreadLocal<Batch> currentBatch = new ThreadLocal<>();
+
     private synchronized InstancesDatabaseHelper getDbHelper() {
         // wrapper to test and reset/set the dbHelper based upon the attachment state of the device.
         try {
@@ -93,6 +109,8 @@ public class InstanceProvider extends ContentProvider {
         qb.setProjectionMap(sInstancesProjectionMap);
         qb.setStrict(true);
 
+        String groupBy = null;
+        Uri notificationUri = uri;
         switch (URI_MATCHER.match(uri)) {
             case INSTANCES:
                 break;
@@ -101,6 +119,13 @@ public class InstanceProvider extends ContentProvider {
                 qb.appendWhere(InstanceColumns._ID + "=" + uri.getPathSegments().get(1));
                 break;
 
+            case INSTANCE_COUNT_BY_STATUS:
+                qb.setProjectionMap(sCountByStatusProjectionMap);
+                groupBy = InstanceColumns.STATUS;
+                // the counts change with any instance
+                notificationUri = InstanceColumns.CONTENT_URI;
+                break;
+
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri);
         }
@@ -108,10 +133,10 @@ public class InstanceProvider extends ContentProvider {
         Cursor c = null;
         InstancesDatabaseHelper instancesDatabaseHelper = getDbHelper();
         if (instancesDatabaseHelper != null) {
-            c = qb.query(instancesDatabaseHelper.getReadableDatabase(), projection, selection, selectionArgs, null, null, sortOrder);
+            c = qb.query(instancesDatabaseHelper.getReadableDatabase(), projection, selection, selectionArgs, groupBy, null, sortOrder);
 
             // Tell the cursor what uri to watch, so it knows when its source data changes
-            c.setNotificationUri(getContext().getContentResolver(), uri);
+            c.setNotificationUri(getContext().getContentResolver(), notificationUri);
         }
 
         return c;
@@ -121,6 +146,7 @@ public class InstanceProvider extends ContentProvider {
     public String getType(@NonNull Uri uri) {
         switch (URI_MATCHER.match(uri)) {
             case INSTANCES:
+            case INSTANCE_COUNT_BY_STATUS:
                 return InstanceColumns.CONTENT_TYPE;
 
             case INSTANCE_ID:
@@ -171,7 +197,7 @@ public class InstanceProvider extends ContentProvider {
             long rowId = instancesDatabaseHelper.getWritableDatabase().insert(INSTANCES_TABLE_NAME, null, values);
             if (rowId > 0) {
                 Uri instanceUri = ContentUris.withAppendedId(InstanceColumns.CONTENT_URI, rowId);
-                getContext().getContentResolver().notifyChange(instanceUri, null);
+                notifyChange(instanceUri);
                 return instanceUri;
             }
         }
@@ -179,6 +205,122 @@ public class InstanceProvider extends ContentProvider {
         throw new SQLException("Failed to insert row into " + uri);
     }
 
+    /**
+     * Applies the operations in a single transaction and notifies the observers once at the end.
+     */
+    @NonNull
+    @Override
+    public ContentProviderResult[] applyBatch(@NonNull ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        InstancesDatabaseHelper instancesDatabaseHelper = getDbHelper();
+        if (!areStoragePermissionsGranted(getContext()) || instancesDatabaseHelper == null) {
+            return super.applyBatch(operations);
+        }
+
+        SQLiteDatabase db = instancesDatabaseHelper.getWritableDatabase();
+        boolean isOutermostBatch = beginBatch(db);
+        boolean successful = false;
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            successful = true;
+            return results;
+        } finally {
+            endBatch(db, isOutermostBatch, successful);
+        }
+    }
+
+    /**
+     * Inserts the rows in a single transaction and notifies the observers once at the end.
+     */
+    @Override
+    public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        InstancesDatabaseHelper instancesDatabaseHelper = getDbHelper();
+        if (!areStoragePermissionsGranted(getContext()) || instancesDatabaseHelper == null) {
+            return 0;
+        }
+
+        SQLiteDatabase db = instancesDatabaseHelper.getWritableDatabase();
+        boolean isOutermostBatch = beginBatch(db);
+        boolean successful = false;
+        try {
+            int count = super.bulkInsert(uri, values);
+            db.setTransactionSuccessful();
+            successful = true;
+            return count;
+        } finally {
+            endBatch(db, isOutermostBatch, successful);
+        }
+    }
+
+    /**
+     * @return whether this is the outermost batch of the current thread, which notifies the
+     * changes of the nested ones
+     */
+    private boolean beginBatch(SQLiteDatabase db) {
+        db.beginTransaction();
+        if (currentBatch.get() != null) {
+            return false;
+        }
+        currentBatch.set(new Batch());
+        return true;
+    }
+
+    /**
+     * @param successful whether the batch's transaction was marked successful. If a nested
+     *                   batch wasn't, the outermost one is rolled back too.
+     */
+    private void endBatch(SQLiteDatabase db, boolean isOutermostBatch, boolean successful) {
+        Batch batch = currentBatch.get();
+        batch.failed |= !successful;
+
+        boolean committed = false;
+        try {
+            db.endTransaction();
+            committed = !batch.failed;
+        } finally {
+            if (isOutermostBatch) {
+                currentBatch.remove();
+
+                // a rolled back batch changed nothing and still needs the files of its instances
+                if (committed) {
+                    for (File instanceDir : batch.deletedInstanceDirs) {
+                        deleteAllFilesInDirectory(instanceDir);
+                    }
+
+                    if (batch.changes.size() == 1) {
+                        getContext().getContentResolver().notifyChange(batch.changes.iterator().next(), null);
+                    } else if (!batch.changes.isEmpty()) {
+                        // also reaches the observers of single instances
+                        getContext().getContentResolver().notifyChange(InstanceColumns.CONTENT_URI, null);
+                    }
+                }
+            }
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        Batch batch = currentBatch.get();
+        if (batch != null) {
+            batch.changes.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    /**
+     * Deletes the directory of an instance whose row is deleted, once the batch being applied has
+     * been committed.
+     */
+    private void deleteInstanceDirectory(File instanceDir) {
+        Batch batch = currentBatch.get();
+        if (batch != null) {
+            batch.deletedInstanceDirs.add(instanceDir);
+        } else {
+            deleteAllFilesInDirectory(instanceDir);
+        }
+    }
+
     private String getDisplaySubtext(String state, Date date) {
         try {
             if (state == null) {
@@ -187,7 +329,8 @@ public class InstanceProvider extends ContentProvider {
             } else if (InstanceProviderAPI.STATUS_INCOMPLETE.equalsIgnoreCase(state)) {
                 return new SimpleDateFormat(getContext().getString(R.string.saved_on_date_at_time),
                         Locale.getDefault()).format(date);
-            } else if (InstanceProviderAPI.STATUS_COMPLETE.equalsIgnoreCase(state)) {
+            } else if (InstanceProviderAPI.STATUS_COMPLETE.equalsIgnoreCase(state)
+                    || InstanceProviderAPI.STATUS_FINALIZING.equalsIgnoreCase(state)) {
                 return new SimpleDateFormat(getContext().getString(R.string.finalized_on_date_at_time),
                         Locale.getDefault()).format(date);
             } else if (InstanceProviderAPI.STATUS_SUBMITTED.equalsIgnoreCase(state)) {
@@ -260,7 +403,7 @@ public class InstanceProvider extends ContentProvider {
                                 String instanceFile = del.getString(
                                         del.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
                                 File instanceDir = (new File(instanceFile)).getParentFile();
-                                deleteAllFilesInDirectory(instanceDir);
+                                deleteInstanceDirectory(instanceDir);
                             } while (del.moveToNext());
                         }
                     } finally {
@@ -285,7 +428,7 @@ public class InstanceProvider extends ContentProvider {
                                 String instanceFile = c.getString(
                                         c.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
                                 File instanceDir = (new File(instanceFile)).getParentFile();
-                                deleteAllFilesInDirectory(instanceDir);
+                                deleteInstanceDirectory(instanceDir);
                             } while (c.moveToNext());
                         }
                     } finally {
@@ -323,7 +466,7 @@ public class InstanceProvider extends ContentProvider {
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
 
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return count;
@@ -397,7 +540,7 @@ public class InstanceProvider extends ContentProvider {
                     throw new IllegalArgumentException("Unknown URI " + uri);
             }
 
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
         }
 
         return count;
@@ -407,6 +550,8 @@ public class InstanceProvider extends ContentProvider {
         URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
         URI_MATCHER.addURI(InstanceProviderAPI.AUTHORITY, "instances", INSTANCES);
         URI_MATCHER.addURI(InstanceProviderAPI.AUTHORITY, "instances/#", INSTANCE_ID);
+        // Only available for query and type
+        URI_MATCHER.addURI(InstanceProviderAPI.AUTHORITY, "instance_count_by_status", INSTANCE_COUNT_BY_STATUS);
 
         sInstancesProjectionMap = new HashMap<>();
         sInstancesProjectionMap.put(InstanceColumns._ID, InstanceColumns._ID);
@@ -424,5 +569,16 @@ public class InstanceProvider extends ContentProvider {
         sInstancesProjectionMap.put(InstanceColumns.DISPLAY_SUBTEXT,
                 InstanceColumns.DISPLAY_SUBTEXT);
         sInstancesProjectionMap.put(InstanceColumns.DELETED_DATE, InstanceColumns.DELETED_DATE);
+
+        sCountByStatusProjectionMap = new HashMap<>();
+        sCountByStatusProjectionMap.put(InstanceColumns.STATUS, InstanceColumns.STATUS);
+        sCountByStatusProjectionMap.put(InstanceColumns.INSTANCE_COUNT,
+                "COUNT(*) AS " + InstanceColumns.INSTANCE_COUNT);
+    }
+
+    private static class Batch {
+        final Set<Uri> changes = new HashSet<>();
+        final List<File> deletedInstanceDirs = new ArrayList<>();
+        boolean failed;
     }
 }
@@ -32,6 +32,8 @@ public final class InstanceProviderAPI {
     // status for instances
     public static final String STATUS_INCOMPLETE = "incomplete";
     public static final String STATUS_COMPLETE = "complete";
+    // complete but still being packaged for submission in the background
+    public static final String STATUS_FINALIZING = "finalizing";
     public static final String STATUS_SUBMITTED = "submitted";
     public static final String STATUS_SUBMISSION_FAILED = "submissionFailed";
 
@@ -44,6 +46,13 @@ public final class InstanceProviderAPI {
         }
 
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/instances");
+
+        /**
+         * The content:// style URL for counting the instances of each {@link #STATUS}. Its rows
+         * only have the {@link #STATUS} and {@link #INSTANCE_COUNT} columns.
+         */
+        public static final Uri CONTENT_COUNT_BY_STATUS_URI = Uri.parse("content://" + AUTHORITY + "/instance_count_by_status");
+
         public static final String CONTENT_TYPE = "vnd.android.cursor.dir/vnd.odk.instance";
         public static final String CONTENT_ITEM_TYPE = "vnd.android.cursor.item/vnd.odk.instance";
 
@@ -63,6 +72,9 @@ public final class InstanceProviderAPI {
         public static final String DELETED_DATE = "deletedDate";
         //public static final String DISPLAY_SUB_SUBTEXT = "displaySubSubtext";
 
+        // only in the rows of CONTENT_COUNT_BY_STATUS_URI
+        public static final String INSTANCE_COUNT = "instanceCount";
+
         //        public static final String DEFAULT_SORT_ORDER = "modified DESC";
         //        public static final String TITLE = "title";
         //        public static final String NOTE = "note";
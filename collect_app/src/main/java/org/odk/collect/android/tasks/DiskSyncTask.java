@@ -14,16 +14,18 @@
 
 package org.odk.collect.android.tasks;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.database.Cursor;
-import android.database.SQLException;
 import android.net.Uri;
 import android.os.AsyncTask;
 
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.database.FileHashIndex;
 import org.odk.collect.android.listeners.DiskSyncListener;
+import org.odk.collect.android.provider.FormsProviderAPI;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.Validator;
@@ -32,8 +34,9 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import timber.log.Timber;
 
@@ -64,8 +67,9 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
 
             File formDir = new File(Collect.FORMS_PATH);
             if (formDir.exists() && formDir.isDirectory()) {
-                // Get all the files in the /odk/foms directory
-                List<File> formsToAdd = new LinkedList<File>();
+                // Get all the files in the /odk/foms directory. They are kept in a set since
+                // each form in the provider is looked up among them.
+                Set<File> formsToAdd = new HashSet<>();
 
                 // Step 1: assemble the candidate form files
                 //         discard files beginning with "."
@@ -85,8 +89,8 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                 }
 
                 // Step 2: quickly run through and figure out what files we need to
-                // parse and update; this is quick, as we only calculate the md5
-                // and see if it has changed.
+                // parse and update; this is quick, as the md5 is only calculated for
+                // files whose size or last modified time changed since it was indexed.
                 List<UriFile> uriToUpdate = new ArrayList<UriFile>();
                 Cursor cursor = null;
                 // open the cursor within a try-catch block so it can always be closed.
@@ -112,7 +116,7 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                             // remove it from the list of forms (we only want forms
                             // we haven't added at the end)
                             formsToAdd.remove(sqlFile);
-                            String md5Computed = FileUtils.getMd5Hash(sqlFile);
+                            String md5Computed = FileHashIndex.getInstance().getMd5Hash(sqlFile);
                             if (md5Computed == null || md5 == null || !md5Computed.equals(md5)) {
                                 // Probably someone overwrite the file on the sdcard
                                 // So re-parse it and update it's information
@@ -143,8 +147,11 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                     formsDao.deleteFormsFromIDs(idsToDelete.toArray(new String[idsToDelete.size()]));
                 }
 
+                boolean anyFormChanged = !uriToUpdate.isEmpty() || !formsToAdd.isEmpty();
+
                 // Step3: go through uriToUpdate to parse and update each in turn.
                 // This is slow because buildContentValues(...) is slow.
+                ProviderOperationBatch updates = new ProviderOperationBatch(FormsProviderAPI.AUTHORITY);
                 Collections.shuffle(uriToUpdate); // Big win if multiple DiskSyncTasks running
                 for (UriFile entry : uriToUpdate) {
                     Uri updateUri = entry.uri;
@@ -165,19 +172,22 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                     }
 
                     // update in content provider
-                    int count =
-                            Collect.getInstance().getContentResolver()
-                                    .update(updateUri, values, null, null);
-                    Timber.i("[%d] %d records successfully updated", instance, count);
+                    updates.add(ContentProviderOperation.newUpdate(updateUri).withValues(values).build());
+                }
+                updates.flush();
+                if (!uriToUpdate.isEmpty()) {
+                    Timber.i("[%d] %d records successfully updated", instance, updates.getAppliedCount());
                 }
                 uriToUpdate.clear();
 
                 // Step 4: go through the newly-discovered files in xFormsToAdd and add them.
                 // This is slow because buildContentValues(...) is slow.
                 //
-                Collections.shuffle(formsToAdd); // Big win if multiple DiskSyncTasks running
-                while (!formsToAdd.isEmpty()) {
-                    File formDefFile = formsToAdd.remove(0);
+                ProviderOperationBatch inserts = new ProviderOperationBatch(FormsProviderAPI.AUTHORITY);
+                List<File> newForms = new ArrayList<>(formsToAdd);
+                formsToAdd.clear();
+                Collections.shuffle(newForms); // Big win if multiple DiskSyncTasks running
+                for (File formDefFile : newForms) {
 
                     // Since parsing is so slow, if there are multiple tasks,
                     // they may have already updated the database.
@@ -202,14 +212,17 @@ public class DiskSyncTask extends AsyncTask<Void, String, String> {
                         continue;
                     }
 
-                    // insert into content provider
-                    try {
-                        // insert failures are OK and expected if multiple
-                        // DiskSync scanners are active.
-                        formsDao.saveForm(values);
-                    } catch (SQLException e) {
-                        Timber.i("[%d] %s", instance, e.toString());
-                    }
+                    // insert into content provider. Insert failures are OK and expected
+                    // if multiple DiskSync scanners are active.
+                    inserts.add(ContentProviderOperation.newInsert(FormsColumns.CONTENT_URI)
+                            .withValues(values).build());
+                }
+                inserts.flush();
+
+                // Step 5: parse and cache the new and changed forms in the background so that
+                // they open quickly the first time.
+                if (anyFormChanged) {
+                    FormDefCacheWorker.enqueue();
                 }
             }
             if (errors.length() != 0) {
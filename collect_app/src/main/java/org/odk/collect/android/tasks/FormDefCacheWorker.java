@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Environment;
+import android.support.annotation.NonNull;
+
+import org.apache.commons.io.IOUtils;
+import org.javarosa.core.model.FormDef;
+import org.javarosa.xform.util.XFormUtils;
+import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
+import org.odk.collect.android.utilities.FormDefCache;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import timber.log.Timber;
+
+/**
+ * Parses every form on the device that doesn't have an up-to-date entry in the
+ * {@link FormDefCache} and caches it, so that the first time a form is opened after it was
+ * downloaded or copied to the device it can be loaded from the cache instead of from XML.
+ */
+public class FormDefCacheWorker extends Worker {
+
+    public FormDefCacheWorker(@NonNull Context c, @NonNull WorkerParameters parameters) {
+        super(c, parameters);
+    }
+
+    /**
+     * Requests that all forms missing from the FormDef cache be cached in the background. If a
+     * request is already running, this one is queued behind it so that forms installed while it
+     * was running are also picked up.
+     */
+    public static void enqueue() {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiresBatteryNotLow(true)
+                .build();
+        OneTimeWorkRequest cacheWork =
+                new OneTimeWorkRequest.Builder(FormDefCacheWorker.class)
+                        .addTag(FormDefCacheWorker.class.getName())
+                        .setConstraints(constraints)
+                        .build();
+        WorkManager.getInstance().beginUniqueWork(FormDefCacheWorker.class.getName(),
+                ExistingWorkPolicy.APPEND, cacheWork).enqueue();
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+            return Result.RETRY;
+        }
+
+        List<File> formsToCache = getUncachedForms();
+        if (formsToCache.isEmpty()) {
+            return Result.SUCCESS;
+        }
+
+        Timber.i("Caching %d forms", formsToCache.size());
+        final long start = System.currentTimeMillis();
+
+        // Forms are parsed one at a time because the ReferenceManager they resolve their
+        // jr:// references with is shared with the form that is being loaded or filled
+        for (File formXml : formsToCache) {
+            if (isStopped()) {
+                return Result.RETRY;
+            }
+            cacheForm(formXml);
+        }
+
+        Timber.i("Cached %d forms in %.3f seconds.", formsToCache.size(),
+                (System.currentTimeMillis() - start) / 1000F);
+        return Result.SUCCESS;
+    }
+
+    private List<File> getUncachedForms() {
+        List<File> forms = new ArrayList<>();
+        try (Cursor cursor = new FormsDao().getFormsCursor()) {
+            if (cursor == null) {
+                return forms;
+            }
+
+            int formFilePathColumn = cursor.getColumnIndex(FormsColumns.FORM_FILE_PATH);
+            while (cursor.moveToNext()) {
+                File formXml = new File(cursor.getString(formFilePathColumn));
+                if (formXml.exists() && !FormDefCache.isCached(formXml)) {
+                    forms.add(formXml);
+                }
+            }
+        }
+        return forms;
+    }
+
+    /**
+     * Parses and caches one form. Failures are only logged: the form will be parsed again
+     * when it is opened and the error reported to the user then.
+     */
+    private static void cacheForm(File formXml) {
+        // Another request may have cached it since we listed the forms
+        if (FormDefCache.isCached(formXml)) {
+            return;
+        }
+
+        final String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
+
+        synchronized (FormLoaderTask.REFERENCE_SESSION_LOCK) {
+            final String openFormFileName = FormLoaderTask.getReferenceSessionFormFileName();
+            FileInputStream fis = null;
+            try {
+                FormLoaderTask.startReferenceSession(formFileName);
+                fis = new FileInputStream(formXml);
+                FormDef formDef = XFormUtils.getFormFromInputStream(fis);
+                if (formDef != null) {
+                    FormDefCache.writeCache(formDef, formXml.getAbsolutePath(), false);
+                }
+            } catch (Exception e) {
+                Timber.w(e, "Unable to cache %s", formXml.getName());
+            } finally {
+                IOUtils.closeQuietly(fis);
+                // Point the references back to the media of the form that is open, if any
+                if (openFormFileName != null) {
+                    FormLoaderTask.startReferenceSession(openFormFileName);
+                } else {
+                    FormLoaderTask.clearReferenceSession();
+                }
+            }
+        }
+    }
+}
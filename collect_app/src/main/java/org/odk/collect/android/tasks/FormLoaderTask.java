@@ -21,6 +21,8 @@ import android.os.AsyncTask;
 import org.apache.commons.io.IOUtils;
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.model.FormIndex;
+import org.javarosa.core.model.IFormElement;
+import org.javarosa.core.model.QuestionDef;
 import org.javarosa.core.model.instance.InstanceInitializationFactory;
 import org.javarosa.core.model.instance.TreeElement;
 import org.javarosa.core.model.instance.TreeReference;
@@ -41,22 +43,36 @@ import org.odk.collect.android.external.ExternalDataManager;
 import org.odk.collect.android.external.ExternalDataManagerImpl;
 import org.odk.collect.android.external.ExternalDataReader;
 import org.odk.collect.android.external.ExternalDataReaderImpl;
+import org.odk.collect.android.external.ExternalDataUtil;
+import org.odk.collect.android.external.ExternalSQLiteOpenHelper;
 import org.odk.collect.android.external.handler.ExternalDataHandlerPull;
 import org.odk.collect.android.listeners.FormLoaderListener;
 import org.odk.collect.android.logic.FileReferenceFactory;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.SavepointJournal;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.FormDefCache;
 import org.odk.collect.android.utilities.ZipUtils;
+import org.odk.collect.android.widgets.ItemsetWidget;
 
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import au.com.bytecode.opencsv.CSVReader;
 import timber.log.Timber;
@@ -70,8 +86,27 @@ import timber.log.Timber;
 public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FECWrapper> {
     private static final String ITEMSETS_CSV = "itemsets.csv";
 
+    /**
+     * Number of loading stages that can run at the same time.
+     */
+    private static final int LOADING_STAGE_THREADS = 3;
+
+    /**
+     * Held while the session of the shared {@link ReferenceManager} is set up for a form and the
+     * form is read. The ReferenceManager isn't thread-safe and its session is global, so forms
+     * that are cached in the background must not be parsed while a form is being loaded.
+     */
+    static final Object REFERENCE_SESSION_LOCK = new Object();
+
+    /**
+     * Name of the form whose media the ReferenceManager session points to, if any.
+     */
+    private static String sessionFormFileName;
+
     private FormLoaderListener stateListener;
-    private String errorMsg;
+    private volatile String errorMsg;
+    private int replayedJournalEntries;
+    private Long checkpointTag;
     private String instancePath;
     private final String xpath;
     private final String waitingXPath;
@@ -118,47 +153,81 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
      */
     @Override
     protected FECWrapper doInBackground(String... path) {
+        synchronized (REFERENCE_SESSION_LOCK) {
+            return loadForm(path[0]);
+        }
+    }
+
+    private FECWrapper loadForm(String formPath) {
         errorMsg = null;
 
-        final String formPath = path[0];
         final File formXml = new File(formPath);
 
         // set paths to /sdcard/odk/forms/formfilename-media/
         final String formFileName = formXml.getName().substring(0, formXml.getName().lastIndexOf("."));
         final File formMediaDir = new File(formXml.getParent(), formFileName + "-media");
 
-        final ReferenceManager referenceManager = ReferenceManager.instance();
+        startReferenceSession(formFileName);
 
-        // Remove previous forms
-        referenceManager.clearSession();
+        // The media zips can hold the itemsets and the secondary instances that the stages
+        // below read, so they are unzipped before any of them starts
+        unzipMediaFiles(formMediaDir);
 
-        // This should get moved to the Application Class
-        if (referenceManager.getFactories().length == 0) {
-            // this is /sdcard/odk
-            referenceManager.addReferenceFactory(new FileReferenceFactory(Collect.ODK_ROOT));
+        final ExecutorService executor = Executors.newFixedThreadPool(LOADING_STAGE_THREADS);
+        try {
+            return loadFormInStages(executor, formPath, formXml, formMediaDir);
+        } finally {
+            // Interrupts the stages that are still running when loading failed or was cancelled
+            // so that they stop writing once the task has returned
+            executor.shutdownNow();
         }
+    }
 
-        addSessionRootTranslators(formFileName, referenceManager,
-                "images", "image", "audio", "video", "file");
-
-        final FormDef formDef = createFormDefFromCacheOrXml(formPath, formXml);
-
-        if (errorMsg != null || formDef == null) {
+    private FECWrapper loadFormInStages(ExecutorService executor, String formPath, File formXml,
+                                        File formMediaDir) {
+        // Reading the form, loading the external data and importing the itemsets don't depend
+        // on each other so they run side by side. Initializing the form has to wait for both
+        // the form and the external data because calculations may call pulldata().
+        final Future<FormDef> formDefStage = startStage(executor, "Reading form",
+                () -> createFormDefFromCacheOrXml(formPath, formXml));
+        final Future<Void> externalDataStage = startStage(executor, "Loading external data", () -> {
+            loadExternalData(formMediaDir);
+            indexSearchedColumns(formDefStage.get(), formMediaDir);
             return null;
-        }
+        });
+        final Future<Void> itemsetsStage = startStage(executor, "Importing itemsets", () -> {
+            processItemSets(formMediaDir);
+            indexItemsetQueries(formDefStage.get(), formMediaDir);
+            return null;
+        });
 
-        externalDataManager = new ExternalDataManagerImpl(formMediaDir);
+        final FormDef formDef;
+        try {
+            formDef = formDefStage.get();
+            if (errorMsg != null || formDef == null) {
+                return null;
+            }
 
-        // add external data function handlers
-        ExternalDataHandler externalDataHandlerPull = new ExternalDataHandlerPull(
-                externalDataManager);
-        formDef.getEvaluationContext().addFunctionHandler(externalDataHandlerPull);
+            externalDataManager = new ExternalDataManagerImpl(formMediaDir);
 
-        try {
-            loadExternalData(formMediaDir);
-        } catch (Exception e) {
-            Timber.e(e, "Exception thrown while loading external data");
-            errorMsg = e.getMessage();
+            // add external data function handlers
+            ExternalDataHandler externalDataHandlerPull = new ExternalDataHandlerPull(
+                    externalDataManager);
+            formDef.getEvaluationContext().addFunctionHandler(externalDataHandlerPull);
+
+            try {
+                externalDataStage.get();
+            } catch (ExecutionException e) {
+                Timber.e(e.getCause(), "Exception thrown while loading external data");
+                errorMsg = e.getCause().getMessage();
+                return null;
+            }
+        } catch (InterruptedException e) {
+            // the task was cancelled while waiting for one of the stages
+            return null;
+        } catch (ExecutionException e) {
+            Timber.e(e.getCause());
+            errorMsg = e.getCause().getMessage();
             return null;
         }
 
@@ -195,10 +264,22 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             }
         }
 
-        processItemSets(formMediaDir);
+        try {
+            itemsetsStage.get();
+        } catch (InterruptedException e) {
+            return null;
+        } catch (ExecutionException e) {
+            Timber.e(e.getCause(), "Exception thrown while importing itemsets");
+            errorMsg = e.getCause().getMessage();
+            return null;
+        }
 
         final FormController fc = new FormController(formMediaDir, fec, instancePath == null ? null
                 : new File(instancePath));
+        if (usedSavepoint && checkpointTag != null && replayedJournalEntries != -1) {
+            fc.getSavepointJournal().resume(replayedJournalEntries, checkpointTag,
+                    SavepointJournal.countRepeats(fc.getFormDef().getMainInstance()));
+        }
         if (xpath != null) {
             // we are resuming after having terminated -- set index to this
             // position...
@@ -213,7 +294,62 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         return data;
     }
 
-    private void addSessionRootTranslators(String formFileName, ReferenceManager referenceManager, String... hostStrings) {
+    /**
+     * Submits one loading stage to the executor, logging how long it took to run.
+     */
+    private <T> Future<T> startStage(ExecutorService executor, String stageName, Callable<T> stage) {
+        return executor.submit(() -> {
+            final long start = System.currentTimeMillis();
+            try {
+                return stage.call();
+            } finally {
+                Timber.i("%s took %.3f seconds.", stageName,
+                        (System.currentTimeMillis() - start) / 1000F);
+            }
+        });
+    }
+
+    /**
+     * Points the jr:// references of the shared {@link ReferenceManager} to the media of the
+     * given form. Must be called while holding {@link #REFERENCE_SESSION_LOCK}.
+     *
+     * @param formFileName the name of the form file, without its extension
+     */
+    static void startReferenceSession(String formFileName) {
+        final ReferenceManager referenceManager = ReferenceManager.instance();
+
+        // Remove previous forms
+        referenceManager.clearSession();
+
+        // This should get moved to the Application Class
+        if (referenceManager.getFactories().length == 0) {
+            // this is /sdcard/odk
+            referenceManager.addReferenceFactory(new FileReferenceFactory(Collect.ODK_ROOT));
+        }
+
+        addSessionRootTranslators(formFileName, referenceManager,
+                "images", "image", "audio", "video", "file");
+        sessionFormFileName = formFileName;
+    }
+
+    /**
+     * Removes the form media from the ReferenceManager session. Must be called while holding
+     * {@link #REFERENCE_SESSION_LOCK}.
+     */
+    static void clearReferenceSession() {
+        ReferenceManager.instance().clearSession();
+        sessionFormFileName = null;
+    }
+
+    /**
+     * @return the name of the form whose media the ReferenceManager session points to, or null.
+     * Must be called while holding {@link #REFERENCE_SESSION_LOCK}.
+     */
+    static String getReferenceSessionFormFileName() {
+        return sessionFormFileName;
+    }
+
+    private static void addSessionRootTranslators(String formFileName, ReferenceManager referenceManager, String... hostStrings) {
         // Set jr://... to point to /sdcard/odk/forms/filename-media/
         final String translatedPrefix = String.format("jr://file/forms/%s-media/", formFileName);
         for (String t : hostStrings) {
@@ -292,10 +428,125 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             ida.close();
             if (readFile) {
                 readCSV(csv, csvmd5, ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath()));
+                ItemsetWidget.clearCache();
+            }
+        }
+    }
+
+    /**
+     * Indexes the itemsets table for the queries of the form's itemset questions so that
+     * cascading selects don't have to build the indexes while the form is filled.
+     */
+    private void indexItemsetQueries(FormDef formDef, File formMediaDir) {
+        final File csv = new File(formMediaDir.getAbsolutePath() + "/" + ITEMSETS_CSV);
+        if (formDef == null || !csv.exists()) {
+            return;
+        }
+
+        Set<String> queries = new HashSet<>();
+        collectItemsetQueries(formDef.getChildren(), queries);
+        if (queries.isEmpty()) {
+            return;
+        }
+
+        final String pathHash = ItemsetDbAdapter.getMd5FromString(csv.getAbsolutePath());
+        final ItemsetDbAdapter ida = new ItemsetDbAdapter();
+        ida.open();
+        try {
+            if (!ida.tableExists(pathHash)) {
+                return;
+            }
+            for (String query : queries) {
+                if (isLoadingStopped()) {
+                    return;
+                }
+                try {
+                    ItemsetWidget.createIndex(ida, pathHash, query);
+                } catch (RuntimeException e) {
+                    // the widget reports malformed queries when it's shown
+                    Timber.w(e, "Cannot index itemset query %s", query);
+                }
             }
+        } finally {
+            ida.close();
         }
     }
 
+    private static void collectItemsetQueries(List<IFormElement> elements, Set<String> queries) {
+        if (elements == null) {
+            return;
+        }
+        for (IFormElement element : elements) {
+            if (element instanceof QuestionDef) {
+                // "query" is what marks an itemset question
+                String query = ((QuestionDef) element).getAdditionalAttribute(null, "query");
+                if (query != null) {
+                    queries.add(query);
+                }
+            }
+            collectItemsetQueries(element.getChildren(), queries);
+        }
+    }
+
+    /**
+     * Indexes the external data for the columns queried by the form's search() appearances so
+     * that searches don't have to build the index or scan the data while the form is filled.
+     */
+    private void indexSearchedColumns(FormDef formDef, File formMediaDir) {
+        if (formDef == null) {
+            return;
+        }
+
+        Map<String, Set<String>> searchedColumns = new HashMap<>();
+        collectSearchedColumns(formDef.getChildren(), searchedColumns);
+        for (Map.Entry<String, Set<String>> entry : searchedColumns.entrySet()) {
+            if (isLoadingStopped()) {
+                return;
+            }
+            File dbFile = new File(formMediaDir, entry.getKey() + ".db");
+            if (!dbFile.exists()) {
+                continue;
+            }
+            ExternalSQLiteOpenHelper helper = new ExternalSQLiteOpenHelper(dbFile);
+            try {
+                helper.createSearchIndex(entry.getValue(), this);
+            } finally {
+                helper.close();
+            }
+        }
+    }
+
+    private static void collectSearchedColumns(List<IFormElement> elements,
+                                               Map<String, Set<String>> searchedColumns) {
+        if (elements == null) {
+            return;
+        }
+        for (IFormElement element : elements) {
+            if (element instanceof QuestionDef) {
+                ExternalDataUtil.collectSearchedColumns(((QuestionDef) element).getAppearanceAttr(),
+                        searchedColumns);
+            }
+            collectSearchedColumns(element.getChildren(), searchedColumns);
+        }
+    }
+
+    /**
+     * Applies the answers saved since the savepoint was written. If the savepoint can't be
+     * identified or the journal can't be completely replayed, the journal isn't continued and
+     * the next savepoint is a new checkpoint.
+     */
+    private void replayJournal(FormDef formDef, File savepointFile) {
+        try {
+            checkpointTag = SavepointJournal.getCheckpointTag(savepointFile);
+        } catch (IOException e) {
+            Timber.e(e);
+            return;
+        }
+        replayedJournalEntries = SavepointJournal.replay(
+                SaveToDiskTask.getSavepointJournalFile(new File(instancePath).getName()),
+                formDef, checkpointTag);
+    }
+
     private boolean initializeForm(FormDef formDef, FormEntryController fec) {
         final InstanceInitializationFactory instanceInit = new InstanceInitializationFactory();
         boolean usedSavepoint = false;
@@ -320,6 +571,9 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                     publishProgress(Collect.getInstance().getString(R.string.survey_loading_reading_data_message));
                     importData(instanceXml, fec);
                     formDef.initialize(false, instanceInit);
+                    if (usedSavepoint) {
+                        replayJournal(formDef, savepointFile);
+                    }
                 } catch (RuntimeException e) {
                     Timber.e(e);
 
@@ -342,8 +596,7 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         return usedSavepoint;
     }
 
-    @SuppressWarnings("unchecked")
-    private void loadExternalData(File mediaFolder) {
+    private void unzipMediaFiles(File mediaFolder) {
         // SCTO-594
         File[] zipFiles = mediaFolder.listFiles(new FileFilter() {
             @Override
@@ -361,7 +614,10 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
                 }
             }
         }
+    }
 
+    @SuppressWarnings("unchecked")
+    private void loadExternalData(File mediaFolder) {
         File[] csvFiles = mediaFolder.listFiles(new FileFilter() {
             @Override
             public boolean accept(File file) {
@@ -392,6 +648,14 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         }
     }
 
+    /**
+     * @return true if the loading stage that calls this should stop, either because the task
+     * was cancelled or because loading failed in another stage
+     */
+    public boolean isLoadingStopped() {
+        return isCancelled() || Thread.currentThread().isInterrupted();
+    }
+
     public void publishExternalDataLoadingProgress(String message) {
         publishProgress(message);
     }
@@ -525,14 +789,19 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
         ItemsetDbAdapter ida = new ItemsetDbAdapter();
         ida.open();
         boolean withinTransaction = false;
+        boolean stopped = false;
+        String[] columnHeaders = null;
 
         try {
             reader = new CSVReader(new FileReader(csv));
 
             String[] nextLine;
-            String[] columnHeaders = null;
             int lineNumber = 0;
             while ((nextLine = reader.readNext()) != null) {
+                if (isLoadingStopped()) {
+                    stopped = true;
+                    break;
+                }
                 lineNumber++;
                 if (lineNumber == 1) {
                     // first line of csv is column headers
@@ -558,6 +827,13 @@ public class FormLoaderTask extends AsyncTask<String, String, FormLoaderTask.FEC
             if (withinTransaction) {
                 ida.commit();
             }
+            if (stopped) {
+                // drop the partial import so that it's read again the next time the form is loaded
+                ida.dropTable(pathHash, csv.getAbsolutePath());
+            } else if (columnHeaders != null && Arrays.asList(columnHeaders).contains("list_name")) {
+                // every itemset query selects by list name
+                ida.createIndex(pathHash, Collections.singletonList("list_name"));
+            }
             ida.close();
         }
     }
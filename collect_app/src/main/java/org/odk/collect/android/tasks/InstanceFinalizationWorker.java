@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import android.app.PendingIntent;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Environment;
+import android.support.annotation.NonNull;
+
+import org.odk.collect.android.R;
+import org.odk.collect.android.activities.NotificationActivity;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.dao.InstancesDao;
+import org.odk.collect.android.exception.EncryptionException;
+import org.odk.collect.android.logic.FormController.InstanceMetadata;
+import org.odk.collect.android.preferences.GeneralSharedPreferences;
+import org.odk.collect.android.provider.InstanceProviderAPI;
+import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.odk.collect.android.upload.AutoSendWorker;
+import org.odk.collect.android.utilities.EncryptionUtils;
+import org.odk.collect.android.utilities.EncryptionUtils.EncryptedFormInformation;
+import org.odk.collect.android.utilities.NotificationUtils;
+
+import java.io.File;
+import java.io.IOException;
+
+import androidx.work.Data;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+import timber.log.Timber;
+
+import static org.odk.collect.android.utilities.ApplicationConstants.RequestCodes.FINALIZATION_FAILED_NOTIFICATION;
+
+/**
+ * Packages an encrypted instance for submission after {@link SaveToDiskTask} has written its
+ * instance and submission files: encrypts the submission and its attachments, writes the
+ * manifest in place of the instance and deletes the plaintext files.
+ *
+ * The instance has the {@link InstanceProviderAPI#STATUS_FINALIZING} status until it is
+ * packaged, which keeps it out of the lists of instances to send. If packaging fails, the
+ * instance is made incomplete and editable again like when encryption fails while saving.
+ */
+public class InstanceFinalizationWorker extends Worker {
+
+    private static final String KEY_INSTANCE_PATH = "instancePath";
+    private static final String KEY_INSTANCE_ID = "instanceId";
+
+    private static final int FINALIZATION_FAILED_NOTIFICATION_ID = 1328974929;
+
+    public InstanceFinalizationWorker(@NonNull Context c, @NonNull WorkerParameters parameters) {
+        super(c, parameters);
+    }
+
+    /**
+     * Requests that the instance at the given path be packaged in the background. Instances are
+     * packaged one at a time in the order they were finalized.
+     *
+     * @param instanceId the instanceID of the submission, which the encryption depends on
+     */
+    public static void enqueue(String instancePath, String instanceId) {
+        Data inputData = new Data.Builder()
+                .putString(KEY_INSTANCE_PATH, instancePath)
+                .putString(KEY_INSTANCE_ID, instanceId)
+                .build();
+        OneTimeWorkRequest finalizationWork =
+                new OneTimeWorkRequest.Builder(InstanceFinalizationWorker.class)
+                        .addTag(InstanceFinalizationWorker.class.getName())
+                        .setInputData(inputData)
+                        .build();
+        WorkManager.getInstance().beginUniqueWork(InstanceFinalizationWorker.class.getName(),
+                ExistingWorkPolicy.APPEND, finalizationWork).enqueue();
+    }
+
+    /**
+     * Never fails, because a failure would also fail the instances queued behind this one. An
+     * instance that can't be packaged is returned to the user instead.
+     */
+    @NonNull
+    @Override
+    public Result doWork() {
+        if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+            return Result.RETRY;
+        }
+
+        String instancePath = getInputData().getString(KEY_INSTANCE_PATH);
+        String instanceId = getInputData().getString(KEY_INSTANCE_ID);
+        if (instancePath == null) {
+            return Result.SUCCESS;
+        }
+
+        Uri instanceUri = null;
+        String jrFormId = null;
+        String displayName = null;
+        try (Cursor cursor = new InstancesDao().getInstancesCursorForFilePath(instancePath)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                String status = cursor.getString(cursor.getColumnIndex(InstanceColumns.STATUS));
+                if (InstanceProviderAPI.STATUS_FINALIZING.equals(status)) {
+                    instanceUri = ContentUris.withAppendedId(InstanceColumns.CONTENT_URI,
+                            cursor.getLong(cursor.getColumnIndex(InstanceColumns._ID)));
+                    jrFormId = cursor.getString(cursor.getColumnIndex(InstanceColumns.JR_FORM_ID));
+                    displayName = cursor.getString(cursor.getColumnIndex(InstanceColumns.DISPLAY_NAME));
+                }
+            }
+        }
+
+        if (instanceUri == null) {
+            // the instance has been deleted or packaged already
+            return Result.SUCCESS;
+        }
+
+        final long start = System.currentTimeMillis();
+        File instanceXml = new File(instancePath);
+        File submissionXml = new File(instanceXml.getParentFile(), "submission.xml");
+        // the manifest has replaced the instance if the work was stopped while cleaning up
+        boolean manifestInPlace = EncryptionUtils.isEncryptedSubmissionManifest(instanceXml);
+        try {
+            // the manifest has been written if the work was stopped right after encrypting
+            if (!manifestInPlace
+                    && (!submissionXml.exists() || !EncryptionUtils.isEncryptedSubmissionManifest(submissionXml))) {
+                EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(
+                        instanceUri, new InstanceMetadata(instanceId, displayName, null));
+                if (formInfo == null) {
+                    throw new EncryptionException("The form no longer has an encryption key.", null);
+                }
+                EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
+            }
+        } catch (IOException | EncryptionException e) {
+            Timber.e(e, "Unable to package %s", instancePath);
+            updateStatus(instanceUri, InstanceProviderAPI.STATUS_INCOMPLETE, true);
+            showFailureNotification(displayName, e.getMessage());
+            return Result.SUCCESS;
+        }
+
+        if (!manifestInPlace) {
+            try {
+                SaveToDiskTask.manageFilesAfterSavingEncryptedForm(instanceXml, submissionXml);
+            } catch (IOException e) {
+                Timber.e(e);
+            }
+        }
+
+        if (!EncryptionUtils.deletePlaintextFiles(instanceXml)) {
+            Timber.e("Error deleting plaintext files for %s", instanceXml.getAbsolutePath());
+        }
+
+        // only once the plaintext files are gone, so that they can't be sent along with the
+        // submission if the work is stopped before. The instance can't be reopened from here
+        // on, as when it is packaged while saving.
+        updateStatus(instanceUri, InstanceProviderAPI.STATUS_COMPLETE, false);
+
+        Timber.i("Packaged %s in %.3f seconds.", instanceXml.getName(),
+                (System.currentTimeMillis() - start) / 1000F);
+
+        // the instance wasn't ready when the form was saved so it couldn't be sent then
+        if (AutoSendWorker.formShouldBeAutoSent(jrFormId, GeneralSharedPreferences.isAutoSendEnabled())) {
+            AutoSendWorker.requestAutoSendAfterRunningSend();
+        }
+        return Result.SUCCESS;
+    }
+
+    private void updateStatus(Uri instanceUri, String status, boolean canEditWhenComplete) {
+        ContentValues values = new ContentValues();
+        values.put(InstanceColumns.STATUS, status);
+        values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(canEditWhenComplete));
+        Collect.getInstance().getContentResolver().update(instanceUri, values, null, null);
+    }
+
+    private void showFailureNotification(String displayName, String errorMessage) {
+        String message = displayName + ": "
+                + Collect.getInstance().getString(R.string.encryption_error_message, errorMessage);
+
+        Intent notifyIntent = new Intent(Collect.getInstance(), NotificationActivity.class);
+        notifyIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+        notifyIntent.putExtra(NotificationActivity.NOTIFICATION_TITLE,
+                Collect.getInstance().getString(R.string.finalization_failed));
+        notifyIntent.putExtra(NotificationActivity.NOTIFICATION_MESSAGE, message);
+
+        PendingIntent pendingNotify = PendingIntent.getActivity(Collect.getInstance(),
+                FINALIZATION_FAILED_NOTIFICATION, notifyIntent, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        NotificationUtils.showNotification(pendingNotify, FINALIZATION_FAILED_NOTIFICATION_ID,
+                R.string.finalization_failed, message);
+    }
+}
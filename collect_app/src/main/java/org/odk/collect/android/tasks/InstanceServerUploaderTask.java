@@ -22,11 +22,12 @@ import org.odk.collect.android.dto.Instance;
 import org.odk.collect.android.http.OpenRosaHttpInterface;
 import org.odk.collect.android.logic.PropertyManager;
 import org.odk.collect.android.upload.InstanceServerUploader;
+import org.odk.collect.android.upload.InstanceUploadScheduler;
+import org.odk.collect.android.upload.ServerCapabilityCache;
 import org.odk.collect.android.upload.UploadAuthRequestedException;
 import org.odk.collect.android.upload.UploadException;
 import org.odk.collect.android.utilities.WebCredentialsUtils;
 
-import java.util.HashMap;
 import java.util.List;
 
 import javax.inject.Inject;
@@ -55,44 +56,58 @@ public class InstanceServerUploaderTask extends InstanceUploaderTask {
 
     @Override
     protected Outcome doInBackground(Long... instanceIdsToUpload) {
-        Outcome outcome = new Outcome();
+        final Outcome outcome = new Outcome();
 
-        InstanceServerUploader uploader = new InstanceServerUploader(httpInterface, webCredentialsUtils, new HashMap<>());
+        InstanceServerUploader uploader = new InstanceServerUploader(httpInterface, webCredentialsUtils,
+                new ServerCapabilityCache(Collect.getInstance()));
         List<Instance> instancesToUpload = uploader.getInstancesFromIds(instanceIdsToUpload);
 
         String deviceId = new PropertyManager(Collect.getInstance().getApplicationContext())
                     .getSingularProperty(PropertyManager.withUri(PropertyManager.PROPMGR_DEVICE_ID));
 
-        for (int i = 0; i < instancesToUpload.size(); i++) {
-            if (isCancelled()) {
-                return outcome;
-            }
-            Instance instance = instancesToUpload.get(i);
-
-            publishProgress(i + 1, instancesToUpload.size());
-
-            try {
-                String destinationUrl = uploader.getUrlToSubmitTo(instance, deviceId, completeDestinationUrl);
-                String customMessage = uploader.uploadOneSubmission(instance, destinationUrl);
-                outcome.messagesByInstanceId.put(instance.getDatabaseId().toString(),
-                        customMessage != null ? customMessage : Collect.getInstance().getString(R.string.success));
-                Collect.getInstance()
-                        .getDefaultTracker()
-                        .send(new HitBuilders.EventBuilder()
-                                .setCategory("Submission")
-                                .setAction("HTTP")
-                                .build());
-            } catch (UploadAuthRequestedException e) {
-                outcome.authRequestingServer = e.getAuthRequestingServer();
-                // Don't add the instance that caused an auth request to the map because we want to
-                // retry. Items present in the map are considered already attempted and won't be
-                // retried.
-            } catch (UploadException e) {
-                outcome.messagesByInstanceId.put(instance.getDatabaseId().toString(),
-                        e.getDisplayMessage());
-            }
+        if (!instancesToUpload.isEmpty()) {
+            publishProgress(1, instancesToUpload.size());
         }
-        
+
+        new InstanceUploadScheduler(uploader, InstanceUploadScheduler.DEFAULT_UPLOADS_PER_HOST)
+                .upload(instancesToUpload, deviceId, completeDestinationUrl, new InstanceUploadScheduler.Listener() {
+                    @Override
+                    public void uploadSucceeded(Instance instance, String customMessage) {
+                        outcome.messagesByInstanceId.put(instance.getDatabaseId().toString(),
+                                customMessage != null ? customMessage : Collect.getInstance().getString(R.string.success));
+                        Collect.getInstance()
+                                .getDefaultTracker()
+                                .send(new HitBuilders.EventBuilder()
+                                        .setCategory("Submission")
+                                        .setAction("HTTP")
+                                        .build());
+                    }
+
+                    @Override
+                    public void uploadFailed(Instance instance, UploadException e) {
+                        if (e instanceof UploadAuthRequestedException) {
+                            outcome.authRequestingServer = ((UploadAuthRequestedException) e).getAuthRequestingServer();
+                            // Don't add the instance that caused an auth request to the map because we want to
+                            // retry. Items present in the map are considered already attempted and won't be
+                            // retried.
+                        } else {
+                            outcome.messagesByInstanceId.put(instance.getDatabaseId().toString(),
+                                    e.getDisplayMessage());
+                        }
+                    }
+
+                    @Override
+                    public void progressUpdate(int finished, int total) {
+                        // the number of the form being sent rather than the number already sent
+                        publishProgress(Math.min(finished + 1, total), total);
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return InstanceServerUploaderTask.this.isCancelled();
+                    }
+                });
+
         return outcome;
     }
 
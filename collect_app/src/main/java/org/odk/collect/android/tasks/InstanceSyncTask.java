@@ -14,14 +14,18 @@
 
 package org.odk.collect.android.tasks;
 
+import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.preference.PreferenceManager;
 import android.provider.BaseColumns;
+import android.support.annotation.Nullable;
 
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.kxml2.io.KXmlParser;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
@@ -36,13 +40,19 @@ import org.odk.collect.android.utilities.EncryptionUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
 import org.xml.sax.SAXException;
+import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -77,7 +87,8 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
         Timber.i("[%d] doInBackground begins!", instance);
 
         try {
-            List<String> candidateInstances = new LinkedList<String>();
+            // kept in a set since each instance in the provider is looked up among them
+            Set<String> candidateInstances = new HashSet<>();
             File instancesPath = new File(Collect.INSTANCES_PATH);
             if (instancesPath.exists() && instancesPath.isDirectory()) {
                 File[] instanceFolders = instancesPath.listFiles();
@@ -103,7 +114,6 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
                         Timber.i("[%d] Ignoring: %s", instance, instanceDir.getAbsolutePath());
                     }
                 }
-                Collections.sort(candidateInstances);
 
                 List<String> filesToRemove = new ArrayList<>();
 
@@ -125,9 +135,7 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
                                 instanceCursor.getColumnIndex(InstanceColumns.INSTANCE_FILE_PATH));
                         String instanceStatus = instanceCursor.getString(
                                 instanceCursor.getColumnIndex(InstanceColumns.STATUS));
-                        if (candidateInstances.contains(instanceFilename) || instanceStatus.equals(InstanceProviderAPI.STATUS_SUBMITTED)) {
-                            candidateInstances.remove(instanceFilename);
-                        } else {
+                        if (!candidateInstances.remove(instanceFilename) && !instanceStatus.equals(InstanceProviderAPI.STATUS_SUBMITTED)) {
                             filesToRemove.add(instanceFilename);
                         }
                     }
@@ -144,55 +152,64 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
                         Collect.getInstance().getApplicationContext()).getBoolean(
                         GeneralKeys.KEY_INSTANCE_SYNC, true);
 
+                List<String> newInstances = new ArrayList<>(candidateInstances);
+                Collections.sort(newInstances);
+
+                // Forms are looked up once per form id, including the ones that aren't
+                // installed, since most instances on a device come from a few forms.
+                Map<String, FormInfo> formsById = new HashMap<>();
+                ProviderOperationBatch inserts = new ProviderOperationBatch(InstanceProviderAPI.AUTHORITY);
                 int counter = 0;
                 // Begin parsing and add them to the content provider
-                for (String candidateInstance : candidateInstances) {
+                for (String candidateInstance : newInstances) {
                     String instanceFormId = getFormIdFromInstance(candidateInstance);
                     // only process if we can find the id from the instance file
-                    if (instanceFormId != null) {
-                        Cursor formCursor = null;
-                        try {
-                            String selection = FormsColumns.JR_FORM_ID + " = ? ";
-                            String[] selectionArgs = new String[]{instanceFormId};
-                            // retrieve the form definition
-                            formCursor = new FormsDao().getFormsCursor(selection, selectionArgs);
-                            // TODO: optimize this by caching the previously found form definition
-                            // TODO: optimize this by caching unavailable form definition to skip
-                            if (formCursor != null && formCursor.moveToFirst()) {
-                                String submissionUri = null;
-                                if (!formCursor.isNull(formCursor.getColumnIndex(FormsColumns.SUBMISSION_URI))) {
-                                    submissionUri = formCursor.getString(formCursor.getColumnIndex(FormsColumns.SUBMISSION_URI));
-                                }
-                                String jrFormId = formCursor.getString(formCursor.getColumnIndex(FormsColumns.JR_FORM_ID));
-                                String jrVersion = formCursor.getString(formCursor.getColumnIndex(FormsColumns.JR_VERSION));
-                                String formName = formCursor.getString(formCursor.getColumnIndex(FormsColumns.DISPLAY_NAME));
-
-                                // add missing fields into content values
-                                ContentValues values = new ContentValues();
-                                values.put(InstanceColumns.INSTANCE_FILE_PATH, candidateInstance);
-                                values.put(InstanceColumns.SUBMISSION_URI, submissionUri);
-                                values.put(InstanceColumns.DISPLAY_NAME, formName);
-                                values.put(InstanceColumns.JR_FORM_ID, jrFormId);
-                                values.put(InstanceColumns.JR_VERSION, jrVersion);
-                                values.put(InstanceColumns.STATUS, instanceSyncFlag
-                                        ? InstanceProviderAPI.STATUS_COMPLETE : InstanceProviderAPI.STATUS_INCOMPLETE);
-                                values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(true));
-                                // save the new instance object
-
-                                instancesDao.saveInstance(values);
-                                counter++;
-
-                                encryptInstanceIfNeeded(formCursor, candidateInstance, values, instancesDao);
-                            }
-                        } catch (IOException | EncryptionException e) {
-                            Timber.w(e);
-                        } finally {
-                            if (formCursor != null) {
-                                formCursor.close();
-                            }
-                        }
+                    if (instanceFormId == null) {
+                        continue;
+                    }
+
+                    FormInfo form;
+                    if (formsById.containsKey(instanceFormId)) {
+                        form = formsById.get(instanceFormId);
+                    } else {
+                        form = getForm(instanceFormId);
+                        formsById.put(instanceFormId, form);
+                    }
+                    if (form == null) {
+                        continue;
+                    }
+
+                    // add missing fields into content values
+                    ContentValues values = new ContentValues();
+                    values.put(InstanceColumns.INSTANCE_FILE_PATH, candidateInstance);
+                    values.put(InstanceColumns.SUBMISSION_URI, form.submissionUri);
+                    values.put(InstanceColumns.DISPLAY_NAME, form.displayName);
+                    values.put(InstanceColumns.JR_FORM_ID, form.jrFormId);
+                    values.put(InstanceColumns.JR_VERSION, form.jrVersion);
+                    values.put(InstanceColumns.STATUS, instanceSyncFlag
+                            ? InstanceProviderAPI.STATUS_COMPLETE : InstanceProviderAPI.STATUS_INCOMPLETE);
+                    values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(true));
+
+                    if (!form.isEncrypted()) {
+                        // save the new instance object with the others
+                        inserts.add(ContentProviderOperation.newInsert(InstanceColumns.CONTENT_URI)
+                                .withValues(values).build());
+                        continue;
+                    }
+
+                    // the instance has to be saved before it can be encrypted
+                    try {
+                        instancesDao.saveInstance(values);
+                        counter++;
+
+                        encryptInstanceIfNeeded(candidateInstance, values, instancesDao);
+                    } catch (IOException | EncryptionException e) {
+                        Timber.w(e);
                     }
                 }
+                inserts.flush();
+                counter += inserts.getAppliedCount();
+
                 if (counter > 0) {
                     currentStatus += String.format(
                             Collect.getInstance().getString(R.string.instance_scan_count),
@@ -205,18 +222,50 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
         return currentStatus;
     }
 
+    /**
+     * Returns the id of the form the instance was filled from, reading no more than its root
+     * element.
+     */
+    @Nullable
     private String getFormIdFromInstance(final String instancePath) {
-        String instanceFormId = null;
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        InputStream is = null;
         try {
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            Document document = builder.parse(new File(instancePath));
-            Element element = document.getDocumentElement();
-            instanceFormId = element.getAttribute("id");
-        } catch (IOException | ParserConfigurationException | SAXException e) {
+            is = new FileInputStream(instancePath);
+            KXmlParser parser = new KXmlParser();
+            parser.setInput(is, null);
+            parser.nextTag();
+            return parser.getAttributeValue(null, "id");
+        } catch (IOException | XmlPullParserException e) {
             Timber.w("Unable to read form id from %s", instancePath);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
+    /**
+     * Returns what instances need from the form with the given id, or null if it isn't installed.
+     */
+    @Nullable
+    private FormInfo getForm(String formId) {
+        String selection = FormsColumns.JR_FORM_ID + " = ? ";
+        String[] selectionArgs = new String[]{formId};
+        // retrieve the form definition
+        try (Cursor formCursor = new FormsDao().getFormsCursor(selection, selectionArgs)) {
+            if (formCursor == null || !formCursor.moveToFirst()) {
+                return null;
+            }
+
+            String submissionUri = null;
+            if (!formCursor.isNull(formCursor.getColumnIndex(FormsColumns.SUBMISSION_URI))) {
+                submissionUri = formCursor.getString(formCursor.getColumnIndex(FormsColumns.SUBMISSION_URI));
+            }
+            return new FormInfo(submissionUri,
+                    formCursor.getString(formCursor.getColumnIndex(FormsColumns.JR_FORM_ID)),
+                    formCursor.getString(formCursor.getColumnIndex(FormsColumns.JR_VERSION)),
+                    formCursor.getString(formCursor.getColumnIndex(FormsColumns.DISPLAY_NAME)),
+                    formCursor.getString(formCursor.getColumnIndex(FormsColumns.BASE64_RSA_PUBLIC_KEY)));
         }
-        return instanceFormId;
     }
 
     private String getInstanceIdFromInstance(final String instancePath) {
@@ -233,13 +282,12 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
         return instanceId;
     }
 
-    private void encryptInstanceIfNeeded(Cursor formCursor, String candidateInstance,
-                                         ContentValues values, InstancesDao instancesDao)
+    private void encryptInstanceIfNeeded(String candidateInstance, ContentValues values,
+                                         InstancesDao instancesDao)
             throws EncryptionException, IOException {
 
-        Cursor instanceCursor = new InstancesDao().getInstancesCursorForFilePath(candidateInstance);
-        if (instanceCursor != null && instanceCursor.moveToFirst()) {
-            if (shouldInstanceBeEncrypted(formCursor)) {
+        try (Cursor instanceCursor = new InstancesDao().getInstancesCursorForFilePath(candidateInstance)) {
+            if (instanceCursor != null && instanceCursor.moveToFirst()) {
                 encryptInstance(instanceCursor, candidateInstance, values, instancesDao);
             }
         }
@@ -272,11 +320,6 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
         }
     }
 
-    private boolean shouldInstanceBeEncrypted(Cursor formCursor) {
-        String base64RSAPublicKey = formCursor.getString(formCursor.getColumnIndex(FormsColumns.BASE64_RSA_PUBLIC_KEY));
-        return base64RSAPublicKey != null && !base64RSAPublicKey.isEmpty();
-    }
-
     @Override
     protected void onPostExecute(String result) {
         super.onPostExecute(result);
@@ -284,4 +327,28 @@ public class InstanceSyncTask extends AsyncTask<Void, String, String> {
             diskSyncListener.syncComplete(result);
         }
     }
+
+    /**
+     * The columns of a form that instances of it are saved with.
+     */
+    private static class FormInfo {
+        final String submissionUri;
+        final String jrFormId;
+        final String jrVersion;
+        final String displayName;
+        final String base64RsaPublicKey;
+
+        FormInfo(String submissionUri, String jrFormId, String jrVersion, String displayName,
+                 String base64RsaPublicKey) {
+            this.submissionUri = submissionUri;
+            this.jrFormId = jrFormId;
+            this.jrVersion = jrVersion;
+            this.displayName = displayName;
+            this.base64RsaPublicKey = base64RsaPublicKey;
+        }
+
+        boolean isEncrypted() {
+            return base64RsaPublicKey != null && !base64RsaPublicKey.isEmpty();
+        }
+    }
 }
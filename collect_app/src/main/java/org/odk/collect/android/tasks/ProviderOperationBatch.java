@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.tasks;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.OperationApplicationException;
+import android.database.SQLException;
+import android.os.RemoteException;
+
+import org.odk.collect.android.application.Collect;
+
+import java.util.ArrayList;
+
+import timber.log.Timber;
+
+/**
+ * Collects the writes of a disk scan so that they reach a content provider a batch at a time
+ * instead of one by one. The providers apply each batch in a single transaction and notify
+ * their observers once for it.
+ *
+ * If a batch fails, its operations are applied again one at a time so that a single failure,
+ * such as a form another scanner has just added, doesn't lose the others. The operations must
+ * therefore be safe to apply twice.
+ */
+class ProviderOperationBatch {
+
+    /**
+     * Number of operations written together, which keeps what a scan has found reaching the
+     * lists regularly while it goes through a large folder.
+     */
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final String authority;
+    private final ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+    private int appliedCount;
+
+    ProviderOperationBatch(String authority) {
+        this.authority = authority;
+    }
+
+    void add(ContentProviderOperation operation) {
+        operations.add(operation);
+        if (operations.size() >= MAX_BATCH_SIZE) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the operations added since the last flush.
+     */
+    void flush() {
+        if (operations.isEmpty()) {
+            return;
+        }
+
+        try {
+            ContentProviderResult[] results = Collect.getInstance().getContentResolver()
+                    .applyBatch(authority, operations);
+            appliedCount += results.length;
+        } catch (RemoteException | OperationApplicationException | SQLException | IllegalArgumentException e) {
+            Timber.i("Batch of %d operations failed, applying them one at a time: %s",
+                    operations.size(), e.toString());
+            for (ContentProviderOperation operation : operations) {
+                applyOne(operation);
+            }
+        }
+        operations.clear();
+    }
+
+    /**
+     * @return the number of operations written so far
+     */
+    int getAppliedCount() {
+        return appliedCount;
+    }
+
+    private void applyOne(ContentProviderOperation operation) {
+        ArrayList<ContentProviderOperation> single = new ArrayList<>();
+        single.add(operation);
+        try {
+            Collect.getInstance().getContentResolver().applyBatch(authority, single);
+            appliedCount++;
+        } catch (RemoteException | OperationApplicationException | SQLException | IllegalArgumentException e) {
+            // insert failures are OK and expected if multiple DiskSync scanners are active.
+            Timber.i(e.toString());
+        }
+    }
+}
@@ -20,12 +20,17 @@ package org.odk.collect.android.tasks;
 
 import android.os.AsyncTask;
 
+import org.javarosa.core.model.instance.FormInstance;
+import org.javarosa.core.model.instance.TreeReference;
 import org.javarosa.core.services.transport.payload.ByteArrayPayload;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.listeners.SavePointListener;
 import org.odk.collect.android.logic.FormController;
+import org.odk.collect.android.logic.SavepointJournal;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.List;
 
 import timber.log.Timber;
 
@@ -57,24 +62,56 @@ public class SavePointTask extends AsyncTask<Void, Void, String> {
 
             long start = System.currentTimeMillis();
 
+            SavepointJournal journal = null;
             try {
                 FormController formController = Collect.getInstance().getFormController();
-                File temp = SaveToDiskTask.getSavepointFile(formController.getInstanceFile().getName());
+                journal = formController.getSavepointJournal();
+                String instanceName = formController.getInstanceFile().getName();
+                File temp = SaveToDiskTask.getSavepointFile(instanceName);
+                File journalFile = SaveToDiskTask.getSavepointJournalFile(instanceName);
+
+                // only append the answers that changed since the last savepoint when possible
+                FormInstance instance = formController.getFormDef().getMainInstance();
+                int repeatCount = SavepointJournal.countRepeats(instance);
+                List<TreeReference> changedAnswers = journal.takeChangedAnswers(temp.exists(), repeatCount);
+                if (changedAnswers != null) {
+                    if (changedAnswers.isEmpty() || SavepointJournal.append(journalFile, journal.getCheckpointTag(),
+                            instance, changedAnswers)) {
+                        Timber.i("Savepoint ms: %s, journaled %d answers to %s",
+                                Long.toString(System.currentTimeMillis() - start), changedAnswers.size(),
+                                journalFile.toString());
+                        return null;
+                    }
+                }
+
+                journal.checkpointStarted(repeatCount);
                 ByteArrayPayload payload = formController.getFilledInFormXml();
 
                 if (priority < lastPriorityUsed) {
                     Timber.w("Savepoint thread (p=%d) was cancelled (b) because another one is waiting (p=%d)", priority, lastPriorityUsed);
+                    journal.savepointFailed();
                     return null;
                 }
 
                 // write out xml
+                long checkpointTag = SavepointJournal.getCheckpointTag(payload.getPayloadStream());
                 SaveToDiskTask.writeFile(payload, temp.getAbsolutePath());
+                journal.checkpointWritten(checkpointTag);
+
+                // the journal belongs to the previous checkpoint so it's only deleted once the new
+                // one is in place. If the app dies before, its batches are skipped by their tag.
+                if (journalFile.exists() && !journalFile.delete()) {
+                    throw new IOException("Cannot delete " + journalFile);
+                }
 
                 long end = System.currentTimeMillis();
                 Timber.i("Savepoint ms: %s to %s", Long.toString(end - start), temp.toString());
 
                 return null;
             } catch (Exception e) {
+                if (journal != null) {
+                    journal.savepointFailed();
+                }
                 String msg = e.getMessage();
                 Timber.e(e);
                 return msg;
@@ -36,9 +36,9 @@ import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.MediaManager;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 
 import timber.log.Timber;
 
@@ -65,6 +65,14 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
     public static final int SAVED_AND_EXIT = 504;
     public static final int ENCRYPTION_ERROR = 505;
 
+    /**
+     * Temporary files start with a dot so that a file left behind by a crash is skipped, like
+     * every hidden file, when the instance is encrypted or uploaded.
+     */
+    private static final String TEMP_FILE_PREFIX = ".";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+
     public SaveToDiskTask(Uri uri, boolean saveAndExit, boolean markCompleted, String updatedName) {
         this.uri = uri;
         save = saveAndExit;
@@ -144,6 +152,14 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
     }
 
     private void updateInstanceDatabase(boolean incomplete, boolean canEditAfterCompleted) {
+        if (incomplete || !markCompleted) {
+            updateInstanceDatabase(InstanceProviderAPI.STATUS_INCOMPLETE, canEditAfterCompleted);
+        } else {
+            updateInstanceDatabase(InstanceProviderAPI.STATUS_COMPLETE, canEditAfterCompleted);
+        }
+    }
+
+    private void updateInstanceDatabase(String status, boolean canEditAfterCompleted) {
 
         FormController formController = Collect.getInstance().getFormController();
 
@@ -152,11 +168,7 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         if (instanceName != null) {
             values.put(InstanceColumns.DISPLAY_NAME, instanceName);
         }
-        if (incomplete || !markCompleted) {
-            values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_INCOMPLETE);
-        } else {
-            values.put(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_COMPLETE);
-        }
+        values.put(InstanceColumns.STATUS, status);
         // update this whether or not the status is complete...
         values.put(InstanceColumns.CAN_EDIT_WHEN_COMPLETE, Boolean.toString(canEditAfterCompleted));
 
@@ -235,6 +247,14 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
         return new File(tempDir, instanceName + ".save");
     }
 
+    /**
+     * Return the journal of answers saved since the savepoint file of a given instance.
+     */
+    static File getSavepointJournalFile(String instanceName) {
+        File tempDir = new File(Collect.CACHE_PATH);
+        return new File(tempDir, instanceName + ".journal");
+    }
+
     /**
      * Return the formIndex file for a given instance.
      */
@@ -245,8 +265,10 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
     public static void removeSavepointFiles(String instanceName) {
         File savepointFile = getSavepointFile(instanceName);
+        File journalFile = getSavepointJournalFile(instanceName);
         File formIndexFile = getFormIndexFile(instanceName);
         FileUtils.deleteAndReport(savepointFile);
+        FileUtils.deleteAndReport(journalFile);
         FileUtils.deleteAndReport(formIndexFile);
     }
 
@@ -284,10 +306,9 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
             // now see if the packaging of the data for the server would make it
             // non-reopenable (e.g., encryption or send an SMS or other fraction of the form).
             boolean canEditAfterCompleted = formController.isSubmissionEntireForm();
-            boolean isEncrypted = false;
 
             // build a submission.xml to hold the data being submitted
-            // and (if appropriate) encrypt the files on the side
+            // and (if appropriate) have the files encrypted in the background
 
             // pay attention to the ref attribute of the submission profile...
             File instanceXml = formController.getInstanceFile();
@@ -302,31 +323,28 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
 
             writeFile(payload, submissionXml.getAbsolutePath());
 
-            // see if the form is encrypted and we can encrypt it...
+            // see if the form is encrypted and we can encrypt it so that a missing key or
+            // instanceID is reported while the user can still fix it...
             EncryptedFormInformation formInfo = EncryptionUtils.getEncryptedFormInformation(uri,
                     formController.getSubmissionMetadata());
             if (formInfo != null) {
-                // if we are encrypting, the form cannot be reopened afterward
-                canEditAfterCompleted = false;
-                // and encrypt the submission (this is a one-way operation)...
-
-                publishProgress(
-                        Collect.getInstance().getString(R.string.survey_saving_encrypting_message));
-
-                EncryptionUtils.generateEncryptedSubmission(instanceXml, submissionXml, formInfo);
-                isEncrypted = true;
+                // encrypting the submission and its attachments can take a long time so it's left
+                // to InstanceFinalizationWorker. Until it's done the instance can neither be
+                // reopened nor sent.
+                updateInstanceDatabase(InstanceProviderAPI.STATUS_FINALIZING, false);
+                InstanceFinalizationWorker.enqueue(instanceXml.getAbsolutePath(),
+                        formController.getSubmissionMetadata().instanceId);
+                return;
             }
 
             // At this point, we have:
             // 1. the saved original instanceXml,
-            // 2. all the plaintext attachments
-            // 2. the submission.xml that is the completed xml (whether encrypting or not)
-            // 3. all the encrypted attachments if encrypting (isEncrypted = true).
+            // 2. the submission.xml that is the completed xml
             //
             // NEXT:
             // 1. Update the instance database (with status complete).
-            // 2. Overwrite the instanceXml with the submission.xml
-            //    and remove the plaintext attachments if encrypting
+            // 2. Overwrite the instanceXml with the submission.xml if only part of the form
+            //    is submitted
 
             updateInstanceDatabase(false, canEditAfterCompleted);
 
@@ -342,14 +360,6 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
                     Timber.w(msg);
                 }
             }
-
-            // if encrypted, delete all plaintext files
-            // (anything not named instanceXml or anything not ending in .enc)
-            if (isEncrypted) {
-                if (!EncryptionUtils.deletePlaintextFiles(instanceXml)) {
-                    Timber.e("Error deleting plaintext files for %s", instanceXml.getAbsolutePath());
-                }
-            }
         }
     }
 
@@ -381,38 +391,54 @@ public class SaveToDiskTask extends AsyncTask<Void, String, SaveResult> {
     }
 
     /**
-     * Writes payload contents to the disk.
+     * Writes payload contents to the disk. The contents go to a temporary file that replaces
+     * the file at path once it has been synced, so a crash while saving leaves either the
+     * previous or the new contents in place.
      */
     static void writeFile(ByteArrayPayload payload, String path) throws IOException {
         File file = new File(path);
-        if (file.exists() && !file.delete()) {
-            throw new IOException("Cannot overwrite " + path + ". Perhaps the file is locked?");
+        if (payload.getLength() <= 0) {
+            // nothing to write, just like before the file is removed
+            if (file.exists() && !file.delete()) {
+                throw new IOException("Cannot overwrite " + path + ". Perhaps the file is locked?");
+            }
+            return;
         }
 
-        // create data stream
-        InputStream is = payload.getPayloadStream();
-        int len = (int) payload.getLength();
-
-        // read from data stream
-        byte[] data = new byte[len];
-        // try {
-        int read = is.read(data, 0, len);
-        if (read > 0) {
-            // write xml file
-            RandomAccessFile randomAccessFile = null;
+        File tempFile = new File(file.getParentFile(), TEMP_FILE_PREFIX + file.getName() + TEMP_FILE_SUFFIX);
+        boolean written = false;
+        FileOutputStream fos = new FileOutputStream(tempFile);
+        try {
+            // the payload stream reads the serialized bytes in place rather than copying them
+            InputStream is = payload.getPayloadStream();
+            byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                fos.write(buffer, 0, read);
+            }
+
+            // a single sync for the whole file instead of one for every write
+            fos.getFD().sync();
+            written = true;
+        } finally {
             try {
-                // String filename = path + File.separator +
-                // path.substring(path.lastIndexOf(File.separator) + 1) + ".xml";
-                randomAccessFile = new RandomAccessFile(file, "rws");
-                randomAccessFile.write(data);
-            } finally {
-                if (randomAccessFile != null) {
-                    try {
-                        randomAccessFile.close();
-                    } catch (IOException e) {
-                        Timber.e(e, "Error closing RandomAccessFile: %s", path);
-                    }
-                }
+                fos.close();
+            } catch (IOException e) {
+                Timber.e(e, "Error closing FileOutputStream: %s", tempFile);
+            }
+            if (!written) {
+                FileUtils.deleteAndReport(tempFile);
+            }
+        }
+
+        if (!tempFile.renameTo(file)) {
+            // some file systems don't replace an existing file when renaming
+            if (file.exists() && !file.delete()) {
+                FileUtils.deleteAndReport(tempFile);
+                throw new IOException("Cannot overwrite " + path + ". Perhaps the file is locked?");
+            }
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Cannot rename " + tempFile + " to " + path);
             }
         }
     }
@@ -35,7 +35,7 @@ import org.odk.collect.android.dao.InstancesDao;
 import org.odk.collect.android.dto.Form;
 import org.odk.collect.android.dto.Instance;
 import org.odk.collect.android.exception.MultipleFoldersFoundException;
-import org.odk.collect.android.http.HttpClientConnection;
+import org.odk.collect.android.http.OpenRosaHttpInterface;
 import org.odk.collect.android.logic.PropertyManager;
 import org.odk.collect.android.preferences.GeneralKeys;
 import org.odk.collect.android.preferences.GeneralSharedPreferences;
@@ -54,7 +54,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+import javax.inject.Inject;
+
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.State;
+import androidx.work.WorkManager;
 import androidx.work.Worker;
+import androidx.work.WorkStatus;
 import androidx.work.WorkerParameters;
 import timber.log.Timber;
 
@@ -64,8 +73,55 @@ import static org.odk.collect.android.utilities.ApplicationConstants.RequestCode
 public class AutoSendWorker extends Worker {
     private static final int AUTO_SEND_RESULT_NOTIFICATION_ID = 1328974928;
 
+    @Inject
+    OpenRosaHttpInterface httpInterface;
+
+    @Inject
+    WebCredentialsUtils webCredentialsUtils;
+
     public AutoSendWorker(@NonNull Context c, @NonNull WorkerParameters parameters) {
         super(c, parameters);
+        Collect.getInstance().getComponent().inject(this);
+    }
+
+    /**
+     * Requests that unsent finalized forms be auto-sent. If no network connection is available,
+     * the work will be performed when a connection becomes available.
+     *
+     * TODO: if the user changes auto-send settings, should an auto-send job immediately be enqueued?
+     */
+    public static void requestAutoSend() {
+        requestAutoSend(ExistingWorkPolicy.KEEP);
+    }
+
+    /**
+     * Like {@link #requestAutoSend()} but if a send is already running, the request is queued
+     * behind it instead of being dropped: the running send may have listed the instances to send
+     * before the caller's instance was ready. Must not be called on the main thread.
+     */
+    public static void requestAutoSendAfterRunningSend() {
+        boolean sendRunning = false;
+        List<WorkStatus> statuses = WorkManager.getInstance().synchronous()
+                .getStatusesForUniqueWorkSync(AutoSendWorker.class.getName());
+        for (WorkStatus status : statuses) {
+            if (status.getState() == State.RUNNING) {
+                sendRunning = true;
+            }
+        }
+        requestAutoSend(sendRunning ? ExistingWorkPolicy.APPEND : ExistingWorkPolicy.KEEP);
+    }
+
+    private static void requestAutoSend(ExistingWorkPolicy existingWorkPolicy) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+        OneTimeWorkRequest autoSendWork =
+                new OneTimeWorkRequest.Builder(AutoSendWorker.class)
+                        .addTag(AutoSendWorker.class.getName())
+                        .setConstraints(constraints)
+                        .build();
+        WorkManager.getInstance().beginUniqueWork(AutoSendWorker.class.getName(),
+                existingWorkPolicy, autoSendWork).enqueue();
     }
 
     /**
@@ -109,7 +165,6 @@ public class AutoSendWorker extends Worker {
         InstanceUploader uploader;
         Map<String, String> resultMessagesByInstanceId = new HashMap<>();
         String deviceId = null;
-        boolean anyFailure = false;
 
         if (protocol.equals(getApplicationContext().getString(R.string.protocol_google_sheets))) {
             if (PermissionUtils.isGetAccountsPermissionGranted(getApplicationContext())) {
@@ -134,43 +189,70 @@ public class AutoSendWorker extends Worker {
                 return Result.FAILURE;
             }
         } else {
-            uploader = new InstanceServerUploader(new HttpClientConnection(),
-                    new WebCredentialsUtils(), new HashMap<>());
+            uploader = new InstanceServerUploader(httpInterface, webCredentialsUtils,
+                    new ServerCapabilityCache(Collect.getInstance()));
             deviceId = new PropertyManager(Collect.getInstance().getApplicationContext())
                     .getSingularProperty(PropertyManager.withUri(PropertyManager.PROPMGR_DEVICE_ID));
         }
 
-        for (Instance instance : toUpload) {
-            try {
-                String destinationUrl = uploader.getUrlToSubmitTo(instance, deviceId, null);
-                String customMessage = uploader.uploadOneSubmission(instance, destinationUrl);
-                resultMessagesByInstanceId.put(instance.getDatabaseId().toString(),
-                        customMessage != null ? customMessage : Collect.getInstance().getString(R.string.success));
-
-                // If the submission was successful, delete the instance if either the app-level
-                // delete preference is set or the form definition requests auto-deletion.
-                // TODO: this could take some time so might be better to do in a separate process,
-                // perhaps another worker. It also feels like this could fail and if so should be
-                // communicated to the user. Maybe successful delete should also be communicated?
-                if (InstanceUploader.formShouldBeAutoDeleted(instance.getJrFormId(),
-                        (boolean) GeneralSharedPreferences.getInstance().get(GeneralKeys.KEY_DELETE_AFTER_SEND))) {
-                    Uri deleteForm = Uri.withAppendedPath(InstanceColumns.CONTENT_URI, instance.getDatabaseId().toString());
-                    Collect.getInstance().getContentResolver().delete(deleteForm, null, null);
-                }
-
-                Collect.getInstance()
-                        .getDefaultTracker()
-                        .send(new HitBuilders.EventBuilder()
-                                .setCategory("Submission")
-                                .setAction(protocol.equals(getApplicationContext().getString(R.string.protocol_google_sheets)) ?
-                                        "HTTP-Sheets auto" : "HTTP auto")
-                                .build());
-            } catch (UploadException e) {
-                Timber.d(e);
-                anyFailure = true;
-                resultMessagesByInstanceId.put(instance.getDatabaseId().toString(),
-                        e.getDisplayMessage());
-            }
+        // Sheets are sent one at a time so that rows aren't appended to the same sheet at once
+        int uploadsPerHost = uploader instanceof InstanceGoogleSheetsUploader
+                ? 1 : InstanceUploadScheduler.DEFAULT_UPLOADS_PER_HOST;
+        final String action = protocol.equals(getApplicationContext().getString(R.string.protocol_google_sheets)) ?
+                "HTTP-Sheets auto" : "HTTP auto";
+        final Map<String, String> resultMessages = resultMessagesByInstanceId;
+        final List<Instance> toDelete = new ArrayList<>();
+        final boolean[] failures = {false};
+
+        new InstanceUploadScheduler(uploader, uploadsPerHost).upload(toUpload, deviceId, null,
+                new InstanceUploadScheduler.Listener() {
+                    @Override
+                    public void uploadSucceeded(Instance instance, String customMessage) {
+                        resultMessages.put(instance.getDatabaseId().toString(),
+                                customMessage != null ? customMessage : Collect.getInstance().getString(R.string.success));
+
+                        // If the submission was successful, delete the instance if either the app-level
+                        // delete preference is set or the form definition requests auto-deletion.
+                        // TODO: this could take some time so might be better to do in a separate process,
+                        // perhaps another worker. It also feels like this could fail and if so should be
+                        // communicated to the user. Maybe successful delete should also be communicated?
+                        if (InstanceUploader.formShouldBeAutoDeleted(instance.getJrFormId(),
+                                (boolean) GeneralSharedPreferences.getInstance().get(GeneralKeys.KEY_DELETE_AFTER_SEND))) {
+                            toDelete.add(instance);
+                        }
+
+                        Collect.getInstance()
+                                .getDefaultTracker()
+                                .send(new HitBuilders.EventBuilder()
+                                        .setCategory("Submission")
+                                        .setAction(action)
+                                        .build());
+                    }
+
+                    @Override
+                    public void uploadFailed(Instance instance, UploadException e) {
+                        Timber.d(e);
+                        failures[0] = true;
+                        resultMessages.put(instance.getDatabaseId().toString(),
+                                e.getDisplayMessage());
+                    }
+
+                    @Override
+                    public void progressUpdate(int finished, int total) {
+                    }
+
+                    @Override
+                    public boolean isCancelled() {
+                        return false;
+                    }
+                });
+        boolean anyFailure = failures[0];
+
+        // instances are only deleted once their submitted status has been saved so that they are
+        // kept as deleted submissions
+        for (Instance instance : toDelete) {
+            Uri deleteForm = Uri.withAppendedPath(InstanceColumns.CONTENT_URI, instance.getDatabaseId().toString());
+            Collect.getInstance().getContentResolver().delete(deleteForm, null, null);
         }
 
         String message = formatOverallResultMessage(resultMessagesByInstanceId);
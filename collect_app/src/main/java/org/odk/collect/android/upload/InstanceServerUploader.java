@@ -25,6 +25,7 @@ import org.odk.collect.android.dto.Instance;
 import org.odk.collect.android.http.HttpHeadResult;
 import org.odk.collect.android.http.OpenRosaHttpInterface;
 import org.odk.collect.android.preferences.GeneralKeys;
+import org.odk.collect.android.upload.ServerCapabilityCache.ServerCapabilities;
 import org.odk.collect.android.utilities.FileUtils;
 import org.odk.collect.android.utilities.ResponseMessageParser;
 import org.odk.collect.android.utilities.WebCredentialsUtils;
@@ -38,6 +39,7 @@ import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 
 import javax.net.ssl.HttpsURLConnection;
 
@@ -47,16 +49,20 @@ public class InstanceServerUploader extends InstanceUploader {
     private static final String URL_PATH_SEP = "/";
     private static final String FAIL = "Error: ";
 
+    private static final int MAX_UPLOAD_ATTEMPTS = 4;
+    private static final long RETRY_BASE_DELAY = 2000L;
+
     private final OpenRosaHttpInterface httpInterface;
     private final WebCredentialsUtils webCredentialsUtils;
-    private final Map<Uri, Uri> uriRemap;
+    private final ServerCapabilityCache capabilityCache;
+    private final Random random = new Random();
 
     public InstanceServerUploader(OpenRosaHttpInterface httpInterface,
                                   WebCredentialsUtils webCredentialsUtils,
-                                  Map<Uri, Uri> uriRemap) {
+                                  ServerCapabilityCache capabilityCache) {
         this.httpInterface = httpInterface;
         this.webCredentialsUtils = webCredentialsUtils;
-        this.uriRemap = uriRemap;
+        this.capabilityCache = capabilityCache;
     }
 
     /**
@@ -74,12 +80,15 @@ public class InstanceServerUploader extends InstanceUploader {
 
         long contentLength = 10000000L;
 
+        ServerCapabilities capabilities = getCachedCapabilities(urlString);
+
         // We already issued a head request and got a response, so we know it was an
         // OpenRosa-compliant server. We also know the proper URL to send the submission to and
         // the proper scheme.
-        if (uriRemap.containsKey(submissionUri)) {
+        if (capabilities != null) {
             openRosaServer = true;
-            submissionUri = uriRemap.get(submissionUri);
+            submissionUri = Uri.parse(capabilities.getLocation());
+            contentLength = capabilities.getAcceptContentLength();
             Timber.i("Using Uri remap for submission %s. Now: %s", instance.getDatabaseId(),
                     submissionUri.toString());
         } else {
@@ -119,6 +128,7 @@ public class InstanceServerUploader extends InstanceUploader {
             }
 
             if (headResult.getStatusCode() == HttpsURLConnection.HTTP_UNAUTHORIZED) {
+                capabilityCache.invalidate(urlString);
                 saveFailedStatusToDatabase(instance);
                 throw new UploadAuthRequestedException(Collect.getInstance().getString(R.string.server_auth_credentials, submissionUri.getHost()),
                         submissionUri);
@@ -136,11 +146,13 @@ public class InstanceServerUploader extends InstanceUploader {
                                         .encodedQuery(submissionUri.getEncodedQuery())
                                         .build();
                             }
-                            uriRemap.put(submissionUri, newURI);
+                            capabilityCache.put(urlString, newURI.toString(), contentLength,
+                                    headResult.getAuthScheme());
                             submissionUri = newURI;
                         } else {
                             // Don't follow a redirection attempt to a different host.
                             // We can't tell if this is a spoof or not.
+                            capabilityCache.invalidate(urlString);
                             saveFailedStatusToDatabase(instance);
                             throw new UploadException(FAIL
                                     + "Unexpected redirection attempt to a different host: "
@@ -188,16 +200,30 @@ public class InstanceServerUploader extends InstanceUploader {
         }
 
         ResponseMessageParser messageParser;
+        SubmissionUploadProgress progress = SubmissionUploadProgress.load(submissionFile, urlString);
 
         try {
             URI uri = URI.create(submissionUri.toString());
 
-            messageParser = httpInterface.uploadSubmissionFile(files, submissionFile, uri,
-                    webCredentialsUtils.getCredentials(uri), contentLength);
+            // The HEAD request that would have authenticated was skipped
+            if (capabilities != null && capabilities.getAuthScheme() != null) {
+                prepareAuthentication(uri, capabilities.getAuthScheme());
+            }
+
+            messageParser = uploadWithRetries(files, submissionFile, uri, contentLength, progress);
 
             int responseCode = messageParser.getResponseCode();
 
             if (responseCode != HttpsURLConnection.HTTP_CREATED && responseCode != HttpsURLConnection.HTTP_ACCEPTED) {
+                // The server has changed since the HEAD request, so the next submission
+                // negotiates with it again.
+                if (responseCode == HttpsURLConnection.HTTP_UNAUTHORIZED
+                        || responseCode == HttpsURLConnection.HTTP_NOT_FOUND
+                        || (responseCode >= HttpsURLConnection.HTTP_MULT_CHOICE
+                        && responseCode < HttpsURLConnection.HTTP_BAD_REQUEST)) {
+                    capabilityCache.invalidate(urlString);
+                }
+
                 UploadException exception;
                 if (responseCode == HttpsURLConnection.HTTP_OK) {
                     exception = new UploadException(FAIL + "Network login failure? Again?");
@@ -223,6 +249,7 @@ public class InstanceServerUploader extends InstanceUploader {
                     + (e.getMessage() != null ? e.getMessage() : e.toString()));
         }
 
+        progress.delete();
         saveSuccessStatusToDatabase(instance);
 
         if (messageParser.isValid()) {
@@ -232,6 +259,83 @@ public class InstanceServerUploader extends InstanceUploader {
         return null;
     }
 
+    /**
+     * Authenticates with the server before the submission is sent. If that fails, the
+     * submission is still sent and answers the server's challenge itself.
+     */
+    private void prepareAuthentication(URI uri, String authScheme) {
+        try {
+            httpInterface.prepareAuthentication(uri, webCredentialsUtils.getCredentials(uri), authScheme);
+        } catch (Exception e) {
+            Timber.i("Couldn't authenticate before the submission (%s)", e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the files the server hasn't accepted yet, trying again with increasing delays if the
+     * connection fails. Parts the server accepts before a failure aren't sent again.
+     */
+    private ResponseMessageParser uploadWithRetries(List<File> files, File submissionFile, URI uri,
+                                                    long contentLength, SubmissionUploadProgress progress)
+            throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            List<File> remainingFiles = progress.getRemainingFiles(files);
+            if (remainingFiles.size() < files.size()) {
+                Timber.i("Resuming upload of %s, %d of %d attachments already sent",
+                        submissionFile.getAbsolutePath(), files.size() - remainingFiles.size(), files.size());
+            }
+
+            try {
+                return httpInterface.uploadSubmissionFile(remainingFiles, submissionFile, uri,
+                        webCredentialsUtils.getCredentials(uri), contentLength, progress);
+            } catch (IOException e) {
+                if (attempt >= MAX_UPLOAD_ATTEMPTS) {
+                    throw e;
+                }
+
+                long delay = getRetryDelay(attempt, random);
+                Timber.i("Upload attempt %d failed (%s), trying again in %d ms", attempt, e.getMessage(), delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns how long to wait before trying an upload again. The delay doubles with each
+     * attempt and is shortened by a random amount of up to half so that uploads that failed
+     * together don't all try again at the same time.
+     */
+    static long getRetryDelay(int failedAttempts, Random random) {
+        long delay = RETRY_BASE_DELAY << (failedAttempts - 1);
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2));
+    }
+
+    /**
+     * Returns what an earlier HEAD request found out about the given submission URL, unless
+     * it has to be made again.
+     */
+    private ServerCapabilities getCachedCapabilities(String urlString) {
+        ServerCapabilities capabilities = capabilityCache.get(urlString);
+        if (capabilities == null || capabilities.getAuthScheme() == null) {
+            return capabilities;
+        }
+
+        // The server needs credentials and there are none, so let the HEAD request ask for them
+        try {
+            if (webCredentialsUtils.getCredentials(URI.create(urlString)) == null) {
+                return null;
+            }
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return capabilities;
+    }
+
     private List<File> getFilesInParentDirectory(File instanceFile, File submissionFile, boolean openRosaServer) {
         List<File> files = new ArrayList<>();
 
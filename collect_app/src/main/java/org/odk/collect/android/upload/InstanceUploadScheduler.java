@@ -0,0 +1,169 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.upload;
+
+import android.support.annotation.Nullable;
+
+import org.odk.collect.android.dto.Instance;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import timber.log.Timber;
+
+/**
+ * Sends instances with an {@link InstanceUploader}, several at a time for each server they are
+ * sent to. Instances going to different servers don't wait for each other.
+ *
+ * The status of each instance is written to the database as soon as its upload has finished, so
+ * that instances that were sent aren't sent again if the process dies during the run.
+ */
+public class InstanceUploadScheduler {
+
+    /**
+     * Number of instances sent to the same server at the same time unless configured otherwise.
+     */
+    public static final int DEFAULT_UPLOADS_PER_HOST = 3;
+
+    private final InstanceUploader uploader;
+    private final int uploadsPerHost;
+
+    /**
+     * Receives the result of each upload. The calls come from the upload threads but never at
+     * the same time, so listeners don't need to be thread-safe.
+     */
+    public interface Listener {
+        void uploadSucceeded(Instance instance, @Nullable String customMessage);
+
+        void uploadFailed(Instance instance, UploadException e);
+
+        /**
+         * @param finished the number of instances that have been sent or have failed
+         */
+        void progressUpdate(int finished, int total);
+
+        /**
+         * @return true if the instances that haven't started uploading yet should be skipped
+         */
+        boolean isCancelled();
+    }
+
+    public InstanceUploadScheduler(InstanceUploader uploader, int uploadsPerHost) {
+        this.uploader = uploader;
+        this.uploadsPerHost = Math.max(1, uploadsPerHost);
+    }
+
+    /**
+     * Sends the instances and waits for all of them to be sent or to fail.
+     *
+     * @param overrideUrl the URL to send all the instances to instead of their own, or null
+     */
+    public void upload(List<Instance> instances, @Nullable final String deviceId,
+                       @Nullable final String overrideUrl, final Listener listener) {
+        final int total = instances.size();
+        final int[] finished = {0};
+        final Object listenerLock = new Object();
+
+        Map<String, List<Instance>> instancesByHost = new LinkedHashMap<>();
+        for (Instance instance : instances) {
+            String host = getHost(uploader.getUrlToSubmitTo(instance, deviceId, overrideUrl));
+            List<Instance> hostInstances = instancesByHost.get(host);
+            if (hostInstances == null) {
+                hostInstances = new ArrayList<>();
+                instancesByHost.put(host, hostInstances);
+            }
+            hostInstances.add(instance);
+        }
+
+        final long start = System.currentTimeMillis();
+        List<ExecutorService> executors = new ArrayList<>();
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            for (List<Instance> hostInstances : instancesByHost.values()) {
+                ExecutorService executor = Executors.newFixedThreadPool(
+                        Math.min(uploadsPerHost, hostInstances.size()));
+                executors.add(executor);
+
+                for (final Instance instance : hostInstances) {
+                    futures.add(executor.submit(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (listener.isCancelled()) {
+                                return;
+                            }
+
+                            String customMessage = null;
+                            UploadException failure = null;
+                            try {
+                                String destinationUrl = uploader.getUrlToSubmitTo(instance, deviceId, overrideUrl);
+                                customMessage = uploader.uploadOneSubmission(instance, destinationUrl);
+                            } catch (UploadException e) {
+                                failure = e;
+                            }
+
+                            synchronized (listenerLock) {
+                                if (failure == null) {
+                                    listener.uploadSucceeded(instance, customMessage);
+                                } else {
+                                    listener.uploadFailed(instance, failure);
+                                }
+
+                                finished[0]++;
+                                listener.progressUpdate(finished[0], total);
+                            }
+                        }
+                    }));
+                }
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Timber.e(e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (ExecutorService executor : executors) {
+                executor.shutdownNow();
+            }
+        }
+
+        Timber.i("Sent %d instances to %d servers in %.3f seconds.", total, instancesByHost.size(),
+                (System.currentTimeMillis() - start) / 1000F);
+    }
+
+    private static String getHost(String url) {
+        try {
+            String host = URI.create(url).getHost();
+            return host != null ? host.toLowerCase(Locale.US) : "";
+        } catch (IllegalArgumentException e) {
+            // the uploader reports the bad URL when it tries to send the instance
+            return "";
+        }
+    }
+}
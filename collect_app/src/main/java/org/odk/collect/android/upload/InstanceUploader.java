@@ -84,20 +84,19 @@ public abstract class InstanceUploader {
     }
 
     void saveSuccessStatusToDatabase(Instance instance) {
-        Uri instanceDatabaseUri = Uri.withAppendedPath(InstanceProviderAPI.InstanceColumns.CONTENT_URI,
-                instance.getDatabaseId().toString());
-
-        ContentValues contentValues = new ContentValues();
-        contentValues.put(InstanceProviderAPI.InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMITTED);
-        Collect.getInstance().getContentResolver().update(instanceDatabaseUri, contentValues, null, null);
+        saveStatusToDatabase(instance, InstanceProviderAPI.STATUS_SUBMITTED);
     }
 
     void saveFailedStatusToDatabase(Instance instance) {
+        saveStatusToDatabase(instance, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
+    }
+
+    private void saveStatusToDatabase(Instance instance, String status) {
         Uri instanceDatabaseUri = Uri.withAppendedPath(InstanceProviderAPI.InstanceColumns.CONTENT_URI,
                 instance.getDatabaseId().toString());
 
         ContentValues contentValues = new ContentValues();
-        contentValues.put(InstanceProviderAPI.InstanceColumns.STATUS, InstanceProviderAPI.STATUS_SUBMISSION_FAILED);
+        contentValues.put(InstanceProviderAPI.InstanceColumns.STATUS, status);
         Collect.getInstance().getContentResolver().update(instanceDatabaseUri, contentValues, null, null);
     }
 
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.upload;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.support.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+
+/**
+ * Remembers what the HEAD request sent before a submission found out about a submission URL so
+ * that following submissions to the same URL, including ones made after the app restarts, can
+ * be sent without it.
+ *
+ * Entries expire after {@link #TIME_TO_LIVE} and are removed by {@link InstanceServerUploader}
+ * when a submission shows that they are out of date.
+ */
+public class ServerCapabilityCache {
+
+    public static final String PREF_FILE_NAME = "server_capabilities";
+
+    /**
+     * How long the result of a HEAD request is used for, in milliseconds.
+     */
+    static final long TIME_TO_LIVE = 24 * 60 * 60 * 1000L;
+
+    private final SharedPreferences preferences;
+    private final long timeToLive;
+
+    public ServerCapabilityCache(Context context) {
+        this(context.getSharedPreferences(PREF_FILE_NAME, Context.MODE_PRIVATE), TIME_TO_LIVE);
+    }
+
+    ServerCapabilityCache(SharedPreferences preferences, long timeToLive) {
+        this.preferences = preferences;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * Returns what is known about the given submission URL, or null if nothing is or what is
+     * known has expired.
+     */
+    @Nullable
+    public ServerCapabilities get(String submissionUrl) {
+        return get(submissionUrl, System.currentTimeMillis());
+    }
+
+    @Nullable
+    ServerCapabilities get(String submissionUrl, long now) {
+        String json = preferences.getString(submissionUrl, null);
+        if (json == null) {
+            return null;
+        }
+
+        ServerCapabilities capabilities;
+        try {
+            capabilities = new Gson().fromJson(json, ServerCapabilities.class);
+        } catch (JsonParseException e) {
+            capabilities = null;
+        }
+
+        if (capabilities == null || capabilities.location == null
+                || now - capabilities.negotiatedAt >= timeToLive || now < capabilities.negotiatedAt) {
+            invalidate(submissionUrl);
+            return null;
+        }
+        return capabilities;
+    }
+
+    public void put(String submissionUrl, String location, long acceptContentLength,
+                    @Nullable String authScheme) {
+        ServerCapabilities capabilities = new ServerCapabilities(location, acceptContentLength,
+                authScheme, System.currentTimeMillis());
+        preferences.edit().putString(submissionUrl, new Gson().toJson(capabilities)).apply();
+    }
+
+    public void invalidate(String submissionUrl) {
+        preferences.edit().remove(submissionUrl).apply();
+    }
+
+    public void clear() {
+        preferences.edit().clear().apply();
+    }
+
+    public static class ServerCapabilities {
+        private final String location;
+        private final long acceptContentLength;
+        private final String authScheme;
+        private final long negotiatedAt;
+
+        ServerCapabilities(String location, long acceptContentLength, String authScheme, long negotiatedAt) {
+            this.location = location;
+            this.acceptContentLength = acceptContentLength;
+            this.authScheme = authScheme;
+            this.negotiatedAt = negotiatedAt;
+        }
+
+        /**
+         * The URL submissions are sent to, which the server may have redirected to.
+         */
+        public String getLocation() {
+            return location;
+        }
+
+        /**
+         * The size in bytes the server accepts in one request.
+         */
+        public long getAcceptContentLength() {
+            return acceptContentLength;
+        }
+
+        /**
+         * The authentication scheme used with the server, or null if it didn't need one.
+         */
+        @Nullable
+        public String getAuthScheme() {
+            return authScheme;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.upload;
+
+import org.odk.collect.android.http.OpenRosaHttpInterface.SubmissionPartListener;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import timber.log.Timber;
+
+/**
+ * Records which attachments of an instance the server has already accepted in requests sent
+ * with {@code *isIncomplete*}, so that an upload that fails part way through can be resumed
+ * without sending those attachments again.
+ *
+ * The record is kept in a hidden file in the instance folder, which isn't sent with the
+ * instance, and only applies while the destination and the submission file stay the same.
+ */
+public class SubmissionUploadProgress implements SubmissionPartListener {
+
+    static final String PROGRESS_FILE_NAME = ".upload-progress";
+
+    private final File progressFile;
+    private final String destination;
+    private final String submissionFingerprint;
+    private final Set<String> acceptedAttachments = new HashSet<>();
+
+    private SubmissionUploadProgress(File progressFile, String destination, String submissionFingerprint) {
+        this.progressFile = progressFile;
+        this.destination = destination;
+        this.submissionFingerprint = submissionFingerprint;
+    }
+
+    /**
+     * Returns what has been accepted so far of the given submission file when it is sent to the
+     * given destination.
+     */
+    public static SubmissionUploadProgress load(File submissionFile, String destination) {
+        SubmissionUploadProgress progress = new SubmissionUploadProgress(
+                new File(submissionFile.getParentFile(), PROGRESS_FILE_NAME), destination,
+                getFingerprint(submissionFile));
+
+        if (!progress.progressFile.exists()) {
+            return progress;
+        }
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(progress.progressFile), "UTF-8"))) {
+            if (!destination.equals(reader.readLine())
+                    || !progress.submissionFingerprint.equals(reader.readLine())) {
+                // the parts were sent somewhere else or the instance has been finalized again
+                progress.delete();
+                return progress;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    progress.acceptedAttachments.add(line);
+                }
+            }
+        } catch (IOException e) {
+            Timber.w(e, "Unable to read upload progress for %s", submissionFile.getAbsolutePath());
+            progress.acceptedAttachments.clear();
+        }
+        return progress;
+    }
+
+    /**
+     * Returns the files the server hasn't accepted yet, in the order they were given.
+     */
+    public List<File> getRemainingFiles(List<File> files) {
+        List<File> remaining = new ArrayList<>();
+        for (File file : files) {
+            if (!acceptedAttachments.contains(getAttachmentKey(file))) {
+                remaining.add(file);
+            }
+        }
+        return remaining;
+    }
+
+    public int getAcceptedCount() {
+        return acceptedAttachments.size();
+    }
+
+    @Override
+    public synchronized void partAccepted(List<File> attachments) {
+        for (File attachment : attachments) {
+            acceptedAttachments.add(getAttachmentKey(attachment));
+        }
+        save();
+    }
+
+    /**
+     * Forgets the accepted attachments, for when the server has the whole instance.
+     */
+    public synchronized void delete() {
+        acceptedAttachments.clear();
+        if (progressFile.exists() && !progressFile.delete()) {
+            Timber.w("Unable to delete %s", progressFile.getAbsolutePath());
+        }
+    }
+
+    private void save() {
+        File tempFile = new File(progressFile.getParentFile(), progressFile.getName() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            Writer writer = new OutputStreamWriter(out, "UTF-8");
+            writer.write(destination + "\n");
+            writer.write(submissionFingerprint + "\n");
+            for (String attachment : acceptedAttachments) {
+                writer.write(attachment + "\n");
+            }
+            writer.flush();
+            out.getFD().sync();
+        } catch (IOException e) {
+            // the attachments will be sent again next time
+            Timber.w(e, "Unable to save upload progress to %s", progressFile.getAbsolutePath());
+            return;
+        }
+
+        if (!tempFile.renameTo(progressFile)) {
+            Timber.w("Unable to save upload progress to %s", progressFile.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Attachments are told apart by name and size so that one replaced with a different file is
+     * sent again.
+     */
+    private static String getAttachmentKey(File attachment) {
+        return attachment.getName() + "/" + attachment.length();
+    }
+
+    private static String getFingerprint(File submissionFile) {
+        return submissionFile.length() + "/" + submissionFile.lastModified();
+    }
+}
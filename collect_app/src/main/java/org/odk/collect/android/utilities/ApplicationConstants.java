@@ -100,6 +100,7 @@ public class ApplicationConstants {
         public static final int GEOTRACE_CAPTURE = 21;
         public static final int ARBITRARY_FILE_CHOOSER = 22;
 
+        public static final int FINALIZATION_FAILED_NOTIFICATION = 96;
         public static final int FORMS_UPLOADED_NOTIFICATION = 97;
         public static final int FORMS_DOWNLOADED_NOTIFICATION = 98;
         public static final int FORM_UPDATES_AVAILABLE_NOTIFICATION = 99;
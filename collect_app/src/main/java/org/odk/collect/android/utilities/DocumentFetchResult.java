@@ -14,26 +14,24 @@
 
 package org.odk.collect.android.utilities;
 
-import org.kxml2.kdom.Document;
-
 public class DocumentFetchResult {
     public final String errorMessage;
     public final int responseCode;
-    public final Document doc;
     public final boolean isOpenRosaResponse;
     private String hash;
 
     public DocumentFetchResult(String msg, int response) {
         responseCode = response;
         errorMessage = msg;
-        doc = null;
         isOpenRosaResponse = false;
     }
 
-    public DocumentFetchResult(Document doc, boolean isOpenRosaResponse, String hash) {
+    /**
+     * Creates the result of a document that was read as it was downloaded.
+     */
+    public DocumentFetchResult(boolean isOpenRosaResponse, String hash) {
         responseCode = 0;
         errorMessage = null;
-        this.doc = doc;
         this.isOpenRosaResponse = isOpenRosaResponse;
         this.hash = hash;
     }
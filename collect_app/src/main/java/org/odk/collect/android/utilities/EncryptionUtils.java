@@ -20,6 +20,7 @@ import android.net.Uri;
 import android.util.Base64;
 
 import org.apache.commons.io.IOUtils;
+import org.kxml2.io.KXmlParser;
 import org.kxml2.io.KXmlSerializer;
 import org.kxml2.kdom.Document;
 import org.kxml2.kdom.Element;
@@ -31,15 +32,17 @@ import org.odk.collect.android.exception.EncryptionException;
 import org.odk.collect.android.logic.FormController.InstanceMetadata;
 import org.odk.collect.android.provider.FormsProviderAPI.FormsColumns;
 import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -53,10 +56,14 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.IvParameterSpec;
@@ -98,6 +105,10 @@ public class EncryptionUtils {
             "base64EncryptedElementSignature";
     private static final String NEW_LINE = "\n";
     private static final String ENCRYPTION_PROVIDER = "BC";
+    private static final String ENCRYPTED_FILE_SUFFIX = ".enc";
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final int ENCRYPTION_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_PARALLEL_ENCRYPTIONS = 3;
 
     private EncryptionUtils() {
     }
@@ -175,7 +186,10 @@ public class EncryptionUtils {
         }
 
         public void appendFileSignatureSource(File file) {
-            String md5Hash = FileUtils.getMd5Hash(file);
+            appendFileSignatureSource(file, FileUtils.getMd5Hash(file));
+        }
+
+        public void appendFileSignatureSource(File file, String md5Hash) {
             appendElementSignatureSource(file.getName() + "::" + md5Hash);
         }
 
@@ -378,55 +392,70 @@ public class EncryptionUtils {
         return new EncryptedFormInformation(formId, formVersion, instanceMetadata, pk);
     }
 
-    private static void encryptFile(File file, EncryptedFormInformation formInfo)
-            throws IOException, EncryptionException {
-        File encryptedFile = new File(file.getParentFile(), file.getName()
-                + ".enc");
-
-        if (encryptedFile.exists() && !encryptedFile.delete()) {
-            throw new IOException("Cannot overwrite " + encryptedFile.getAbsolutePath()
-                    + ". Perhaps the file is locked?");
-        }
-
-        // add elementSignatureSource for this file...
-        formInfo.appendFileSignatureSource(file);
+    /**
+     * Encrypts the file to a temporary file next to it, which is renamed once it has been written
+     * completely. The file is read once and only a buffer of it is held in memory at a time.
+     *
+     * @return the md5 hash of the unencrypted file for the element signature
+     */
+    private static String encryptFile(File file, Cipher cipher) throws EncryptionException {
+        File encryptedFile = new File(file.getParentFile(), file.getName() + ENCRYPTED_FILE_SUFFIX);
+        File tempFile = new File(file.getParentFile(), encryptedFile.getName() + TEMP_FILE_SUFFIX);
 
-        RandomAccessFile randomAccessFile = null;
-        CipherOutputStream cipherOutputStream = null;
+        InputStream fin = null;
+        FileOutputStream fos = null;
         try {
-            Cipher c = formInfo.getCipher();
+            if (encryptedFile.exists() && !encryptedFile.delete()) {
+                throw new IOException("Cannot overwrite " + encryptedFile.getAbsolutePath()
+                        + ". Perhaps the file is locked?");
+            }
+
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            fin = new FileInputStream(file);
+            fos = new FileOutputStream(tempFile);
+            OutputStream out = new BufferedOutputStream(fos, ENCRYPTION_BUFFER_SIZE);
 
-            randomAccessFile = new RandomAccessFile(encryptedFile, "rws");
-            ByteArrayOutputStream encryptedData = new ByteArrayOutputStream();
-            cipherOutputStream = new CipherOutputStream(encryptedData, c);
-            InputStream fin = new FileInputStream(file);
-            byte[] buffer = new byte[2048];
+            byte[] buffer = new byte[ENCRYPTION_BUFFER_SIZE];
             int len = fin.read(buffer);
             while (len != -1) {
-                cipherOutputStream.write(buffer, 0, len);
+                md.update(buffer, 0, len);
+                writeIfNotNull(out, cipher.update(buffer, 0, len));
                 len = fin.read(buffer);
             }
-            fin.close();
-            cipherOutputStream.flush();
-            cipherOutputStream.close();
-
-            randomAccessFile.write(encryptedData.toByteArray());
+            writeIfNotNull(out, cipher.doFinal());
+            out.flush();
+            fos.getFD().sync();
+            fos.close();
+            fos = null;
+
+            if (!tempFile.renameTo(encryptedFile)) {
+                throw new IOException("Cannot rename " + tempFile.getAbsolutePath()
+                        + " to " + encryptedFile.getName());
+            }
 
             Timber.i("Encrpyted:%s -> %s", file.getName(), encryptedFile.getName());
+            return FileUtils.toMd5String(md.digest());
         } catch (Exception e) {
             String msg = "Error encrypting: " + file.getName() + " -> "
                     + encryptedFile.getName();
             Timber.e(e, "%s due to %s ", msg, e.getMessage());
             throw new EncryptionException(msg, e);
         } finally {
-            IOUtils.closeQuietly(cipherOutputStream);
-
-            if (randomAccessFile != null) {
-                randomAccessFile.close();
+            IOUtils.closeQuietly(fin);
+            if (fos != null) {
+                IOUtils.closeQuietly(fos);
+                tempFile.delete();
             }
         }
     }
 
+    private static void writeIfNotNull(OutputStream out, byte[] data) throws IOException {
+        // some providers return null instead of an empty array when no output is ready yet
+        if (data != null) {
+            out.write(data);
+        }
+    }
+
     public static boolean deletePlaintextFiles(File instanceXml) {
         // NOTE: assume the directory containing the instanceXml contains ONLY
         // files related to this one instance.
@@ -476,23 +505,87 @@ public class EncryptionUtils {
             if (f.getName().startsWith(".")) {
                 continue; // MacOSX garbage
             }
-            if (f.getName().endsWith(".enc")) {
+            if (f.getName().endsWith(ENCRYPTED_FILE_SUFFIX)
+                    || f.getName().endsWith(ENCRYPTED_FILE_SUFFIX + TEMP_FILE_SUFFIX)) {
                 f.delete(); // try to delete this (leftover junk)
             } else {
                 filesToProcess.add(f);
             }
         }
-        // encrypt here...
-        for (File f : filesToProcess) {
-            encryptFile(f, formInfo);
+        // the submission.xml is the last file...
+        List<File> filesToEncrypt = new ArrayList<File>(filesToProcess);
+        filesToEncrypt.add(submissionXml);
+
+        // the ivs are derived from the order in which the ciphers are created so they have to
+        // be created in the order of the files in the manifest
+        List<Cipher> ciphers = new ArrayList<Cipher>();
+        try {
+            for (int i = 0; i < filesToEncrypt.size(); i++) {
+                ciphers.add(formInfo.getCipher());
+            }
+        } catch (Exception e) {
+            Timber.e(e, "Unable to create the ciphers due to %s ", e.getMessage());
+            throw new EncryptionException("Error encrypting: " + submissionXml.getName(), e);
         }
 
-        // encrypt the submission.xml as the last file...
-        encryptFile(submissionXml, formInfo);
+        final long start = System.currentTimeMillis();
+        List<String> md5Hashes = encryptFiles(filesToEncrypt, ciphers);
+        Timber.i("Encrypted %d files in %.3f seconds.", filesToEncrypt.size(),
+                (System.currentTimeMillis() - start) / 1000F);
+
+        // add elementSignatureSource for the files in the same order...
+        for (int i = 0; i < filesToEncrypt.size(); i++) {
+            formInfo.appendFileSignatureSource(filesToEncrypt.get(i), md5Hashes.get(i));
+        }
 
         return filesToProcess;
     }
 
+    /**
+     * Encrypts the files independently of each other, several at a time.
+     *
+     * @return the md5 hashes of the unencrypted files in the same order as the files
+     */
+    private static List<String> encryptFiles(List<File> files, List<Cipher> ciphers)
+            throws EncryptionException {
+        List<String> md5Hashes = new ArrayList<String>();
+        if (files.size() == 1) {
+            md5Hashes.add(encryptFile(files.get(0), ciphers.get(0)));
+            return md5Hashes;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(files.size(), MAX_PARALLEL_ENCRYPTIONS));
+        try {
+            List<Future<String>> futures = new ArrayList<Future<String>>();
+            for (int i = 0; i < files.size(); i++) {
+                final File file = files.get(i);
+                final Cipher cipher = ciphers.get(i);
+                futures.add(executor.submit(new Callable<String>() {
+                    @Override
+                    public String call() throws EncryptionException {
+                        return encryptFile(file, cipher);
+                    }
+                }));
+            }
+
+            for (Future<String> future : futures) {
+                md5Hashes.add(future.get());
+            }
+            return md5Hashes;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EncryptionException("Interrupted while encrypting the submission", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EncryptionException) {
+                throw (EncryptionException) e.getCause();
+            }
+            throw new EncryptionException("Error encrypting the submission", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
     /**
      * Constructs the encrypted attachments, encrypted form xml, and the
      * plaintext submission manifest (with signature) for the form submission.
@@ -518,6 +611,28 @@ public class EncryptionUtils {
         writeSubmissionManifest(formInfo, submissionXml, mediaFiles);
     }
 
+    /**
+     * @return whether the file is a manifest written by {@link #generateEncryptedSubmission} rather
+     * than the plaintext submission it replaced
+     */
+    public static boolean isEncryptedSubmissionManifest(File submissionXml) {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(submissionXml);
+            KXmlParser parser = new KXmlParser();
+            parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+            parser.setInput(is, null);
+            parser.nextTag();
+            return XML_ENCRYPTED_TAG_NAMESPACE.equals(parser.getNamespace())
+                    && "yes".equals(parser.getAttributeValue(null, ENCRYPTED));
+        } catch (IOException | XmlPullParserException e) {
+            Timber.w(e, "Unable to read the root of %s", submissionXml.getAbsolutePath());
+            return false;
+        } finally {
+            IOUtils.closeQuietly(is);
+        }
+    }
+
     private static void writeSubmissionManifest(
             EncryptedFormInformation formInfo,
             File submissionXml, List<File> mediaFiles) throws EncryptionException {
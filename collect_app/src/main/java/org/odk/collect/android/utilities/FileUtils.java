@@ -152,13 +152,8 @@ public class FileUtils {
                 md.update(buffer, 0, result);
             }
 
-            StringBuilder md5 = new StringBuilder(new BigInteger(1, md.digest()).toString(16));
-            while (md5.length() < 32) {
-                md5.insert(0, "0");
-            }
-
             is.close();
-            return md5.toString();
+            return toMd5String(md.digest());
 
         } catch (NoSuchAlgorithmException e) {
             Timber.e(e);
@@ -170,6 +165,17 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Returns the given MD5 digest as the 32 character hex string used for form and media hashes.
+     */
+    public static String toMd5String(byte[] digest) {
+        StringBuilder md5 = new StringBuilder(new BigInteger(1, digest).toString(16));
+        while (md5.length() < 32) {
+            md5.insert(0, "0");
+        }
+        return md5.toString();
+    }
+
     public static Bitmap getBitmapScaledToDisplay(File file, int screenHeight, int screenWidth) {
         return getBitmapScaledToDisplay(file, screenHeight, screenWidth, false);
     }
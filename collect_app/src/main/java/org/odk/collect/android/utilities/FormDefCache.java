@@ -1,21 +1,51 @@
 package org.odk.collect.android.utilities;
 
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+
 import org.javarosa.core.model.FormDef;
 import org.javarosa.core.util.externalizable.ExtUtil;
 import org.odk.collect.android.application.Collect;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import timber.log.Timber;
 
-/** Methods for reading from and writing to the FormDef cache */
+/**
+ * Methods for reading from and writing to the FormDef cache.
+ *
+ * The cache has two tiers. Serialized FormDefs are kept on disk in {@link Collect#CACHE_PATH},
+ * keyed by the path, size and modification time of the form XML so that looking a form up
+ * doesn't require hashing its contents. The most recently used serialized FormDefs are also
+ * kept in memory so that reopening a form doesn't touch the disk. Every read deserializes a
+ * fresh FormDef because callers mutate the FormDef they are given.
+ */
 public class FormDefCache {
 
+    /** Written at the start of every cache file: "ODKF". */
+    private static final int CACHE_FILE_MAGIC = 0x4F444B46;
+
+    /** Bump this whenever the on-disk format changes so old cache files are discarded. */
+    @VisibleForTesting
+    static final int CACHE_FILE_VERSION = 1;
+
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+
+    private static final MemoryCache MEMORY_CACHE =
+            new MemoryCache(Runtime.getRuntime().maxMemory() / 16);
+
     private FormDefCache() {
         // Private constructor
     }
@@ -29,18 +59,42 @@ public class FormDefCache {
      * @param formPath - The form XML file
      */
     public static void writeCache(FormDef formDef, String formPath) throws IOException {
+        writeCache(formDef, formPath, true);
+    }
+
+    /**
+     * Serializes a FormDef and saves it in the cache.
+     *
+     * @param formDef      - The FormDef to be cached
+     * @param formPath     - The form XML file
+     * @param keepInMemory - Whether to also keep the FormDef in the in-memory cache. Background
+     *                       callers caching many forms should pass false so that they don't
+     *                       evict the forms the user has recently opened.
+     */
+    public static void writeCache(FormDef formDef, String formPath, boolean keepInMemory) throws IOException {
         final long formSaveStart = System.currentTimeMillis();
-        File cachedFormDefFile = FormDefCache.getCacheFile(new File(formPath));
+        final File formXml = new File(formPath);
+        final String cacheKey = getCacheKey(formXml);
+        File cachedFormDefFile = getCacheFile(cacheKey);
         final File tempCacheFile = File.createTempFile("cache", null,
                 new File(Collect.CACHE_PATH));
         Timber.i("Started saving %s to the cache via temp file %s",
                 formDef.getTitle(), tempCacheFile.getName());
 
         Exception caughtException = null;
+        byte[] serializedFormDef = null;
         try {
-            DataOutputStream dos = new DataOutputStream(new FileOutputStream(tempCacheFile));
-            formDef.writeExternal(dos);
-            dos.close();
+            serializedFormDef = serializeFormDef(formDef);
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(tempCacheFile), IO_BUFFER_SIZE));
+            try {
+                dos.writeInt(CACHE_FILE_MAGIC);
+                dos.writeInt(CACHE_FILE_VERSION);
+                dos.writeInt(serializedFormDef.length);
+                dos.write(serializedFormDef);
+            } finally {
+                dos.close();
+            }
         } catch (IOException exception) {
             caughtException = exception;
         }
@@ -66,25 +120,48 @@ public class FormDefCache {
             }
         }
 
+        if (keepInMemory && serializedFormDef != null) {
+            MEMORY_CACHE.put(cacheKey, serializedFormDef);
+        }
+
         if (caughtException != null) { // The client is no longer there, so log the exception
             Timber.e(caughtException);
         }
     }
 
     /**
-     * If a form is present in the cache, deserializes and returns it as as FormDef.
+     * If a form is present in the cache, deserializes and returns it as as FormDef. Each call
+     * returns a new FormDef so the result may be freely modified by the caller.
      * @param formXml a File containing the XML version of the form
      * @return a FormDef, or null if the form is not present in the cache
      */
     public static FormDef readCache(File formXml) {
-        final File cachedForm = getCacheFile(formXml);
+        final String cacheKey = getCacheKey(formXml);
+
+        byte[] serializedFormDef = MEMORY_CACHE.get(cacheKey);
+        if (serializedFormDef != null) {
+            Timber.i("Attempting to load %s from memory cache.", formXml.getName());
+            final long start = System.currentTimeMillis();
+            final FormDef deserializedFormDef = deserializeFormDef(serializedFormDef);
+            if (deserializedFormDef != null) {
+                Timber.i("Loaded in %.3f seconds.", (System.currentTimeMillis() - start) / 1000F);
+                return deserializedFormDef;
+            }
+            MEMORY_CACHE.remove(cacheKey);
+        }
+
+        final File cachedForm = getCacheFile(cacheKey);
         if (cachedForm.exists()) {
             Timber.i("Attempting to load %s from cached file: %s.",
                     formXml.getName(), cachedForm.getName());
             final long start = System.currentTimeMillis();
-            final FormDef deserializedFormDef = deserializeFormDef(cachedForm);
+            serializedFormDef = readCacheFile(cachedForm);
+            final FormDef deserializedFormDef = serializedFormDef != null
+                    ? deserializeFormDef(serializedFormDef)
+                    : null;
             if (deserializedFormDef != null) {
                 Timber.i("Loaded in %.3f seconds.", (System.currentTimeMillis() - start) / 1000F);
+                MEMORY_CACHE.put(cacheKey, serializedFormDef);
                 return deserializedFormDef;
             }
 
@@ -98,23 +175,107 @@ public class FormDefCache {
     }
 
     /**
-     * Builds and returns a File object for the cached version of a form.
+     * Returns true if there is a cached FormDef for the current version of the given form XML.
+     */
+    public static boolean isCached(File formXml) {
+        final String cacheKey = getCacheKey(formXml);
+        return MEMORY_CACHE.get(cacheKey) != null || getCacheFile(cacheKey).exists();
+    }
+
+    /**
+     * Returns the path of the file the current version of the given form XML is cached in, which
+     * the forms database records so that the file is deleted along with the form.
+     */
+    public static String getCacheFilePath(File formXml) {
+        return getCacheFile(getCacheKey(formXml)).getAbsolutePath();
+    }
+
+    /**
+     * Drops all FormDefs held in memory. Cache files on disk are left untouched.
+     */
+    public static void clearMemoryCache() {
+        MEMORY_CACHE.clear();
+    }
+
+    /**
+     * Builds the key for the cached version of a form from its path, size and last modified
+     * time. This is much cheaper than hashing the contents of the form and changes whenever the
+     * form file is replaced or edited.
      * @param formXml the File containing the XML form
+     * @return an md5 hash identifying this version of the form
+     */
+    @VisibleForTesting
+    static String getCacheKey(File formXml) {
+        String fingerprint = formXml.getAbsolutePath() + "|" + formXml.length() + "|" + formXml.lastModified();
+        return FileUtils.getMd5Hash(new ByteArrayInputStream(fingerprint.getBytes()));
+    }
+
+    /**
+     * Builds and returns a File object for the cached version of a form.
+     * @param cacheKey the key returned by {@link #getCacheKey(File)}
      * @return a File object
      */
-    private static File getCacheFile(File formXml) {
-        return new File(Collect.CACHE_PATH + File.separator +
-                FileUtils.getMd5Hash(formXml) + ".formdef");
+    private static File getCacheFile(String cacheKey) {
+        return new File(Collect.CACHE_PATH + File.separator + cacheKey + ".formdef");
+    }
+
+    private static byte[] serializeFormDef(FormDef formDef) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(IO_BUFFER_SIZE);
+        DataOutputStream dos = new DataOutputStream(bos);
+        formDef.writeExternal(dos);
+        dos.close();
+        return bos.toByteArray();
     }
 
-    private static FormDef deserializeFormDef(File serializedFormDef) {
-        FileInputStream fis;
+    /**
+     * Reads the serialized FormDef out of a cache file.
+     * @return the serialized FormDef, or null if the file is unreadable or was written
+     * by a different version of the cache
+     */
+    @Nullable
+    @VisibleForTesting
+    static byte[] readCacheFile(File cacheFile) {
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(cacheFile), IO_BUFFER_SIZE));
+
+            int magic = dis.readInt();
+            int version = dis.readInt();
+            if (magic != CACHE_FILE_MAGIC || version != CACHE_FILE_VERSION) {
+                Timber.w("Cache file %s has unsupported header (version %d)", cacheFile.getName(), version);
+                return null;
+            }
+
+            int length = dis.readInt();
+            if (length < 0 || length > cacheFile.length()) {
+                Timber.w("Cache file %s is truncated", cacheFile.getName());
+                return null;
+            }
+
+            byte[] serializedFormDef = new byte[length];
+            dis.readFully(serializedFormDef);
+            return serializedFormDef;
+        } catch (IOException e) {
+            Timber.e(e);
+            return null;
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException e) {
+                    Timber.e(e);
+                }
+            }
+        }
+    }
+
+    private static FormDef deserializeFormDef(byte[] serializedFormDef) {
         FormDef fd;
         try {
             // create new form def
             fd = new FormDef();
-            fis = new FileInputStream(serializedFormDef);
-            DataInputStream dis = new DataInputStream(fis);
+            DataInputStream dis = new DataInputStream(new ByteArrayInputStream(serializedFormDef));
 
             // read serialized formdef into new formdef
             fd.readExternal(dis, ExtUtil.defaultPrototypes());
@@ -126,4 +287,58 @@ public class FormDefCache {
 
         return fd;
     }
+
+    /**
+     * A least recently used cache of serialized FormDefs bounded by their total size in bytes.
+     */
+    @VisibleForTesting
+    static class MemoryCache {
+        private final long maxBytes;
+        private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long currentBytes;
+
+        MemoryCache(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] get(String key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(String key, byte[] value) {
+            if (value.length > maxBytes) {
+                remove(key);
+                return;
+            }
+
+            byte[] previous = entries.put(key, value);
+            if (previous != null) {
+                currentBytes -= previous.length;
+            }
+            currentBytes += value.length;
+
+            Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+            while (currentBytes > maxBytes && iterator.hasNext()) {
+                Map.Entry<String, byte[]> eldest = iterator.next();
+                currentBytes -= eldest.getValue().length;
+                iterator.remove();
+            }
+        }
+
+        synchronized void remove(String key) {
+            byte[] previous = entries.remove(key);
+            if (previous != null) {
+                currentBytes -= previous.length;
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            currentBytes = 0;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
 }
@@ -19,28 +19,39 @@ package org.odk.collect.android.utilities;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.text.format.Formatter;
 
-import org.javarosa.xform.parse.XFormParser;
-import org.kxml2.kdom.Element;
 import org.odk.collect.android.R;
 import org.odk.collect.android.application.Collect;
 import org.odk.collect.android.dao.FormsDao;
+import org.odk.collect.android.database.FileHashIndex;
 import org.odk.collect.android.http.CollectServerClient;
 import org.odk.collect.android.listeners.FormDownloaderListener;
 import org.odk.collect.android.logic.FormDetails;
 import org.odk.collect.android.logic.MediaFile;
 import org.odk.collect.android.provider.FormsProviderAPI;
+import org.odk.collect.android.tasks.FormDefCacheWorker;
+import org.xmlpull.v1.XmlPullParser;
 
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.inject.Inject;
 
@@ -51,10 +62,28 @@ public class FormDownloader {
     private static final String MD5_COLON_PREFIX = "md5:";
     private static final String TEMP_DOWNLOAD_EXTENSION = ".tempDownload";
 
+    /**
+     * Number of media files of a form that are downloaded at the same time.
+     */
+    private static final int MAX_PARALLEL_DOWNLOADS = 4;
+
+    private static final int DOWNLOAD_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Minimum time between two updates of the media download progress, in milliseconds.
+     */
+    private static final long PROGRESS_UPDATE_INTERVAL = 250;
+
     private FormDownloaderListener stateListener;
 
     private FormsDao formsDao;
 
+    /**
+     * Hashes of the media files of the form being downloaded, by file name, so that they can be
+     * indexed once the files are in the form's media folder.
+     */
+    private final Map<String, String> mediaFileHashes = new ConcurrentHashMap<>();
+
     @Inject CollectServerClient collectServerClient;
 
     public FormDownloader() {
@@ -67,13 +96,6 @@ public class FormDownloader {
         }
     }
 
-    private static final String NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_MANIFEST =
-            "http://openrosa.org/xforms/xformsManifest";
-
-    static boolean isXformsManifestNamespacedElement(Element e) {
-        return e.getNamespace().equalsIgnoreCase(NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_MANIFEST);
-    }
-
     private static class TaskCancelledException extends Exception {
         private final File file;
 
@@ -94,10 +116,12 @@ public class FormDownloader {
         int count = 1;
 
         final HashMap<FormDetails, String> result = new HashMap<>();
+        boolean anyInstalled = false;
 
         for (FormDetails fd : toDownload) {
             try {
                 String message = processOneForm(total, count++, fd);
+                anyInstalled |= message.isEmpty();
                 result.put(fd, message.isEmpty() ?
                         Collect.getInstance().getString(R.string.success) : message);
             } catch (TaskCancelledException cd) {
@@ -105,6 +129,10 @@ public class FormDownloader {
             }
         }
 
+        if (anyInstalled) {
+            FormDefCacheWorker.enqueue();
+        }
+
         return result;
     }
 
@@ -129,6 +157,7 @@ public class FormDownloader {
         String tempMediaPath = null;
         final String finalMediaPath;
         FileResult fileResult = null;
+        mediaFileHashes.clear();
         try {
             // get the xml file
             // if we've downloaded a duplicate, this gives us the file
@@ -208,6 +237,12 @@ public class FormDownloader {
             if (tempMediaPath != null) {
                 File formMediaPath = new File(uriResult.getMediaPath());
                 FileUtils.moveMediaFiles(tempMediaPath, formMediaPath);
+
+                // moving keeps the size and last modified time so the hashes are still valid
+                for (Map.Entry<String, String> mediaFileHash : mediaFileHashes.entrySet()) {
+                    FileHashIndex.getInstance().put(new File(formMediaPath, mediaFileHash.getKey()),
+                            mediaFileHash.getValue());
+                }
             }
         } catch (IOException e) {
             Timber.e(e);
@@ -330,7 +365,8 @@ public class FormDownloader {
             i++;
         }
 
-        downloadFile(f, url);
+        String md5 = downloadFile(f, url, null, null);
+        FileHashIndex.getInstance().put(f, md5);
 
         boolean isNew = true;
 
@@ -338,7 +374,7 @@ public class FormDownloader {
         // make sure it's not the same as a file we already have
         Cursor c = null;
         try {
-            c = formsDao.getFormsCursorForMd5Hash(FileUtils.getMd5Hash(f));
+            c = formsDao.getFormsCursorForMd5Hash(md5);
             if (c.getCount() > 0) {
                 // Should be at most, 1
                 c.moveToFirst();
@@ -373,8 +409,12 @@ public class FormDownloader {
      *
      * @param file        the final file
      * @param downloadUrl the url to get the contents from.
+     * @param expectedMd5 the hash the contents must have, or null if it isn't known
+     * @param progress    counts the bytes downloaded, or null
+     * @return the MD5 hash of the contents, computed while they are downloaded
      */
-    private void downloadFile(File file, String downloadUrl)
+    private String downloadFile(File file, String downloadUrl, @Nullable String expectedMd5,
+                                @Nullable MediaDownloadProgress progress)
             throws IOException, TaskCancelledException, URISyntaxException, Exception {
         File tempFile = File.createTempFile(file.getName(), TEMP_DOWNLOAD_EXTENSION,
                 new File(Collect.CACHE_PATH));
@@ -382,30 +422,46 @@ public class FormDownloader {
         // WiFi network connections can be renegotiated during a large form download sequence.
         // This will cause intermittent download failures.  Silently retry once after each
         // failure.  Only if there are two consecutive failures do we abort.
+        String md5 = null;
         boolean success = false;
         int attemptCount = 0;
         final int MAX_ATTEMPT_COUNT = 2;
         while (!success && ++attemptCount <= MAX_ATTEMPT_COUNT) {
-            if (stateListener != null && stateListener.isTaskCanceled()) {
+            if (isCancelled(progress)) {
                 throw new TaskCancelledException(tempFile);
             }
             Timber.i("Started downloading to %s from %s", tempFile.getAbsolutePath(), downloadUrl);
 
-                // write connection to file
-                InputStream is = null;
-                OutputStream os = null;
+            // write connection to file
+            InputStream is = null;
+            FileOutputStream os = null;
+            long received = 0;
 
-                try {
-                    is = collectServerClient.getHttpInputStream(downloadUrl, null).getInputStream();
-                    os = new FileOutputStream(tempFile);
-
-                    byte[] buf = new byte[4096];
-                    int len;
-                    while ((len = is.read(buf)) > 0 && (stateListener == null || !stateListener.isTaskCanceled())) {
-                        os.write(buf, 0, len);
+            try {
+                is = collectServerClient.getHttpInputStream(downloadUrl, null).getInputStream();
+                os = new FileOutputStream(tempFile);
+
+                // hash while downloading so that the file doesn't have to be read again
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                byte[] buf = new byte[DOWNLOAD_BUFFER_SIZE];
+                int len;
+                while ((len = is.read(buf)) > 0 && !isCancelled(progress)) {
+                    os.write(buf, 0, len);
+                    md.update(buf, 0, len);
+                    received += len;
+                    if (progress != null) {
+                        progress.bytesDownloaded(len);
                     }
-                    os.flush();
-                    success = true;
+                }
+                os.flush();
+                os.getFD().sync();
+                md5 = FileUtils.toMd5String(md.digest());
+
+                if (expectedMd5 != null && !isCancelled(progress) && !expectedMd5.equalsIgnoreCase(md5)) {
+                    throw new IOException("The hash of " + downloadUrl + " is " + md5
+                            + " instead of " + expectedMd5);
+                }
+                success = true;
 
             } catch (Exception e) {
                 Timber.e(e.toString());
@@ -413,37 +469,40 @@ public class FormDownloader {
                 // in which case we rethrow the exception.
 
                 FileUtils.deleteAndReport(tempFile);
+                if (progress != null) {
+                    progress.bytesDownloaded(-received);
+                }
 
                 if (attemptCount == MAX_ATTEMPT_COUNT) {
                     throw e;
                 }
             } finally {
-                    if (os != null) {
-                        try {
-                            os.close();
-                        } catch (Exception e) {
-                            Timber.e(e);
-                        }
+                if (os != null) {
+                    try {
+                        os.close();
+                    } catch (Exception e) {
+                        Timber.e(e);
                     }
-                    if (is != null) {
-                        try {
-                            // ensure stream is consumed...
-                            final long count = 1024L;
-                            while (is.skip(count) == count) {
-                                // skipping to the end of the http entity
-                            }
-                        } catch (Exception e) {
-                            // no-op
-                        }
-                        try {
-                            is.close();
-                        } catch (Exception e) {
-                            Timber.e(e);
+                }
+                if (is != null) {
+                    try {
+                        // ensure stream is consumed...
+                        final long count = 1024L;
+                        while (is.skip(count) == count) {
+                            // skipping to the end of the http entity
                         }
+                    } catch (Exception e) {
+                        // no-op
+                    }
+                    try {
+                        is.close();
+                    } catch (Exception e) {
+                        Timber.e(e);
                     }
                 }
+            }
 
-            if (stateListener != null && stateListener.isTaskCanceled()) {
+            if (isCancelled(progress)) {
                 FileUtils.deleteAndReport(tempFile);
                 throw new TaskCancelledException(tempFile);
             }
@@ -452,6 +511,20 @@ public class FormDownloader {
         Timber.d("Completed downloading of %s. It will be moved to the proper path...",
                 tempFile.getAbsolutePath());
 
+        moveIntoPlace(tempFile, file);
+        return md5;
+    }
+
+    /**
+     * Replaces the file with the downloaded one in a single rename, which leaves either the old
+     * or the new file in place if the app is stopped. The file is only copied if it can't be
+     * renamed, such as when the cache is on a different file system.
+     */
+    private void moveIntoPlace(File tempFile, File file) {
+        if (tempFile.renameTo(file)) {
+            return;
+        }
+
         FileUtils.deleteAndReport(file);
 
         String errorMessage = FileUtils.copyFile(tempFile, file);
@@ -467,6 +540,11 @@ public class FormDownloader {
         }
     }
 
+    private boolean isCancelled(@Nullable MediaDownloadProgress progress) {
+        return (stateListener != null && stateListener.isTaskCanceled())
+                || (progress != null && progress.isAborted());
+    }
+
     private static class UriResult {
 
         private final Uri uri;
@@ -523,101 +601,27 @@ public class FormDownloader {
                     String.valueOf(count), String.valueOf(total));
         }
 
-        List<MediaFile> files = new ArrayList<MediaFile>();
+        final List<MediaFile> files = new ArrayList<MediaFile>();
+        final String manifestUrl = fd.getManifestUrl();
 
-        DocumentFetchResult result = collectServerClient.getXmlDocument(fd.getManifestUrl());
+        DocumentFetchResult result = collectServerClient.parseXmlDocument(manifestUrl, new CollectServerClient.XmlDocumentHandler() {
+            @Override
+            public void parse(XmlPullParser parser, boolean isOpenRosaResponse) throws Exception {
+                FormListParser.parseManifest(parser, isOpenRosaResponse, manifestUrl, new FormListParser.MediaFileListener() {
+                    @Override
+                    public void mediaFileFound(MediaFile mediaFile) {
+                        files.add(mediaFile);
+                    }
+                });
+            }
+        });
 
         if (result.errorMessage != null) {
             return result.errorMessage;
         }
 
-        String errMessage = Collect.getInstance().getString(R.string.access_error, fd.getManifestUrl());
-
-        if (!result.isOpenRosaResponse) {
-            errMessage += Collect.getInstance().getString(R.string.manifest_server_error);
-            Timber.e(errMessage);
-            return errMessage;
-        }
-
-        // Attempt OpenRosa 1.0 parsing
-        Element manifestElement = result.doc.getRootElement();
-        if (!manifestElement.getName().equals("manifest")) {
-            errMessage +=
-                    Collect.getInstance().getString(R.string.root_element_error,
-                            manifestElement.getName());
-            Timber.e(errMessage);
-            return errMessage;
-        }
-        String namespace = manifestElement.getNamespace();
-        if (!isXformsManifestNamespacedElement(manifestElement)) {
-            errMessage += Collect.getInstance().getString(R.string.root_namespace_error, namespace);
-            Timber.e(errMessage);
-            return errMessage;
-        }
-        int elements = manifestElement.getChildCount();
-        for (int i = 0; i < elements; ++i) {
-            if (manifestElement.getType(i) != Element.ELEMENT) {
-                // e.g., whitespace (text)
-                continue;
-            }
-            Element mediaFileElement = manifestElement.getElement(i);
-            if (!isXformsManifestNamespacedElement(mediaFileElement)) {
-                // someone else's extension?
-                continue;
-            }
-            String name = mediaFileElement.getName();
-            if (name.equalsIgnoreCase("mediaFile")) {
-                String filename = null;
-                String hash = null;
-                String downloadUrl = null;
-                // don't process descriptionUrl
-                int childCount = mediaFileElement.getChildCount();
-                for (int j = 0; j < childCount; ++j) {
-                    if (mediaFileElement.getType(j) != Element.ELEMENT) {
-                        // e.g., whitespace (text)
-                        continue;
-                    }
-                    Element child = mediaFileElement.getElement(j);
-                    if (!isXformsManifestNamespacedElement(child)) {
-                        // someone else's extension?
-                        continue;
-                    }
-                    String tag = child.getName();
-                    switch (tag) {
-                        case "filename":
-                            filename = XFormParser.getXMLText(child, true);
-                            if (filename != null && filename.length() == 0) {
-                                filename = null;
-                            }
-                            break;
-                        case "hash":
-                            hash = XFormParser.getXMLText(child, true);
-                            if (hash != null && hash.length() == 0) {
-                                hash = null;
-                            }
-                            break;
-                        case "downloadUrl":
-                            downloadUrl = XFormParser.getXMLText(child, true);
-                            if (downloadUrl != null && downloadUrl.length() == 0) {
-                                downloadUrl = null;
-                            }
-                            break;
-                    }
-                }
-                if (filename == null || downloadUrl == null || hash == null) {
-                    errMessage +=
-                            Collect.getInstance().getString(R.string.manifest_tag_error,
-                                    Integer.toString(i));
-                    Timber.e(errMessage);
-                    return errMessage;
-                }
-                files.add(new MediaFile(filename, hash, downloadUrl));
-            }
-        }
-
         // OK we now have the full set of files to download...
         Timber.i("Downloading %d media files.", files.size());
-        int mediaCount = 0;
         if (!files.isEmpty()) {
             File tempMediaDir = new File(tempMediaPath);
             File finalMediaDir = new File(finalMediaPath);
@@ -625,31 +629,21 @@ public class FormDownloader {
             FileUtils.checkMediaPath(tempMediaDir);
             FileUtils.checkMediaPath(finalMediaDir);
 
-            for (MediaFile toDownload : files) {
-                ++mediaCount;
-                if (stateListener != null) {
-                    stateListener.progressUpdate(
-                            Collect.getInstance().getString(R.string.form_download_progress,
-                                    fd.getFormName(),
-                                    String.valueOf(mediaCount), String.valueOf(files.size())),
-                            String.valueOf(count), String.valueOf(total));
-                }
-
-                //try {
-                File finalMediaFile = new File(finalMediaDir, toDownload.getFilename());
-                File tempMediaFile = new File(tempMediaDir, toDownload.getFilename());
+            List<MediaFile> toDownload = new ArrayList<>();
+            for (MediaFile mediaFile : files) {
+                File finalMediaFile = new File(finalMediaDir, mediaFile.getFilename());
 
                 if (!finalMediaFile.exists()) {
-                    downloadFile(tempMediaFile, toDownload.getDownloadUrl());
+                    toDownload.add(mediaFile);
                 } else {
-                    String currentFileHash = FileUtils.getMd5Hash(finalMediaFile);
-                    String downloadFileHash = getMd5Hash(toDownload.getHash());
+                    String currentFileHash = FileHashIndex.getInstance().getMd5Hash(finalMediaFile);
+                    String downloadFileHash = getMd5Hash(mediaFile.getHash());
 
                     if (currentFileHash != null && downloadFileHash != null && !currentFileHash.contentEquals(downloadFileHash)) {
                         // if the hashes match, it's the same file
                         // otherwise delete our current one and replace it with the new one
                         FileUtils.deleteAndReport(finalMediaFile);
-                        downloadFile(tempMediaFile, toDownload.getDownloadUrl());
+                        toDownload.add(mediaFile);
                     } else {
                         // exists, and the hash is the same
                         // no need to download it again
@@ -657,14 +651,141 @@ public class FormDownloader {
                                 finalMediaFile.getAbsolutePath());
                     }
                 }
-                //  } catch (Exception e) {
-                //  return e.getLocalizedMessage();
-                //}
             }
+
+            downloadMediaFiles(toDownload, tempMediaDir,
+                    new MediaDownloadProgress(fd.getFormName(), toDownload.size(), count, total));
         }
         return null;
     }
 
+    /**
+     * Downloads the media files into the given folder, several at a time. If one of them can't
+     * be downloaded, the others are stopped and the first failure is thrown once they have.
+     */
+    private void downloadMediaFiles(List<MediaFile> mediaFiles, final File tempMediaDir,
+                                    final MediaDownloadProgress progress) throws Exception {
+        if (mediaFiles.isEmpty()) {
+            return;
+        }
+
+        final long start = System.currentTimeMillis();
+        progress.report(true);
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(MAX_PARALLEL_DOWNLOADS, mediaFiles.size()));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final MediaFile mediaFile : mediaFiles) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            String md5 = downloadFile(new File(tempMediaDir, mediaFile.getFilename()),
+                                    mediaFile.getDownloadUrl(), getMd5Hash(mediaFile.getHash()), progress);
+                            mediaFileHashes.put(mediaFile.getFilename(), md5);
+                        } catch (Exception e) {
+                            progress.abort(e);
+                            throw e;
+                        }
+                        progress.fileDownloaded();
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    // the first failure is rethrown below
+                    if (!(e.getCause() instanceof Exception)) {
+                        progress.abort(new RuntimeException(e.getCause()));
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (progress.getFailure() != null) {
+            throw progress.getFailure();
+        }
+
+        Timber.i("Downloaded %d media files (%d bytes) in %.3f seconds.", mediaFiles.size(),
+                progress.getBytes(), (System.currentTimeMillis() - start) / 1000F);
+    }
+
+    /**
+     * Counts the bytes of the media files of a form as they are downloaded and shows them to the
+     * user, at most every {@link #PROGRESS_UPDATE_INTERVAL} milliseconds.
+     */
+    private class MediaDownloadProgress {
+        private final String formName;
+        private final int fileCount;
+        private final int count;
+        private final int total;
+
+        private final AtomicLong bytes = new AtomicLong();
+        private final AtomicInteger filesDownloaded = new AtomicInteger();
+        private long lastReport;
+        private Exception failure;
+
+        MediaDownloadProgress(String formName, int fileCount, int count, int total) {
+            this.formName = formName;
+            this.fileCount = fileCount;
+            this.count = count;
+            this.total = total;
+        }
+
+        void bytesDownloaded(long byteCount) {
+            bytes.addAndGet(byteCount);
+            report(false);
+        }
+
+        void fileDownloaded() {
+            filesDownloaded.incrementAndGet();
+            report(true);
+        }
+
+        long getBytes() {
+            return bytes.get();
+        }
+
+        synchronized void report(boolean always) {
+            long now = System.currentTimeMillis();
+            if (stateListener == null || (!always && now - lastReport < PROGRESS_UPDATE_INTERVAL)) {
+                return;
+            }
+            lastReport = now;
+
+            stateListener.progressUpdate(
+                    Collect.getInstance().getString(R.string.form_download_progress_bytes,
+                            formName,
+                            Formatter.formatShortFileSize(Collect.getInstance(), bytes.get()),
+                            String.valueOf(filesDownloaded.get()), String.valueOf(fileCount)),
+                    String.valueOf(count), String.valueOf(total));
+        }
+
+        /**
+         * Stops the other downloads because of the given failure, unless there has been one
+         * already.
+         */
+        synchronized void abort(Exception e) {
+            if (failure == null) {
+                failure = e;
+            }
+        }
+
+        synchronized boolean isAborted() {
+            return failure != null;
+        }
+
+        synchronized Exception getFailure() {
+            return failure;
+        }
+    }
+
     public static String getMd5Hash(String hash) {
         return hash == null || hash.isEmpty() ? null : hash.substring(MD5_COLON_PREFIX.length());
     }
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2018 Nafundi
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.odk.collect.android.utilities;
+
+import android.support.annotation.Nullable;
+
+import org.odk.collect.android.R;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.logic.FormDetails;
+import org.odk.collect.android.logic.MediaFile;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+
+import timber.log.Timber;
+
+/**
+ * Reads form lists and manifests as they are downloaded, handing over each form or media file
+ * as soon as its entry has been read instead of building the whole document in memory first.
+ */
+public class FormListParser {
+
+    private static final String NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_LIST =
+            "http://openrosa.org/xforms/xformsList";
+
+    private static final String NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_MANIFEST =
+            "http://openrosa.org/xforms/xformsManifest";
+
+    public interface FormListener {
+        void formFound(FormDetails formDetails) throws Exception;
+    }
+
+    public interface MediaFileListener {
+        void mediaFileFound(MediaFile mediaFile) throws Exception;
+    }
+
+    /**
+     * Thrown when a document is well formed but isn't the form list or manifest it should be.
+     * The message can be shown to the user.
+     */
+    public static class InvalidDocumentException extends Exception {
+        InvalidDocumentException(String message) {
+            super(message);
+        }
+    }
+
+    private FormListParser() {
+    }
+
+    /**
+     * Reads an OpenRosa 1.0 form list or, if the server isn't an OpenRosa one, an Aggregate 0.9.x
+     * one. The forms are given without the results of update checks.
+     *
+     * @param parser a namespace aware parser at the start of the document
+     */
+    public static void parseFormList(XmlPullParser parser, boolean isOpenRosaResponse,
+                                     FormListener listener) throws Exception {
+        if (isOpenRosaResponse) {
+            parseOpenRosaFormList(parser, listener);
+        } else {
+            parseLegacyFormList(parser, listener);
+        }
+    }
+
+    private static void parseOpenRosaFormList(XmlPullParser parser, FormListener listener) throws Exception {
+        moveToRootElement(parser);
+        if (!parser.getName().equals("xforms")) {
+            throw openRosaFormListError("root element is not <xforms> : " + parser.getName());
+        }
+        if (!isXformsListNamespacedElement(parser)) {
+            throw openRosaFormListError("root element namespace is incorrect:" + parser.getNamespace());
+        }
+
+        int entry = 0;
+        while (nextChildElement(parser)) {
+            if (!isXformsListNamespacedElement(parser) || !parser.getName().equalsIgnoreCase("xform")) {
+                // someone else's extension?
+                skipElement(parser);
+                continue;
+            }
+
+            // this is something we know how to interpret
+            String formId = null;
+            String formName = null;
+            String version = null;
+            String majorMinorVersion = null;
+            String downloadUrl = null;
+            String manifestUrl = null;
+            String hash = null;
+            // don't process descriptionUrl
+            while (nextChildElement(parser)) {
+                if (!isXformsListNamespacedElement(parser)) {
+                    // someone else's extension?
+                    skipElement(parser);
+                    continue;
+                }
+                switch (parser.getName()) {
+                    case "formID":
+                        formId = readText(parser);
+                        break;
+                    case "name":
+                        formName = readText(parser);
+                        break;
+                    case "version":
+                        version = readText(parser);
+                        break;
+                    case "majorMinorVersion":
+                        majorMinorVersion = readText(parser);
+                        break;
+                    case "downloadUrl":
+                        downloadUrl = readText(parser);
+                        break;
+                    case "manifestUrl":
+                        manifestUrl = readText(parser);
+                        break;
+                    case "hash":
+                        hash = readText(parser);
+                        break;
+                    default:
+                        skipElement(parser);
+                        break;
+                }
+            }
+
+            if (formId == null || downloadUrl == null || formName == null) {
+                throw openRosaFormListError("Forms list entry " + Integer.toString(entry)
+                        + " has missing or empty tags: formID, name, or downloadUrl");
+            }
+            listener.formFound(new FormDetails(formName, downloadUrl, manifestUrl, formId,
+                    (version != null) ? version : majorMinorVersion, hash, null, false, false));
+            entry++;
+        }
+    }
+
+    private static void parseLegacyFormList(XmlPullParser parser, FormListener listener) throws Exception {
+        moveToRootElement(parser);
+
+        // populate with form names and urls
+        int entry = 0;
+        String formId = null;
+        while (nextChildElement(parser)) {
+            String tag = parser.getName();
+            if (tag.equals("formID")) {
+                formId = readText(parser);
+            } else if (tag.equalsIgnoreCase("form")) {
+                String downloadUrl = parser.getAttributeValue(null, "url");
+                if (downloadUrl != null) {
+                    downloadUrl = downloadUrl.trim();
+                    if (downloadUrl.length() == 0) {
+                        downloadUrl = null;
+                    }
+                }
+                String formName = readText(parser);
+                if (downloadUrl == null || formName == null) {
+                    String error = "Forms list entry " + Integer.toString(entry)
+                            + " is missing form name or url attribute";
+                    Timber.e("Parsing OpenRosa reply -- %s", error);
+                    throw new InvalidDocumentException(Collect.getInstance().getString(
+                            R.string.parse_legacy_formlist_failed, error));
+                }
+                listener.formFound(new FormDetails(formName, downloadUrl, null, formId, null, null,
+                        null, false, false));
+
+                formId = null;
+                entry++;
+            } else {
+                skipElement(parser);
+            }
+        }
+    }
+
+    /**
+     * Reads an OpenRosa 1.0 manifest.
+     *
+     * @param parser      a namespace aware parser at the start of the document
+     * @param manifestUrl where the manifest comes from, which errors mention
+     */
+    public static void parseManifest(XmlPullParser parser, boolean isOpenRosaResponse, String manifestUrl,
+                                     MediaFileListener listener) throws Exception {
+        String errMessage = Collect.getInstance().getString(R.string.access_error, manifestUrl);
+
+        if (!isOpenRosaResponse) {
+            errMessage += Collect.getInstance().getString(R.string.manifest_server_error);
+            Timber.e(errMessage);
+            throw new InvalidDocumentException(errMessage);
+        }
+
+        // Attempt OpenRosa 1.0 parsing
+        moveToRootElement(parser);
+        if (!parser.getName().equals("manifest")) {
+            errMessage += Collect.getInstance().getString(R.string.root_element_error, parser.getName());
+            Timber.e(errMessage);
+            throw new InvalidDocumentException(errMessage);
+        }
+        if (!isXformsManifestNamespacedElement(parser)) {
+            errMessage += Collect.getInstance().getString(R.string.root_namespace_error, parser.getNamespace());
+            Timber.e(errMessage);
+            throw new InvalidDocumentException(errMessage);
+        }
+
+        int entry = 0;
+        while (nextChildElement(parser)) {
+            if (!isXformsManifestNamespacedElement(parser) || !parser.getName().equalsIgnoreCase("mediaFile")) {
+                // someone else's extension?
+                skipElement(parser);
+                continue;
+            }
+
+            String filename = null;
+            String hash = null;
+            String downloadUrl = null;
+            // don't process descriptionUrl
+            while (nextChildElement(parser)) {
+                if (!isXformsManifestNamespacedElement(parser)) {
+                    // someone else's extension?
+                    skipElement(parser);
+                    continue;
+                }
+                switch (parser.getName()) {
+                    case "filename":
+                        filename = readText(parser);
+                        break;
+                    case "hash":
+                        hash = readText(parser);
+                        break;
+                    case "downloadUrl":
+                        downloadUrl = readText(parser);
+                        break;
+                    default:
+                        skipElement(parser);
+                        break;
+                }
+            }
+
+            if (filename == null || downloadUrl == null || hash == null) {
+                errMessage += Collect.getInstance().getString(R.string.manifest_tag_error, Integer.toString(entry));
+                Timber.e(errMessage);
+                throw new InvalidDocumentException(errMessage);
+            }
+            listener.mediaFileFound(new MediaFile(filename, hash, downloadUrl));
+            entry++;
+        }
+    }
+
+    private static InvalidDocumentException openRosaFormListError(String error) {
+        Timber.e("Parsing OpenRosa reply -- %s", error);
+        return new InvalidDocumentException(Collect.getInstance().getString(
+                R.string.parse_openrosa_formlist_failed, error));
+    }
+
+    private static boolean isXformsListNamespacedElement(XmlPullParser parser) {
+        return NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_LIST.equalsIgnoreCase(parser.getNamespace());
+    }
+
+    private static boolean isXformsManifestNamespacedElement(XmlPullParser parser) {
+        return NAMESPACE_OPENROSA_ORG_XFORMS_XFORMS_MANIFEST.equalsIgnoreCase(parser.getNamespace());
+    }
+
+    private static void moveToRootElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+        if (!nextChildElement(parser)) {
+            throw new XmlPullParserException("No root element", parser, null);
+        }
+    }
+
+    /**
+     * Moves to the next child of the current element, skipping text such as whitespace.
+     *
+     * @return false once the end of the current element has been reached instead
+     */
+    private static boolean nextChildElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+        while (true) {
+            switch (parser.next()) {
+                case XmlPullParser.START_TAG:
+                    return true;
+                case XmlPullParser.END_TAG:
+                case XmlPullParser.END_DOCUMENT:
+                    return false;
+                default:
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns the trimmed text of the current element, or null if there isn't any, and moves to
+     * its end. Like XFormParser.getXMLText, the text of child elements isn't included.
+     */
+    @Nullable
+    private static String readText(XmlPullParser parser) throws XmlPullParserException, IOException {
+        StringBuilder text = new StringBuilder();
+        int depth = 1;
+        while (depth > 0) {
+            switch (parser.next()) {
+                case XmlPullParser.START_TAG:
+                    depth++;
+                    break;
+                case XmlPullParser.END_TAG:
+                    depth--;
+                    break;
+                case XmlPullParser.TEXT:
+                    if (depth == 1) {
+                        text.append(parser.getText());
+                    }
+                    break;
+                case XmlPullParser.END_DOCUMENT:
+                    throw new XmlPullParserException("Unexpected end of document", parser, null);
+                default:
+                    break;
+            }
+        }
+
+        String trimmed = text.toString().trim();
+        return trimmed.length() == 0 ? null : trimmed;
+    }
+
+    private static void skipElement(XmlPullParser parser) throws XmlPullParserException, IOException {
+        readText(parser);
+    }
+}
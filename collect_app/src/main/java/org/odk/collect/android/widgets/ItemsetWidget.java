@@ -37,8 +37,11 @@ import org.odk.collect.android.utilities.FileUtil;
 import org.odk.collect.android.utilities.XPathParseTool;
 
 import java.io.File;
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 
 import timber.log.Timber;
 
@@ -53,6 +56,27 @@ public class ItemsetWidget extends AbstractSelectOneWidget {
 
     private static final String QUOTATION_MARK = "\"";
 
+    /**
+     * Number of parsed queries and of query results that are kept. Cascading selects show the
+     * same few queries over and over while answers are changed and the form is navigated.
+     */
+    private static final int MAX_CACHED_QUERIES = 50;
+    private static final int MAX_CACHED_RESULTS = 50;
+
+    private static final Map<String, ItemsetQuery> QUERY_CACHE = new LinkedHashMap<String, ItemsetQuery>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ItemsetQuery> eldest) {
+            return size() > MAX_CACHED_QUERIES;
+        }
+    };
+
+    private static final Map<String, ItemsetResult> RESULT_CACHE = new LinkedHashMap<String, ItemsetResult>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ItemsetResult> eldest) {
+            return size() > MAX_CACHED_RESULTS;
+        }
+    };
+
     private final FormEntryPrompt formEntryPrompt;
     private final XPathParseTool parseTool;
     private final ItemsetDbAdapter adapter;
@@ -84,16 +108,53 @@ public class ItemsetWidget extends AbstractSelectOneWidget {
         items = getItems();
     }
 
-    private List<SelectChoice> getItems() {
-        String nodesetString = getNodesetString();
+    /**
+     * Forgets the cached queries and results. Needs to be called when the itemsets are imported
+     * again.
+     */
+    public static void clearCache() {
+        synchronized (RESULT_CACHE) {
+            QUERY_CACHE.clear();
+            RESULT_CACHE.clear();
+        }
+    }
 
-        List<String> arguments = new ArrayList<>();
-        String selectionString = getSelectionStringAndPopulateArguments(getQueryString(nodesetString), arguments);
+    private List<SelectChoice> getItems() {
+        ItemsetQuery query = getQuery(getNodesetString());
 
         FormController formController = Collect.getInstance().getFormController();
-        String[] selectionArgs = getSelectionArgs(arguments, nodesetString, formController);
+        String[] selectionArgs = getSelectionArgs(query.arguments, query.listName, formController);
+
+        return selectionArgs == null ? null : getItemsFromDatabase(query, selectionArgs, formController);
+    }
 
-        return selectionArgs == null ? null : getItemsFromDatabase(selectionString, selectionArgs, formController);
+    /**
+     * Indexes the columns that an itemset query compares so that showing its items doesn't scan
+     * the whole table. Must be called in the background once the itemsets have been imported.
+     *
+     * @param pathHash      the itemsets table, as returned by
+     *                      {@link ItemsetDbAdapter#getMd5FromString(String)}
+     * @param nodesetString the query attribute of an itemset question
+     */
+    public static void createIndex(ItemsetDbAdapter adapter, String pathHash, String nodesetString) {
+        adapter.createIndex(pathHash, getQuery(nodesetString).indexedColumns);
+    }
+
+    private static ItemsetQuery getQuery(String nodesetString) {
+        synchronized (RESULT_CACHE) {
+            ItemsetQuery query = QUERY_CACHE.get(nodesetString);
+            if (query == null) {
+                query = new ItemsetQuery();
+
+                // parse out the list name, between the ''
+                query.listName = nodesetString.substring(nodesetString.indexOf('\'') + 1, nodesetString.lastIndexOf('\''));
+                query.selection = getSelectionStringAndPopulateArguments(getQueryString(nodesetString),
+                        query.arguments, query.indexedColumns);
+
+                QUERY_CACHE.put(nodesetString, query);
+            }
+            return query;
+        }
     }
 
     private String getNodesetString() {
@@ -103,15 +164,19 @@ public class ItemsetWidget extends AbstractSelectOneWidget {
         return formEntryPrompt.getQuestion().getAdditionalAttribute(null, "query");
     }
 
-    private String getQueryString(String nodesetStr) {
+    private static String getQueryString(String nodesetStr) {
         // isolate the string between between the [ ] characters
         return nodesetStr.substring(nodesetStr.indexOf('[') + 1, nodesetStr.lastIndexOf(']'));
     }
 
-    private String getSelectionStringAndPopulateArguments(String queryString, List<String> arguments) {
+    private static String getSelectionStringAndPopulateArguments(String queryString, List<String> arguments,
+                                                                 List<String> indexedColumns) {
         StringBuilder selectionString = new StringBuilder();
         // add the list name as the first argument, which will always be there
         selectionString.append("list_name=?");
+        indexedColumns.add("list_name");
+        List<String> comparedColumns = new ArrayList<>();
+        boolean anyOr = false;
 
         // check to see if there are any arguments
         if (queryString.indexOf('=') != -1) {
@@ -140,6 +205,7 @@ public class ItemsetWidget extends AbstractSelectOneWidget {
                     arguments
                             .add(pair[1]
                                     .trim());
+                    comparedColumns.add(pair[0].trim());
                 }
                 // move string forward to after " and "
                 queryString = queryString.substring(andIndex + 5, queryString.length());
@@ -154,7 +220,9 @@ public class ItemsetWidget extends AbstractSelectOneWidget {
                             .append(QUOTATION_MARK)
                             .append("=? or ");
                     arguments.add(pair[1].trim());
+                    comparedColumns.add(pair[0].trim());
                 }
+                anyOr = true;
                 // move string forward to after " or "
                 queryString = queryString.substring(orIndex + 4, queryString.length());
                 orIndex = -1;
@@ -170,17 +238,24 @@ public class ItemsetWidget extends AbstractSelectOneWidget {
                     .append(QUOTATION_MARK)
                     .append("=?");
             arguments.add(pair[1].trim());
+            comparedColumns.add(pair[0].trim());
+        }
+
+        // an index on all the columns only helps if all of them have to match
+        if (!anyOr) {
+            for (String column : comparedColumns) {
+                if (!indexedColumns.contains(column)) {
+                    indexedColumns.add(column);
+                }
+            }
         }
         return selectionString.toString();
     }
 
-    private String[] getSelectionArgs(List<String> arguments, String nodesetStr, FormController formController) {
+    private String[] getSelectionArgs(List<String> arguments, String listName, FormController formController) {
         // +1 is for the list_name
         String[] selectionArgs = new String[arguments.size() + 1];
 
-        // parse out the list name, between the ''
-        String listName = nodesetStr.substring(nodesetStr.indexOf('\'') + 1, nodesetStr.lastIndexOf('\''));
-
         selectionArgs[0] = listName; // first argument is always listname
 
         if (formController == null) {
@@ -222,60 +297,130 @@ public class ItemsetWidget extends AbstractSelectOneWidget {
         return selectionArgs;
     }
 
-    private List<SelectChoice> getItemsFromDatabase(String selection, String[] selectionArgs, FormController formController) {
-        List<SelectChoice> items = new ArrayList<>();
-
+    private List<SelectChoice> getItemsFromDatabase(ItemsetQuery query, String[] selectionArgs, FormController formController) {
         File itemsetFile =  fileUtil.getItemsetFile(formController.getMediaFolder().getAbsolutePath());
 
         if (itemsetFile.exists()) {
-            adapter.open();
-
             // name of the itemset table for this form
             String pathHash = ItemsetDbAdapter.getMd5FromString(itemsetFile.getAbsolutePath());
-            try {
-                Cursor c = adapter.query(pathHash, selection, selectionArgs);
-                if (c != null) {
-                    c.move(-1);
-                    int index = 0;
-                    while (c.moveToNext()) {
-                        String label;
-                        String val;
-
-                        // try to get the value associated with the label:lang
-                        // string if that doen't exist, then just use label
-                        String lang = "";
-                        if (formController.getLanguages() != null && formController.getLanguages().length > 0) {
-                            lang = formController.getLanguage();
-                        }
-
-                        // apparently you only need the double quotes in the
-                        // column name when creating the column with a : included
-                        String labelLang = "label" + "::" + lang;
-                        int langCol = c.getColumnIndex(labelLang);
-                        if (langCol == -1) {
-                            label = c.getString(c.getColumnIndex("label"));
-                        } else {
-                            label = c.getString(c.getColumnIndex(labelLang));
-                        }
-
-                        val = c.getString(c.getColumnIndex("name"));
-                        SelectChoice selectChoice = new SelectChoice(null, label, val, false);
-                        selectChoice.setIndex(index);
-                        items.add(selectChoice);
-                        index++;
+
+            // try to get the value associated with the label:lang
+            // string if that doen't exist, then just use label
+            String lang = "";
+            if (formController.getLanguages() != null && formController.getLanguages().length > 0) {
+                lang = formController.getLanguage();
+            }
+
+            // the answers the query depends on are part of the key
+            StringBuilder resultKey = new StringBuilder(pathHash)
+                    .append('\u0000').append(lang)
+                    .append('\u0000').append(query.selection);
+            for (String selectionArg : selectionArgs) {
+                resultKey.append('\u0000').append(selectionArg);
+            }
+
+            ItemsetResult result;
+            synchronized (RESULT_CACHE) {
+                result = RESULT_CACHE.get(resultKey.toString());
+            }
+            if (result == null) {
+                result = queryItems(pathHash, query, selectionArgs, lang);
+                if (result != null) {
+                    synchronized (RESULT_CACHE) {
+                        RESULT_CACHE.put(resultKey.toString(), result);
                     }
-                    c.close();
                 }
-            } catch (SQLiteException e) {
-                Timber.i(e);
-            } finally {
-                adapter.close();
             }
+            return result == null ? new ArrayList<>() : new ItemsetChoiceList(result);
         } else {
             TextView error = new TextView(getContext());
             error.setText(getContext().getString(R.string.file_missing, itemsetFile.getAbsolutePath()));
             addAnswerView(error);
         }
-        return items;
+        return new ArrayList<>();
+    }
+
+    private ItemsetResult queryItems(String pathHash, ItemsetQuery query, String[] selectionArgs, String lang) {
+        adapter.open();
+        try {
+            Cursor c = adapter.query(pathHash, query.selection, selectionArgs);
+            if (c == null) {
+                return null;
+            }
+
+            ItemsetResult result = new ItemsetResult(c.getCount());
+            c.move(-1);
+            while (c.moveToNext()) {
+                // apparently you only need the double quotes in the
+                // column name when creating the column with a : included
+                String labelLang = "label" + "::" + lang;
+                int langCol = c.getColumnIndex(labelLang);
+                if (langCol == -1) {
+                    result.labels.add(c.getString(c.getColumnIndex("label")));
+                } else {
+                    result.labels.add(c.getString(c.getColumnIndex(labelLang)));
+                }
+
+                result.values.add(c.getString(c.getColumnIndex("name")));
+            }
+            c.close();
+            return result;
+        } catch (SQLiteException e) {
+            Timber.i(e);
+            return null;
+        } finally {
+            adapter.close();
+        }
+    }
+
+    /**
+     * The parts of an itemset query that only depend on the query attribute.
+     */
+    private static class ItemsetQuery {
+        String listName;
+        String selection;
+        final List<String> arguments = new ArrayList<>();
+        final List<String> indexedColumns = new ArrayList<>();
+    }
+
+    /**
+     * The labels and values of the items that a query returned.
+     */
+    private static class ItemsetResult {
+        final List<String> labels;
+        final List<String> values;
+
+        ItemsetResult(int count) {
+            labels = new ArrayList<>(count);
+            values = new ArrayList<>(count);
+        }
+    }
+
+    /**
+     * Creates the choices for a result as the list is read. The list only shows the choices
+     * that are on screen so most of them are never needed.
+     */
+    private static class ItemsetChoiceList extends AbstractList<SelectChoice> {
+        private final ItemsetResult result;
+        private final SelectChoice[] choices;
+
+        ItemsetChoiceList(ItemsetResult result) {
+            this.result = result;
+            choices = new SelectChoice[result.values.size()];
+        }
+
+        @Override
+        public SelectChoice get(int index) {
+            if (choices[index] == null) {
+                choices[index] = new SelectChoice(null, result.labels.get(index), result.values.get(index), false);
+                choices[index].setIndex(index);
+            }
+            return choices[index];
+        }
+
+        @Override
+        public int size() {
+            return choices.length;
+        }
     }
 }
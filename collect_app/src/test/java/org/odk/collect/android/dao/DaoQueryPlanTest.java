@@ -0,0 +1,187 @@
+package org.odk.collect.android.dao;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.net.Uri;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.database.helpers.FormsDatabaseHelper;
+import org.odk.collect.android.database.helpers.InstancesDatabaseHelper;
+import org.odk.collect.android.provider.FormsProviderAPI;
+import org.odk.collect.android.provider.InstanceProviderAPI;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that the lookups of {@link FormsDao} and {@link InstancesDao} use the indexes of the
+ * forms and instances tables instead of reading every row. The DAOs are given providers that
+ * ask SQLite how it would run each query against tables created by the database helpers.
+ *
+ * The methods that list every form or every saved instance aren't checked since they read
+ * the whole table anyway.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class DaoQueryPlanTest {
+
+    private QueryPlanProvider formsProvider;
+    private QueryPlanProvider instancesProvider;
+
+    @Before
+    public void setUp() {
+        formsProvider = Robolectric.buildContentProvider(FormsQueryPlanProvider.class)
+                .create(FormsProviderAPI.AUTHORITY).get();
+        instancesProvider = Robolectric.buildContentProvider(InstancesQueryPlanProvider.class)
+                .create(InstanceProviderAPI.AUTHORITY).get();
+    }
+
+    @Test
+    public void formLookupsUseAnIndex() {
+        FormsDao formsDao = new FormsDao();
+
+        formsDao.getFormsCursor("formId", null).close();
+        formsDao.getFormsCursor("formId", "1").close();
+        formsDao.getFormsCursorForFormId("formId").close();
+        formsDao.getFormsCursorForFormFilePath("/sdcard/odk/forms/form.xml").close();
+        formsDao.getFormsCursorForMd5Hash("0123456789abcdef0123456789abcdef").close();
+        formsDao.deleteFormsFromIDs(new String[]{"1", "2"});
+
+        assertNoFullScans(formsProvider);
+    }
+
+    @Test
+    public void instanceLookupsUseAnIndex() {
+        InstancesDao instancesDao = new InstancesDao();
+        String sortOrder = InstanceProviderAPI.InstanceColumns.DISPLAY_NAME + " ASC";
+
+        instancesDao.getSentInstancesCursor().close();
+        instancesDao.getUnsentInstancesCursor().close();
+        instancesDao.getFinalizedInstancesCursor().close();
+        instancesDao.getAllCompletedUndeletedInstancesCursor().close();
+        instancesDao.getSentInstancesCursorLoader("name", sortOrder).loadInBackground().close();
+        instancesDao.getUnsentInstancesCursorLoader("name", sortOrder).loadInBackground().close();
+        instancesDao.getFinalizedInstancesCursorLoader("name", sortOrder).loadInBackground().close();
+        instancesDao.getCompletedUndeletedInstancesCursorLoader("name", sortOrder).loadInBackground().close();
+        instancesDao.getInstancesCursorForFilePath("/sdcard/odk/instances/one/one.xml").close();
+        instancesDao.getInstancesCursorForId("1").close();
+        instancesDao.deleteInstancesFromIDs(Arrays.asList("/sdcard/odk/instances/one/one.xml",
+                "/sdcard/odk/instances/two/two.xml"));
+
+        assertNoFullScans(instancesProvider);
+    }
+
+    private static void assertNoFullScans(QueryPlanProvider provider) {
+        assertFalse(provider.plans.isEmpty());
+        for (String[] plan : provider.plans) {
+            if (plan[1].matches("SCAN (TABLE )?" + provider.getTable() + "\\b.*")) {
+                fail(plan[0] + " reads every row: " + plan[1]);
+            }
+        }
+    }
+
+    /**
+     * Records how SQLite would run the statements the DAOs send to a provider.
+     */
+    abstract static class QueryPlanProvider extends ContentProvider {
+        /**
+         * Each statement with a step of its plan.
+         */
+        final List<String[]> plans = new ArrayList<>();
+
+        private SQLiteDatabase db;
+
+        abstract String getTable();
+
+        abstract void createTable(SQLiteDatabase db);
+
+        @Override
+        public boolean onCreate() {
+            db = SQLiteDatabase.create(null);
+            createTable(db);
+            return true;
+        }
+
+        @Override
+        public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                            @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+            SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+            qb.setTables(getTable());
+            if (uri.getPathSegments().size() > 1) {
+                qb.appendWhere("_id=" + uri.getLastPathSegment());
+            }
+            String sql = qb.buildQuery(projection, selection, null, null, sortOrder, null);
+            explain(sql, selectionArgs);
+            return db.rawQuery(sql, selectionArgs);
+        }
+
+        @Override
+        public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+            explain("DELETE FROM " + getTable() + (selection != null ? " WHERE " + selection : ""), selectionArgs);
+            return 0;
+        }
+
+        @Override
+        public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection,
+                          @Nullable String[] selectionArgs) {
+            return 0;
+        }
+
+        @Nullable
+        @Override
+        public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+            return null;
+        }
+
+        @Nullable
+        @Override
+        public String getType(@NonNull Uri uri) {
+            return null;
+        }
+
+        private void explain(String sql, String[] selectionArgs) {
+            try (Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs)) {
+                int detailColumnIndex = cursor.getColumnIndex("detail");
+                while (cursor.moveToNext()) {
+                    plans.add(new String[]{sql, cursor.getString(detailColumnIndex)});
+                }
+            }
+        }
+    }
+
+    public static class FormsQueryPlanProvider extends QueryPlanProvider {
+        @Override
+        String getTable() {
+            return FormsDatabaseHelper.FORMS_TABLE_NAME;
+        }
+
+        @Override
+        void createTable(SQLiteDatabase db) {
+            new FormsDatabaseHelper().onCreate(db);
+        }
+    }
+
+    public static class InstancesQueryPlanProvider extends QueryPlanProvider {
+        @Override
+        String getTable() {
+            return InstancesDatabaseHelper.INSTANCES_TABLE_NAME;
+        }
+
+        @Override
+        void createTable(SQLiteDatabase db) {
+            new InstancesDatabaseHelper().onCreate(db);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package org.odk.collect.android.dao;
+
+import android.Manifest;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.os.Environment;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.dto.InstanceCounts;
+import org.odk.collect.android.provider.InstanceProvider;
+import org.odk.collect.android.provider.InstanceProviderAPI;
+import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowEnvironment;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+public class InstanceCountsTest {
+
+    private ContentResolver contentResolver;
+
+    @Before
+    public void setUp() {
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+        ShadowApplication.getInstance().grantPermissions(Manifest.permission.READ_EXTERNAL_STORAGE,
+                Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+        Robolectric.buildContentProvider(InstanceProvider.class).create(InstanceProviderAPI.AUTHORITY);
+        contentResolver = RuntimeEnvironment.application.getContentResolver();
+
+        // the database is kept by the provider between tests
+        contentResolver.delete(InstanceColumns.CONTENT_URI, null, null);
+    }
+
+    @Test
+    public void countsFollowInsertsAndStatusChanges() {
+        insert("one", InstanceProviderAPI.STATUS_INCOMPLETE);
+        insert("two", InstanceProviderAPI.STATUS_INCOMPLETE);
+        insert("three", InstanceProviderAPI.STATUS_COMPLETE);
+
+        InstanceCounts counts = queryCounts(2);
+        assertEquals(2, counts.getCount(InstanceProviderAPI.STATUS_INCOMPLETE));
+        assertEquals(1, counts.getFinalizedCount());
+        assertEquals(3, counts.getUnsentCount());
+        assertEquals(0, counts.getSentCount());
+
+        setStatus("one", InstanceProviderAPI.STATUS_COMPLETE);
+        setStatus("three", InstanceProviderAPI.STATUS_SUBMITTED);
+
+        counts = queryCounts(3);
+        assertEquals(1, counts.getCount(InstanceProviderAPI.STATUS_INCOMPLETE));
+        assertEquals(1, counts.getFinalizedCount());
+        assertEquals(2, counts.getUnsentCount());
+        assertEquals(1, counts.getSentCount());
+    }
+
+    @Test
+    public void countsAreNotifiedOfChangesToAnyInstance() {
+        insert("one", InstanceProviderAPI.STATUS_INCOMPLETE);
+
+        try (Cursor cursor = contentResolver.query(InstanceColumns.CONTENT_COUNT_BY_STATUS_URI,
+                null, null, null, null)) {
+            final boolean[] changed = {false};
+            cursor.registerContentObserver(new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    changed[0] = true;
+                }
+            });
+
+            setStatus("one", InstanceProviderAPI.STATUS_COMPLETE);
+
+            assertEquals(InstanceColumns.CONTENT_URI, cursor.getNotificationUri());
+            assertTrue(changed[0]);
+        }
+    }
+
+    @Test
+    public void countsAreGroupedLikeTheMainMenuButtons() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{InstanceColumns.STATUS, InstanceColumns.INSTANCE_COUNT});
+        cursor.addRow(new Object[]{InstanceProviderAPI.STATUS_INCOMPLETE, 4});
+        cursor.addRow(new Object[]{InstanceProviderAPI.STATUS_COMPLETE, 3});
+        cursor.addRow(new Object[]{InstanceProviderAPI.STATUS_SUBMISSION_FAILED, 2});
+        cursor.addRow(new Object[]{InstanceProviderAPI.STATUS_SUBMITTED, 7});
+
+        InstanceCounts counts = new InstancesDao().getInstanceCountsFromCursor(cursor);
+
+        assertEquals(5, counts.getFinalizedCount());
+        assertEquals(9, counts.getUnsentCount());
+        assertEquals(7, counts.getSentCount());
+        assertEquals(0, counts.getCount(InstanceProviderAPI.STATUS_FINALIZING));
+    }
+
+    @Test
+    public void noCursorMeansNoInstances() {
+        InstanceCounts counts = new InstancesDao().getInstanceCountsFromCursor(null);
+
+        assertEquals(0, counts.getFinalizedCount());
+        assertEquals(0, counts.getUnsentCount());
+        assertEquals(0, counts.getSentCount());
+    }
+
+    private void insert(String name, String status) {
+        ContentValues values = new ContentValues();
+        values.put(InstanceColumns.DISPLAY_NAME, name);
+        values.put(InstanceColumns.INSTANCE_FILE_PATH, getInstanceFilePath(name));
+        values.put(InstanceColumns.JR_FORM_ID, "form");
+        values.put(InstanceColumns.STATUS, status);
+        contentResolver.insert(InstanceColumns.CONTENT_URI, values);
+    }
+
+    private void setStatus(String name, String status) {
+        ContentValues values = new ContentValues();
+        values.put(InstanceColumns.STATUS, status);
+        contentResolver.update(InstanceColumns.CONTENT_URI, values,
+                InstanceColumns.INSTANCE_FILE_PATH + "=?", new String[]{getInstanceFilePath(name)});
+    }
+
+    private InstanceCounts queryCounts(int statusCount) {
+        try (Cursor cursor = contentResolver.query(InstanceColumns.CONTENT_COUNT_BY_STATUS_URI,
+                null, null, null, null)) {
+            // one row for each status
+            assertEquals(statusCount, cursor.getCount());
+            return new InstancesDao().getInstanceCountsFromCursor(cursor);
+        }
+    }
+
+    private static String getInstanceFilePath(String name) {
+        return Collect.INSTANCES_PATH + File.separator + name + File.separator + name + ".xml";
+    }
+}
@@ -0,0 +1,116 @@
+package org.odk.collect.android.database;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.database.helpers.InstancesDatabaseHelper;
+import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.robolectric.RobolectricTestRunner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.odk.collect.android.database.helpers.InstancesDatabaseHelper.INSTANCES_TABLE_NAME;
+
+@RunWith(RobolectricTestRunner.class)
+public class DisplayNameSearchIndexTest {
+
+    private SQLiteDatabase db;
+
+    @Before
+    public void setUp() {
+        db = SQLiteDatabase.create(null);
+        new InstancesDatabaseHelper().onCreate(db);
+    }
+
+    @After
+    public void tearDown() {
+        db.close();
+    }
+
+    @Test
+    public void namesAreFoundByTheStartOfTheirWords() {
+        insert("Household Survey");
+        insert("Health facility survey");
+        insert("Water point");
+
+        assertEquals(Arrays.asList("Health facility survey", "Household Survey"), search("surv"));
+        assertEquals(Collections.singletonList("Household Survey"), search("SURVEY hou"));
+        assertEquals(Collections.singletonList("Water point"), search("wa"));
+        assertEquals(Collections.emptyList(), search("ater"));
+    }
+
+    @Test
+    public void searchedOperatorsAreReadAsWords() {
+        insert("Black or white");
+        insert("Black");
+
+        assertEquals(Collections.singletonList("Black or white"), search("black OR"));
+    }
+
+    @Test
+    public void theIndexFollowsUpdatesAndDeletes() {
+        long id = insert("Household Survey");
+        insert("Household census");
+
+        ContentValues values = new ContentValues();
+        values.put(InstanceColumns.DISPLAY_NAME, "Market prices");
+        db.update(INSTANCES_TABLE_NAME, values, InstanceColumns._ID + "=?", new String[]{String.valueOf(id)});
+
+        assertEquals(Collections.singletonList("Household census"), search("household"));
+        assertEquals(Collections.singletonList("Market prices"), search("pri"));
+
+        db.delete(INSTANCES_TABLE_NAME, InstanceColumns._ID + "=?", new String[]{String.valueOf(id)});
+
+        assertEquals(Collections.emptyList(), search("market"));
+    }
+
+    @Test
+    public void rowsAddedBeforeTheIndexAreIndexed() {
+        DisplayNameSearchIndex.drop(db, INSTANCES_TABLE_NAME);
+        insert("Household Survey");
+
+        DisplayNameSearchIndex.create(db, INSTANCES_TABLE_NAME, InstanceColumns.DISPLAY_NAME);
+
+        assertEquals(Collections.singletonList("Household Survey"), search("house"));
+    }
+
+    @Test
+    public void textWithoutWordsIsMatchedAsASubstring() {
+        insert("Survey - 2018");
+        insert("Survey 2018");
+
+        assertNull(DisplayNameSearchIndex.createMatchQuery(" - "));
+        assertEquals(Collections.singletonList("Survey - 2018"), search(" - "));
+    }
+
+    private long insert(String displayName) {
+        ContentValues values = new ContentValues();
+        values.put(InstanceColumns.DISPLAY_NAME, displayName);
+        values.put(InstanceColumns.INSTANCE_FILE_PATH, "/sdcard/odk/instances/" + displayName + ".xml");
+        values.put(InstanceColumns.JR_FORM_ID, "form");
+        return db.insertOrThrow(INSTANCES_TABLE_NAME, null, values);
+    }
+
+    private List<String> search(String searchedText) {
+        List<String> names = new ArrayList<>();
+        try (Cursor cursor = db.query(INSTANCES_TABLE_NAME, new String[]{InstanceColumns.DISPLAY_NAME},
+                DisplayNameSearchIndex.createSelection(INSTANCES_TABLE_NAME, InstanceColumns.DISPLAY_NAME, searchedText),
+                new String[]{DisplayNameSearchIndex.createSelectionArg(searchedText)},
+                null, null, InstanceColumns.DISPLAY_NAME + " ASC")) {
+            while (cursor.moveToNext()) {
+                names.add(cursor.getString(0));
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,94 @@
+package org.odk.collect.android.database;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.utilities.FileUtils;
+import org.robolectric.RobolectricTestRunner;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class FileHashIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FileHashIndex index;
+    private File mediaFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        index = new FileHashIndex(folder.newFolder("metadata").getAbsolutePath());
+        mediaFolder = folder.newFolder("media");
+    }
+
+    @Test
+    public void unchangedFilesAreNotHashedAgain() throws IOException {
+        File file = createFile("image.png", "first");
+        String md5 = index.getMd5Hash(file);
+        assertEquals(FileUtils.getMd5Hash(file), md5);
+
+        // same size and last modified time, so the indexed hash is used
+        long lastModified = file.lastModified();
+        createFile("image.png", "other");
+        file.setLastModified(lastModified);
+
+        assertEquals(md5, index.getMd5Hash(file));
+    }
+
+    @Test
+    public void changedFilesAreHashedAgain() throws IOException {
+        File file = createFile("image.png", "first");
+        index.getMd5Hash(file);
+
+        createFile("image.png", "a longer file");
+
+        assertEquals(FileUtils.getMd5Hash(file), index.getMd5Hash(file));
+    }
+
+    @Test
+    public void hashesAreKeptBetweenInstances() throws IOException {
+        File file = createFile("image.png", "first");
+        index.put(file, "0123456789abcdef0123456789abcdef");
+
+        FileHashIndex other = new FileHashIndex(new File(folder.getRoot(), "metadata").getAbsolutePath());
+        assertEquals("0123456789abcdef0123456789abcdef", other.getMd5Hash(file));
+    }
+
+    @Test
+    public void missingFilesHaveNoHash() throws IOException {
+        File file = createFile("image.png", "first");
+        index.getMd5Hash(file);
+        file.delete();
+
+        assertNull(index.getMd5Hash(file));
+    }
+
+    @Test
+    public void folderHashesIncludeEveryFile() throws IOException {
+        File first = createFile("first.png", "first");
+        File second = createFile("second.png", "second");
+        new File(mediaFolder, "subfolder").mkdir();
+
+        assertEquals(new HashSet<>(Arrays.asList(FileUtils.getMd5Hash(first), FileUtils.getMd5Hash(second))),
+                index.getMd5Hashes(mediaFolder));
+    }
+
+    private File createFile(String name, String contents) throws IOException {
+        File file = new File(mediaFolder, name);
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(contents);
+        }
+        return file;
+    }
+}
@@ -0,0 +1,73 @@
+package org.odk.collect.android.external;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class CsvTokenizerTest {
+
+    @Test
+    public void readsSimpleRecords() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer(new StringReader("name,label\nfoo,Foo\n"));
+
+        assertArrayEquals(new String[]{"name", "label"}, tokenizer.readNext());
+        assertArrayEquals(new String[]{"foo", "Foo"}, tokenizer.readNext());
+        assertNull(tokenizer.readNext());
+    }
+
+    @Test
+    public void readsLastRecordWithoutLineBreak() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer(new StringReader("a,b\r\nc,d"));
+
+        assertArrayEquals(new String[]{"a", "b"}, tokenizer.readNext());
+        assertArrayEquals(new String[]{"c", "d"}, tokenizer.readNext());
+        assertNull(tokenizer.readNext());
+    }
+
+    @Test
+    public void keepsEmptyFieldsAndLines() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer(new StringReader("a,,c,\n\nd\n"));
+
+        assertArrayEquals(new String[]{"a", "", "c", ""}, tokenizer.readNext());
+        assertArrayEquals(new String[]{""}, tokenizer.readNext());
+        assertArrayEquals(new String[]{"d"}, tokenizer.readNext());
+        assertNull(tokenizer.readNext());
+    }
+
+    @Test
+    public void readsQuotedFields() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer(
+                new StringReader("\"a,b\",\"say \"\"hi\"\"\",\"line\nbreak\",\"\"\n"));
+
+        assertArrayEquals(new String[]{"a,b", "say \"hi\"", "line\nbreak", ""}, tokenizer.readNext());
+        assertNull(tokenizer.readNext());
+    }
+
+    @Test
+    public void keepsQuotesInsideUnquotedFields() throws IOException {
+        CsvTokenizer tokenizer = new CsvTokenizer(new StringReader("5'10\",x\n"));
+
+        assertArrayEquals(new String[]{"5'10\"", "x"}, tokenizer.readNext());
+    }
+
+    @Test
+    public void readsRecordsSplitAcrossReads() throws IOException {
+        // Returns one character per read so every field crosses a buffer boundary
+        Reader slowReader = new StringReader("\"a\"\"b\",c\r\nd,e\r\n") {
+            @Override
+            public int read(char[] cbuf, int off, int len) throws IOException {
+                return super.read(cbuf, off, Math.min(len, 1));
+            }
+        };
+        CsvTokenizer tokenizer = new CsvTokenizer(slowReader);
+
+        assertArrayEquals(new String[]{"a\"b", "c"}, tokenizer.readNext());
+        assertArrayEquals(new String[]{"d", "e"}, tokenizer.readNext());
+        assertNull(tokenizer.readNext());
+    }
+}
@@ -0,0 +1,41 @@
+package org.odk.collect.android.external;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExternalDataUtilTest {
+
+    @Test
+    public void collectsTheColumnsQueriedBySearches() {
+        Map<String, Set<String>> searchedColumns = new HashMap<>();
+        ExternalDataUtil.collectSearchedColumns("quick search('Fruits.csv', 'contains', 'name, label', /data/q)",
+                searchedColumns);
+        ExternalDataUtil.collectSearchedColumns("search('fruits', 'matches', 'color', /data/q, 'kind', 'x')",
+                searchedColumns);
+
+        assertEquals(1, searchedColumns.size());
+        assertEquals(new HashSet<>(Arrays.asList("c_name", "c_label", "c_color")),
+                searchedColumns.get("fruits"));
+    }
+
+    @Test
+    public void skipsSearchesThatDoNotQueryKnownColumns() {
+        Map<String, Set<String>> searchedColumns = new HashMap<>();
+        ExternalDataUtil.collectSearchedColumns("search('fruits')", searchedColumns);
+        ExternalDataUtil.collectSearchedColumns("search('fruits', 'contains', /data/columns, /data/q)",
+                searchedColumns);
+        ExternalDataUtil.collectSearchedColumns("search('fruits', 'contains', '', /data/q)", searchedColumns);
+        ExternalDataUtil.collectSearchedColumns("minimal", searchedColumns);
+        ExternalDataUtil.collectSearchedColumns(null, searchedColumns);
+
+        assertTrue(searchedColumns.isEmpty());
+    }
+}
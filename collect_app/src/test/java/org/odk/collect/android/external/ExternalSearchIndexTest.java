@@ -0,0 +1,51 @@
+package org.odk.collect.android.external;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ExternalSearchIndexTest {
+
+    @Test
+    public void splitsWordsLikeTheSimpleTokenizer() {
+        assertEquals(Arrays.asList("Green", "ville", "2", "Ngũ", "Hành"),
+                ExternalSearchIndex.splitWords(" Green-ville_2 (Ngũ Hành)"));
+    }
+
+    @Test
+    public void indexesSuffixesOfWords() {
+        assertEquals("Big Town ig own wn", ExternalSearchIndex.createIndexedText("Big Town"));
+    }
+
+    @Test
+    public void doesNotIndexNull() {
+        assertNull(ExternalSearchIndex.createIndexedText(null));
+    }
+
+    @Test
+    public void matchesPrefixesOfEveryLongEnoughWord() {
+        assertEquals("c_name:een* c_name:vil*",
+                ExternalSearchIndex.createMatchQuery("c_name", "EEN VIL a"));
+    }
+
+    @Test
+    public void doesNotTreatWordsAsOperators() {
+        assertEquals("c_name:or* c_name:near*",
+                ExternalSearchIndex.createMatchQuery("c_name", "OR \"NEAR\""));
+    }
+
+    @Test
+    public void keepsTheCaseOfLettersTheTokenizerDoesNotFold() {
+        assertEquals("c_name:Émile* c_name:zola*",
+                ExternalSearchIndex.createMatchQuery("c_name", "Émile ZOLA"));
+    }
+
+    @Test
+    public void doesNotNarrowShortValues() {
+        assertNull(ExternalSearchIndex.createMatchQuery("c_name", "a b"));
+        assertNull(ExternalSearchIndex.createMatchQuery("c_name", ""));
+    }
+}
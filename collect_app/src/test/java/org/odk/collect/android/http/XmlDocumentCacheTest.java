@@ -0,0 +1,159 @@
+package org.odk.collect.android.http;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.http.mock.MockHttpClientConnection;
+import org.odk.collect.android.utilities.DocumentFetchResult;
+import org.odk.collect.android.utilities.WebCredentialsUtils;
+import org.robolectric.RobolectricTestRunner;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class XmlDocumentCacheTest {
+
+    private static final String URL_STRING = "http://testurl/formList";
+    private static final String FORM_LIST = "<forms><form url=\"http://testurl/formXml?formId=one\">One</form></forms>";
+    private static final String ETAG = "\"abc\"";
+
+    @Rule
+    public TemporaryFolder cacheFolder = new TemporaryFolder();
+
+    private ConditionalHttpConnection httpConnection;
+    private XmlDocumentCache documentCache;
+    private CollectServerClient collectServerClient;
+
+    @Before
+    public void setUp() {
+        httpConnection = new ConditionalHttpConnection();
+        documentCache = new XmlDocumentCache(cacheFolder.getRoot());
+        collectServerClient = new CollectServerClient(httpConnection, new WebCredentialsUtils(), documentCache);
+    }
+
+    @Test
+    public void unchangedDocumentsAreRequestedConditionally() {
+        DocumentFetchResult first = collectServerClient.parseXmlDocument(URL_STRING, new FormNameHandler());
+        DocumentFetchResult second = collectServerClient.parseXmlDocument(URL_STRING, new FormNameHandler());
+
+        assertNull(httpConnection.requestHeaders.get(0));
+        assertEquals(ETAG, httpConnection.requestHeaders.get(1).get(XmlDocumentCache.IF_NONE_MATCH_HEADER));
+        assertEquals(first.getHash(), second.getHash());
+        assertEquals(first.isOpenRosaResponse, second.isOpenRosaResponse);
+    }
+
+    @Test
+    public void unchangedDocumentsAreReusedAfterARestart() {
+        DocumentFetchResult first = collectServerClient.parseXmlDocument(URL_STRING, new FormNameHandler());
+
+        CollectServerClient restartedClient = new CollectServerClient(httpConnection, new WebCredentialsUtils(),
+                new XmlDocumentCache(cacheFolder.getRoot()));
+        FormNameHandler handler = new FormNameHandler();
+        DocumentFetchResult second = restartedClient.parseXmlDocument(URL_STRING, handler);
+
+        assertEquals(2, httpConnection.requestHeaders.size());
+        assertEquals(ETAG, httpConnection.requestHeaders.get(1).get(XmlDocumentCache.IF_NONE_MATCH_HEADER));
+        assertNull(second.errorMessage);
+        assertEquals(first.getHash(), second.getHash());
+        assertEquals(Collections.singletonList("One"), handler.formNames);
+    }
+
+    @Test
+    public void documentsAreDownloadedAgainWhenTheCachedOneIsGone() {
+        collectServerClient.parseXmlDocument(URL_STRING, new FormNameHandler());
+        for (File file : cacheFolder.getRoot().listFiles()) {
+            if (file.getName().endsWith(".xml")) {
+                file.delete();
+            }
+        }
+
+        DocumentFetchResult result = collectServerClient.parseXmlDocument(URL_STRING, new FormNameHandler());
+
+        assertNull(result.errorMessage);
+        assertNull(httpConnection.requestHeaders.get(1));
+    }
+
+    @Test
+    public void documentsWithoutValidatorsAreNotCached() {
+        CollectServerClient client = new CollectServerClient(new MockHttpClientConnection(),
+                new WebCredentialsUtils(), documentCache);
+
+        client.parseXmlDocument(URL_STRING, new FormNameHandler());
+
+        assertNull(documentCache.getConditionalHeaders(URL_STRING, null));
+        assertNull(documentCache.get(URL_STRING, null));
+    }
+
+    @Test
+    public void unchangedDocumentsAreStreamedFromTheCache() {
+        FormNameHandler handler = new FormNameHandler();
+
+        DocumentFetchResult first = collectServerClient.parseXmlDocument(URL_STRING, handler);
+        DocumentFetchResult second = collectServerClient.parseXmlDocument(URL_STRING, handler);
+
+        assertNull(first.errorMessage);
+        assertNull(second.errorMessage);
+        assertEquals(ETAG, httpConnection.requestHeaders.get(1).get(XmlDocumentCache.IF_NONE_MATCH_HEADER));
+        assertEquals(first.getHash(), second.getHash());
+        assertEquals(Arrays.asList("One", "One"), handler.formNames);
+    }
+
+    /**
+     * Collects the text of the documents it reads, which is the form names in a form list.
+     */
+    private static class FormNameHandler implements CollectServerClient.XmlDocumentHandler {
+        final List<String> formNames = new ArrayList<>();
+
+        @Override
+        public void parse(XmlPullParser parser, boolean isOpenRosaResponse) throws Exception {
+            while (parser.next() != XmlPullParser.END_DOCUMENT) {
+                if (parser.getEventType() == XmlPullParser.TEXT && !parser.isWhitespace()) {
+                    formNames.add(parser.getText());
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the form list with an ETag and answers 304 to requests that send it back.
+     */
+    private static class ConditionalHttpConnection extends MockHttpClientConnection {
+        final List<Map<String, String>> requestHeaders = new ArrayList<>();
+
+        @NonNull
+        @Override
+        public HttpGetResult get(@NonNull URI uri, @Nullable String contentType, @Nullable HttpCredentialsInterface credentials,
+                                 @Nullable Map<String, String> requestHeaders) {
+            this.requestHeaders.add(requestHeaders);
+
+            Map<String, String> headers = new HashMap<>();
+            headers.put("X-OpenRosa-Version", "1.0");
+            headers.put("ETag", ETAG);
+            headers.put("Content-Type", "text/xml; charset=utf-8");
+
+            if (requestHeaders != null && ETAG.equals(requestHeaders.get(XmlDocumentCache.IF_NONE_MATCH_HEADER))) {
+                return new HttpGetResult(null, headers, "", HttpURLConnection.HTTP_NOT_MODIFIED);
+            }
+            return new HttpGetResult(new ByteArrayInputStream(FORM_LIST.getBytes()), headers, "form-list-hash",
+                    HttpURLConnection.HTTP_OK);
+        }
+    }
+}
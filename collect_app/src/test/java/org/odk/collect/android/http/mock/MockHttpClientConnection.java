@@ -23,7 +23,8 @@ public class MockHttpClientConnection implements OpenRosaHttpInterface {
 
     @Override
     @NonNull
-    public HttpGetResult get(@NonNull URI uri, @Nullable String contentType, @Nullable HttpCredentialsInterface credentials) throws Exception {
+    public HttpGetResult get(@NonNull URI uri, @Nullable String contentType, @Nullable HttpCredentialsInterface credentials,
+                             @Nullable Map<String, String> requestHeaders) throws Exception {
 
         String xml =
         "<forms>" +
@@ -48,9 +49,13 @@ public class MockHttpClientConnection implements OpenRosaHttpInterface {
         return new HttpHeadResult(0, new HashMap<String, String>());
     }
 
+    @Override
+    public void prepareAuthentication(@NonNull URI uri, @Nullable HttpCredentialsInterface credentials, @NonNull String authScheme) {
+    }
+
     @NonNull
     @Override
-    public ResponseMessageParser uploadSubmissionFile(@NonNull List<File> fileList, @NonNull File submissionFile, @NonNull URI uri, @Nullable HttpCredentialsInterface credentials, @NonNull long contentLength) throws IOException {
+    public ResponseMessageParser uploadSubmissionFile(@NonNull List<File> fileList, @NonNull File submissionFile, @NonNull URI uri, @Nullable HttpCredentialsInterface credentials, @NonNull long contentLength, @Nullable SubmissionPartListener partListener) throws IOException {
         return null;
     }
 }
@@ -7,12 +7,14 @@ import org.odk.collect.android.http.HttpCredentialsInterface;
 import org.odk.collect.android.http.HttpGetResult;
 
 import java.net.URI;
+import java.util.Map;
 
 public class MockHttpClientConnectionError extends MockHttpClientConnection {
 
     @Override
     @NonNull
-    public HttpGetResult get(@NonNull URI uri, @Nullable String contentType, @Nullable HttpCredentialsInterface credentials) throws Exception {
+    public HttpGetResult get(@NonNull URI uri, @Nullable String contentType, @Nullable HttpCredentialsInterface credentials,
+                             @Nullable Map<String, String> requestHeaders) throws Exception {
         return null;
     }
 }
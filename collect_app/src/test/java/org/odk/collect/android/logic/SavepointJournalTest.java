@@ -0,0 +1,166 @@
+package org.odk.collect.android.logic;
+
+import org.javarosa.core.model.FormDef;
+import org.javarosa.core.model.data.IntegerData;
+import org.javarosa.core.model.data.StringData;
+import org.javarosa.core.model.instance.InstanceInitializationFactory;
+import org.javarosa.core.model.instance.TreeReference;
+import org.javarosa.form.api.FormEntryController;
+import org.javarosa.form.api.FormEntryModel;
+import org.javarosa.xform.util.XFormUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SavepointJournalTest {
+
+    private static final String JR_COUNT_FORM = "<h:html xmlns=\"http://www.w3.org/2002/xforms\" "
+            + "xmlns:h=\"http://www.w3.org/1999/xhtml\" xmlns:jr=\"http://openrosa.org/javarosa\">"
+            + "<h:head><h:title>Households</h:title><model>"
+            + "<instance><data id=\"households\"><count/>"
+            + "<household jr:template=\"\"><name/></household></data></instance>"
+            + "<bind nodeset=\"/data/count\" type=\"int\"/>"
+            + "<bind nodeset=\"/data/household/name\" type=\"string\"/>"
+            + "</model></h:head><h:body>"
+            + "<input ref=\"/data/count\"><label>Count</label></input>"
+            + "<group ref=\"/data/household\"><label>Household</label>"
+            + "<repeat nodeset=\"/data/household\" jr:count=\"/data/count\">"
+            + "<input ref=\"/data/household/name\"><label>Name</label></input>"
+            + "</repeat></group></h:body></h:html>";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void firstSavepointIsACheckpoint() {
+        SavepointJournal journal = new SavepointJournal();
+        journal.answerChanged(reference("name", 0));
+
+        assertNull(journal.takeChangedAnswers(true, 0));
+    }
+
+    @Test
+    public void answersChangedAfterACheckpointAreJournaledOnce() {
+        SavepointJournal journal = new SavepointJournal();
+        journal.checkpointStarted(0);
+
+        journal.answerChanged(reference("name", 0));
+        journal.answerChanged(reference("age", 0));
+        journal.answerChanged(reference("name", 0));
+
+        List<TreeReference> answers = journal.takeChangedAnswers(true, 0);
+        assertNotNull(answers);
+        assertEquals(2, answers.size());
+        assertTrue(journal.takeChangedAnswers(true, 0).isEmpty());
+    }
+
+    @Test
+    public void addingARepeatNeedsACheckpoint() {
+        SavepointJournal journal = new SavepointJournal();
+        journal.checkpointStarted(0);
+
+        journal.answerChanged(reference("name", 0));
+        journal.structureChanged();
+
+        assertNull(journal.takeChangedAnswers(true, 0));
+    }
+
+    @Test
+    public void repeatAddedByJavaRosaNeedsACheckpoint() {
+        SavepointJournal journal = new SavepointJournal();
+        journal.checkpointStarted(1);
+
+        journal.answerChanged(reference("name", 1));
+
+        assertNull(journal.takeChangedAnswers(true, 2));
+    }
+
+    @Test
+    public void answersInJrCountRepeatsAddedAfterTheCheckpointAreNotLost() throws Exception {
+        FormDef formDef = createJrCountForm();
+        SavepointJournal journal = new SavepointJournal();
+        journal.checkpointStarted(SavepointJournal.countRepeats(formDef.getMainInstance()));
+
+        // reaching the repeat once the count is answered makes JavaRosa add the instances
+        TreeReference count = reference("count");
+        formDef.setValue(new IntegerData(2), count, true);
+        journal.answerChanged(count);
+        FormEntryController fec = new FormEntryController(new FormEntryModel(formDef));
+        while (fec.stepToNextEvent() != FormEntryController.EVENT_END_OF_FORM) {
+            // step through the form
+        }
+        TreeReference name = reference("name", 1);
+        formDef.setValue(new StringData("Bob"), name, true);
+        journal.answerChanged(name);
+
+        assertEquals(2, SavepointJournal.countRepeats(formDef.getMainInstance()));
+        assertNull(journal.takeChangedAnswers(true, SavepointJournal.countRepeats(formDef.getMainInstance())));
+
+        // a journal that has such answers isn't continued after being replayed
+        File journalFile = temporaryFolder.newFile();
+        assertTrue(SavepointJournal.append(journalFile, 1, formDef.getMainInstance(), Arrays.asList(count, name)));
+        FormDef checkpoint = createJrCountForm();
+        assertEquals(-1, SavepointJournal.replay(journalFile, checkpoint, 1));
+        assertEquals(2, checkpoint.getMainInstance().resolveReference(count).getValue().getValue());
+    }
+
+    @Test
+    public void missingCheckpointNeedsACheckpoint() {
+        SavepointJournal journal = new SavepointJournal();
+        journal.resume(0, 0, 0);
+
+        assertNull(journal.takeChangedAnswers(false, 0));
+    }
+
+    @Test
+    public void failedSavepointNeedsACheckpoint() {
+        SavepointJournal journal = new SavepointJournal();
+        journal.resume(0, 0, 0);
+        journal.savepointFailed();
+
+        assertNull(journal.takeChangedAnswers(true, 0));
+    }
+
+    @Test
+    public void longJournalIsCompacted() {
+        SavepointJournal journal = new SavepointJournal();
+        journal.resume(0, 0, 0);
+
+        for (int i = 0; i < 1000; i++) {
+            journal.answerChanged(reference("name", i));
+        }
+
+        assertNull(journal.takeChangedAnswers(true, 0));
+    }
+
+    private static FormDef createJrCountForm() throws Exception {
+        FormDef formDef = XFormUtils.getFormFromInputStream(new ByteArrayInputStream(JR_COUNT_FORM.getBytes("UTF-8")));
+        formDef.initialize(true, new InstanceInitializationFactory());
+        return formDef;
+    }
+
+    private static TreeReference reference(String name) {
+        TreeReference reference = TreeReference.rootRef();
+        reference.add("data", 0);
+        reference.add(name, 0);
+        return reference;
+    }
+
+    private static TreeReference reference(String name, int multiplicity) {
+        TreeReference reference = TreeReference.rootRef();
+        reference.add("data", 0);
+        reference.add("household", multiplicity);
+        reference.add(name, 0);
+        return reference;
+    }
+}
@@ -0,0 +1,261 @@
+package org.odk.collect.android.provider;
+
+import android.Manifest;
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Environment;
+import android.provider.MediaStore;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.application.Collect;
+import org.odk.collect.android.provider.InstanceProviderAPI.InstanceColumns;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.shadows.ShadowApplication;
+import org.robolectric.shadows.ShadowEnvironment;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class InstanceProviderBatchTest {
+
+    private NestingInstanceProvider provider;
+    private ContentResolver contentResolver;
+    private RecordingObserver observer;
+
+    @Before
+    public void setUp() {
+        ShadowEnvironment.setExternalStorageState(Environment.MEDIA_MOUNTED);
+        ShadowApplication.getInstance().grantPermissions(Manifest.permission.READ_EXTERNAL_STORAGE,
+                Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+        Robolectric.buildContentProvider(EmptyMediaProvider.class).create(MediaStore.AUTHORITY);
+        provider = Robolectric.buildContentProvider(NestingInstanceProvider.class)
+                .create(InstanceProviderAPI.AUTHORITY).get();
+        contentResolver = RuntimeEnvironment.application.getContentResolver();
+
+        // the database is kept by the provider between tests
+        contentResolver.delete(InstanceColumns.CONTENT_URI, null, null);
+
+        observer = new RecordingObserver();
+        contentResolver.registerContentObserver(InstanceColumns.CONTENT_URI, true, observer);
+    }
+
+    @After
+    public void tearDown() {
+        contentResolver.unregisterContentObserver(observer);
+    }
+
+    @Test
+    public void filesOfDeletedInstancesAreDeletedOnceTheBatchIsCommitted() throws Exception {
+        File instanceFile = createInstance("one");
+
+        provider.applyBatch(operations(deleteInstance(instanceFile)));
+
+        assertFalse(instanceFile.exists());
+        assertFalse(instanceFile.getParentFile().exists());
+        assertEquals(0, countInstances());
+    }
+
+    @Test
+    public void rolledBackBatchKeepsTheRowsAndFilesOfDeletedInstances() throws Exception {
+        File deletedFile = createInstance("one");
+        File updatedFile = createInstance("two");
+        observer.uris.clear();
+
+        try {
+            provider.applyBatch(operations(deleteInstance(deletedFile), failingUpdate(updatedFile)));
+            fail("The update should have failed");
+        } catch (OperationApplicationException e) {
+            // expected
+        }
+
+        assertTrue(deletedFile.exists());
+        assertEquals(2, countInstances());
+        assertEquals(Collections.emptyList(), observer.uris);
+    }
+
+    @Test
+    public void nestedBatchThatFailsRollsBackTheOutermostOne() throws Exception {
+        File deletedFile = createInstance("one");
+        File updatedFile = createInstance("two");
+        observer.uris.clear();
+
+        provider.nestedOperations = operations(failingUpdate(updatedFile));
+        provider.applyBatch(operations(deleteInstance(deletedFile), completeInstance(updatedFile)));
+
+        assertTrue(deletedFile.exists());
+        assertEquals(2, countInstances());
+        assertEquals(InstanceProviderAPI.STATUS_INCOMPLETE, getStatus(updatedFile));
+        assertEquals(Collections.emptyList(), observer.uris);
+    }
+
+    @Test
+    public void changesOfABatchAndTheBatchesNestedInItAreNotifiedOnce() throws Exception {
+        File deletedFile = createInstance("one");
+        File updatedFile = createInstance("two");
+        File nestedUpdatedFile = createInstance("three");
+        observer.uris.clear();
+
+        provider.nestedOperations = operations(completeInstance(nestedUpdatedFile));
+        provider.applyBatch(operations(deleteInstance(deletedFile), completeInstance(updatedFile)));
+
+        assertFalse(deletedFile.exists());
+        assertEquals(InstanceProviderAPI.STATUS_COMPLETE, getStatus(updatedFile));
+        assertEquals(InstanceProviderAPI.STATUS_COMPLETE, getStatus(nestedUpdatedFile));
+        assertEquals(Collections.singletonList(InstanceColumns.CONTENT_URI), observer.uris);
+    }
+
+    private File createInstance(String name) throws IOException {
+        File instanceDir = new File(Collect.INSTANCES_PATH, name);
+        instanceDir.mkdirs();
+        File instanceFile = new File(instanceDir, name + ".xml");
+        instanceFile.createNewFile();
+
+        ContentValues values = new ContentValues();
+        values.put(InstanceColumns.DISPLAY_NAME, name);
+        values.put(InstanceColumns.INSTANCE_FILE_PATH, instanceFile.getAbsolutePath());
+        values.put(InstanceColumns.JR_FORM_ID, "form");
+        contentResolver.insert(InstanceColumns.CONTENT_URI, values);
+        return instanceFile;
+    }
+
+    private static ArrayList<ContentProviderOperation> operations(ContentProviderOperation... operations) {
+        ArrayList<ContentProviderOperation> list = new ArrayList<>();
+        Collections.addAll(list, operations);
+        return list;
+    }
+
+    private static ContentProviderOperation deleteInstance(File instanceFile) {
+        return ContentProviderOperation.newDelete(InstanceColumns.CONTENT_URI)
+                .withSelection(InstanceColumns.INSTANCE_FILE_PATH + "=?", new String[]{instanceFile.getAbsolutePath()})
+                .build();
+    }
+
+    private static ContentProviderOperation completeInstance(File instanceFile) {
+        return ContentProviderOperation.newUpdate(InstanceColumns.CONTENT_URI)
+                .withValue(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_COMPLETE)
+                .withSelection(InstanceColumns.INSTANCE_FILE_PATH + "=?", new String[]{instanceFile.getAbsolutePath()})
+                .build();
+    }
+
+    /**
+     * Updates the instance and then fails because it expects to have updated two.
+     */
+    private static ContentProviderOperation failingUpdate(File instanceFile) {
+        return ContentProviderOperation.newUpdate(InstanceColumns.CONTENT_URI)
+                .withValue(InstanceColumns.STATUS, InstanceProviderAPI.STATUS_COMPLETE)
+                .withSelection(InstanceColumns.INSTANCE_FILE_PATH + "=?", new String[]{instanceFile.getAbsolutePath()})
+                .withExpectedCount(2)
+                .build();
+    }
+
+    private int countInstances() {
+        try (Cursor cursor = contentResolver.query(InstanceColumns.CONTENT_URI, null, null, null, null)) {
+            return cursor.getCount();
+        }
+    }
+
+    private String getStatus(File instanceFile) {
+        try (Cursor cursor = contentResolver.query(InstanceColumns.CONTENT_URI,
+                new String[]{InstanceColumns.STATUS}, InstanceColumns.INSTANCE_FILE_PATH + "=?",
+                new String[]{instanceFile.getAbsolutePath()}, null)) {
+            cursor.moveToFirst();
+            return cursor.getString(0);
+        }
+    }
+
+    /**
+     * Applies {@link #nestedOperations} from inside the first update of a batch, as happens when
+     * an operation goes through the content resolver to the provider again.
+     */
+    public static class NestingInstanceProvider extends InstanceProvider {
+        ArrayList<ContentProviderOperation> nestedOperations = new ArrayList<>();
+
+        @Override
+        public int update(@NonNull Uri uri, ContentValues values, String where, String[] whereArgs) {
+            if (!nestedOperations.isEmpty()) {
+                ArrayList<ContentProviderOperation> operations = nestedOperations;
+                nestedOperations = new ArrayList<>();
+                try {
+                    applyBatch(operations);
+                } catch (OperationApplicationException e) {
+                    // carry on like a caller that doesn't check the nested batch
+                }
+            }
+            return super.update(uri, values, where, whereArgs);
+        }
+    }
+
+    /**
+     * Stands in for the media provider, which is asked for the media of deleted instances.
+     */
+    public static class EmptyMediaProvider extends ContentProvider {
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                            @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+            return new MatrixCursor(projection);
+        }
+
+        @Override
+        public String getType(@NonNull Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+            return null;
+        }
+
+        @Override
+        public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+            return 0;
+        }
+
+        @Override
+        public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection,
+                          @Nullable String[] selectionArgs) {
+            return 0;
+        }
+    }
+
+    private static class RecordingObserver extends ContentObserver {
+        final List<Uri> uris = new ArrayList<>();
+
+        RecordingObserver() {
+            super(null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            uris.add(uri);
+        }
+    }
+}
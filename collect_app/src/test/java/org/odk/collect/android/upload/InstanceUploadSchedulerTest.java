@@ -0,0 +1,158 @@
+package org.odk.collect.android.upload;
+
+import org.junit.Test;
+import org.odk.collect.android.dto.Instance;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InstanceUploadSchedulerTest {
+
+    private static final String FIRST_SERVER = "https://first.example.com/submission";
+    private static final String SECOND_SERVER = "https://second.example.com/submission";
+
+    @Test
+    public void instancesAreSentConcurrentlyUpToTheLimitForEachServer() {
+        List<Instance> instances = new ArrayList<>();
+        for (long i = 0; i < 12; i++) {
+            instances.add(instance(i, i % 2 == 0 ? FIRST_SERVER : SECOND_SERVER));
+        }
+
+        ConcurrencyTrackingUploader uploader = new ConcurrencyTrackingUploader(null);
+        RecordingListener listener = new RecordingListener();
+        new InstanceUploadScheduler(uploader, 3).upload(instances, null, null, listener);
+
+        assertEquals(12, listener.succeeded.size());
+        assertEquals(12, listener.lastFinished);
+        for (String host : new String[] {"first.example.com", "second.example.com"}) {
+            int maxUploads = uploader.getMaxConcurrentUploads(host);
+            assertTrue("Too many uploads to " + host + ": " + maxUploads, maxUploads <= 3);
+            assertTrue("Uploads to " + host + " weren't concurrent", maxUploads > 1);
+        }
+    }
+
+    @Test
+    public void instancesAreSentOneAtATimeWhenTheLimitIsOne() {
+        List<Instance> instances = new ArrayList<>();
+        for (long i = 0; i < 4; i++) {
+            instances.add(instance(i, FIRST_SERVER));
+        }
+
+        ConcurrencyTrackingUploader uploader = new ConcurrencyTrackingUploader(null);
+        RecordingListener listener = new RecordingListener();
+        new InstanceUploadScheduler(uploader, 1).upload(instances, null, null, listener);
+
+        assertEquals(4, listener.succeeded.size());
+        assertEquals(1, uploader.getMaxConcurrentUploads("first.example.com"));
+    }
+
+    @Test
+    public void failuresAreReportedWithoutStoppingOtherUploads() {
+        List<Instance> instances = new ArrayList<>();
+        for (long i = 0; i < 6; i++) {
+            instances.add(instance(i, FIRST_SERVER));
+        }
+
+        ConcurrencyTrackingUploader uploader = new ConcurrencyTrackingUploader(3L);
+        RecordingListener listener = new RecordingListener();
+        new InstanceUploadScheduler(uploader, 3).upload(instances, null, null, listener);
+
+        assertEquals(5, listener.succeeded.size());
+        assertEquals(1, listener.failed.size());
+        assertTrue(listener.failed.contains(3L));
+        assertEquals(6, listener.lastFinished);
+    }
+
+    private static Instance instance(long id, String submissionUri) {
+        return new Instance.Builder()
+                .databaseId(id)
+                .displayName("Instance " + id)
+                .submissionUri(submissionUri)
+                .build();
+    }
+
+    private static class ConcurrencyTrackingUploader extends InstanceUploader {
+        private final Long failingInstanceId;
+        private final Map<String, AtomicInteger> currentUploads = new HashMap<>();
+        private final Map<String, AtomicInteger> maxUploads = new HashMap<>();
+
+        ConcurrencyTrackingUploader(Long failingInstanceId) {
+            this.failingInstanceId = failingInstanceId;
+        }
+
+        @Override
+        public String uploadOneSubmission(Instance instance, String destinationUrl) throws UploadException {
+            String host = destinationUrl.equals(FIRST_SERVER) ? "first.example.com" : "second.example.com";
+            AtomicInteger current;
+            AtomicInteger max;
+            synchronized (this) {
+                if (!currentUploads.containsKey(host)) {
+                    currentUploads.put(host, new AtomicInteger());
+                    maxUploads.put(host, new AtomicInteger());
+                }
+                current = currentUploads.get(host);
+                max = maxUploads.get(host);
+            }
+
+            int uploads = current.incrementAndGet();
+            synchronized (max) {
+                max.set(Math.max(max.get(), uploads));
+            }
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                current.decrementAndGet();
+            }
+
+            if (instance.getDatabaseId().equals(failingInstanceId)) {
+                throw new UploadException("Failed");
+            }
+            return null;
+        }
+
+        @Override
+        public String getUrlToSubmitTo(Instance currentInstance, String deviceId, String overrideURL) {
+            return currentInstance.getSubmissionUri();
+        }
+
+        synchronized int getMaxConcurrentUploads(String host) {
+            return maxUploads.containsKey(host) ? maxUploads.get(host).get() : 0;
+        }
+    }
+
+    private static class RecordingListener implements InstanceUploadScheduler.Listener {
+        final Set<Long> succeeded = new HashSet<>();
+        final Set<Long> failed = new HashSet<>();
+        int lastFinished;
+
+        @Override
+        public void uploadSucceeded(Instance instance, String customMessage) {
+            succeeded.add(instance.getDatabaseId());
+        }
+
+        @Override
+        public void uploadFailed(Instance instance, UploadException e) {
+            failed.add(instance.getDatabaseId());
+        }
+
+        @Override
+        public void progressUpdate(int finished, int total) {
+            lastFinished = finished;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.odk.collect.android.upload;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.odk.collect.android.upload.ServerCapabilityCache.ServerCapabilities;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+@RunWith(RobolectricTestRunner.class)
+public class ServerCapabilityCacheTest {
+
+    private static final String SUBMISSION_URL = "http://example.com/submission?deviceID=imei%3A123";
+    private static final String LOCATION = "https://example.com/submission?deviceID=imei%3A123";
+    private static final long TIME_TO_LIVE = 60 * 1000L;
+
+    private SharedPreferences preferences;
+
+    @Before
+    public void setUp() {
+        preferences = RuntimeEnvironment.application.getSharedPreferences(
+                ServerCapabilityCache.PREF_FILE_NAME, Context.MODE_PRIVATE);
+        preferences.edit().clear().commit();
+    }
+
+    @Test
+    public void capabilitiesAreKeptBetweenInstances() {
+        new ServerCapabilityCache(preferences, TIME_TO_LIVE).put(SUBMISSION_URL, LOCATION, 1024L, "Digest");
+
+        ServerCapabilities capabilities = new ServerCapabilityCache(preferences, TIME_TO_LIVE).get(SUBMISSION_URL);
+        assertNotNull(capabilities);
+        assertEquals(LOCATION, capabilities.getLocation());
+        assertEquals(1024L, capabilities.getAcceptContentLength());
+        assertEquals("Digest", capabilities.getAuthScheme());
+    }
+
+    @Test
+    public void capabilitiesExpire() {
+        ServerCapabilityCache cache = new ServerCapabilityCache(preferences, TIME_TO_LIVE);
+        cache.put(SUBMISSION_URL, LOCATION, 1024L, null);
+
+        assertNotNull(cache.get(SUBMISSION_URL, System.currentTimeMillis() + TIME_TO_LIVE / 2));
+        assertNull(cache.get(SUBMISSION_URL, System.currentTimeMillis() + TIME_TO_LIVE));
+        assertNull(cache.get(SUBMISSION_URL));
+    }
+
+    @Test
+    public void invalidatedCapabilitiesAreForgotten() {
+        ServerCapabilityCache cache = new ServerCapabilityCache(preferences, TIME_TO_LIVE);
+        cache.put(SUBMISSION_URL, LOCATION, 1024L, null);
+        cache.put("http://other.example.com/submission", LOCATION, 1024L, null);
+
+        cache.invalidate(SUBMISSION_URL);
+
+        assertNull(cache.get(SUBMISSION_URL));
+        assertNotNull(cache.get("http://other.example.com/submission"));
+    }
+
+    @Test
+    public void unreadableCapabilitiesAreIgnored() {
+        preferences.edit().putString(SUBMISSION_URL, "{not json").commit();
+
+        assertNull(new ServerCapabilityCache(preferences, TIME_TO_LIVE).get(SUBMISSION_URL));
+    }
+}
@@ -0,0 +1,107 @@
+package org.odk.collect.android.upload;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SubmissionUploadProgressTest {
+
+    private static final String DESTINATION = "http://example.com/submission?deviceID=imei%3A123";
+
+    @Rule
+    public TemporaryFolder instanceFolder = new TemporaryFolder();
+
+    private File submissionFile;
+    private List<File> attachments;
+
+    @Before
+    public void setUp() throws IOException {
+        submissionFile = createFile("submission.xml", "<data/>");
+        attachments = Arrays.asList(
+                createFile("video.mp4", "video"),
+                createFile("photo.jpg", "photo"),
+                createFile("audio.amr", "audio"));
+    }
+
+    @Test
+    public void acceptedAttachmentsAreNotSentAgain() {
+        SubmissionUploadProgress.load(submissionFile, DESTINATION).partAccepted(attachments.subList(0, 2));
+
+        SubmissionUploadProgress progress = SubmissionUploadProgress.load(submissionFile, DESTINATION);
+        assertEquals(Collections.singletonList(attachments.get(2)), progress.getRemainingFiles(attachments));
+    }
+
+    @Test
+    public void progressIsIgnoredForAnotherDestination() {
+        SubmissionUploadProgress.load(submissionFile, DESTINATION).partAccepted(attachments.subList(0, 2));
+
+        SubmissionUploadProgress progress = SubmissionUploadProgress.load(submissionFile, "http://other.example.com/submission");
+        assertEquals(attachments, progress.getRemainingFiles(attachments));
+    }
+
+    @Test
+    public void progressIsIgnoredWhenTheSubmissionChanges() throws IOException {
+        SubmissionUploadProgress.load(submissionFile, DESTINATION).partAccepted(attachments.subList(0, 2));
+
+        submissionFile = createFile("submission.xml", "<data><changed/></data>");
+
+        SubmissionUploadProgress progress = SubmissionUploadProgress.load(submissionFile, DESTINATION);
+        assertEquals(attachments, progress.getRemainingFiles(attachments));
+    }
+
+    @Test
+    public void replacedAttachmentsAreSentAgain() throws IOException {
+        SubmissionUploadProgress.load(submissionFile, DESTINATION).partAccepted(attachments.subList(0, 1));
+
+        createFile("video.mp4", "a longer video");
+
+        SubmissionUploadProgress progress = SubmissionUploadProgress.load(submissionFile, DESTINATION);
+        assertEquals(attachments, progress.getRemainingFiles(attachments));
+    }
+
+    @Test
+    public void deletingForgetsTheProgress() {
+        SubmissionUploadProgress progress = SubmissionUploadProgress.load(submissionFile, DESTINATION);
+        progress.partAccepted(attachments.subList(0, 2));
+        assertTrue(new File(instanceFolder.getRoot(), SubmissionUploadProgress.PROGRESS_FILE_NAME).exists());
+
+        progress.delete();
+
+        assertFalse(new File(instanceFolder.getRoot(), SubmissionUploadProgress.PROGRESS_FILE_NAME).exists());
+        assertEquals(0, SubmissionUploadProgress.load(submissionFile, DESTINATION).getAcceptedCount());
+    }
+
+    @Test
+    public void retryDelaysGrowExponentiallyWithJitter() {
+        Random random = new Random(42);
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            long maxDelay = 2000L << (attempt - 1);
+            for (int i = 0; i < 100; i++) {
+                long delay = InstanceServerUploader.getRetryDelay(attempt, random);
+                assertTrue(delay >= maxDelay / 2);
+                assertTrue(delay <= maxDelay);
+            }
+        }
+    }
+
+    private File createFile(String name, String contents) throws IOException {
+        File file = new File(instanceFolder.getRoot(), name);
+        try (FileWriter writer = new FileWriter(file)) {
+            writer.write(contents);
+        }
+        return file;
+    }
+}
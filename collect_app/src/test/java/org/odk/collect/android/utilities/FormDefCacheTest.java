@@ -0,0 +1,105 @@
+package org.odk.collect.android.utilities;
+
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FormDefCacheTest {
+
+    @Test
+    public void cacheKeyChangesWhenFormFileChanges() throws IOException {
+        File formXml = File.createTempFile("form", ".xml");
+        formXml.deleteOnExit();
+        writeString(formXml, "<h:html/>");
+
+        String originalKey = FormDefCache.getCacheKey(formXml);
+        assertEquals(originalKey, FormDefCache.getCacheKey(formXml));
+
+        writeString(formXml, "<h:html></h:html>");
+        assertNotEquals(originalKey, FormDefCache.getCacheKey(formXml));
+    }
+
+    @Test
+    public void cacheFilePathFollowsTheCacheKey() throws IOException {
+        File formXml = File.createTempFile("form", ".xml");
+        formXml.deleteOnExit();
+        writeString(formXml, "<h:html/>");
+
+        assertEquals(FormDefCache.getCacheKey(formXml) + ".formdef",
+                new File(FormDefCache.getCacheFilePath(formXml)).getName());
+    }
+
+    @Test
+    public void cacheFileWithCurrentVersionIsRead() throws IOException {
+        byte[] payload = {1, 2, 3, 4};
+        File cacheFile = writeCacheFile(0x4F444B46, FormDefCache.CACHE_FILE_VERSION, payload);
+
+        assertArrayEquals(payload, FormDefCache.readCacheFile(cacheFile));
+    }
+
+    @Test
+    public void cacheFileWithOtherVersionIsRejected() throws IOException {
+        File cacheFile = writeCacheFile(0x4F444B46, FormDefCache.CACHE_FILE_VERSION + 1, new byte[]{1});
+
+        assertNull(FormDefCache.readCacheFile(cacheFile));
+    }
+
+    @Test
+    public void cacheFileWithoutHeaderIsRejected() throws IOException {
+        File cacheFile = writeCacheFile(0, 0, new byte[]{1});
+
+        assertNull(FormDefCache.readCacheFile(cacheFile));
+    }
+
+    @Test
+    public void memoryCacheEvictsLeastRecentlyUsedEntries() {
+        FormDefCache.MemoryCache cache = new FormDefCache.MemoryCache(10);
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[4]);
+        cache.get("a");
+        cache.put("c", new byte[4]);
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void memoryCacheIgnoresEntriesLargerThanItsCapacity() {
+        FormDefCache.MemoryCache cache = new FormDefCache.MemoryCache(10);
+        cache.put("a", new byte[4]);
+        cache.put("b", new byte[11]);
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    private static File writeCacheFile(int magic, int version, byte[] payload) throws IOException {
+        File cacheFile = File.createTempFile("cache", ".formdef");
+        cacheFile.deleteOnExit();
+        DataOutputStream dos = new DataOutputStream(new FileOutputStream(cacheFile));
+        dos.writeInt(magic);
+        dos.writeInt(version);
+        dos.writeInt(payload.length);
+        dos.write(payload);
+        dos.close();
+        return cacheFile;
+    }
+
+    private static void writeString(File file, String contents) throws IOException {
+        FileWriter fw = new FileWriter(file);
+        fw.write(contents);
+        fw.close();
+    }
+}
@@ -0,0 +1,148 @@
+package org.odk.collect.android.utilities;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.kxml2.io.KXmlParser;
+import org.odk.collect.android.logic.FormDetails;
+import org.odk.collect.android.logic.MediaFile;
+import org.robolectric.RobolectricTestRunner;
+import org.xmlpull.v1.XmlPullParser;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+public class FormListParserTest {
+
+    private static final String OPEN_ROSA_FORM_LIST =
+            "<xforms xmlns=\"http://openrosa.org/xforms/xformsList\">\n"
+            + "  <xform>\n"
+            + "    <formID>one</formID>\n"
+            + "    <name> First form </name>\n"
+            + "    <majorMinorVersion>2</majorMinorVersion>\n"
+            + "    <hash>md5:0123456789abcdef0123456789abcdef</hash>\n"
+            + "    <descriptionUrl>http://example.com/description</descriptionUrl>\n"
+            + "    <downloadUrl>http://example.com/formXml?formId=one</downloadUrl>\n"
+            + "    <manifestUrl>http://example.com/xformsManifest?formId=one</manifestUrl>\n"
+            + "  </xform>\n"
+            + "  <extension xmlns=\"http://example.com/extension\"><xform>ignored</xform></extension>\n"
+            + "  <xform>\n"
+            + "    <formID>two</formID>\n"
+            + "    <name>Second form</name>\n"
+            + "    <version>3</version>\n"
+            + "    <downloadUrl>http://example.com/formXml?formId=two</downloadUrl>\n"
+            + "  </xform>\n"
+            + "</xforms>";
+
+    private static final String MANIFEST =
+            "<manifest xmlns=\"http://openrosa.org/xforms/xformsManifest\">\n"
+            + "  <mediaFile>\n"
+            + "    <filename>image.png</filename>\n"
+            + "    <hash>md5:0123456789abcdef0123456789abcdef</hash>\n"
+            + "    <downloadUrl>http://example.com/image.png</downloadUrl>\n"
+            + "  </mediaFile>\n"
+            + "</manifest>";
+
+    @Test
+    public void openRosaFormListsAreRead() throws Exception {
+        List<FormDetails> forms = parseFormList(OPEN_ROSA_FORM_LIST, true);
+
+        assertEquals(2, forms.size());
+        assertEquals("one", forms.get(0).getFormID());
+        assertEquals("First form", forms.get(0).getFormName());
+        assertEquals("2", forms.get(0).getFormVersion());
+        assertEquals("md5:0123456789abcdef0123456789abcdef", forms.get(0).getHash());
+        assertEquals("http://example.com/formXml?formId=one", forms.get(0).getDownloadUrl());
+        assertEquals("http://example.com/xformsManifest?formId=one", forms.get(0).getManifestUrl());
+
+        assertEquals("two", forms.get(1).getFormID());
+        assertEquals("3", forms.get(1).getFormVersion());
+        assertNull(forms.get(1).getManifestUrl());
+    }
+
+    @Test
+    public void legacyFormListsAreRead() throws Exception {
+        List<FormDetails> forms = parseFormList("<forms>"
+                + "<formID>one</formID><form url=\" http://example.com/formXml?formId=one \">First form</form>"
+                + "<form url=\"http://example.com/formXml?formId=two\">Second form</form>"
+                + "</forms>", false);
+
+        assertEquals(2, forms.size());
+        assertEquals("one", forms.get(0).getFormID());
+        assertEquals("http://example.com/formXml?formId=one", forms.get(0).getDownloadUrl());
+        assertNull(forms.get(1).getFormID());
+        assertEquals("Second form", forms.get(1).getFormName());
+    }
+
+    @Test
+    public void formListEntriesWithoutADownloadUrlAreRejected() throws Exception {
+        try {
+            parseFormList("<xforms xmlns=\"http://openrosa.org/xforms/xformsList\">"
+                    + "<xform><formID>one</formID><name>First form</name></xform></xforms>", true);
+            fail();
+        } catch (FormListParser.InvalidDocumentException e) {
+            assertTrue(e.getMessage().contains("Forms list entry 0"));
+        }
+    }
+
+    @Test
+    public void formListsWithAnotherRootElementAreRejected() throws Exception {
+        try {
+            parseFormList("<forms xmlns=\"http://openrosa.org/xforms/xformsList\"/>", true);
+            fail();
+        } catch (FormListParser.InvalidDocumentException e) {
+            assertTrue(e.getMessage().contains("root element is not <xforms>"));
+        }
+    }
+
+    @Test
+    public void manifestsAreRead() throws Exception {
+        List<MediaFile> mediaFiles = parseManifest(MANIFEST, true);
+
+        assertEquals(1, mediaFiles.size());
+        assertEquals("image.png", mediaFiles.get(0).getFilename());
+        assertEquals("md5:0123456789abcdef0123456789abcdef", mediaFiles.get(0).getHash());
+        assertEquals("http://example.com/image.png", mediaFiles.get(0).getDownloadUrl());
+    }
+
+    @Test(expected = FormListParser.InvalidDocumentException.class)
+    public void manifestsFromOtherServersAreRejected() throws Exception {
+        parseManifest(MANIFEST, false);
+    }
+
+    private static List<FormDetails> parseFormList(String xml, boolean isOpenRosaResponse) throws Exception {
+        final List<FormDetails> forms = new ArrayList<>();
+        FormListParser.parseFormList(createParser(xml), isOpenRosaResponse, new FormListParser.FormListener() {
+            @Override
+            public void formFound(FormDetails formDetails) {
+                forms.add(formDetails);
+            }
+        });
+        return forms;
+    }
+
+    private static List<MediaFile> parseManifest(String xml, boolean isOpenRosaResponse) throws Exception {
+        final List<MediaFile> mediaFiles = new ArrayList<>();
+        FormListParser.parseManifest(createParser(xml), isOpenRosaResponse, "http://example.com/xformsManifest",
+                new FormListParser.MediaFileListener() {
+                    @Override
+                    public void mediaFileFound(MediaFile mediaFile) {
+                        mediaFiles.add(mediaFile);
+                    }
+                });
+        return mediaFiles;
+    }
+
+    private static XmlPullParser createParser(String xml) throws Exception {
+        KXmlParser parser = new KXmlParser();
+        parser.setInput(new StringReader(xml));
+        parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+        return parser;
+    }
+}
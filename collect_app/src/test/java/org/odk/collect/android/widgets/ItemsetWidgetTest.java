@@ -26,6 +26,7 @@ import org.odk.collect.android.widgets.base.QuestionWidgetTest;
 import org.robolectric.RuntimeEnvironment;
 
 import java.io.File;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -33,7 +34,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyList;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -112,6 +117,7 @@ public class ItemsetWidgetTest extends QuestionWidgetTest<ItemsetWidget, StringD
     @Override
     public void setUp() throws Exception {
         super.setUp();
+        ItemsetWidget.clearCache();
         choices = createChoices();
         CursorMocker cursorMocker = new CursorMocker(choices, cursor);
 
@@ -157,6 +163,30 @@ public class ItemsetWidgetTest extends QuestionWidgetTest<ItemsetWidget, StringD
         assertEquals(answer.getDisplayText(), selectedChoice);
     }
 
+    @Test
+    public void itemsShouldBeReadOnceForTheSameAnswers() {
+        ItemsetWidget widget = getWidget();
+        ItemsetWidget sameQueryWidget = createWidget();
+
+        assertEquals(widget.getChoiceCount(), sameQueryWidget.getChoiceCount());
+        verify(adapter, times(1)).query(anyString(), anyString(), any(String[].class));
+    }
+
+    @Test
+    public void showingItemsShouldNotCreateIndexes() {
+        getWidget();
+
+        verify(adapter, never()).createIndex(anyString(), anyList());
+    }
+
+    @Test
+    public void createIndexShouldIndexTheComparedColumns() {
+        ItemsetWidget.createIndex(adapter, "hash",
+                "instance('cities')/root/item[state=/data/state and county=/data/county]");
+
+        verify(adapter).createIndex("hash", Arrays.asList("list_name", "state", "county"));
+    }
+
     private Map<String, String> createChoices() {
         int choiceCount = (Math.abs(random.nextInt()) % 3) + 2;
 